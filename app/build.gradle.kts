@@ -38,8 +38,8 @@ dependencies {
     implementation(libs.activity)
     implementation(libs.constraintlayout)
 
-    // ✅ Add this line for the embedded HTTP server:
-    implementation("org.nanohttpd:nanohttpd:2.3.1")
+    // Frame pipeline, web servers and the embedded HTTP server (NanoHTTPD)
+    implementation(project(":core"))
 
     testImplementation(libs.junit)
     androidTestImplementation(libs.ext.junit)
@@ -0,0 +1,207 @@
+package com.sativa.streamscreenandroid2;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.os.Handler;
+import android.util.Log;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Hardware H.264 encoder whose input surface is rendered to directly by the VirtualDisplay.
+ * Encoded access units are packaged as fMP4 and handed to the SegmentBroadcaster.
+ */
+public class H264ScreenEncoder {
+
+    private static final String TAG = "H264ScreenEncoder";
+    private static final int FRAME_RATE = 30;
+    private static final int I_FRAME_INTERVAL_SECONDS = 2;
+    // Keep emitting frames on a static screen so new viewers are not stuck waiting
+    private static final long REPEAT_FRAME_AFTER_US = 200_000;
+
+    private final SegmentBroadcaster videoBroadcaster;
+    private final int width;
+    private final int height;
+    private MediaCodec codec;
+    private Surface inputSurface;
+    private Fmp4Muxer muxer;
+    private byte[] outputBuffer = new byte[0];
+
+    public H264ScreenEncoder(@NonNull SegmentBroadcaster videoBroadcaster, int width, int height) {
+        this.videoBroadcaster = videoBroadcaster;
+        // Most hardware encoders require even dimensions
+        this.width = width & ~1;
+        this.height = height & ~1;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Configures and starts the codec. Throws if no suitable hardware encoder is available,
+     * in which case the caller should fall back to the JPEG path.
+     */
+    @NonNull
+    public Surface start(@NonNull Handler callbackHandler) throws IOException {
+        MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, estimateBitrate(width, height));
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL_SECONDS);
+        format.setLong(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, REPEAT_FRAME_AFTER_US);
+
+        codec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
+        try {
+            codec.setCallback(new MediaCodec.Callback() {
+                @Override
+                public void onInputBufferAvailable(@NonNull MediaCodec mc, int index) {
+                    // Input comes from the surface
+                }
+
+                @Override
+                public void onOutputBufferAvailable(@NonNull MediaCodec mc, int index, @NonNull MediaCodec.BufferInfo info) {
+                    handleOutput(mc, index, info);
+                }
+
+                @Override
+                public void onError(@NonNull MediaCodec mc, @NonNull MediaCodec.CodecException e) {
+                    Log.e(TAG, "Encoder error", e);
+                }
+
+                @Override
+                public void onOutputFormatChanged(@NonNull MediaCodec mc, @NonNull MediaFormat newFormat) {
+                    Log.d(TAG, "Output format: " + newFormat);
+                }
+            }, callbackHandler);
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            inputSurface = codec.createInputSurface();
+            codec.start();
+        } catch (RuntimeException e) {
+            release();
+            throw new IOException("Failed to configure H.264 encoder " + width + "x" + height, e);
+        }
+
+        Log.d(TAG, "H.264 encoder started " + width + "x" + height);
+        return inputSurface;
+    }
+
+    @Nullable
+    public Surface getInputSurface() {
+        return inputSurface;
+    }
+
+    /**
+     * While suspended the codec drops surface input, so KEY_REPEAT_PREVIOUS_FRAME_AFTER does
+     * not keep producing frames for a detached display.
+     */
+    public void setSuspended(boolean suspended) {
+        setParameter(MediaCodec.PARAMETER_KEY_SUSPEND, suspended ? 1 : 0);
+    }
+
+    /**
+     * Makes the next encoded frame a keyframe, so viewers joining now start without waiting
+     * for the I-frame interval.
+     */
+    public void requestKeyFrame() {
+        setParameter(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+    }
+
+    private void setParameter(String key, int value) {
+        if (codec == null) {
+            return;
+        }
+        Bundle params = new Bundle();
+        params.putInt(key, value);
+        try {
+            codec.setParameters(params);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Could not set " + key, e);
+        }
+    }
+
+    private static int estimateBitrate(int width, int height) {
+        // ~0.1 bit per pixel at 30 fps is plenty for screen content
+        return Math.max(500_000, (int) (width * (long) height * FRAME_RATE / 10));
+    }
+
+    private void handleOutput(MediaCodec mc, int index, MediaCodec.BufferInfo info) {
+        try {
+            ByteBuffer buffer = mc.getOutputBuffer(index);
+            if (buffer == null || info.size == 0) {
+                return;
+            }
+            if (outputBuffer.length < info.size) {
+                outputBuffer = new byte[info.size];
+            }
+            buffer.position(info.offset);
+            buffer.get(outputBuffer, 0, info.size);
+            List<byte[]> nals = AnnexBReader.split(outputBuffer, 0, info.size);
+
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                onCodecConfig(nals);
+                return;
+            }
+            if (muxer == null) {
+                return;
+            }
+
+            boolean keyframe = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+            byte[] fragment = muxer.createFragment(nals, info.presentationTimeUs, keyframe);
+            videoBroadcaster.publish(fragment, keyframe);
+        } catch (Exception e) {
+            Log.e(TAG, "Error packaging encoded frame", e);
+        } finally {
+            try {
+                mc.releaseOutputBuffer(index, false);
+            } catch (IllegalStateException ignore) {
+                // Codec already stopped
+            }
+        }
+    }
+
+    private void onCodecConfig(List<byte[]> nals) {
+        byte[] sps = null;
+        byte[] pps = null;
+        for (byte[] nal : nals) {
+            int type = AnnexBReader.nalType(nal);
+            if (type == AnnexBReader.NAL_SPS) sps = nal;
+            else if (type == AnnexBReader.NAL_PPS) pps = nal;
+        }
+        if (sps == null || pps == null) {
+            Log.w(TAG, "Codec config without SPS/PPS");
+            return;
+        }
+        muxer = new Fmp4Muxer(width, height, sps, pps);
+        videoBroadcaster.start(muxer.createInitSegment(), muxer.getCodecString());
+    }
+
+    public void release() {
+        videoBroadcaster.stop();
+        if (codec != null) {
+            try {
+                codec.stop();
+            } catch (IllegalStateException ignore) {
+            }
+            codec.release();
+            codec = null;
+        }
+        if (inputSurface != null) {
+            inputSurface.release();
+            inputSurface = null;
+        }
+        muxer = null;
+    }
+}
@@ -103,11 +103,77 @@ public class MainActivity extends AppCompatActivity {
         return fallback;
     }
 
+    private int resolveIntFromUi(int viewId, int fallback) {
+        EditText edit = findViewById(viewId);
+        if (edit == null) {
+            return fallback;
+        }
+        try {
+            return Integer.parseInt(edit.getText().toString().trim());
+        } catch (NumberFormatException ignore) {
+            return fallback;
+        }
+    }
+
+    private float resolveScaleFromUi() {
+        EditText edit = findViewById(R.id.editOutputScale);
+        if (edit == null) {
+            return StreamConfig.SCALE_AUTO;
+        }
+        try {
+            return Float.parseFloat(edit.getText().toString().trim());
+        } catch (NumberFormatException ignore) {
+            return StreamConfig.SCALE_AUTO;
+        }
+    }
+
+    private StreamConfig.CaptureMode resolveCaptureModeFromUi() {
+        android.widget.RadioGroup group = findViewById(R.id.groupCaptureMode);
+        if (group == null) {
+            return StreamConfig.CaptureMode.JPEG;
+        }
+
+        int checked = group.getCheckedRadioButtonId();
+        if (checked == R.id.radioModeTiles) {
+            return StreamConfig.CaptureMode.TILES;
+        }
+        if (checked == R.id.radioModeStripes) {
+            return StreamConfig.CaptureMode.STRIPES;
+        }
+        if (checked == R.id.radioModeH264) {
+            return StreamConfig.CaptureMode.H264;
+        }
+        return StreamConfig.CaptureMode.JPEG;
+    }
+
     private void startSharing() {
         int port = resolvePortFromUi();
         currentPort = port;
         StreamConfig.setPort(port);
 
+        StreamConfig.setCaptureMode(resolveCaptureModeFromUi());
+        android.widget.CheckBox checkNio = findViewById(R.id.checkNioServer);
+        StreamConfig.setServerEngine(checkNio != null && checkNio.isChecked()
+                ? StreamConfig.ServerEngine.NIO
+                : StreamConfig.ServerEngine.NANOHTTPD);
+        android.widget.CheckBox checkRecord = findViewById(R.id.checkRecord);
+        StreamConfig.setRecordingEnabled(checkRecord != null && checkRecord.isChecked());
+        android.widget.CheckBox checkReplay = findViewById(R.id.checkReplay);
+        StreamConfig.setReplaySeconds(checkReplay != null && checkReplay.isChecked()
+                ? (int) (ReplayBuffer.DEFAULT_MAX_DURATION_MS / 1000) : 0);
+        // StreamConfig ignores values outside 1..60 and keeps the target at or below the maximum
+        StreamConfig.setFrameRates(resolveIntFromUi(R.id.editTargetFps, StreamConfig.DEFAULT_TARGET_FPS),
+                resolveIntFromUi(R.id.editMaxFps, StreamConfig.DEFAULT_MAX_FPS));
+        // Empty fields mean the adaptive scale without an edge limit
+        StreamConfig.setOutputScale(resolveScaleFromUi());
+        StreamConfig.setMaxLongEdge(resolveIntFromUi(R.id.editMaxLongEdge, 0));
+        // Empty means no fixed budget: the controller follows the slowest viewer
+        StreamConfig.setBandwidthBudgetKbps(resolveIntFromUi(R.id.editBandwidthBudget, 0));
+        // Empty or unparsable means the whole screen; viewers can change it later via /region
+        EditText editRegion = findViewById(R.id.editCaptureRegion);
+        StreamConfig.setCaptureRegion(editRegion == null ? null
+                : CaptureRegion.parse(editRegion.getText().toString().trim()));
+
         String password = editPassword.getText().toString().trim();
         if (password.isEmpty()) {
             Toast.makeText(this, "Please enter a password for the stream.", Toast.LENGTH_SHORT).show();
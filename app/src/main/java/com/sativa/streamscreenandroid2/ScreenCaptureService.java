@@ -6,7 +6,6 @@ import android.app.NotificationManager;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.PixelFormat;
@@ -17,17 +16,22 @@ import android.media.ImageReader;
 import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
 import android.os.Build;
+import android.os.Debug;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.Display;
+import android.view.Surface;
 import android.view.WindowManager;
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Locale;
 
 public class ScreenCaptureService extends Service {
 
@@ -37,29 +41,154 @@ public class ScreenCaptureService extends Service {
     private static final String TAG = "ScreenCaptureService";
     private static final String CHANNEL_ID = "screen_share_channel";
     private static final int NOTIFICATION_ID = 1001;
-    private static final String PREFS_NAME = "stream_prefs";
-    private static final String KEY_PASSWORD = "password";
+    // Frames are copied out immediately, so one spare image is enough headroom
+    private static final int MAX_IMAGES = 3;
+    private static final long STATS_LOG_INTERVAL_NANOS = 10_000_000_000L;
+    // Current frame of each rendition, frames being sent and the one being encoded
+    private static final int FRAME_POOL_SLOTS = 16;
+    // While capturing, how often the viewer count is checked for pausing
+    private static final long DEMAND_CHECK_INTERVAL_MS = 1000;
     private MediaProjectionManager projectionManager;
     private MediaProjection mediaProjection;
     private VirtualDisplay virtualDisplay;
     private ImageReader imageReader;
     private HandlerThread captureThread;
-    private Handler captureHandler;
+    private volatile Handler captureHandler;
     private FrameBroadcaster frameBroadcaster;
+    private SegmentBroadcaster videoBroadcaster;
+    private SegmentBroadcaster tileBroadcaster;
+    private H264ScreenEncoder h264Encoder;
+    private TileEncoder tileEncoder;
     private LanWebServer lanWebServer;
+    private NioStreamServer nioServer;
+    // Audit recording, null unless enabled in StreamConfig
+    private volatile FrameRecorder recorder;
+    // Look-back for /replay, null if turned off in StreamConfig
+    private volatile ReplayBuffer replayBuffer;
+    private final ViewerSessions viewerSessions = new ViewerSessions();
+    private final PipelineMetrics metrics = new PipelineMetrics();
+    // Demand-driven capture: the display is detached while nobody watches
+    private final ViewerTracker viewerTracker = new ViewerTracker();
+    private final DemandGate demandGate = new DemandGate();
+    private final Runnable demandCheck = this::checkDemand;
     private int currentOrientation;
+    private final FramePipeline framePipeline = new FramePipeline(2, this::encodeFrame,
+            e -> Log.e(TAG, "Error encoding screen frame", e));
+    private long lastStatsLogNanos;
+    // Reused across frames on the encoder thread; large frames are scaled in row bands
+    private final RgbaFrameScaler frameScaler = new RgbaFrameScaler(RgbaFrameScaler.defaultThreads());
+    // Long edge limit from StreamConfig, 0 for none
+    private int maxLongEdge;
+    private final ByteArrayOutputStream jpegStream = new ByteArrayOutputStream(256 * 1024);
+    // JPEGs are compressed straight into shared direct buffers; jpegStream is the fallback
+    // when readers still hold every slot
+    private final FrameBufferPool framePool = new FrameBufferPool(FRAME_POOL_SLOTS, 256 * 1024);
+    private Bitmap scaledBitmap;
+    // Fixed renditions: the largest watched level is scaled from the plane, the rest halved from it
+    private final RgbaFrameScaler pyramidScaler = new RgbaFrameScaler();
+    private final ScalePyramid pyramid = new ScalePyramid();
+    private final Bitmap[] renditionBitmaps = new Bitmap[ScalePyramid.LEVELS];
+    private long lastFingerprint;
+    private boolean hasFingerprint;
+    // Region the capture thread copied last (null = whole display), to notice changes
+    @Nullable
+    private CaptureRegion appliedRegion;
+    // Display the capture region's coordinates refer to, for remapping it on rotation
+    private int regionDisplayRotation;
+    private int regionDisplayWidth;
+    private int regionDisplayHeight;
+    // Picks JPEG quality, output scale and frame rate from encoder cost, viewer drain rate and
+    // the configured bandwidth budget
+    private final AdaptiveQualityController qualityController =
+            new AdaptiveQualityController(StreamConfig.getBandwidthBudgetBytesPerSecond(),
+                    StreamConfig.getMaxFps());
+    // Paces acquisition at the configured rate; the controller can only lower it
+    private final FrameRateGovernor frameRateGovernor =
+            new FrameRateGovernor(StreamConfig.getTargetFps(), StreamConfig.getMaxFps());
+    private boolean capturePending;
 
     @Override
     public void onCreate() {
         super.onCreate();
         Log.d(TAG, "onCreate");
         frameBroadcaster = new FrameBroadcaster();
+        videoBroadcaster = new SegmentBroadcaster();
+        tileBroadcaster = new SegmentBroadcaster();
         projectionManager = (MediaProjectionManager) getSystemService(MEDIA_PROJECTION_SERVICE);
         currentOrientation = getResources().getConfiguration().orientation;
+        registerRuntimeMetrics();
+        // A returning viewer resumes capture right away instead of at the next check
+        viewerTracker.setListener(() -> {
+            Handler handler = captureHandler;
+            if (handler != null) {
+                handler.post(demandCheck);
+            }
+        });
 
         createNotificationChannel();
     }
 
+    private void registerRuntimeMetrics() {
+        metrics.addCounter("gc_count_total", "Garbage collections since process start.",
+                () -> runtimeStat("art.gc.gc-count"));
+        metrics.addCounter("gc_time_seconds_total", "Time spent in garbage collection.",
+                () -> runtimeStat("art.gc.gc-time") / 1000.0);
+        metrics.addCounter("gc_blocking_count_total", "Collections that blocked an allocating thread.",
+                () -> runtimeStat("art.gc.blocking-gc-count"));
+        // rate() of this is the allocation rate
+        metrics.addCounter("allocated_bytes_total", "Bytes allocated on the Java heap.",
+                () -> runtimeStat("art.gc.bytes-allocated"));
+        metrics.addGauge("encoder_queue_depth", "Frames waiting for the encoder thread.",
+                framePipeline::getQueueDepth);
+        metrics.addGauge("capture_fps", "Frames per second taken from the ImageReader.",
+                () -> frameRateGovernor.getCapturedFps(System.nanoTime()));
+        metrics.addGauge("capture_target_fps", "Configured steady capture rate.",
+                frameRateGovernor::getTargetFps);
+        metrics.addGauge("viewers_present", "Connected streams plus recently polling viewers.",
+                viewerTracker::getViewerCount);
+        metrics.addGauge("capture_paused", "1 while capture is paused for lack of viewers.",
+                () -> demandGate.isPaused() ? 1 : 0);
+        metrics.addCounter("capture_pauses_total", "Times capture was paused for lack of viewers.",
+                demandGate::getPauseCount);
+        metrics.addCounter("recorded_frames_total", "Frames written to the recording archive.", () -> {
+            FrameRecorder current = recorder;
+            return current == null ? 0 : current.getRecordedCount();
+        });
+        metrics.addCounter("recording_skipped_frames_total", "Frames replaced before the recorder got to them.", () -> {
+            FrameRecorder current = recorder;
+            return current == null ? 0 : current.getSkippedCount();
+        });
+        metrics.addGauge("recording_bytes", "Size of the recording archive on disk.", () -> {
+            FrameRecorder current = recorder;
+            return current == null ? 0 : current.getArchive().getTotalBytes();
+        });
+        metrics.addGauge("replay_frames", "Frames held for /replay.", () -> {
+            ReplayBuffer current = replayBuffer;
+            return current == null ? 0 : current.getFrameCount();
+        });
+        metrics.addGauge("replay_bytes", "Bytes held for /replay.", () -> {
+            ReplayBuffer current = replayBuffer;
+            return current == null ? 0 : current.getHeldBytes();
+        });
+        metrics.addGauge("replay_span_seconds", "Time between the oldest and newest frame held for /replay.", () -> {
+            ReplayBuffer current = replayBuffer;
+            return current == null ? 0 : current.getDurationNanos() / 1e9;
+        });
+        metrics.addCounter("replay_evicted_frames_total", "Frames dropped from the replay buffer to make room.", () -> {
+            ReplayBuffer current = replayBuffer;
+            return current == null ? 0 : current.getEvictedCount();
+        });
+    }
+
+    private static double runtimeStat(String name) {
+        String value = Debug.getRuntimeStat(name);
+        try {
+            return value == null ? 0 : Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "onStartCommand");
@@ -76,9 +205,8 @@ public class ScreenCaptureService extends Service {
             password = "1234";
         }
 
-        // Store password in SharedPreferences for the web server
-        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        prefs.edit().putString(KEY_PASSWORD, password).apply();
+        // The web server checks logins against this in-memory copy; changing it ends all sessions
+        viewerSessions.setPassword(password);
 
         startForeground(NOTIFICATION_ID, buildNotification());
 
@@ -115,20 +243,68 @@ public class ScreenCaptureService extends Service {
 
         Log.d(TAG, "New display size: " + width + "x" + height + " density=" + density);
 
+        // Keep the capture region on the same part of the panel
+        int rotation = getDisplayRotation();
+        StreamConfig.rotateCaptureRegion(rotation - regionDisplayRotation, regionDisplayWidth, regionDisplayHeight);
+        regionDisplayRotation = rotation;
+        regionDisplayWidth = width;
+        regionDisplayHeight = height;
+
+        if (h264Encoder != null) {
+            // The encoder has a fixed size, so restart it; viewers re-initialise on the new stream
+            virtualDisplay.setSurface(null);
+            h264Encoder.release();
+            Surface surface = startH264Encoder(width, height);
+            if (surface != null) {
+                virtualDisplay.resize(h264Encoder.getWidth(), h264Encoder.getHeight(), density);
+                if (demandGate.isPaused()) {
+                    // Stays detached; resumeCapture attaches the new encoder
+                    h264Encoder.setSuspended(true);
+                } else {
+                    virtualDisplay.setSurface(surface);
+                }
+                return;
+            }
+            Log.w(TAG, "H.264 restart failed, falling back to JPEG");
+        }
+
         // Close old image reader
         if (imageReader != null) {
             imageReader.close();
         }
 
         // Create new image reader with new dimensions
-        imageReader = ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, 2);
+        imageReader = ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, MAX_IMAGES);
         imageReader.setOnImageAvailableListener(this::onImageAvailable, captureHandler);
+        framePipeline.start();
 
         // Resize the existing virtual display instead of creating a new one
         virtualDisplay.resize(width, height, density);
 
-        // Update the surface
-        virtualDisplay.setSurface(imageReader.getSurface());
+        // Update the surface, unless paused for lack of viewers
+        if (!demandGate.isPaused()) {
+            virtualDisplay.setSurface(imageReader.getSurface());
+        }
+    }
+
+    /**
+     * Starts the hardware encoder at half the display size (the GPU does the downscale when
+     * rendering the virtual display). Returns its input surface, or null if unavailable.
+     */
+    @Nullable
+    private Surface startH264Encoder(int displayWidth, int displayHeight) {
+        H264ScreenEncoder encoder = new H264ScreenEncoder(videoBroadcaster,
+                Math.max(2, displayWidth / 2), Math.max(2, displayHeight / 2));
+        try {
+            Surface surface = encoder.start(captureHandler);
+            h264Encoder = encoder;
+            return surface;
+        } catch (Exception e) {
+            Log.e(TAG, "Hardware H.264 encoder unavailable", e);
+            encoder.release();
+            h264Encoder = null;
+            return null;
+        }
     }
 
     private DisplayMetrics getCurrentDisplayMetrics() {
@@ -160,6 +336,18 @@ public class ScreenCaptureService extends Service {
         return metrics;
     }
 
+    private int getDisplayRotation() {
+        DisplayManager displayManager = (DisplayManager) getSystemService(Context.DISPLAY_SERVICE);
+        Display display = displayManager != null ? displayManager.getDisplay(Display.DEFAULT_DISPLAY) : null;
+        return display != null ? display.getRotation() : Surface.ROTATION_0;
+    }
+
+    private float getDisplayRefreshRate() {
+        DisplayManager displayManager = (DisplayManager) getSystemService(Context.DISPLAY_SERVICE);
+        Display display = displayManager != null ? displayManager.getDisplay(Display.DEFAULT_DISPLAY) : null;
+        return display != null ? display.getRefreshRate() : 0;
+    }
+
     private Notification buildNotification() {
         int port = StreamConfig.getPort();
 
@@ -189,18 +377,49 @@ public class ScreenCaptureService extends Service {
         Log.d(TAG, "startCapture");
         mediaProjection = projectionManager.getMediaProjection(resultCode, dataIntent);
 
+        // A fixed output scale caps the adaptive ladder; it still steps down when congested
+        if (StreamConfig.getOutputScale() != StreamConfig.SCALE_AUTO) {
+            qualityController.setMaxScale(StreamConfig.getOutputScale());
+        }
+        maxLongEdge = StreamConfig.getMaxLongEdge();
+
+        // Only LanWebServer serves /replay, so the NIO engine never needs the arena
+        if (StreamConfig.getReplaySeconds() > 0 && replayBuffer == null
+                && StreamConfig.getServerEngine() == StreamConfig.ServerEngine.NANOHTTPD) {
+            replayBuffer = new ReplayBuffer(frameBroadcaster, StreamConfig.getReplayMaxBytes(),
+                    StreamConfig.getReplaySeconds() * 1000L);
+            replayBuffer.start();
+        }
+
         // Start HTTP server on selected port (only once)
-        if (lanWebServer == null) {
+        if (lanWebServer == null && nioServer == null) {
             int port = StreamConfig.getPort();  // read whatever MainActivity chose
             try {
-                lanWebServer = new LanWebServer(getApplicationContext(), port, frameBroadcaster);
-                lanWebServer.start();
-                Log.d(TAG, "Web server started on port " + port);
+                if (StreamConfig.getServerEngine() == StreamConfig.ServerEngine.NIO) {
+                    nioServer = new NioStreamServer(port, frameBroadcaster, viewerSessions);
+                    nioServer.setDeliveryListener(DeliveryListener.both(qualityController, metrics));
+                    nioServer.setMetrics(metrics);
+                    nioServer.setViewerTracker(viewerTracker);
+                    nioServer.start();
+                    Log.d(TAG, "NIO server started on port " + port);
+                } else {
+                    lanWebServer = new LanWebServer(port, viewerSessions, frameBroadcaster, videoBroadcaster, tileBroadcaster);
+                    lanWebServer.setDeliveryListener(DeliveryListener.both(qualityController, metrics));
+                    lanWebServer.setMetrics(metrics);
+                    lanWebServer.setViewerTracker(viewerTracker);
+                    lanWebServer.setReplayBuffer(replayBuffer);
+                    lanWebServer.start();
+                    Log.d(TAG, "Web server started on port " + port);
+                }
             } catch (Exception e) {
                 Log.e(TAG, "Failed to start web server on port " + port, e);
             }
         }
 
+        if (StreamConfig.isRecordingEnabled() && recorder == null) {
+            startRecording();
+        }
+
         if (mediaProjection == null) {
             Log.e(TAG, "MediaProjection is null");
             stopSelf();
@@ -223,39 +442,134 @@ public class ScreenCaptureService extends Service {
         int density = metrics.densityDpi;
 
         Log.d(TAG, "Virtual display size: " + width + "x" + height + " density=" + density);
+        regionDisplayRotation = getDisplayRotation();
+        regionDisplayWidth = width;
+        regionDisplayHeight = height;
 
-        imageReader = ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, 2);
+        // Frames reach the ImageReader on the panel's vsync; pace capture on the same grid
+        frameRateGovernor.setRefreshRate(getDisplayRefreshRate());
+        frameRateGovernor.setDemand(viewerTracker);
 
         captureThread = new HandlerThread("ScreenCaptureThread");
         captureThread.start();
         captureHandler = new Handler(captureThread.getLooper());
 
-        imageReader.setOnImageAvailableListener(this::onImageAvailable, captureHandler);
+        Surface surface = null;
+        int displayWidth = width;
+        int displayHeight = height;
+        StreamConfig.CaptureMode mode = StreamConfig.getCaptureMode();
+        if (mode == StreamConfig.CaptureMode.TILES || mode == StreamConfig.CaptureMode.STRIPES) {
+            tileEncoder = new TileEncoder(tileBroadcaster, frameBroadcaster, mode == StreamConfig.CaptureMode.TILES);
+        }
+        if (mode == StreamConfig.CaptureMode.H264) {
+            surface = startH264Encoder(width, height);
+            if (surface != null) {
+                displayWidth = h264Encoder.getWidth();
+                displayHeight = h264Encoder.getHeight();
+            }
+        }
+
+        if (surface == null) {
+            // JPEG path (default, and fallback when no hardware encoder is available)
+            imageReader = ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, MAX_IMAGES);
+            imageReader.setOnImageAvailableListener(this::onImageAvailable, captureHandler);
+            surface = imageReader.getSurface();
+            framePipeline.start();
+        }
+        // The full/half/quarter ladder is only produced by the plain JPEG path
+        frameBroadcaster.setSimulcastEnabled(tileEncoder == null && h264Encoder == null);
 
         virtualDisplay = mediaProjection.createVirtualDisplay(
                 "ScreenCapture",
-                width,
-                height,
+                displayWidth,
+                displayHeight,
                 density,
                 DisplayManager.VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR,
-                imageReader.getSurface(),
+                surface,
                 null,
                 null
         );
+        captureHandler.postDelayed(demandCheck, DEMAND_CHECK_INTERVAL_MS);
+    }
+
+    /**
+     * Runs on the capture thread, periodically while capturing and whenever a viewer arrives.
+     * While paused nothing is polled: the tracker's listener wakes us.
+     */
+    private void checkDemand() {
+        captureHandler.removeCallbacks(demandCheck);
+        if (virtualDisplay == null) {
+            return;
+        }
+        switch (demandGate.update(viewerTracker.getViewerCount(), System.nanoTime())) {
+            case PAUSE:
+                pauseCapture();
+                break;
+            case RESUME:
+                resumeCapture();
+                break;
+            default:
+                break;
+        }
+        if (!demandGate.isPaused()) {
+            captureHandler.postDelayed(demandCheck, DEMAND_CHECK_INTERVAL_MS);
+        }
     }
 
+    private void pauseCapture() {
+        Log.d(TAG, "No viewers, pausing capture (" + viewerTracker + ")");
+        // Without a surface the virtual display is not composited at all
+        virtualDisplay.setSurface(null);
+        if (h264Encoder != null) {
+            h264Encoder.setSuspended(true);
+        }
+    }
+
+    private void resumeCapture() {
+        Log.d(TAG, "Viewer arrived, resuming capture (" + viewerTracker + ")");
+        if (h264Encoder != null) {
+            h264Encoder.setSuspended(false);
+            h264Encoder.requestKeyFrame();
+            virtualDisplay.setSurface(h264Encoder.getInputSurface());
+        } else if (imageReader != null) {
+            // Encode the first frame even if the screen has not changed during the pause
+            hasFingerprint = false;
+            virtualDisplay.setSurface(imageReader.getSurface());
+        }
+    }
+
+    /**
+     * Capture stage: runs on the capture thread and only copies the plane into a pooled
+     * buffer, so the ImageReader is never held up by encoding.
+     */
     private void onImageAvailable(ImageReader reader) {
         Image image = null;
-        Bitmap bitmap = null;
-        Bitmap cropped = null;
-        Bitmap scaled = null;
-        ByteArrayOutputStream baos = null;
+
+        // Leave images queued until the governor says the next frame is due; the
+        // delayed retry then takes only the newest one so the final screen state is not lost
+        frameRateGovernor.setRateLimit(qualityController.getTargetFps());
+        long wait = frameRateGovernor.nanosUntilNextFrame(System.nanoTime());
+        if (wait > 0) {
+            if (!capturePending) {
+                capturePending = true;
+                captureHandler.postDelayed(() -> {
+                    capturePending = false;
+                    onImageAvailable(reader);
+                }, Math.max(1, wait / 1_000_000L));
+            }
+            return;
+        }
 
         try {
+            long acquireStart = System.nanoTime();
             image = reader.acquireLatestImage();
             if (image == null) {
                 return;
             }
+            long captureStart = System.nanoTime();
+            frameRateGovernor.onFrameCaptured(captureStart);
+            metrics.recordStage(PipelineMetrics.Stage.ACQUIRE, captureStart - acquireStart);
+            metrics.increment(PipelineMetrics.Counter.CAPTURED);
 
             int width = image.getWidth();
             int height = image.getHeight();
@@ -267,79 +581,291 @@ public class ScreenCaptureService extends Service {
             ByteBuffer buffer = planes[0].getBuffer();
             int pixelStride = planes[0].getPixelStride();
             int rowStride = planes[0].getRowStride();
-            int rowPadding = rowStride - pixelStride * width;
-
-            // Original full buffer bitmap
-            bitmap = Bitmap.createBitmap(
-                    width + rowPadding / pixelStride,
-                    height,
-                    Bitmap.Config.ARGB_8888
-            );
-            bitmap.copyPixelsFromBuffer(buffer);
-
-            // Crop to actual screen size
-            cropped = Bitmap.createBitmap(bitmap, 0, 0, width, height);
-
-            // Downscale to reduce data size (about 1/4 pixels)
-            int targetWidth = width / 2;
-            int targetHeight = height / 2;
-            if (targetWidth <= 0) targetWidth = width;
-            if (targetHeight <= 0) targetHeight = height;
 
-            scaled = Bitmap.createScaledBitmap(cropped, targetWidth, targetHeight, true);
+            // Only the capture region is fingerprinted and copied; everything after the copy
+            // sees a smaller frame
+            CaptureRegion region = currentRegion(width, height);
+            ByteBuffer regionPlane = buffer;
+            if (region != null) {
+                ByteBuffer view = buffer.duplicate();
+                view.position(region.y * rowStride + region.x * pixelStride);
+                regionPlane = view.slice();
+            }
 
-            // Compress to JPEG
-            baos = new ByteArrayOutputStream();
-            // Quality 50 is a good tradeoff for smoothness vs detail
-            scaled.compress(Bitmap.CompressFormat.JPEG, 50, baos);
-            byte[] jpegData = baos.toByteArray();
+            // Skip all copy, Bitmap and JPEG work when the screen is bit-identical to the last frame
+            long fingerprint = region == null
+                    ? FrameFingerprint.compute(buffer, width, height, rowStride, pixelStride, 1)
+                    : FrameFingerprint.compute(regionPlane, region.width, region.height, rowStride, pixelStride, 1);
+            if (hasFingerprint && fingerprint == lastFingerprint) {
+                metrics.increment(PipelineMetrics.Counter.SKIPPED);
+                return;
+            }
 
-            // Send to the HTTP side
-            frameBroadcaster.updateFrame(jpegData);
+            PlaneBuffer frame = framePipeline.acquire(region == null ? buffer.limit()
+                    : PlaneBuffer.regionCapacity(width, rowStride, pixelStride, region));
+            if (frame == null) {
+                // Encoder is holding every buffer; drop this frame rather than block
+                metrics.increment(PipelineMetrics.Counter.DROPPED);
+                return;
+            }
+            long copyStart = System.nanoTime();
+            if (region == null) {
+                frame.copyFrom(buffer, width, height, rowStride, pixelStride, image.getTimestamp());
+            } else {
+                frame.copyRegion(buffer, width, rowStride, pixelStride, region, image.getTimestamp());
+            }
+            metrics.recordStage(PipelineMetrics.Stage.COPY, System.nanoTime() - copyStart);
+            lastFingerprint = fingerprint;
+            hasFingerprint = true;
+
+            image.close();
+            image = null;
+            if (!framePipeline.submit(frame, captureStart)) {
+                metrics.increment(PipelineMetrics.Counter.DROPPED);
+            }
 
         } catch (Exception e) {
-            Log.e(TAG, "Error processing screen frame", e);
+            Log.e(TAG, "Error capturing screen frame", e);
         } finally {
             if (image != null) {
                 image.close();
             }
-            if (bitmap != null && !bitmap.isRecycled()) {
-                bitmap.recycle();
+        }
+    }
+
+    /**
+     * The configured capture region clamped to the captured image, or null to capture all of
+     * it. Runs on the capture thread.
+     */
+    @Nullable
+    private CaptureRegion currentRegion(int width, int height) {
+        CaptureRegion region = StreamConfig.getCaptureRegion();
+        if (region != null) {
+            CaptureRegion clamped = region.clampTo(width, height);
+            // A region entirely off screen captures everything rather than nothing
+            region = clamped == null || clamped.covers(width, height) ? null : clamped;
+        }
+        if (region == null ? appliedRegion != null : !region.equals(appliedRegion)) {
+            Log.d(TAG, "Capture region " + (region == null ? "full screen" : region) + " of " + width + "x" + height);
+            appliedRegion = region;
+            hasFingerprint = false;
+        }
+        return region;
+    }
+
+    /**
+     * Encoder stage: runs on the pipeline's encoder thread.
+     */
+    private void encodeFrame(PlaneBuffer frame) throws Exception {
+        int width = frame.width;
+        int height = frame.height;
+
+        long now = System.nanoTime();
+        if (now - lastStatsLogNanos > STATS_LOG_INTERVAL_NANOS) {
+            lastStatsLogNanos = now;
+            Log.d(TAG, "Pipeline: " + framePipeline + " | " + qualityController + " | pool " + framePool);
+            Log.d(TAG, "Capture: " + frameRateGovernor + String.format(Locale.US, " delivered=%.1f",
+                    metrics.getDeliveredFps()) + " | " + viewerTracker);
+            if (lanWebServer != null) {
+                Log.d(TAG, "WebSocket: " + lanWebServer.getWebSocketStats() + " | "
+                        + lanWebServer.getFrameResponseStats());
+            }
+            if (nioServer != null) {
+                Log.d(TAG, "NIO server: " + nioServer);
             }
-            if (cropped != null && !cropped.isRecycled()) {
-                cropped.recycle();
+        }
+
+        float scale = RgbaFrameScaler.fitScale(width, height, qualityController.getScale(), maxLongEdge);
+        int quality = qualityController.getQuality();
+        // Scales near 1/2, 1/3, 1/4 snap to whole ratios, which the scaler has fast paths for
+        int targetWidth = RgbaFrameScaler.scaledSize(width, scale);
+        int targetHeight = RgbaFrameScaler.scaledSize(height, scale);
+
+        // Pooled buffers are only reallocated when the capture size changes (e.g. rotation)
+        if (frameScaler.configure(width, height, targetWidth, targetHeight) || scaledBitmap == null) {
+            if (scaledBitmap != null) {
+                scaledBitmap.recycle();
+            }
+            scaledBitmap = Bitmap.createBitmap(targetWidth, targetHeight, Bitmap.Config.ARGB_8888);
+        }
+
+        // Crop the row padding and downscale in one pass straight from the plane copy
+        long scaleStart = System.nanoTime();
+        int[] pixels = frameScaler.scale(frame.data, frame.rowStride, frame.pixelStride);
+        scaledBitmap.setPixels(pixels, 0, targetWidth, 0, 0, targetWidth, targetHeight);
+        metrics.recordStage(PipelineMetrics.Stage.CROP_SCALE, System.nanoTime() - scaleStart);
+
+        if (tileEncoder != null) {
+            // Changed tiles (or all stripes) are encoded in parallel and sent to the canvas viewer
+            long encodeStart = System.nanoTime();
+            int bytes = tileEncoder.encode(pixels, targetWidth, targetHeight, scaledBitmap, quality, frame.timestampNanos);
+            if (bytes > 0) {
+                metrics.recordStage(PipelineMetrics.Stage.ENCODE, System.nanoTime() - encodeStart);
+                metrics.increment(PipelineMetrics.Counter.ENCODED);
+                metrics.recordFrameSize(bytes);
+                qualityController.onFrameEncoded(bytes, System.nanoTime() - now, System.nanoTime());
+            } else {
+                metrics.increment(PipelineMetrics.Counter.SKIPPED);
             }
-            if (scaled != null && !scaled.isRecycled()) {
-                scaled.recycle();
+            return;
+        }
+
+        // Compress to JPEG and send to the HTTP side
+        Frame published = compressAndPublish(Rendition.ADAPTIVE, scaledBitmap, quality, frame.timestampNanos);
+        metrics.increment(PipelineMetrics.Counter.ENCODED);
+        metrics.recordFrameSize(published.length());
+        qualityController.onFrameEncoded(published.length(), System.nanoTime() - now, System.nanoTime());
+
+        encodeRenditions(frame, quality);
+    }
+
+    /**
+     * Encodes the fixed renditions that currently have viewers, sharing one downscale pyramid.
+     */
+    private void encodeRenditions(PlaneBuffer frame, int quality) {
+        frameBroadcaster.setSourceSize(frame.width, frame.height);
+        int baseLevel = -1;
+        for (Rendition r : Rendition.LADDER) {
+            if (frameBroadcaster.isWanted(r)) {
+                baseLevel = baseLevel < 0 ? r.level : Math.min(baseLevel, r.level);
+            } else {
+                frameBroadcaster.invalidate(r);
             }
-            if (baos != null) {
-                try {
-                    baos.close();
-                } catch (Exception ignore) {
+        }
+        if (baseLevel < 0) {
+            return;
+        }
+
+        int baseWidth = Math.max(1, frame.width >> baseLevel);
+        int baseHeight = Math.max(1, frame.height >> baseLevel);
+        pyramidScaler.configure(frame.width, frame.height, baseWidth, baseHeight);
+        pyramid.setBase(baseLevel, pyramidScaler.scale(frame.data, frame.rowStride, frame.pixelStride),
+                baseWidth, baseHeight);
+
+        for (Rendition r : Rendition.LADDER) {
+            if (r.level < baseLevel || !frameBroadcaster.isWanted(r)) {
+                continue;
+            }
+            int[] pixels = pyramid.get(r.level);
+            int w = pyramid.getWidth(r.level);
+            int h = pyramid.getHeight(r.level);
+            Bitmap bitmap = renditionBitmaps[r.level];
+            if (bitmap == null || bitmap.getWidth() != w || bitmap.getHeight() != h) {
+                if (bitmap != null) {
+                    bitmap.recycle();
                 }
+                bitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+                renditionBitmaps[r.level] = bitmap;
             }
+            bitmap.setPixels(pixels, 0, w, 0, 0, w, h);
+            compressAndPublish(r, bitmap, quality, frame.timestampNanos);
+        }
+    }
+
+    private Frame compressAndPublish(Rendition rendition, Bitmap bitmap, int quality, long timestampNanos) {
+        long start = System.nanoTime();
+        FrameBufferPool.Buffer buffer = framePool.acquire();
+        byte[] jpeg = null;
+        if (buffer == null) {
+            jpegStream.reset();
+            bitmap.compress(Bitmap.CompressFormat.JPEG, quality, jpegStream);
+            jpeg = jpegStream.toByteArray();
+        } else {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, quality, buffer.outputStream());
+            buffer.seal();
         }
+        long encoded = System.nanoTime();
+        metrics.recordStage(PipelineMetrics.Stage.ENCODE, encoded - start);
+
+        int w = bitmap.getWidth();
+        int h = bitmap.getHeight();
+        Frame published = buffer == null
+                ? frameBroadcaster.publish(rendition, jpeg, timestampNanos, w, h)
+                : frameBroadcaster.publish(rendition, buffer, timestampNanos, w, h);
+        metrics.recordStage(PipelineMetrics.Stage.PUBLISH, System.nanoTime() - encoded);
+        return published;
     }
 
+    private void releaseFrameBuffers() {
+        if (scaledBitmap != null && !scaledBitmap.isRecycled()) {
+            scaledBitmap.recycle();
+        }
+        scaledBitmap = null;
+        for (int i = 0; i < renditionBitmaps.length; i++) {
+            if (renditionBitmaps[i] != null && !renditionBitmaps[i].isRecycled()) {
+                renditionBitmaps[i].recycle();
+            }
+            renditionBitmaps[i] = null;
+        }
+    }
+
+    private void startRecording() {
+        File base = getExternalFilesDir(null);
+        File dir = new File(base != null ? base : getFilesDir(), "recordings");
+        FrameRecorder started;
+        try {
+            started = new FrameRecorder(frameBroadcaster, new FrameArchive(dir));
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open recording archive in " + dir, e);
+            return;
+        }
+        started.start();
+        recorder = started;
+        // Counts as a viewer, so capture is not paused while nobody else watches
+        viewerTracker.onOpened(started);
+        Log.d(TAG, "Recording to " + dir + " (" + started.getArchive() + ")");
+    }
 
     @Override
     public void onDestroy() {
         Log.d(TAG, "onDestroy");
+        viewerTracker.setListener(null);
+        if (captureHandler != null) {
+            captureHandler.removeCallbacks(demandCheck);
+        }
         if (lanWebServer != null) {
             lanWebServer.stop();
         }
+        if (nioServer != null) {
+            nioServer.stop();
+        }
+        FrameRecorder currentRecorder = recorder;
+        if (currentRecorder != null) {
+            viewerTracker.onClosed(currentRecorder);
+            currentRecorder.stop();
+            Log.d(TAG, "Recording stopped: " + currentRecorder);
+        }
+        if (replayBuffer != null) {
+            replayBuffer.stop();
+            Log.d(TAG, "Replay buffer stopped: " + replayBuffer);
+        }
         if (virtualDisplay != null) {
             virtualDisplay.release();
         }
         if (imageReader != null) {
             imageReader.close();
         }
+        if (h264Encoder != null) {
+            h264Encoder.release();
+        }
         if (mediaProjection != null) {
             mediaProjection.stop();
         }
         if (captureThread != null) {
             captureThread.quitSafely();
+            try {
+                captureThread.join(500);
+            } catch (InterruptedException ignore) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // Stop the encoder thread before releasing the buffers it uses
+        framePipeline.stop();
+        if (tileEncoder != null) {
+            tileEncoder.release();
         }
+        frameScaler.release();
+        releaseFrameBuffers();
 
         super.onDestroy();
     }
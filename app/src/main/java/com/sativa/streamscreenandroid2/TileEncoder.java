@@ -0,0 +1,173 @@
+package com.sativa.streamscreenandroid2;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Encodes frames as TilePackets for the canvas viewer. In diff mode only the tiles that
+ * changed since the previous frame are encoded, with a full keyframe periodically, after
+ * size changes and when most of the screen changed anyway. In stripe mode every frame is
+ * split into horizontal stripes. Rectangles are JPEG-encoded in parallel on a StripedEncoder
+ * worker pool. Every packet sent also publishes the whole frame to the FrameBroadcaster, for
+ * the clients that are not the canvas viewer. Runs on the encoder thread.
+ */
+public class TileEncoder {
+
+    // Packets (not captured frames) between keyframes, so an idle screen sends nothing
+    private static final int KEYFRAME_INTERVAL = 90;
+    // Above this share of dirty tiles one full JPEG is cheaper than many small ones
+    private static final float KEYFRAME_DIRTY_RATIO = 0.6f;
+
+    private final SegmentBroadcaster tileBroadcaster;
+    private final FrameBroadcaster frameBroadcaster;
+    private final boolean diffEnabled;
+    private final TileDiffer differ = new TileDiffer(TileDiffer.DEFAULT_TILE_SIZE);
+    private final TilePacket.Writer writer = new TilePacket.Writer();
+    private final ByteArrayOutputStream jpegStream = new ByteArrayOutputStream(64 * 1024);
+    private final StripedEncoder stripedEncoder;
+    private final StripedEncoder.RectCodec rectCodec = this::encodeRect;
+    // Per-worker scratch so workers never share a Bitmap or stream
+    private final Bitmap[] workerBitmaps;
+    private final ByteArrayOutputStream[] workerStreams;
+    private final int[] stripeRects;
+    private int sequence;
+    private int packetsSinceKeyframe;
+    private boolean started;
+
+    // Frame being encoded; written before tasks are submitted, read by the workers
+    private int[] currentPixels;
+    private int currentWidth;
+    private int currentQuality;
+
+    /**
+     * @param diffEnabled true to send only changed tiles, false to send every frame as stripes
+     */
+    public TileEncoder(@NonNull SegmentBroadcaster tileBroadcaster, @NonNull FrameBroadcaster frameBroadcaster,
+                       boolean diffEnabled) {
+        this.tileBroadcaster = tileBroadcaster;
+        this.frameBroadcaster = frameBroadcaster;
+        this.diffEnabled = diffEnabled;
+        this.stripedEncoder = new StripedEncoder(StripedEncoder.defaultWorkers());
+        int workers = stripedEncoder.getWorkers();
+        this.workerBitmaps = new Bitmap[workers];
+        this.workerStreams = new ByteArrayOutputStream[workers];
+        for (int i = 0; i < workers; i++) {
+            workerStreams[i] = new ByteArrayOutputStream(64 * 1024);
+        }
+        this.stripeRects = new int[workers * 4];
+    }
+
+    /**
+     * @param pixels      scaled ARGB frame
+     * @param frameBitmap the same frame already copied into a Bitmap, used for keyframes and
+     *                    for the full frame published to frameBroadcaster with every packet
+     * @return size of the published packet, or 0 if nothing changed
+     */
+    public int encode(@NonNull int[] pixels, int width, int height, @NonNull Bitmap frameBitmap,
+                       int quality, long captureTimestampNanos) throws Exception {
+        boolean keyframe = packetsSinceKeyframe >= KEYFRAME_INTERVAL;
+        if (differ.configure(width, height) || workerBitmaps[0] == null) {
+            for (int i = 0; i < workerBitmaps.length; i++) {
+                if (workerBitmaps[i] != null) {
+                    workerBitmaps[i].recycle();
+                }
+                // Mutable and frame-sized so it can be reconfigured to any rectangle
+                workerBitmaps[i] = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            }
+            keyframe = true;
+        }
+        if (!started) {
+            tileBroadcaster.start(new byte[0], null);
+            started = true;
+        }
+
+        currentPixels = pixels;
+        currentWidth = width;
+        currentQuality = quality;
+
+        if (!diffEnabled) {
+            // Every frame is self-contained: split into stripes and encode them concurrently
+            int count = StripedEncoder.splitStripes(width, height, stripedEncoder.getWorkers(),
+                    StripedEncoder.STRIPE_ALIGNMENT, stripeRects);
+            writer.begin(++sequence, true, width, height);
+            addTiles(stripeRects, count, stripedEncoder.encodeAll(stripeRects, count, rectCodec));
+            byte[] packet = writer.finish();
+            tileBroadcaster.publish(packet, true);
+            // /frame, /stream, the recorder and replay only read whole frames
+            publishFrame(frameBitmap, width, height, quality, captureTimestampNanos);
+            return packet.length;
+        }
+
+        if (keyframe) {
+            differ.invalidate();
+        }
+
+        int rectCount = differ.diff(pixels);
+        if (rectCount == 0) {
+            // Nothing changed: nothing to encode or send
+            return 0;
+        }
+        if (differ.getDirtyTileCount() >= KEYFRAME_DIRTY_RATIO * differ.getTileCount()) {
+            keyframe = true;
+        }
+
+        writer.begin(++sequence, keyframe, width, height);
+        if (keyframe) {
+            // Plain /frame and /stream clients get refreshed on every keyframe
+            byte[] jpeg = publishFrame(frameBitmap, width, height, quality, captureTimestampNanos);
+            writer.addTile(0, 0, width, height, jpeg, 0, jpeg.length);
+            packetsSinceKeyframe = 0;
+        } else {
+            int[] rects = differ.getRects();
+            addTiles(rects, rectCount, stripedEncoder.encodeAll(rects, rectCount, rectCodec));
+            // Keyframes can be far apart on a mostly idle screen; keep whole-frame clients current
+            publishFrame(frameBitmap, width, height, quality, captureTimestampNanos);
+            packetsSinceKeyframe++;
+        }
+
+        byte[] packet = writer.finish();
+        tileBroadcaster.publish(packet, keyframe);
+        return packet.length;
+    }
+
+    private byte[] publishFrame(Bitmap frameBitmap, int width, int height, int quality,
+                                long captureTimestampNanos) {
+        jpegStream.reset();
+        frameBitmap.compress(Bitmap.CompressFormat.JPEG, quality, jpegStream);
+        byte[] jpeg = jpegStream.toByteArray();
+        frameBroadcaster.publish(jpeg, captureTimestampNanos, width, height);
+        return jpeg;
+    }
+
+    private void addTiles(int[] rects, int count, byte[][] jpegs) {
+        for (int i = 0; i < count; i++) {
+            writer.addTile(rects[i * 4], rects[i * 4 + 1], rects[i * 4 + 2], rects[i * 4 + 3],
+                    jpegs[i], 0, jpegs[i].length);
+        }
+    }
+
+    private byte[] encodeRect(int worker, int x, int y, int w, int h) {
+        Bitmap bitmap = workerBitmaps[worker];
+        ByteArrayOutputStream stream = workerStreams[worker];
+        bitmap.reconfigure(w, h, Bitmap.Config.ARGB_8888);
+        bitmap.setPixels(currentPixels, y * currentWidth + x, currentWidth, 0, 0, w, h);
+        stream.reset();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, currentQuality, stream);
+        return stream.toByteArray();
+    }
+
+    public void release() {
+        stripedEncoder.shutdown();
+        tileBroadcaster.stop();
+        started = false;
+        for (int i = 0; i < workerBitmaps.length; i++) {
+            if (workerBitmaps[i] != null && !workerBitmaps[i].isRecycled()) {
+                workerBitmaps[i].recycle();
+            }
+            workerBitmaps[i] = null;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+// JMH benchmarks for the frame path, run on a plain JVM against :core.
+//
+//   capture   CropScale, RegionCapture
+//   encode    StripedEncoder (single JPEG vs stripes), TileDiffer (diff and packet packing)
+//   serving   FrameBroadcaster, FrameServing, ReplayBuffer, Auth
+//   metrics   PipelineMetrics (recording from the capture, encoder and serving threads)
+//   recording FrameArchive (append with segment rollover and retention)
+//
+// Android-only steps (Bitmap.compress, createScaledBitmap) are replaced by pure-Java stand-ins
+// that do the same work; each benchmark's javadoc says which.
+//
+//   ./gradlew :benchmark:jmh                        all benchmarks
+//   ./gradlew :benchmark:jmh -Pjmh.includes=Auth    only classes matching the regex
+//   ./gradlew :benchmark:jmh -Pjmh.threads=32       override the thread (viewer) count
+//
+// Results are written to benchmark/build/results/jmh/results.json; keep that file per commit
+// to compare runs. Fork count, iterations and heap size are pinned so runs on the same
+// machine are comparable.
+plugins {
+    java
+    alias(libs.plugins.jmh)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+dependencies {
+    jmh(project(":core"))
+}
+
+jmh {
+    jmhVersion.set(libs.versions.jmh)
+    fork.set(2)
+    warmupIterations.set(3)
+    warmup.set("2s")
+    iterations.set(5)
+    timeOnIteration.set("2s")
+    jvmArgs.set(listOf("-Xms1g", "-Xmx1g", "-XX:+UseParallelGC", "-Djava.awt.headless=true"))
+    resultFormat.set("JSON")
+    failOnError.set(true)
+    (project.findProperty("jmh.includes") as String?)?.let { includes.set(listOf(it)) }
+    (project.findProperty("jmh.threads") as String?)?.let { threads.set(it.toInt()) }
+}
@@ -0,0 +1,58 @@
+package com.sativa.streamscreenandroid2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-request token checks as done by both servers, from several request threads at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Threads(4)
+public class AuthBenchmark {
+
+    private ViewerSessions sessions;
+    private String session;
+
+    @Setup
+    public void setUp() {
+        sessions = new ViewerSessions();
+        sessions.setPassword("correct horse battery staple");
+        // A realistic table: the session being checked among many others
+        for (int i = 0; i < 100; i++) {
+            sessions.createSession();
+        }
+        session = sessions.createSession();
+    }
+
+    @Benchmark
+    public boolean sessionToken() {
+        return sessions.authorize(session);
+    }
+
+    // The same check with no other request thread contending for the table
+    @Benchmark
+    @Threads(1)
+    public boolean sessionTokenUncontended() {
+        return sessions.authorize(session);
+    }
+
+    @Benchmark
+    public boolean password() {
+        return sessions.authorize("correct horse battery staple");
+    }
+
+    @Benchmark
+    public boolean rejected() {
+        return sessions.authorize("wrong");
+    }
+}
@@ -0,0 +1,125 @@
+package com.sativa.streamscreenandroid2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Row-padding crop plus downscale of one captured frame, from a direct buffer laid out like
+ * Image.Plane: RGBA_8888 with a row stride padded past the visible width.
+ *
+ * <p>{@link #copyThenHalve} stands in for the old Bitmap path (copy the cropped plane into a
+ * full-size bitmap, then createScaledBitmap to exactly half), which cannot run off-device.
+ * It ignores {@link #scale}; compare it with {@link #cropAndScale} at 0.5.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CropScaleBenchmark {
+
+    @Param({"1080x2400"})
+    public String size;
+
+    // Output width / source width, as picked by AdaptiveQualityController
+    @Param({"1.0", "0.75", "0.5", "0.33", "0.25"})
+    public float scale;
+
+    // Extra bytes per row; ImageReader pads rows to the GPU's alignment
+    @Param({"64"})
+    public int rowPadding;
+
+    private ByteBuffer plane;
+    private int rowStride;
+    private final RgbaFrameScaler scaler = new RgbaFrameScaler();
+    private final RgbaFrameScaler parallelScaler = new RgbaFrameScaler(4);
+    private int[] scaled;
+    private int[] half;
+    private int width;
+    private int height;
+    private byte[] cropRow;
+    private int[] cropped;
+    private int[] legacyHalf;
+
+    @Setup
+    public void setUp() {
+        String[] wh = size.split("x");
+        width = Integer.parseInt(wh[0]);
+        height = Integer.parseInt(wh[1]);
+        rowStride = width * 4 + rowPadding;
+        plane = ByteBuffer.allocateDirect(rowStride * height);
+        // Fixed seed so every run scales the same content
+        Random random = new Random(42);
+        byte[] row = new byte[rowStride];
+        for (int y = 0; y < height; y++) {
+            random.nextBytes(row);
+            plane.put(row);
+        }
+        plane.rewind();
+        int dstWidth = RgbaFrameScaler.scaledSize(width, scale);
+        int dstHeight = RgbaFrameScaler.scaledSize(height, scale);
+        scaler.configure(width, height, dstWidth, dstHeight);
+        parallelScaler.configure(width, height, dstWidth, dstHeight);
+        scaled = scaler.scale(plane, rowStride, 4).clone();
+        half = new int[Math.max(1, dstWidth / 2) * Math.max(1, dstHeight / 2)];
+        cropRow = new byte[width * 4];
+        cropped = new int[width * height];
+        legacyHalf = new int[(width / 2) * (height / 2)];
+    }
+
+    @TearDown
+    public void tearDown() {
+        parallelScaler.release();
+    }
+
+    @Benchmark
+    public int[] cropAndScale() {
+        return scaler.scale(plane, rowStride, 4);
+    }
+
+    /**
+     * Same filter split into row bands over four threads.
+     */
+    @Benchmark
+    public int[] cropAndScaleParallel() {
+        return parallelScaler.scale(plane, rowStride, 4);
+    }
+
+    /**
+     * Full-size crop copy into an ARGB array, then a separate 2:1 filter pass over it.
+     */
+    @Benchmark
+    public int[] copyThenHalve() {
+        for (int y = 0; y < height; y++) {
+            plane.position(y * rowStride);
+            plane.get(cropRow);
+            for (int x = 0, i = 0, out = y * width; x < width; x++, i += 4) {
+                cropped[out + x] = 0xFF000000 | (cropRow[i] & 0xFF) << 16 | (cropRow[i + 1] & 0xFF) << 8
+                        | (cropRow[i + 2] & 0xFF);
+            }
+        }
+        plane.rewind();
+        ScalePyramid.halve(cropped, width, height, legacyHalf, width / 2, height / 2);
+        return legacyHalf;
+    }
+
+    /**
+     * Derived rendition: one 2x2 box-filter step of the scale pyramid from the scaled frame.
+     */
+    @Benchmark
+    public int[] halve() {
+        int w = scaler.getDstWidth();
+        int h = scaler.getDstHeight();
+        ScalePyramid.halve(scaled, w, h, half, Math.max(1, w / 2), Math.max(1, h / 2));
+        return half;
+    }
+}
@@ -0,0 +1,74 @@
+package com.sativa.streamscreenandroid2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sustained FrameArchive.append to a temporary directory, segment rollover and retention
+ * included: the archive is capped at {@link #maxTotalBytes}, so after the first few
+ * segments every rollover also deletes the oldest one, as on a device that has been
+ * recording for a while. Results depend on the disk the temp directory is on.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FrameArchiveBenchmark {
+
+    // A typical 1080p JPEG
+    @Param({"102400"})
+    public int frameSize;
+
+    @Param({"33554432"})
+    public long segmentBytes;
+
+    @Param({"268435456"})
+    public long maxTotalBytes;
+
+    private File directory;
+    private FrameArchive archive;
+    private Frame frame;
+    private long timeMicros = 1_700_000_000_000_000L;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("frame-archive-bench").toFile();
+        archive = new FrameArchive(directory);
+        archive.setSegmentLimits(segmentBytes, 0);
+        archive.setRetention(maxTotalBytes, 0);
+        byte[] data = new byte[frameSize];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        frame = new Frame(data, 1, 0, 1920, 1080);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        archive.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Files.delete(file.toPath());
+            }
+        }
+        Files.delete(directory.toPath());
+    }
+
+    @Benchmark
+    public void append() throws IOException {
+        // 30 fps
+        archive.append(frame, timeMicros += 33_333);
+    }
+}
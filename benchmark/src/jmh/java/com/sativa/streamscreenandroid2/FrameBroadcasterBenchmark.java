@@ -0,0 +1,83 @@
+package com.sativa.streamscreenandroid2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One encoder publishing while readers snapshot the latest frame, with heap frames and with
+ * pooled buffers that readers retain and release.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FrameBroadcasterBenchmark {
+
+    private static final int FRAME_BYTES = 64 * 1024;
+
+    private FrameBroadcaster broadcaster;
+    private FrameBufferPool pool;
+    private byte[] jpeg;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        broadcaster = new FrameBroadcaster();
+        pool = new FrameBufferPool(16, FRAME_BYTES);
+        jpeg = new byte[FRAME_BYTES];
+        broadcaster.publish(jpeg, 0, 1, 1);
+    }
+
+    @Benchmark
+    @Group("heap")
+    @GroupThreads(1)
+    public Frame heapPublish() {
+        return broadcaster.publish(jpeg, 0, 1, 1);
+    }
+
+    @Benchmark
+    @Group("heap")
+    @GroupThreads(3)
+    public void heapRead(Blackhole bh) {
+        Frame frame = broadcaster.getLatest();
+        bh.consume(frame.sequence);
+        bh.consume(frame.toByteArray().length);
+    }
+
+    @Benchmark
+    @Group("pooled")
+    @GroupThreads(1)
+    public Frame pooledPublish() throws IOException {
+        FrameBufferPool.Buffer buffer = pool.acquire();
+        if (buffer == null) {
+            // Every slot held by readers: the encoder's heap fallback
+            return broadcaster.publish(jpeg, 0, 1, 1);
+        }
+        buffer.outputStream().write(jpeg, 0, jpeg.length);
+        buffer.seal();
+        return broadcaster.publish(Rendition.ADAPTIVE, buffer, 0, 1, 1);
+    }
+
+    @Benchmark
+    @Group("pooled")
+    @GroupThreads(3)
+    public void pooledRead(Blackhole bh) {
+        Frame frame = broadcaster.acquireLatest(Rendition.ADAPTIVE);
+        try {
+            bh.consume(frame.sequence);
+            bh.consume(frame.payload().get(0));
+        } finally {
+            frame.release();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.sativa.streamscreenandroid2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end /frame polling against a local server: every benchmark thread is one viewer
+ * with its own keep-alive connection. The number of viewers is the thread count (8 by
+ * default, -Pjmh.threads=N to change it).
+ *
+ * <p>nanohttpd-response writes the headers and the body as separate segments, so on loopback
+ * part of its gap to nanohttpd is the Nagle/delayed-ACK stall rather than encoding cost.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(8)
+public class FrameServingBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        // nanohttpd: LanWebServer with pre-encoded responses; nanohttpd-response: its
+        // per-request Response path; nio: NioStreamServer
+        @Param({"nanohttpd", "nanohttpd-response", "nio"})
+        public String engine;
+
+        @Param({"65536"})
+        public int frameBytes;
+
+        LanWebServer lanWebServer;
+        NioStreamServer nioServer;
+        int port;
+        String path;
+
+        @Setup(Level.Trial)
+        public void start() throws IOException {
+            FrameBroadcaster broadcaster = new FrameBroadcaster();
+            broadcaster.publish(new byte[frameBytes], 0, 1, 1);
+            ViewerSessions sessions = new ViewerSessions();
+            sessions.setPassword("bench");
+            path = "/frame?token=" + sessions.createSession();
+
+            if ("nio".equals(engine)) {
+                nioServer = new NioStreamServer(0, broadcaster, sessions);
+                nioServer.start();
+                port = nioServer.getListeningPort();
+            } else {
+                lanWebServer = new LanWebServer(0, sessions, broadcaster, new SegmentBroadcaster(),
+                        new SegmentBroadcaster());
+                lanWebServer.preEncodedFrames = !"nanohttpd-response".equals(engine);
+                lanWebServer.start();
+                port = lanWebServer.getListeningPort();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            if (lanWebServer != null) {
+                lanWebServer.stop();
+            }
+            if (nioServer != null) {
+                nioServer.stop();
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Viewer {
+        KeepAliveClient client;
+
+        @Setup(Level.Trial)
+        public void connect(Server server) throws IOException {
+            client = new KeepAliveClient(server.port, server.path);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            client.close();
+        }
+    }
+
+    @Benchmark
+    public int poll(Viewer viewer) throws IOException {
+        int status = viewer.client.get();
+        if (status != 200) {
+            throw new IllegalStateException("HTTP " + status);
+        }
+        return status;
+    }
+}
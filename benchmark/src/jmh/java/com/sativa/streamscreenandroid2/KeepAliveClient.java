@@ -0,0 +1,79 @@
+package com.sativa.streamscreenandroid2;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal HTTP/1.1 client that sends the same GET over one keep-alive connection and reads
+ * Content-Length responses, so the benchmark measures the server rather than a client library.
+ */
+final class KeepAliveClient implements AutoCloseable {
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final byte[] request;
+    private byte[] body = new byte[64 * 1024];
+
+    KeepAliveClient(int port, String path) throws IOException {
+        socket = new Socket("127.0.0.1", port);
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(10_000);
+        in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+        out = socket.getOutputStream();
+        request = ("GET " + path + " HTTP/1.1\r\nHost: bench\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Issues one request and returns the status code after reading the whole body.
+     */
+    int get() throws IOException {
+        out.write(request);
+        out.flush();
+
+        StringBuilder line = new StringBuilder();
+        int status = -1;
+        int length = 0;
+        while (true) {
+            line.setLength(0);
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    throw new IOException("Connection closed");
+                }
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+            }
+            if (line.length() == 0) {
+                break;
+            }
+            if (status < 0) {
+                status = Integer.parseInt(line.substring(9, 12));
+            } else if (line.length() > 15 && line.substring(0, 15).equalsIgnoreCase("content-length:")) {
+                length = Integer.parseInt(line.substring(15).trim());
+            }
+        }
+        if (body.length < length) {
+            body = new byte[length];
+        }
+        int off = 0;
+        while (off < length) {
+            int n = in.read(body, off, length - off);
+            if (n < 0) {
+                throw new IOException("Connection closed");
+            }
+            off += n;
+        }
+        return status;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
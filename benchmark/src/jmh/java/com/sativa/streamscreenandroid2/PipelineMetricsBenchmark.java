@@ -0,0 +1,49 @@
+package com.sativa.streamscreenandroid2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of recording into PipelineMetrics on the hot paths: a stage sample from the capture
+ * and encoder threads, and a delivery from the serving threads, which all share one
+ * instance. Scraping is not measured; it only formats on demand.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Threads(4)
+public class PipelineMetricsBenchmark {
+
+    private PipelineMetrics metrics;
+    private final Object viewer = new Object();
+    private long sample;
+
+    @Setup
+    public void setUp() {
+        metrics = new PipelineMetrics();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void recordStage() {
+        metrics.recordStage(PipelineMetrics.Stage.ENCODE, (sample += 100_000) & 0xFFFFFFFL);
+    }
+
+    @Benchmark
+    public void recordStageContended() {
+        metrics.recordStage(PipelineMetrics.Stage.ENCODE, 2_500_000);
+    }
+
+    @Benchmark
+    public void delivered() {
+        metrics.onDelivered(viewer, 60 * 1024, 1_000_000);
+    }
+}
@@ -0,0 +1,97 @@
+package com.sativa.streamscreenandroid2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The capture stage with a capture region: fingerprint and copy only the region out of an
+ * Image.Plane-like buffer, then the encoder's half-scale of the copy. Compare the regions
+ * against "full" to see the cost follow the region's area.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RegionCaptureBenchmark {
+
+    @Param({"1080x2400"})
+    public String size;
+
+    // full, half (full-width rows, copied as one block), quarter (packed rows)
+    @Param({"full", "half", "quarter"})
+    public String region;
+
+    @Param({"64"})
+    public int rowPadding;
+
+    private ByteBuffer plane;
+    private ByteBuffer regionPlane;
+    private int width;
+    private int rowStride;
+    private CaptureRegion captureRegion;
+    private PlaneBuffer buffer;
+    private final RgbaFrameScaler scaler = new RgbaFrameScaler();
+
+    @Setup
+    public void setUp() {
+        String[] wh = size.split("x");
+        width = Integer.parseInt(wh[0]);
+        int height = Integer.parseInt(wh[1]);
+        rowStride = width * 4 + rowPadding;
+        plane = ByteBuffer.allocateDirect(rowStride * height);
+        Random random = new Random(42);
+        byte[] row = new byte[rowStride];
+        for (int y = 0; y < height; y++) {
+            random.nextBytes(row);
+            plane.put(row);
+        }
+        plane.rewind();
+
+        switch (region) {
+            case "full":
+                captureRegion = new CaptureRegion(0, 0, width, height);
+                break;
+            case "half":
+                captureRegion = new CaptureRegion(0, height / 4, width, height / 2);
+                break;
+            case "quarter":
+                captureRegion = new CaptureRegion(width / 4, height / 4, width / 2, height / 2);
+                break;
+            default:
+                throw new IllegalArgumentException("region must be full, half or quarter");
+        }
+        ByteBuffer view = plane.duplicate();
+        view.position(captureRegion.y * rowStride + captureRegion.x * 4);
+        regionPlane = view.slice();
+        buffer = new PlaneBuffer(PlaneBuffer.regionCapacity(width, rowStride, 4, captureRegion));
+        buffer.copyRegion(plane, width, rowStride, 4, captureRegion, 0);
+        scaler.configure(captureRegion.width, captureRegion.height,
+                captureRegion.width / 2, captureRegion.height / 2);
+    }
+
+    @Benchmark
+    public long fingerprint() {
+        return FrameFingerprint.compute(regionPlane, captureRegion.width, captureRegion.height, rowStride, 4, 1);
+    }
+
+    @Benchmark
+    public PlaneBuffer copy() {
+        buffer.copyRegion(plane, width, rowStride, 4, captureRegion, 0);
+        return buffer;
+    }
+
+    @Benchmark
+    public int[] copyAndScale() {
+        buffer.copyRegion(plane, width, rowStride, 4, captureRegion, 0);
+        return scaler.scale(buffer.data, buffer.rowStride, buffer.pixelStride);
+    }
+}
@@ -0,0 +1,79 @@
+package com.sativa.streamscreenandroid2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ReplayBuffer append and seek with the ring held at a fixed fill level. Frames are 1 ms
+ * apart and the duration limit is set so the buffer settles at {@link #fill} percent of its
+ * arena: every append then evicts one frame (for age below 100%, for space at 100%), which
+ * is the steady state of a running capture. Append should cost the same at every level;
+ * seek grows with the log of the frames held.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ReplayBufferBenchmark {
+
+    private static final long MS = 1_000_000L;
+
+    // Percent of the arena held
+    @Param({"1", "25", "50", "100"})
+    public int fill;
+
+    // A typical 1080p JPEG
+    @Param({"102400"})
+    public int frameSize;
+
+    @Param({"33554432"})
+    public int maxBytes;
+
+    private ReplayBuffer buffer;
+    private Frame frame;
+    private long time;
+    private long[] seekTimes;
+    private int seekIndex;
+
+    @Setup
+    public void setUp() {
+        int capacityFrames = maxBytes / frameSize;
+        int held = Math.max(1, capacityFrames * fill / 100);
+        // At 100% the arena runs out first; below it frames age out
+        long maxDurationMs = fill >= 100 ? TimeUnit.HOURS.toMillis(1) : held - 1;
+        buffer = new ReplayBuffer(null, maxBytes, maxDurationMs);
+        frame = new Frame(new byte[frameSize], 1, 0, 1920, 1080);
+        time = 0;
+        for (int i = 0; i < 2 * capacityFrames; i++) {
+            buffer.append(frame, time += MS);
+        }
+
+        long first = buffer.getTimeNanos(buffer.getFirstPosition());
+        long span = Math.max(1, buffer.getDurationNanos());
+        seekTimes = new long[1024];
+        long x = 42;
+        for (int i = 0; i < seekTimes.length; i++) {
+            x = x * 6364136223846793005L + 1442695040888963407L;
+            seekTimes[i] = first + Math.floorMod(x >>> 1, span);
+        }
+    }
+
+    @Benchmark
+    public boolean append() {
+        return buffer.append(frame, time += MS);
+    }
+
+    @Benchmark
+    public long seek() {
+        long target = seekTimes[seekIndex];
+        seekIndex = (seekIndex + 1) & (seekTimes.length - 1);
+        return buffer.seek(target);
+    }
+}
@@ -0,0 +1,168 @@
+package com.sativa.streamscreenandroid2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * One frame encoded as a single JPEG on the calling thread against the same frame split
+ * into stripes encoded on {@link StripedEncoder}'s workers, as the STRIPES capture mode does.
+ *
+ * <p>Bitmap.compress cannot run off-device, so the RectCodec here copies the rectangle
+ * into a per-worker BufferedImage and writes it with the JDK's ImageIO JPEG writer. Absolute
+ * times differ from libjpeg-turbo on a phone; the single-threaded/striped ratio is the point.
+ * {@link #singleThreaded} ignores {@link #workers}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StripedEncoderBenchmark {
+
+    @Param({"720x1600", "1080x2400", "1440x3200"})
+    public String size;
+
+    @Param({"1", "2", "4", "8"})
+    public int workers;
+
+    @Param({"0.7"})
+    public float quality;
+
+    private int width;
+    private int height;
+    private int[] pixels;
+    private StripedEncoder encoder;
+    private int[] stripes;
+    private int stripeCount;
+    private final int[] whole = new int[4];
+    private ImageIoCodec codec;
+
+    /**
+     * Per-worker ImageIO writer and scratch images, like TileEncoder's per-worker Bitmaps.
+     */
+    private final class ImageIoCodec implements StripedEncoder.RectCodec {
+        private final ImageWriter[] writers;
+        private final ImageWriteParam[] params;
+        private final ByteArrayOutputStream[] outputs;
+        private final Map<Long, BufferedImage>[] images;
+
+        @SuppressWarnings("unchecked")
+        ImageIoCodec(int workers) {
+            writers = new ImageWriter[workers];
+            params = new ImageWriteParam[workers];
+            outputs = new ByteArrayOutputStream[workers];
+            images = new Map[workers];
+            for (int i = 0; i < workers; i++) {
+                writers[i] = ImageIO.getImageWritersByFormatName("jpeg").next();
+                params[i] = writers[i].getDefaultWriteParam();
+                params[i].setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                params[i].setCompressionQuality(quality);
+                outputs[i] = new ByteArrayOutputStream(256 * 1024);
+                images[i] = new HashMap<>();
+            }
+        }
+
+        @Override
+        public byte[] encode(int worker, int x, int y, int w, int h) throws IOException {
+            BufferedImage image = images[worker].computeIfAbsent((long) w << 32 | h,
+                    k -> new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB));
+            int[] dst = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            for (int row = 0; row < h; row++) {
+                System.arraycopy(pixels, (y + row) * width + x, dst, row * w, w);
+            }
+            ByteArrayOutputStream out = outputs[worker];
+            out.reset();
+            try (MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(out)) {
+                writers[worker].setOutput(stream);
+                writers[worker].write(null, new IIOImage(image, null, null), params[worker]);
+            }
+            return out.toByteArray();
+        }
+
+        void dispose() {
+            for (ImageWriter writer : writers) {
+                writer.dispose();
+            }
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        String[] wh = size.split("x");
+        width = Integer.parseInt(wh[0]);
+        height = Integer.parseInt(wh[1]);
+        pixels = syntheticScreen(width, height);
+        ImageIO.setUseCache(false);
+
+        encoder = new StripedEncoder(workers);
+        stripes = new int[workers * 4];
+        stripeCount = StripedEncoder.splitStripes(width, height, workers, StripedEncoder.STRIPE_ALIGNMENT, stripes);
+        whole[2] = width;
+        whole[3] = height;
+        codec = new ImageIoCodec(workers);
+    }
+
+    /**
+     * Flat panels, gradients and noisy "text" rows with a fixed seed, so JPEG has roughly
+     * the work of a real UI screenshot rather than pure noise or a blank screen.
+     */
+    static int[] syntheticScreen(int width, int height) {
+        int[] argb = new int[width * height];
+        Random random = new Random(42);
+        for (int y = 0; y < height; y++) {
+            boolean text = (y / 24) % 3 == 1;
+            for (int x = 0; x < width; x++) {
+                int c;
+                if (text && (x / 8) % 5 != 4) {
+                    c = random.nextBoolean() ? 0x202020 : 0xF0F0F0;
+                } else {
+                    c = (x * 255 / width) << 16 | (y * 255 / height) << 8 | 0x80;
+                }
+                argb[y * width + x] = 0xFF000000 | c;
+            }
+        }
+        return argb;
+    }
+
+    @TearDown
+    public void tearDown() {
+        encoder.shutdown();
+        codec.dispose();
+    }
+
+    /**
+     * The whole frame as one JPEG, as the plain JPEG mode encodes it.
+     */
+    @Benchmark
+    public byte[][] singleThreaded() throws Exception {
+        return encoder.encodeAll(whole, 1, codec);
+    }
+
+    /**
+     * One stripe per worker, encoded concurrently.
+     */
+    @Benchmark
+    public byte[][] striped() throws Exception {
+        return encoder.encodeAll(stripes, stripeCount, codec);
+    }
+}
@@ -0,0 +1,112 @@
+package com.sativa.streamscreenandroid2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The TILES mode's per-frame work besides JPEG: diffing the scaled frame against the last
+ * one, and packing the changed tiles into one /tiles packet.
+ *
+ * <p>{@link #diff} alternates between two frames so every call sees the same amount of
+ * change: none ("idle", every pixel compared), a cursor and a clock ("sparse"), or every
+ * pixel ("full", every tile copied). {@link #pack} packs the rectangles that diff produced,
+ * with stand-in JPEG payloads of one byte per 8 pixels.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TileDifferBenchmark {
+
+    @Param({"540x1200", "1080x2400"})
+    public String size;
+
+    @Param({"idle", "sparse", "full"})
+    public String change;
+
+    @Param({"64"})
+    public int tileSize;
+
+    private TileDiffer differ;
+    private int[][] frames;
+    private int next;
+    private int width;
+    private int height;
+    private int[] rects;
+    private int rectCount;
+    private byte[] jpeg;
+    private final TilePacket.Writer writer = new TilePacket.Writer();
+    private int sequence;
+
+    @Setup
+    public void setUp() {
+        String[] wh = size.split("x");
+        width = Integer.parseInt(wh[0]);
+        height = Integer.parseInt(wh[1]);
+        int[] base = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                base[y * width + x] = 0xFF000000 | (x * 255 / width) << 16 | (y * 255 / height) << 8 | 0x80;
+            }
+        }
+
+        int[] other = base.clone();
+        switch (change) {
+            case "idle":
+                break;
+            case "sparse":
+                // Text cursor and status bar clock
+                fill(other, width / 3, height / 2, 2, 40);
+                fill(other, width - 120, 8, 96, 32);
+                break;
+            case "full":
+                for (int i = 0; i < other.length; i++) {
+                    other[i] ^= 0x010101;
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("change must be idle, sparse or full");
+        }
+        frames = new int[][]{base, other};
+
+        differ = new TileDiffer(tileSize);
+        differ.configure(width, height);
+        differ.diff(base);
+        rectCount = differ.diff(other);
+        rects = Arrays.copyOf(differ.getRects(), rectCount * 4);
+        jpeg = new byte[width * height / 8 + 1];
+        next = 0;
+    }
+
+    private void fill(int[] pixels, int x, int y, int w, int h) {
+        for (int row = y; row < y + h; row++) {
+            Arrays.fill(pixels, row * width + x, row * width + x + w, 0xFF000000);
+        }
+    }
+
+    @Benchmark
+    public int diff() {
+        int[] frame = frames[next];
+        next ^= 1;
+        return differ.diff(frame);
+    }
+
+    @Benchmark
+    public byte[] pack() {
+        writer.begin(++sequence, false, width, height);
+        for (int i = 0; i < rectCount; i++) {
+            int w = rects[i * 4 + 2];
+            int h = rects[i * 4 + 3];
+            writer.addTile(rects[i * 4], rects[i * 4 + 1], w, h, jpeg, 0, w * h / 8 + 1);
+        }
+        return writer.finish();
+    }
+}
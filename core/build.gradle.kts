@@ -0,0 +1,18 @@
+// Platform-independent part of the app: frame pipeline, encoders' pure-Java stages and the
+// web servers. Kept free of Android APIs so it can be unit tested and benchmarked on a JVM.
+plugins {
+    `java-library`
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+dependencies {
+    api(libs.annotation)
+    api(libs.nanohttpd)
+    api(libs.nanohttpd.websocket)
+
+    testImplementation(libs.junit)
+}
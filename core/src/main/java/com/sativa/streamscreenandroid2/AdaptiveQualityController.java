@@ -0,0 +1,232 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Closed-loop controller for JPEG quality, output scale and frame rate. It compares what the
+ * encoder produces (bytes per frame, encode time) with what viewers can drain and with the
+ * configured bandwidth budget, and steps the settings down when congested or up when there
+ * is clear headroom. All time comes in through method arguments so it is deterministic.
+ */
+public class AdaptiveQualityController implements DeliveryListener {
+
+    public static final int MIN_QUALITY = 20;
+    public static final int MAX_QUALITY = 80;
+    public static final int DEFAULT_QUALITY = 50;
+    private static final int QUALITY_STEP = 10;
+
+    // Output size relative to the capture size, largest first
+    static final float[] SCALES = {1.0f, 0.75f, 0.5f, 0.33f, 0.25f};
+    private static final int DEFAULT_SCALE_INDEX = 2;
+
+    public static final int MIN_FPS = 5;
+    private static final int FPS_STEP = 5;
+
+    private static final long UPDATE_INTERVAL_NANOS = 500_000_000L;
+    // Viewers that have not reported for this long no longer limit the stream
+    private static final long VIEWER_STALE_NANOS = 5_000_000_000L;
+    private static final double EWMA_ALPHA = 0.3;
+    private static final double CONGESTED_RATIO = 0.9;
+    private static final double HEADROOM_RATIO = 0.5;
+
+    private final long budgetBytesPerSecond;
+    private final int maxFps;
+
+    private int quality = DEFAULT_QUALITY;
+    private int scaleIndex = DEFAULT_SCALE_INDEX;
+    // Largest ladder step stepUp may return to, and the scale it was derived from
+    private int minScaleIndex;
+    private float maxScale = 1f;
+    private boolean maxScaleSet;
+    private int fps;
+
+    // Encoder measurements since the last update
+    private long windowBytes;
+    private long windowEncodeNanos;
+    private int windowFrames;
+    private long lastUpdateNanos = -1;
+
+    private final Map<Object, ViewerRate> viewers = new HashMap<>();
+
+    private static final class ViewerRate {
+        double bytesPerSecond;
+        long lastReportNanos;
+    }
+
+    /**
+     * @param budgetBytesPerSecond upper bound on the stream bitrate, or 0 for no fixed budget
+     * @param maxFps               highest frame rate the controller will ask for
+     */
+    public AdaptiveQualityController(long budgetBytesPerSecond, int maxFps) {
+        this.budgetBytesPerSecond = budgetBytesPerSecond;
+        this.maxFps = Math.max(MIN_FPS, maxFps);
+        this.fps = this.maxFps;
+    }
+
+    public synchronized int getQuality() {
+        return quality;
+    }
+
+    public synchronized float getScale() {
+        return SCALES[scaleIndex];
+    }
+
+    /**
+     * Keeps the output scale at or below {@code scale} and starts from that step; the
+     * controller still steps further down when congested.
+     */
+    public synchronized void setMaxScale(float scale) {
+        if (maxScaleSet && scale == maxScale) {
+            return;
+        }
+        maxScaleSet = true;
+        maxScale = scale;
+        int index = SCALES.length - 1;
+        for (int i = 0; i < SCALES.length; i++) {
+            if (SCALES[i] <= scale + 1e-3f) {
+                index = i;
+                break;
+            }
+        }
+        minScaleIndex = index;
+        scaleIndex = index;
+    }
+
+    public synchronized int getTargetFps() {
+        return fps;
+    }
+
+    public synchronized long getFrameIntervalNanos() {
+        return 1_000_000_000L / fps;
+    }
+
+    @Override
+    public void onDelivered(@NonNull Object viewer, long bytes, long durationNanos) {
+        recordDelivery(viewer, bytes, durationNanos, System.nanoTime());
+    }
+
+    @Override
+    public synchronized void onClosed(@NonNull Object viewer) {
+        viewers.remove(viewer);
+    }
+
+    public synchronized void recordDelivery(@NonNull Object viewer, long bytes, long durationNanos, long nowNanos) {
+        if (bytes <= 0) {
+            return;
+        }
+        double rate = bytes * 1e9 / Math.max(durationNanos, 1_000L);
+        ViewerRate v = viewers.get(viewer);
+        if (v == null) {
+            v = new ViewerRate();
+            v.bytesPerSecond = rate;
+            viewers.put(viewer, v);
+        } else {
+            v.bytesPerSecond += EWMA_ALPHA * (rate - v.bytesPerSecond);
+        }
+        v.lastReportNanos = nowNanos;
+    }
+
+    /**
+     * Records one encoded frame and re-evaluates the settings at most every 500 ms.
+     *
+     * @return true if quality, scale or fps changed
+     */
+    public synchronized boolean onFrameEncoded(long bytes, long encodeNanos, long nowNanos) {
+        windowBytes += bytes;
+        windowEncodeNanos += encodeNanos;
+        windowFrames++;
+
+        if (lastUpdateNanos < 0) {
+            lastUpdateNanos = nowNanos;
+            return false;
+        }
+        if (nowNanos - lastUpdateNanos < UPDATE_INTERVAL_NANOS) {
+            return false;
+        }
+
+        double bytesPerFrame = windowBytes / (double) windowFrames;
+        double encodePerFrame = windowEncodeNanos / (double) windowFrames;
+        windowBytes = 0;
+        windowEncodeNanos = 0;
+        windowFrames = 0;
+        lastUpdateNanos = nowNanos;
+
+        double demand = bytesPerFrame * fps;
+        double capacity = capacity(nowNanos);
+        double frameBudget = 1e9 / fps;
+
+        boolean cpuBound = encodePerFrame > frameBudget * CONGESTED_RATIO;
+        boolean networkBound = demand > capacity * CONGESTED_RATIO;
+        if (cpuBound || networkBound) {
+            return stepDown(cpuBound && !networkBound);
+        }
+        if (demand < capacity * HEADROOM_RATIO && encodePerFrame < frameBudget * HEADROOM_RATIO) {
+            return stepUp();
+        }
+        return false;
+    }
+
+    /**
+     * Slowest fresh viewer, further limited by the configured budget.
+     */
+    double capacity(long nowNanos) {
+        double capacity = budgetBytesPerSecond > 0 ? budgetBytesPerSecond : Double.POSITIVE_INFINITY;
+        Iterator<ViewerRate> it = viewers.values().iterator();
+        while (it.hasNext()) {
+            ViewerRate v = it.next();
+            if (nowNanos - v.lastReportNanos > VIEWER_STALE_NANOS) {
+                it.remove();
+                continue;
+            }
+            capacity = Math.min(capacity, v.bytesPerSecond);
+        }
+        return capacity;
+    }
+
+    /**
+     * Bandwidth problems are fixed with quality first; CPU problems with resolution first,
+     * since JPEG quality barely changes encode time. Frame rate is the last resort.
+     */
+    private boolean stepDown(boolean cpuOnly) {
+        if (!cpuOnly && quality > MIN_QUALITY) {
+            quality = Math.max(MIN_QUALITY, quality - QUALITY_STEP);
+            return true;
+        }
+        if (scaleIndex < SCALES.length - 1) {
+            scaleIndex++;
+            return true;
+        }
+        if (fps > MIN_FPS) {
+            fps = Math.max(MIN_FPS, fps - FPS_STEP);
+            return true;
+        }
+        return false;
+    }
+
+    // Undo in reverse order: frame rate first, then resolution, then quality
+    private boolean stepUp() {
+        if (fps < maxFps) {
+            fps = Math.min(maxFps, fps + FPS_STEP);
+            return true;
+        }
+        if (scaleIndex > minScaleIndex) {
+            scaleIndex--;
+            return true;
+        }
+        if (quality < MAX_QUALITY) {
+            quality = Math.min(MAX_QUALITY, quality + QUALITY_STEP);
+            return true;
+        }
+        return false;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return "quality=" + quality + " scale=" + SCALES[scaleIndex] + " fps=" + fps + " viewers=" + viewers.size();
+    }
+}
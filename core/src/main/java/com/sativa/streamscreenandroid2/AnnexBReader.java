@@ -0,0 +1,72 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits an H.264 Annex-B byte stream (as produced by MediaCodec) into NAL units
+ * without their 00 00 01 / 00 00 00 01 start codes.
+ */
+public final class AnnexBReader {
+
+    public static final int NAL_IDR = 5;
+    public static final int NAL_SEI = 6;
+    public static final int NAL_SPS = 7;
+    public static final int NAL_PPS = 8;
+    public static final int NAL_AUD = 9;
+
+    private AnnexBReader() {
+    }
+
+    @NonNull
+    public static List<byte[]> split(@NonNull byte[] data, int offset, int length) {
+        List<byte[]> nals = new ArrayList<>();
+        int end = offset + length;
+        int start = findStartCode(data, offset, end);
+        if (start < 0) {
+            // No start code at all: treat the buffer as a single NAL unit
+            if (length > 0) {
+                byte[] nal = new byte[length];
+                System.arraycopy(data, offset, nal, 0, length);
+                nals.add(nal);
+            }
+            return nals;
+        }
+
+        int nalStart = start + 3;
+        while (nalStart < end) {
+            int next = findStartCode(data, nalStart, end);
+            int nalEnd = next < 0 ? end : next;
+            // Trailing zero bytes belong to the next start code (00 00 00 01)
+            while (nalEnd > nalStart && data[nalEnd - 1] == 0 && next >= 0) {
+                nalEnd--;
+            }
+            if (nalEnd > nalStart) {
+                byte[] nal = new byte[nalEnd - nalStart];
+                System.arraycopy(data, nalStart, nal, 0, nal.length);
+                nals.add(nal);
+            }
+            if (next < 0) {
+                break;
+            }
+            nalStart = next + 3;
+        }
+        return nals;
+    }
+
+    public static int nalType(@NonNull byte[] nal) {
+        return nal.length == 0 ? -1 : nal[0] & 0x1F;
+    }
+
+    // Returns the index of the first 00 00 01 sequence at or after from, or -1
+    private static int findStartCode(byte[] data, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,130 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * A rectangle of the display to capture instead of the whole screen, in display pixels
+ * for the current rotation. Only these rows and columns are copied out of the captured
+ * plane, so everything after the copy costs in proportion to the region's area.
+ */
+public final class CaptureRegion {
+
+    public final int x;
+    public final int y;
+    public final int width;
+    public final int height;
+
+    public CaptureRegion(int x, int y, int width, int height) {
+        if (x < 0 || y < 0 || width < 1 || height < 1) {
+            throw new IllegalArgumentException("Invalid region " + x + "," + y + "," + width + "," + height);
+        }
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Parses "x,y,w,h". Returns null if the text is not four numbers making a valid region.
+     */
+    @Nullable
+    public static CaptureRegion parse(@Nullable String text) {
+        if (text == null) {
+            return null;
+        }
+        String[] parts = text.split(",");
+        if (parts.length != 4) {
+            return null;
+        }
+        try {
+            int x = Integer.parseInt(parts[0].trim());
+            int y = Integer.parseInt(parts[1].trim());
+            int w = Integer.parseInt(parts[2].trim());
+            int h = Integer.parseInt(parts[3].trim());
+            return x < 0 || y < 0 || w < 1 || h < 1 ? null : new CaptureRegion(x, y, w, h);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The part of this region inside a display of the given size, or null if none is.
+     */
+    @Nullable
+    public CaptureRegion clampTo(int displayWidth, int displayHeight) {
+        int right = Math.min(x + width, displayWidth);
+        int bottom = Math.min(y + height, displayHeight);
+        if (right <= x || bottom <= y) {
+            return null;
+        }
+        if (right == x + width && bottom == y + height) {
+            return this;
+        }
+        return new CaptureRegion(x, y, right - x, bottom - y);
+    }
+
+    /**
+     * Whether this region is the whole of a display of the given size.
+     */
+    public boolean covers(int displayWidth, int displayHeight) {
+        return x == 0 && y == 0 && width >= displayWidth && height >= displayHeight;
+    }
+
+    /**
+     * The same area of the panel after the display rotation changes by {@code quarterTurns}
+     * (new Surface.ROTATION_* minus old, any sign). The content is drawn turned the other
+     * way, so each quarter turn maps display coordinates counter-clockwise.
+     *
+     * @param displayWidth  display width before the change
+     * @param displayHeight display height before the change
+     */
+    @NonNull
+    public CaptureRegion rotate(int quarterTurns, int displayWidth, int displayHeight) {
+        int turns = ((quarterTurns % 4) + 4) % 4;
+        int rx = x;
+        int ry = y;
+        int rw = width;
+        int rh = height;
+        int dw = displayWidth;
+        int dh = displayHeight;
+        for (int i = 0; i < turns; i++) {
+            // (x, y) in a dw x dh display lands at (y, dw - x) in the dh x dw one
+            int nx = ry;
+            int ny = Math.max(0, dw - (rx + rw));
+            int t = rw;
+            rw = rh;
+            rh = t;
+            rx = nx;
+            ry = ny;
+            t = dw;
+            dw = dh;
+            dh = t;
+        }
+        return new CaptureRegion(rx, ry, rw, rh);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CaptureRegion)) {
+            return false;
+        }
+        CaptureRegion other = (CaptureRegion) o;
+        return x == other.x && y == other.y && width == other.width && height == other.height;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((x * 31 + y) * 31 + width) * 31 + height;
+    }
+
+    /** Same format {@link #parse} reads. */
+    @NonNull
+    @Override
+    public String toString() {
+        return x + "," + y + "," + width + "," + height;
+    }
+}
@@ -0,0 +1,62 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Notified by streaming responses as they hand data to a viewer's socket.
+ */
+public interface DeliveryListener {
+
+    /**
+     * A stream started; the same object is later passed to {@link #onClosed}.
+     */
+    default void onOpened(@NonNull Object viewer) {
+    }
+
+    /**
+     * @param viewer        identifies the connection (the stream object itself)
+     * @param bytes         size of the frame or segment that was written
+     * @param durationNanos time it took to write it to the socket
+     */
+    void onDelivered(@NonNull Object viewer, long bytes, long durationNanos);
+
+    void onClosed(@NonNull Object viewer);
+
+    /**
+     * The viewer reported drawing a frame; only viewers that report back call this.
+     */
+    default void onDisplayed(@NonNull Object viewer, @NonNull FrameTiming timing) {
+    }
+
+    /**
+     * Forwards every notification to both listeners, first to {@code a}.
+     */
+    @NonNull
+    static DeliveryListener both(@NonNull DeliveryListener a, @NonNull DeliveryListener b) {
+        return new DeliveryListener() {
+            @Override
+            public void onOpened(@NonNull Object viewer) {
+                a.onOpened(viewer);
+                b.onOpened(viewer);
+            }
+
+            @Override
+            public void onDelivered(@NonNull Object viewer, long bytes, long durationNanos) {
+                a.onDelivered(viewer, bytes, durationNanos);
+                b.onDelivered(viewer, bytes, durationNanos);
+            }
+
+            @Override
+            public void onClosed(@NonNull Object viewer) {
+                a.onClosed(viewer);
+                b.onClosed(viewer);
+            }
+
+            @Override
+            public void onDisplayed(@NonNull Object viewer, @NonNull FrameTiming timing) {
+                a.onDisplayed(viewer, timing);
+                b.onDisplayed(viewer, timing);
+            }
+        };
+    }
+}
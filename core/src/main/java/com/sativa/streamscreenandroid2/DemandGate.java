@@ -0,0 +1,78 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when capture runs from the viewer count: it resumes as soon as there is a viewer
+ * and pauses once there has been none for a grace period, so a page reload or a viewer
+ * switching transports does not stop and restart the pipeline. Starts running, which gives
+ * the first viewer the grace period to connect after sharing begins.
+ */
+public class DemandGate {
+
+    public enum Action {
+        NONE,
+        PAUSE,
+        RESUME
+    }
+
+    static final long DEFAULT_PAUSE_DELAY_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final long pauseDelayNanos;
+    private boolean paused;
+    private boolean idle;
+    private long idleSinceNanos;
+    private long pauseCount;
+
+    public DemandGate() {
+        this(DEFAULT_PAUSE_DELAY_NANOS);
+    }
+
+    DemandGate(long pauseDelayNanos) {
+        this.pauseDelayNanos = pauseDelayNanos;
+    }
+
+    /**
+     * Feeds the current viewer count; returns what the capture pipeline should do.
+     */
+    @NonNull
+    public synchronized Action update(int viewerCount, long nowNanos) {
+        if (viewerCount > 0) {
+            idle = false;
+            if (paused) {
+                paused = false;
+                return Action.RESUME;
+            }
+            return Action.NONE;
+        }
+        if (paused) {
+            return Action.NONE;
+        }
+        if (!idle) {
+            idle = true;
+            idleSinceNanos = nowNanos;
+        }
+        if (nowNanos - idleSinceNanos >= pauseDelayNanos) {
+            paused = true;
+            pauseCount++;
+            return Action.PAUSE;
+        }
+        return Action.NONE;
+    }
+
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    public synchronized long getPauseCount() {
+        return pauseCount;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return "capture " + (paused ? "paused" : "running") + " pauses=" + pauseCount;
+    }
+}
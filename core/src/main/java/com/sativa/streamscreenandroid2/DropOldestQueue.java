@@ -0,0 +1,104 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded hand-off queue whose producer never blocks: when full, the oldest element is
+ * evicted and returned to the caller (so it can be recycled) and counted as a drop.
+ */
+public class DropOldestQueue<T> {
+
+    private final int capacity;
+    private final ArrayDeque<T> items;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private long dropped;
+
+    public DropOldestQueue(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be >= 1");
+        }
+        this.capacity = capacity;
+        this.items = new ArrayDeque<>(capacity);
+    }
+
+    /**
+     * Adds {@code item}, evicting the oldest queued element if the queue is full.
+     *
+     * @return the evicted element, or null if nothing was dropped
+     */
+    @Nullable
+    public T offer(T item) {
+        lock.lock();
+        try {
+            T evicted = null;
+            if (items.size() >= capacity) {
+                evicted = items.pollFirst();
+                dropped++;
+            }
+            items.addLast(item);
+            notEmpty.signal();
+            return evicted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits up to {@code timeoutMs} for an element.
+     *
+     * @return the oldest queued element, or null on timeout
+     */
+    @Nullable
+    public T poll(long timeoutMs) throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        lock.lockInterruptibly();
+        try {
+            while (items.isEmpty()) {
+                if (remaining <= 0) {
+                    return null;
+                }
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            return items.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes and returns the oldest element without waiting, or null if empty.
+     */
+    @Nullable
+    public T poll() {
+        lock.lock();
+        try {
+            return items.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return items.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
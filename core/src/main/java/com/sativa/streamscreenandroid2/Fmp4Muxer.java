@@ -0,0 +1,257 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Packages H.264 access units into fragmented MP4 (one moof+mdat per frame) so
+ * browsers can play the stream through Media Source Extensions.
+ */
+public class Fmp4Muxer {
+
+    public static final int TIMESCALE = 90000;
+    private static final int TRACK_ID = 1;
+
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private final int width;
+    private final int height;
+    private final byte[] sps;
+    private final byte[] pps;
+
+    private int sequenceNumber;
+    private long firstPtsUs = -1;
+    private long lastPtsUs = -1;
+    private int lastDuration = TIMESCALE / 30;
+
+    public Fmp4Muxer(int width, int height, @NonNull byte[] sps, @NonNull byte[] pps) {
+        if (sps.length < 4) {
+            throw new IllegalArgumentException("SPS too short");
+        }
+        this.width = width;
+        this.height = height;
+        this.sps = sps;
+        this.pps = pps;
+    }
+
+    /**
+     * RFC 6381 codec string for MediaSource.isTypeSupported / addSourceBuffer, e.g. avc1.42c01f.
+     */
+    @NonNull
+    public String getCodecString() {
+        return String.format("avc1.%02x%02x%02x", sps[1] & 0xFF, sps[2] & 0xFF, sps[3] & 0xFF);
+    }
+
+    @NonNull
+    public byte[] createInitSegment() {
+        Box out = new Box();
+
+        Box ftyp = new Box();
+        ftyp.fourcc("isom").u32(0x200).fourcc("isom").fourcc("iso6").fourcc("avc1").fourcc("mp41");
+        out.box("ftyp", ftyp);
+
+        Box moov = new Box();
+        moov.box("mvhd", mvhd());
+        moov.box("trak", trak());
+        Box mvex = new Box();
+        Box trex = new Box();
+        trex.u32(0).u32(TRACK_ID).u32(1).u32(0).u32(0).u32(0);
+        mvex.box("trex", trex);
+        moov.box("mvex", mvex);
+        out.box("moov", moov);
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Wraps one access unit (NAL units without start codes) into a moof+mdat fragment.
+     *
+     * @param ptsUs presentation time from MediaCodec.BufferInfo, in microseconds
+     */
+    @NonNull
+    public byte[] createFragment(@NonNull List<byte[]> nals, long ptsUs, boolean keyframe) {
+        if (firstPtsUs < 0) {
+            firstPtsUs = ptsUs;
+        }
+        // Duration of this sample is unknown until the next one arrives; reuse the last interval
+        if (lastPtsUs >= 0 && ptsUs > lastPtsUs) {
+            lastDuration = (int) ((ptsUs - lastPtsUs) * TIMESCALE / 1_000_000L);
+        }
+        lastPtsUs = ptsUs;
+        long decodeTime = (ptsUs - firstPtsUs) * TIMESCALE / 1_000_000L;
+
+        Box mdatPayload = new Box();
+        for (byte[] nal : nals) {
+            int type = AnnexBReader.nalType(nal);
+            // Parameter sets live in avcC; access unit delimiters are not needed in MP4
+            if (type == AnnexBReader.NAL_SPS || type == AnnexBReader.NAL_PPS || type == AnnexBReader.NAL_AUD) {
+                continue;
+            }
+            mdatPayload.u32(nal.length).bytes(nal);
+        }
+        int sampleSize = mdatPayload.size();
+
+        Box mfhd = new Box();
+        mfhd.u32(0).u32(++sequenceNumber);
+
+        Box tfhd = new Box();
+        tfhd.u32(0x020000).u32(TRACK_ID); // default-base-is-moof
+
+        Box tfdt = new Box();
+        tfdt.u32(0x01000000).u64(decodeTime); // version 1
+
+        // data-offset, sample-duration, sample-size and sample-flags present
+        int trunSize = 8 + 4 + 4 + 4 + 12;
+        int trafSize = 8 + (8 + tfhd.size()) + (8 + tfdt.size()) + trunSize;
+        int moofSize = 8 + (8 + mfhd.size()) + trafSize;
+
+        Box trun = new Box();
+        trun.u32(0x000701).u32(1).u32(moofSize + 8)
+                .u32(lastDuration).u32(sampleSize).u32(keyframe ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+
+        Box traf = new Box();
+        traf.box("tfhd", tfhd).box("tfdt", tfdt).box("trun", trun);
+        Box moof = new Box();
+        moof.box("mfhd", mfhd).box("traf", traf);
+
+        Box out = new Box();
+        out.box("moof", moof);
+        out.box("mdat", mdatPayload);
+        return out.toByteArray();
+    }
+
+    private Box mvhd() {
+        Box b = new Box();
+        b.u32(0).u32(0).u32(0).u32(1000).u32(0);
+        b.u32(0x00010000).u16(0x0100).u16(0).u32(0).u32(0);
+        matrix(b);
+        for (int i = 0; i < 6; i++) b.u32(0);
+        b.u32(TRACK_ID + 1);
+        return b;
+    }
+
+    private Box trak() {
+        Box tkhd = new Box();
+        tkhd.u32(0x00000003).u32(0).u32(0).u32(TRACK_ID).u32(0).u32(0);
+        tkhd.u32(0).u32(0).u16(0).u16(0).u16(0).u16(0);
+        matrix(tkhd);
+        tkhd.u32(width << 16).u32(height << 16);
+
+        Box mdhd = new Box();
+        mdhd.u32(0).u32(0).u32(0).u32(TIMESCALE).u32(0).u16(0x55C4).u16(0); // language "und"
+
+        Box hdlr = new Box();
+        hdlr.u32(0).u32(0).fourcc("vide").u32(0).u32(0).u32(0).bytes("VideoHandler\0".getBytes(StandardCharsets.US_ASCII));
+
+        Box vmhd = new Box();
+        vmhd.u32(0x00000001).u16(0).u16(0).u16(0).u16(0);
+
+        Box url = new Box();
+        url.u32(0x00000001); // self-contained
+        Box dref = new Box();
+        dref.u32(0).u32(1).box("url ", url);
+        Box dinf = new Box();
+        dinf.box("dref", dref);
+
+        Box stbl = new Box();
+        Box stsd = new Box();
+        stsd.u32(0).u32(1).box("avc1", avc1());
+        stbl.box("stsd", stsd);
+        stbl.box("stts", new Box().u32(0).u32(0));
+        stbl.box("stsc", new Box().u32(0).u32(0));
+        stbl.box("stsz", new Box().u32(0).u32(0).u32(0));
+        stbl.box("stco", new Box().u32(0).u32(0));
+
+        Box minf = new Box();
+        minf.box("vmhd", vmhd).box("dinf", dinf).box("stbl", stbl);
+
+        Box mdia = new Box();
+        mdia.box("mdhd", mdhd).box("hdlr", hdlr).box("minf", minf);
+
+        Box trak = new Box();
+        trak.box("tkhd", tkhd).box("mdia", mdia);
+        return trak;
+    }
+
+    private Box avc1() {
+        Box avcC = new Box();
+        avcC.u8(1).u8(sps[1] & 0xFF).u8(sps[2] & 0xFF).u8(sps[3] & 0xFF);
+        avcC.u8(0xFF); // 4-byte NAL lengths
+        avcC.u8(0xE1).u16(sps.length).bytes(sps);
+        avcC.u8(1).u16(pps.length).bytes(pps);
+
+        Box avc1 = new Box();
+        avc1.u32(0).u16(0).u16(1); // reserved, data_reference_index
+        avc1.u16(0).u16(0).u32(0).u32(0).u32(0);
+        avc1.u16(width).u16(height);
+        avc1.u32(0x00480000).u32(0x00480000).u32(0).u16(1);
+        avc1.bytes(new byte[32]); // compressor name
+        avc1.u16(0x0018).u16(0xFFFF);
+        avc1.box("avcC", avcC);
+        return avc1;
+    }
+
+    private static void matrix(Box b) {
+        b.u32(0x00010000).u32(0).u32(0);
+        b.u32(0).u32(0x00010000).u32(0);
+        b.u32(0).u32(0).u32(0x40000000);
+    }
+
+    /**
+     * Tiny big-endian writer used to assemble box payloads.
+     */
+    private static final class Box {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Box u8(int v) {
+            out.write(v);
+            return this;
+        }
+
+        Box u16(int v) {
+            out.write(v >>> 8);
+            out.write(v);
+            return this;
+        }
+
+        Box u32(int v) {
+            out.write(v >>> 24);
+            out.write(v >>> 16);
+            out.write(v >>> 8);
+            out.write(v);
+            return this;
+        }
+
+        Box u64(long v) {
+            u32((int) (v >>> 32));
+            return u32((int) v);
+        }
+
+        Box fourcc(String type) {
+            return bytes(type.getBytes(StandardCharsets.US_ASCII));
+        }
+
+        Box bytes(byte[] data) {
+            out.write(data, 0, data.length);
+            return this;
+        }
+
+        Box box(String type, Box payload) {
+            u32(8 + payload.size());
+            fourcc(type);
+            return bytes(payload.toByteArray());
+        }
+
+        int size() {
+            return out.size();
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Immutable encoded frame as published by FrameBroadcaster. The payload is either a heap
+ * array or a pooled direct buffer; all readers share it and must not modify it.
+ *
+ * <p>Pooled frames are reference counted. Call {@link #retain()} before reading the payload
+ * and {@link #release()} when done; if retain fails the buffer was already recycled and a
+ * newer frame has been published. Both are no-ops that always succeed for heap frames.
+ */
+public final class Frame {
+
+    @Nullable
+    private final byte[] bytes;
+    @Nullable
+    private final FrameBufferPool.Buffer buffer;
+    private final int bufferGeneration;
+    private final int length;
+    // Monotonically increasing, starting at 1
+    public final long sequence;
+    // Image.getTimestamp() of the captured screen content, in nanoseconds; the same
+    // monotonic clock as System.nanoTime(), 0 if unknown
+    public final long captureTimestampNanos;
+    // System.nanoTime() when the frame was handed to FrameBroadcaster
+    public final long publishNanos;
+    public final int width;
+    public final int height;
+
+    public Frame(@NonNull byte[] data, long sequence, long captureTimestampNanos, int width, int height) {
+        this(data, sequence, captureTimestampNanos, System.nanoTime(), width, height);
+    }
+
+    private Frame(@NonNull byte[] data, long sequence, long captureTimestampNanos, long publishNanos,
+                  int width, int height) {
+        this.bytes = data;
+        this.buffer = null;
+        this.bufferGeneration = 0;
+        this.length = data.length;
+        this.sequence = sequence;
+        this.captureTimestampNanos = captureTimestampNanos;
+        this.publishNanos = publishNanos;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Frame over a sealed pooled buffer; takes over the caller's reference.
+     */
+    public Frame(@NonNull FrameBufferPool.Buffer buffer, long sequence, long captureTimestampNanos,
+                 int width, int height) {
+        this.bytes = null;
+        this.buffer = buffer;
+        this.bufferGeneration = buffer.getGeneration();
+        this.length = buffer.length();
+        this.sequence = sequence;
+        this.captureTimestampNanos = captureTimestampNanos;
+        this.publishNanos = System.nanoTime();
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Sequence, capture and publish time as CRLF-terminated header lines, for clients that
+     * measure latency. Times are microseconds on the server's monotonic clock.
+     */
+    @NonNull
+    public String timingHeaders() {
+        return "X-Frame-Sequence: " + sequence + "\r\n" +
+                "X-Capture-Time: " + captureTimestampNanos / 1000 + "\r\n" +
+                "X-Publish-Time: " + publishNanos / 1000 + "\r\n";
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Empty frames mark a rendition whose last image is out of date.
+     */
+    public boolean isEmpty() {
+        return length == 0;
+    }
+
+    public boolean isPooled() {
+        return buffer != null;
+    }
+
+    public boolean retain() {
+        return buffer == null || buffer.retain(bufferGeneration);
+    }
+
+    public void release() {
+        if (buffer != null) {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Read-only view of the payload with its own position. For pooled frames, only valid
+     * while a reference is held.
+     */
+    @NonNull
+    public ByteBuffer payload() {
+        if (buffer != null) {
+            return buffer.slice();
+        }
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    /**
+     * The payload as an array: the frame's own array for heap frames, a copy for pooled
+     * ones (must be retained).
+     */
+    @NonNull
+    public byte[] toByteArray() {
+        if (bytes != null) {
+            return bytes;
+        }
+        byte[] copy = new byte[length];
+        buffer.slice().get(copy);
+        return copy;
+    }
+
+    /**
+     * This frame if it is heap backed, otherwise a heap copy with the same sequence and
+     * metadata, or null if the pooled buffer was already recycled.
+     */
+    @Nullable
+    public Frame toHeapFrame() {
+        if (buffer == null) {
+            return this;
+        }
+        if (!retain()) {
+            return null;
+        }
+        try {
+            return new Frame(toByteArray(), sequence, captureTimestampNanos, publishNanos, width, height);
+        } finally {
+            release();
+        }
+    }
+}
@@ -0,0 +1,551 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only archive of encoded frames in rolling segment files. Each segment is a
+ * {@code .frames} file of records (a fixed header followed by the JPEG) plus a {@code .index}
+ * file of (time, offset) pairs, so a time is found with a binary search. Times are wall-clock
+ * microseconds and never go backwards within the archive.
+ *
+ * <p>Records carry a CRC of their payload. Opening an archive checks every segment against
+ * its index and rescans the ones that do not match, so a segment cut short by a crash or a
+ * full disk is truncated after its last intact record and gets its index rebuilt.
+ *
+ * <p>Not thread-safe for writing: one thread appends (see {@link FrameRecorder}); the read
+ * methods may be called from other threads.
+ */
+public class FrameArchive {
+
+    static final int MAGIC = 0x53534652; // "SSFR"
+    // magic, length, sequence, time, width, height, crc
+    static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 4 + 4 + 4;
+    static final int INDEX_ENTRY_BYTES = 8 + 4;
+    static final String DATA_SUFFIX = ".frames";
+    static final String INDEX_SUFFIX = ".index";
+
+    public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+    public static final long DEFAULT_SEGMENT_MS = 60_000;
+    public static final long DEFAULT_MAX_TOTAL_BYTES = 1024L * 1024 * 1024;
+    public static final long DEFAULT_MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+
+    // Index entries are buffered and written in batches; a crash loses at most these
+    private static final int INDEX_BATCH = 256;
+
+    /**
+     * One segment, oldest first in {@link #getSegments()}.
+     */
+    public static final class Segment {
+        public final File dataFile;
+        public final File indexFile;
+        public final long startMicros;
+        volatile long endMicros;
+        volatile long bytes;
+        volatile int frames;
+
+        Segment(File dataFile, long startMicros) {
+            this.dataFile = dataFile;
+            this.indexFile = indexFileFor(dataFile);
+            this.startMicros = startMicros;
+            this.endMicros = startMicros;
+        }
+
+        public long getEndMicros() {
+            return endMicros;
+        }
+
+        /** Size of the data file. */
+        public long getBytes() {
+            return bytes;
+        }
+
+        public int getFrameCount() {
+            return frames;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return dataFile.getName() + " frames=" + frames + " bytes=" + bytes;
+        }
+    }
+
+    /**
+     * One frame read back from a segment.
+     */
+    public static final class Record {
+        public final long sequence;
+        public final long timeMicros;
+        public final int width;
+        public final int height;
+        @NonNull
+        public final byte[] data;
+        // Where the next record of the segment starts
+        public final long nextOffset;
+
+        Record(long sequence, long timeMicros, int width, int height, @NonNull byte[] data, long nextOffset) {
+            this.sequence = sequence;
+            this.timeMicros = timeMicros;
+            this.width = width;
+            this.height = height;
+            this.data = data;
+            this.nextOffset = nextOffset;
+        }
+    }
+
+    private final File directory;
+    private volatile long segmentBytes = DEFAULT_SEGMENT_BYTES;
+    private volatile long segmentMicros = DEFAULT_SEGMENT_MS * 1000;
+    private long maxTotalBytes = DEFAULT_MAX_TOTAL_BYTES;
+    private long maxAgeMicros = DEFAULT_MAX_AGE_MS * 1000;
+
+    // Guarded by this; the writer only takes the lock for bookkeeping, not for the writes
+    private final List<Segment> segments = new ArrayList<>();
+    private long totalBytes;
+    @Nullable
+    private Segment active;
+    private FileChannel dataChannel;
+    private FileChannel indexChannel;
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    private final ByteBuffer pendingIndex = ByteBuffer.allocate(INDEX_BATCH * INDEX_ENTRY_BYTES);
+    private final CRC32 crc = new CRC32();
+    private long lastMicros;
+
+    private long framesWritten;
+    private long bytesWritten;
+    private long segmentsDeleted;
+    private long recoveredBytes;
+
+    /**
+     * Opens (creating if needed) the archive in {@code directory} and recovers any segment
+     * that was not closed cleanly.
+     */
+    public FrameArchive(@NonNull File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(DATA_SUFFIX));
+        if (files != null) {
+            // Names are zero-padded start times, so this is oldest first
+            Arrays.sort(files);
+            for (File file : files) {
+                Segment segment = recover(file);
+                if (segment != null) {
+                    segments.add(segment);
+                    totalBytes += segment.bytes + (long) segment.frames * INDEX_ENTRY_BYTES;
+                    lastMicros = Math.max(lastMicros, segment.endMicros);
+                }
+            }
+        }
+    }
+
+    /**
+     * When to start a new segment; 0 for no limit.
+     */
+    public synchronized void setSegmentLimits(long maxBytes, long maxDurationMs) {
+        segmentBytes = maxBytes <= 0 ? Integer.MAX_VALUE : Math.min(maxBytes, Integer.MAX_VALUE);
+        segmentMicros = maxDurationMs <= 0 ? Long.MAX_VALUE : maxDurationMs * 1000;
+    }
+
+    /**
+     * Oldest segments are deleted while the archive is larger than {@code maxTotalBytes} or
+     * they end more than {@code maxAgeMs} before the newest frame; 0 for no limit. Size is
+     * checked on every append, age whenever a segment is started; the segment being written
+     * is never deleted.
+     */
+    public synchronized void setRetention(long maxTotalBytes, long maxAgeMs) {
+        this.maxTotalBytes = maxTotalBytes <= 0 ? Long.MAX_VALUE : maxTotalBytes;
+        this.maxAgeMicros = maxAgeMs <= 0 ? Long.MAX_VALUE : maxAgeMs * 1000;
+    }
+
+    /**
+     * Appends the frame's payload (which must stay readable for the duration of the call)
+     * with one gathering write. On failure the partial record is cut off again, so the
+     * archive stays readable and the next append can try again.
+     */
+    public void append(@NonNull Frame frame, long timeMicros) throws IOException {
+        ByteBuffer payload = frame.payload();
+        int length = payload.remaining();
+        long recordBytes = HEADER_BYTES + (long) length;
+        // Keeps every index sorted even if the wall clock is set back
+        timeMicros = Math.max(timeMicros, lastMicros);
+
+        Segment segment = active;
+        if (segment != null && segment.frames > 0 && (segment.bytes + recordBytes > segmentBytes
+                || timeMicros - segment.startMicros >= segmentMicros)) {
+            closeActive();
+            segment = null;
+        }
+        if (segment == null) {
+            segment = openSegment(timeMicros);
+        }
+
+        crc.reset();
+        crc.update(payload.duplicate());
+        header.clear();
+        header.putInt(MAGIC).putInt(length).putLong(frame.sequence).putLong(timeMicros)
+                .putInt(frame.width).putInt(frame.height).putInt((int) crc.getValue());
+        header.flip();
+        gather[0] = header;
+        gather[1] = payload;
+
+        long offset = segment.bytes;
+        try {
+            while (payload.hasRemaining() || header.hasRemaining()) {
+                dataChannel.write(gather);
+            }
+        } catch (IOException e) {
+            try {
+                dataChannel.truncate(offset);
+            } catch (IOException truncateFailed) {
+                // Recovery cuts the record off when the archive is next opened
+                closeActive();
+            }
+            throw e;
+        } finally {
+            gather[1] = null;
+        }
+
+        lastMicros = timeMicros;
+        synchronized (this) {
+            pendingIndex.putLong(timeMicros).putInt((int) offset);
+            if (!pendingIndex.hasRemaining()) {
+                flushIndex();
+            }
+            segment.bytes = offset + recordBytes;
+            segment.frames++;
+            segment.endMicros = timeMicros;
+            totalBytes += recordBytes + INDEX_ENTRY_BYTES;
+            framesWritten++;
+            bytesWritten += recordBytes;
+            if (totalBytes > maxTotalBytes) {
+                enforceRetention(timeMicros);
+            }
+        }
+    }
+
+    /**
+     * Writes out buffered index entries and closes the current segment.
+     */
+    public void close() throws IOException {
+        closeActive();
+    }
+
+    @NonNull
+    public synchronized List<Segment> getSegments() {
+        return new ArrayList<>(segments);
+    }
+
+    /**
+     * Offset of the first frame of {@code segment} at or after {@code timeMicros}, or -1 if
+     * the segment ends before it. A binary search over the index file.
+     */
+    public long seek(@NonNull Segment segment, long timeMicros) throws IOException {
+        synchronized (this) {
+            if (segment == active) {
+                flushIndex();
+            }
+        }
+        try (FileChannel index = FileChannel.open(segment.indexFile.toPath(), StandardOpenOption.READ)) {
+            int count = Math.min(segment.frames, (int) (index.size() / INDEX_ENTRY_BYTES));
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_BYTES);
+            int lo = 0;
+            int hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                readEntry(index, mid, entry);
+                if (entry.getLong(0) < timeMicros) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            if (lo == count) {
+                return -1;
+            }
+            readEntry(index, lo, entry);
+            return entry.getInt(8) & 0xFFFFFFFFL;
+        }
+    }
+
+    /**
+     * The record at {@code offset}, or null past the last complete record.
+     */
+    @Nullable
+    public Record read(@NonNull Segment segment, long offset) throws IOException {
+        long end = segment.bytes;
+        try (FileChannel data = FileChannel.open(segment.dataFile.toPath(), StandardOpenOption.READ)) {
+            return readRecord(data, offset, end, null);
+        }
+    }
+
+    public synchronized long getFramesWritten() {
+        return framesWritten;
+    }
+
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /** Data and index bytes of every segment on disk. */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized long getSegmentsDeleted() {
+        return segmentsDeleted;
+    }
+
+    /** Bytes of damaged segment tails cut off while opening. */
+    public synchronized long getRecoveredBytes() {
+        return recoveredBytes;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return "archive: segments=" + segments.size() + " bytes=" + totalBytes + " written=" + framesWritten
+                + " deleted=" + segmentsDeleted + " recovered=" + recoveredBytes;
+    }
+
+    private Segment openSegment(long timeMicros) throws IOException {
+        synchronized (this) {
+            // Start times name the files, so they have to be unique
+            if (!segments.isEmpty()) {
+                timeMicros = Math.max(timeMicros, segments.get(segments.size() - 1).startMicros + 1);
+            }
+        }
+        File dataFile = new File(directory, String.format(Locale.ROOT, "%016d", timeMicros) + DATA_SUFFIX);
+        Segment segment = new Segment(dataFile, timeMicros);
+        dataChannel = FileChannel.open(dataFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        indexChannel = FileChannel.open(segment.indexFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        synchronized (this) {
+            segments.add(segment);
+            active = segment;
+            enforceRetention(timeMicros);
+        }
+        return segment;
+    }
+
+    private void closeActive() throws IOException {
+        Segment segment = active;
+        if (segment == null) {
+            return;
+        }
+        try {
+            synchronized (this) {
+                flushIndex();
+            }
+            // The segment is complete on disk before the next one starts
+            dataChannel.force(false);
+        } finally {
+            synchronized (this) {
+                active = null;
+            }
+            closeQuietly(dataChannel);
+            closeQuietly(indexChannel);
+            dataChannel = null;
+            indexChannel = null;
+        }
+    }
+
+    // Called with the lock held
+    private void flushIndex() throws IOException {
+        if (indexChannel == null || pendingIndex.position() == 0) {
+            return;
+        }
+        pendingIndex.flip();
+        while (pendingIndex.hasRemaining()) {
+            indexChannel.write(pendingIndex);
+        }
+        pendingIndex.clear();
+    }
+
+    // Called with the lock held
+    private void enforceRetention(long newestMicros) {
+        while (segments.size() > 1 && segments.get(0) != active) {
+            Segment oldest = segments.get(0);
+            boolean tooBig = totalBytes > maxTotalBytes;
+            boolean tooOld = newestMicros - oldest.endMicros > maxAgeMicros;
+            if (!tooBig && !tooOld) {
+                return;
+            }
+            segments.remove(0);
+            totalBytes -= oldest.bytes + (long) oldest.frames * INDEX_ENTRY_BYTES;
+            oldest.dataFile.delete();
+            oldest.indexFile.delete();
+            segmentsDeleted++;
+        }
+    }
+
+    /**
+     * Loads a segment, trusting its index if it ends exactly at the end of the data file and
+     * otherwise rescanning the records. Returns null (and deletes the files) if nothing in it
+     * is readable.
+     */
+    @Nullable
+    private Segment recover(File dataFile) throws IOException {
+        long start;
+        try {
+            start = Long.parseLong(dataFile.getName().substring(0, dataFile.getName().length() - DATA_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            // Not ours
+            return null;
+        }
+        Segment segment = new Segment(dataFile, start);
+        try (FileChannel data = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            long size = data.size();
+            if (!indexMatches(segment, data, size)) {
+                rebuild(segment, data, size);
+            }
+        }
+        if (segment.frames == 0) {
+            dataFile.delete();
+            segment.indexFile.delete();
+            return null;
+        }
+        return segment;
+    }
+
+    private boolean indexMatches(Segment segment, FileChannel data, long size) throws IOException {
+        File indexFile = segment.indexFile;
+        if (!indexFile.isFile() || indexFile.length() % INDEX_ENTRY_BYTES != 0 || indexFile.length() == 0) {
+            return false;
+        }
+        int count = (int) (indexFile.length() / INDEX_ENTRY_BYTES);
+        try (FileChannel index = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_BYTES);
+            readEntry(index, count - 1, entry);
+            long lastTime = entry.getLong(0);
+            Record last = readRecord(data, entry.getInt(8) & 0xFFFFFFFFL, size, crc);
+            if (last == null || last.timeMicros != lastTime || last.nextOffset != size) {
+                return false;
+            }
+            segment.frames = count;
+            segment.bytes = size;
+            segment.endMicros = lastTime;
+            return true;
+        }
+    }
+
+    private void rebuild(Segment segment, FileChannel data, long size) throws IOException {
+        ByteBuffer entries = ByteBuffer.allocate(INDEX_BATCH * INDEX_ENTRY_BYTES);
+        long offset = 0;
+        int frames = 0;
+        long endMicros = segment.startMicros;
+        try (FileChannel index = FileChannel.open(segment.indexFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (true) {
+                Record record = readRecord(data, offset, size, crc);
+                if (record == null) {
+                    break;
+                }
+                entries.putLong(record.timeMicros).putInt((int) offset);
+                if (!entries.hasRemaining()) {
+                    entries.flip();
+                    while (entries.hasRemaining()) {
+                        index.write(entries);
+                    }
+                    entries.clear();
+                }
+                offset = record.nextOffset;
+                endMicros = record.timeMicros;
+                frames++;
+            }
+            entries.flip();
+            while (entries.hasRemaining()) {
+                index.write(entries);
+            }
+            index.force(false);
+        }
+        if (offset < size) {
+            data.truncate(offset);
+            recoveredBytes += size - offset;
+        }
+        segment.frames = frames;
+        segment.bytes = offset;
+        segment.endMicros = endMicros;
+    }
+
+    /**
+     * Reads and checks one record; null if it is incomplete, damaged or past {@code end}.
+     * The CRC is only verified when {@code check} is given.
+     */
+    @Nullable
+    private static Record readRecord(FileChannel data, long offset, long end, @Nullable CRC32 check)
+            throws IOException {
+        if (offset < 0 || offset + HEADER_BYTES > end) {
+            return null;
+        }
+        ByteBuffer head = ByteBuffer.allocate(HEADER_BYTES);
+        if (!readFully(data, head, offset) || head.getInt(0) != MAGIC) {
+            return null;
+        }
+        int length = head.getInt(4);
+        if (length < 0 || offset + HEADER_BYTES + length > end) {
+            return null;
+        }
+        byte[] payload = new byte[length];
+        if (!readFully(data, ByteBuffer.wrap(payload), offset + HEADER_BYTES)) {
+            return null;
+        }
+        if (check != null) {
+            check.reset();
+            check.update(payload, 0, length);
+            if ((int) check.getValue() != head.getInt(32)) {
+                return null;
+            }
+        }
+        return new Record(head.getLong(8), head.getLong(16), head.getInt(24), head.getInt(28), payload,
+                offset + HEADER_BYTES + length);
+    }
+
+    private static void readEntry(FileChannel index, int i, ByteBuffer entry) throws IOException {
+        entry.clear();
+        if (!readFully(index, entry, (long) i * INDEX_ENTRY_BYTES)) {
+            throw new IOException("Short index read");
+        }
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                return false;
+            }
+            position += n;
+        }
+        return true;
+    }
+
+    private static File indexFileFor(File dataFile) {
+        String name = dataFile.getName();
+        return new File(dataFile.getParentFile(), name.substring(0, name.length() - DATA_SUFFIX.length()) + INDEX_SUFFIX);
+    }
+
+    private static void closeQuietly(@Nullable FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
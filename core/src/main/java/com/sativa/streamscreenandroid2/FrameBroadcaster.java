@@ -0,0 +1,254 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Publishes the latest encoded frame to any number of readers without locks. Readers either
+ * take a snapshot with {@link #getLatest()} or park in {@link #waitForNextFrame} until a
+ * newer sequence number is published. One latest frame is kept per {@link Rendition}; the
+ * overloads without a rendition use {@link Rendition#ADAPTIVE}.
+ *
+ * <p>Frames published from a {@link FrameBufferPool.Buffer} are shared by every reader.
+ * The broadcaster holds one reference to the current frame of each rendition and drops it
+ * when a newer frame replaces it; readers {@link Frame#retain()} what they send, or use
+ * {@link #acquireLatest(Rendition)}.
+ */
+public class FrameBroadcaster {
+
+    // A fixed rendition stays wanted this long after a one-off /frame request
+    private static final long REQUEST_LINGER_NANOS = 5_000_000_000L;
+
+    private final AtomicReferenceArray<Frame> latest = new AtomicReferenceArray<>(Rendition.values().length);
+    private final AtomicIntegerArray viewers = new AtomicIntegerArray(Rendition.values().length);
+    private final AtomicLongArray lastRequestNanos = new AtomicLongArray(Rendition.values().length);
+    private volatile boolean simulcastEnabled;
+    private volatile int sourceWidth;
+    private volatile int sourceHeight;
+    // Threads parked in waitForNextFrame; woken after every publish
+    private final Set<Thread> waiters = ConcurrentHashMap.newKeySet();
+    // Distinguishes ETags across service restarts, when the sequence starts over
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+
+    public FrameBroadcaster() {
+    }
+
+    /**
+     * Publishes a new frame and wakes all waiting readers.
+     *
+     * @return the published frame with its assigned sequence number
+     */
+    @NonNull
+    public Frame publish(@NonNull byte[] jpegData, long captureTimestampNanos, int width, int height) {
+        return publish(Rendition.ADAPTIVE, jpegData, captureTimestampNanos, width, height);
+    }
+
+    @NonNull
+    public Frame publish(@NonNull Rendition rendition, @NonNull byte[] jpegData,
+                         long captureTimestampNanos, int width, int height) {
+        int slot = rendition.ordinal();
+        Frame previous;
+        Frame next;
+        do {
+            previous = latest.get(slot);
+            long seq = previous == null ? 1 : previous.sequence + 1;
+            next = new Frame(jpegData, seq, captureTimestampNanos, width, height);
+        } while (!latest.compareAndSet(slot, previous, next));
+        return published(previous, next);
+    }
+
+    /**
+     * Publishes a sealed pooled buffer without copying it. The caller's reference is handed
+     * over to the broadcaster.
+     */
+    @NonNull
+    public Frame publish(@NonNull Rendition rendition, @NonNull FrameBufferPool.Buffer buffer,
+                         long captureTimestampNanos, int width, int height) {
+        int slot = rendition.ordinal();
+        Frame previous;
+        Frame next;
+        do {
+            previous = latest.get(slot);
+            long seq = previous == null ? 1 : previous.sequence + 1;
+            next = new Frame(buffer, seq, captureTimestampNanos, width, height);
+        } while (!latest.compareAndSet(slot, previous, next));
+        return published(previous, next);
+    }
+
+    private Frame published(@Nullable Frame previous, Frame next) {
+        if (previous != null) {
+            previous.release();
+        }
+        for (Thread waiter : waiters) {
+            LockSupport.unpark(waiter);
+        }
+        return next;
+    }
+
+    /**
+     * Latest published frame, or null if nothing was published yet.
+     */
+    @Nullable
+    public Frame getLatest() {
+        return latest.get(Rendition.ADAPTIVE.ordinal());
+    }
+
+    /**
+     * Latest frame of the rendition, or null if nothing was published. A frame with empty
+     * data means the rendition went unwatched and its last image is out of date.
+     */
+    @Nullable
+    public Frame getLatest(@NonNull Rendition rendition) {
+        return latest.get(rendition.ordinal());
+    }
+
+    /**
+     * Latest frame of the rendition with a reference held for the caller, who must
+     * {@link Frame#release()} it. Returns null if nothing was published.
+     */
+    @Nullable
+    public Frame acquireLatest(@NonNull Rendition rendition) {
+        while (true) {
+            Frame frame = latest.get(rendition.ordinal());
+            // Retain only fails if a newer frame replaced this one in the meantime
+            if (frame == null || frame.retain()) {
+                return frame;
+            }
+        }
+    }
+
+    /**
+     * Marks the rendition's current frame as stale by publishing an empty one, keeping the
+     * sequence (and so ETags) monotonic. Does nothing if it already is.
+     */
+    public void invalidate(@NonNull Rendition rendition) {
+        Frame frame = latest.get(rendition.ordinal());
+        if (frame != null && !frame.isEmpty()) {
+            publish(rendition, new byte[0], frame.captureTimestampNanos, 0, 0);
+        }
+    }
+
+    /**
+     * Blocks until a frame with a sequence number greater than {@code lastSeq} is published or
+     * the timeout expires. Returns that frame, or on timeout the latest frame (which may be
+     * null or not newer than {@code lastSeq}).
+     */
+    @Nullable
+    public Frame waitForNextFrame(long lastSeq, long timeoutMs) throws InterruptedException {
+        return waitForNextFrame(Rendition.ADAPTIVE, lastSeq, timeoutMs);
+    }
+
+    @Nullable
+    public Frame waitForNextFrame(@NonNull Rendition rendition, long lastSeq, long timeoutMs)
+            throws InterruptedException {
+        int slot = rendition.ordinal();
+        Frame frame = latest.get(slot);
+        if (frame != null && frame.sequence > lastSeq) {
+            return frame;
+        }
+
+        Thread me = Thread.currentThread();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        waiters.add(me);
+        try {
+            while (true) {
+                // Re-check after registering so a publish in between cannot be missed
+                frame = latest.get(slot);
+                if (frame != null && frame.sequence > lastSeq) {
+                    return frame;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return frame;
+                }
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            waiters.remove(me);
+        }
+    }
+
+    /**
+     * Strong ETag for the frame with the given sequence number.
+     */
+    @NonNull
+    public String getETag(long seq) {
+        return "\"" + epoch + "-" + seq + "\"";
+    }
+
+    @NonNull
+    public String getETag(@NonNull Rendition rendition, long seq) {
+        if (rendition == Rendition.ADAPTIVE) {
+            return getETag(seq);
+        }
+        return "\"" + epoch + "-" + rendition.paramName + "-" + seq + "\"";
+    }
+
+    // Demand tracking: the encoder only produces fixed renditions somebody is watching
+
+    public void addViewer(@NonNull Rendition rendition) {
+        viewers.incrementAndGet(rendition.ordinal());
+    }
+
+    public void removeViewer(@NonNull Rendition rendition) {
+        viewers.decrementAndGet(rendition.ordinal());
+    }
+
+    public int getViewerCount(@NonNull Rendition rendition) {
+        return viewers.get(rendition.ordinal());
+    }
+
+    /**
+     * Records a one-off request (e.g. /frame polling) so the rendition keeps being encoded.
+     */
+    public void markRequested(@NonNull Rendition rendition) {
+        lastRequestNanos.set(rendition.ordinal(), System.nanoTime());
+    }
+
+    public boolean isWanted(@NonNull Rendition rendition) {
+        int slot = rendition.ordinal();
+        if (viewers.get(slot) > 0) {
+            return true;
+        }
+        long requested = lastRequestNanos.get(slot);
+        return requested != 0 && System.nanoTime() - requested < REQUEST_LINGER_NANOS;
+    }
+
+    /**
+     * Whether the encoder currently produces the fixed renditions (JPEG capture mode only).
+     */
+    public boolean isSimulcastEnabled() {
+        return simulcastEnabled;
+    }
+
+    public void setSimulcastEnabled(boolean simulcastEnabled) {
+        this.simulcastEnabled = simulcastEnabled;
+    }
+
+    /**
+     * Capture size, used to pick a rendition from a viewer's viewport.
+     */
+    public void setSourceSize(int width, int height) {
+        sourceWidth = width;
+        sourceHeight = height;
+    }
+
+    public int getSourceWidth() {
+        return sourceWidth;
+    }
+
+    public int getSourceHeight() {
+        return sourceHeight;
+    }
+}
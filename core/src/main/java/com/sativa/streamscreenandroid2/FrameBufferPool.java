@@ -0,0 +1,197 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ring of reusable direct buffers that encoded frames are written into. Each buffer is
+ * reference counted: the encoder holds the first reference, FrameBroadcaster takes it over
+ * on publish, and every reader retains it while sending. A buffer goes back to the ring
+ * when the last reference is released, so memory depends on the ring size, not on the
+ * number of viewers.
+ */
+public class FrameBufferPool {
+
+    /**
+     * One slot of the ring. Readers only ever see {@link #slice()}, a read-only view.
+     */
+    public static final class Buffer {
+        private final FrameBufferPool pool;
+        private ByteBuffer data;
+        private ByteBuffer readOnly;
+        private int length;
+        // 0 = free in the ring
+        private final AtomicInteger refs = new AtomicInteger();
+        // Bumped on every reuse so a reader holding an old Frame cannot retain the new contents
+        private volatile int generation;
+        private final OutputStream output = new OutputStream() {
+            @Override
+            public void write(int b) {
+                ensureCapacity(1);
+                data.put((byte) b);
+            }
+
+            @Override
+            public void write(@NonNull byte[] b, int off, int len) {
+                ensureCapacity(len);
+                data.put(b, off, len);
+            }
+        };
+
+        Buffer(FrameBufferPool pool, int capacity) {
+            this.pool = pool;
+            this.data = ByteBuffer.allocateDirect(capacity);
+            pool.allocatedBytes.addAndGet(capacity);
+        }
+
+        /**
+         * Stream that writes into this buffer, growing it if needed. Only valid between
+         * {@link FrameBufferPool#acquire()} and {@link #seal()}.
+         */
+        @NonNull
+        public OutputStream outputStream() {
+            return output;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (data.remaining() >= extra) {
+                return;
+            }
+            int capacity = Math.max(data.capacity() * 2, data.position() + extra);
+            ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+            data.flip();
+            grown.put(data);
+            pool.allocatedBytes.addAndGet(capacity - data.capacity());
+            data = grown;
+        }
+
+        /**
+         * Ends writing; the contents are immutable from here until the buffer is recycled.
+         */
+        public void seal() {
+            length = data.position();
+            ByteBuffer view = data.duplicate();
+            view.flip();
+            readOnly = view.asReadOnlyBuffer();
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public int getGeneration() {
+            return generation;
+        }
+
+        /**
+         * Read-only view of the sealed contents with its own position; no bytes are copied.
+         */
+        @NonNull
+        public ByteBuffer slice() {
+            return readOnly.duplicate();
+        }
+
+        /**
+         * Adds a reference if the buffer still holds the given generation.
+         */
+        public boolean retain(int expectedGeneration) {
+            while (true) {
+                int current = refs.get();
+                if (current <= 0) {
+                    return false;
+                }
+                if (refs.compareAndSet(current, current + 1)) {
+                    break;
+                }
+            }
+            if (generation != expectedGeneration) {
+                release();
+                return false;
+            }
+            return true;
+        }
+
+        public void release() {
+            int left = refs.decrementAndGet();
+            if (left < 0) {
+                refs.incrementAndGet();
+                throw new IllegalStateException("Buffer released more often than retained");
+            }
+            if (left == 0) {
+                pool.recycled.incrementAndGet();
+            }
+        }
+
+        int refCount() {
+            return refs.get();
+        }
+    }
+
+    private final Buffer[] ring;
+    private int cursor;
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong recycled = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+
+    public FrameBufferPool(int slots, int initialCapacity) {
+        ring = new Buffer[slots];
+        for (int i = 0; i < slots; i++) {
+            ring[i] = new Buffer(this, initialCapacity);
+        }
+    }
+
+    /**
+     * Takes a free buffer for writing, with one reference owned by the caller, or returns
+     * null if readers still hold every slot.
+     */
+    @Nullable
+    public synchronized Buffer acquire() {
+        for (int i = 0; i < ring.length; i++) {
+            Buffer buffer = ring[(cursor + i) % ring.length];
+            if (buffer.refs.get() == 0) {
+                // Readers cannot raise refs from 0, so the slot is ours. Reset it while refs is
+                // still 0 and only then set it to 1: a stale reader whose retain succeeds
+                // after that sees the new generation and backs off instead of the rewrite
+                buffer.generation++;
+                buffer.data.clear();
+                buffer.length = 0;
+                buffer.readOnly = null;
+                buffer.refs.set(1);
+                cursor = (cursor + i + 1) % ring.length;
+                return buffer;
+            }
+        }
+        exhausted.incrementAndGet();
+        return null;
+    }
+
+    public int getFreeCount() {
+        int free = 0;
+        for (Buffer buffer : ring) {
+            if (buffer.refs.get() == 0) {
+                free++;
+            }
+        }
+        return free;
+    }
+
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    public long getExhaustedCount() {
+        return exhausted.get();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "free=" + getFreeCount() + "/" + ring.length + " allocated=" + allocatedBytes.get() / 1024
+                + "KB recycled=" + recycled.get() + " exhausted=" + exhausted.get();
+    }
+}
@@ -0,0 +1,312 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Pushes frames of one rendition to connected push clients (WebSocket viewers). Every client
+ * has a send queue that holds only the newest frame: a frame that is still waiting when the
+ * next one arrives is dropped. Sends run on the shared executor, so a slow client only holds
+ * up its own sends, and clients that stall or keep dropping are evicted.
+ *
+ * <p>NanoWSD only sends byte arrays, so a pooled frame is copied to the heap once per frame
+ * here, not once per client, and queued frames never pin pooled buffers.
+ */
+public class FrameFanout {
+
+    public interface Client {
+        /** Blocking write of one frame. */
+        void sendFrame(@NonNull Frame frame) throws IOException;
+
+        /** Disconnects the client; called at most once, from the send executor. */
+        void evict(@NonNull String reason);
+    }
+
+    private static final long WAIT_MS = 1000;
+    private static final long DEFAULT_STALL_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+    // About five seconds at 30 fps without a single completed send
+    private static final int DEFAULT_MAX_CONSECUTIVE_DROPS = 150;
+
+    private final FrameBroadcaster frameBroadcaster;
+    private final Rendition rendition;
+    private final Executor sendExecutor;
+    private final long stallTimeoutNanos;
+    private final int maxConsecutiveDrops;
+    private final List<ClientQueue> clients = new CopyOnWriteArrayList<>();
+    private final AtomicLong evictions = new AtomicLong();
+    @Nullable
+    private volatile DeliveryListener deliveryListener;
+    private Thread thread;
+    private volatile boolean running;
+
+    /**
+     * Per-client latest-only queue and its counters.
+     */
+    public static final class ClientQueue {
+        final Client client;
+        final AtomicReference<Frame> pending = new AtomicReference<>();
+        final AtomicBoolean draining = new AtomicBoolean();
+        final AtomicBoolean evicted = new AtomicBoolean();
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+        final AtomicLong consecutiveDrops = new AtomicLong();
+        // Start of the send in progress, 0 when idle
+        volatile long sendStartNanos;
+
+        ClientQueue(Client client) {
+            this.client = client;
+        }
+
+        /** Frames waiting plus the one being written. */
+        public int getQueueDepth() {
+            return (pending.get() != null ? 1 : 0) + (sendStartNanos != 0 ? 1 : 0);
+        }
+
+        public long getSentCount() {
+            return sent.get();
+        }
+
+        public long getDroppedCount() {
+            return dropped.get();
+        }
+
+        public boolean isEvicted() {
+            return evicted.get();
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "depth=" + getQueueDepth() + " sent=" + sent.get() + " dropped=" + dropped.get()
+                    + (evicted.get() ? " evicted" : "");
+        }
+    }
+
+    public FrameFanout(@NonNull FrameBroadcaster frameBroadcaster, @NonNull Rendition rendition,
+                       @NonNull Executor sendExecutor) {
+        this(frameBroadcaster, rendition, sendExecutor, DEFAULT_STALL_TIMEOUT_NANOS, DEFAULT_MAX_CONSECUTIVE_DROPS);
+    }
+
+    FrameFanout(@NonNull FrameBroadcaster frameBroadcaster, @NonNull Rendition rendition,
+                @NonNull Executor sendExecutor, long stallTimeoutNanos, int maxConsecutiveDrops) {
+        this.frameBroadcaster = frameBroadcaster;
+        this.rendition = rendition;
+        this.sendExecutor = sendExecutor;
+        this.stallTimeoutNanos = stallTimeoutNanos;
+        this.maxConsecutiveDrops = maxConsecutiveDrops;
+    }
+
+    /**
+     * Registers a client and queues the current frame so it has something to show at once.
+     */
+    @NonNull
+    public ClientQueue add(@NonNull Client client) {
+        ClientQueue queue = new ClientQueue(client);
+        clients.add(queue);
+        frameBroadcaster.addViewer(rendition);
+        DeliveryListener listener = deliveryListener;
+        if (listener != null) {
+            listener.onOpened(client);
+        }
+
+        Frame current = frameBroadcaster.getLatest(rendition);
+        if (current == null || current.isEmpty()) {
+            // Rendition not encoded yet: start with the adaptive frame
+            current = frameBroadcaster.getLatest();
+        }
+        if (current != null && !current.isEmpty()) {
+            current = current.toHeapFrame();
+            if (current != null) {
+                offer(queue, current);
+            }
+        }
+        return queue;
+    }
+
+    public void remove(@NonNull Client client) {
+        for (ClientQueue queue : clients) {
+            if (queue.client == client && clients.remove(queue)) {
+                frameBroadcaster.removeViewer(rendition);
+                queue.pending.set(null);
+                DeliveryListener listener = deliveryListener;
+                if (listener != null) {
+                    listener.onClosed(client);
+                }
+            }
+        }
+    }
+
+    /**
+     * Receives the duration of every completed send.
+     */
+    public void setDeliveryListener(@Nullable DeliveryListener deliveryListener) {
+        this.deliveryListener = deliveryListener;
+    }
+
+    @Nullable
+    public DeliveryListener getDeliveryListener() {
+        return deliveryListener;
+    }
+
+    public long getEvictedCount() {
+        return evictions.get();
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    @NonNull
+    public List<ClientQueue> getClients() {
+        return new ArrayList<>(clients);
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::run, "FrameFanout-" + rendition.paramName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    private void run() {
+        long lastSeq = 0;
+        while (running) {
+            Frame frame;
+            try {
+                frame = frameBroadcaster.waitForNextFrame(rendition, lastSeq, WAIT_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (frame != null && frame.sequence > lastSeq) {
+                lastSeq = frame.sequence;
+                Frame heapFrame = frame.isEmpty() ? null : frame.toHeapFrame();
+                if (heapFrame != null) {
+                    publish(heapFrame);
+                }
+            }
+            evictStalled(System.nanoTime());
+        }
+    }
+
+    /**
+     * Offers a frame to every client. Normally driven by the fanout thread.
+     */
+    void publish(@NonNull Frame frame) {
+        for (ClientQueue queue : clients) {
+            offer(queue, frame);
+        }
+    }
+
+    private void offer(ClientQueue queue, Frame frame) {
+        if (queue.evicted.get()) {
+            return;
+        }
+        Frame replaced = queue.pending.getAndSet(frame);
+        if (replaced != null) {
+            queue.dropped.incrementAndGet();
+            if (queue.consecutiveDrops.incrementAndGet() > maxConsecutiveDrops) {
+                evict(queue, "too slow: " + queue.consecutiveDrops.get() + " frames dropped in a row");
+                return;
+            }
+        }
+        if (queue.draining.compareAndSet(false, true)) {
+            try {
+                sendExecutor.execute(() -> drain(queue));
+            } catch (RejectedExecutionException e) {
+                // Server is shutting down
+                queue.draining.set(false);
+            }
+        }
+    }
+
+    private void drain(ClientQueue queue) {
+        while (true) {
+            Frame frame = queue.pending.getAndSet(null);
+            if (frame == null) {
+                queue.draining.set(false);
+                // A frame offered between the empty check and clearing the flag must not be stranded
+                if (queue.pending.get() == null || !queue.draining.compareAndSet(false, true)) {
+                    return;
+                }
+                continue;
+            }
+            if (queue.evicted.get()) {
+                queue.draining.set(false);
+                return;
+            }
+            long start = System.nanoTime();
+            queue.sendStartNanos = start;
+            try {
+                queue.client.sendFrame(frame);
+            } catch (IOException e) {
+                queue.sendStartNanos = 0;
+                queue.draining.set(false);
+                evict(queue, "send failed: " + e.getMessage());
+                return;
+            }
+            queue.sendStartNanos = 0;
+            DeliveryListener listener = deliveryListener;
+            if (listener != null) {
+                listener.onDelivered(queue.client, frame.length(), System.nanoTime() - start);
+            }
+            queue.sent.incrementAndGet();
+            queue.consecutiveDrops.set(0);
+        }
+    }
+
+    void evictStalled(long nowNanos) {
+        for (ClientQueue queue : clients) {
+            long start = queue.sendStartNanos;
+            if (start != 0 && nowNanos - start > stallTimeoutNanos) {
+                evict(queue, "send stalled for " + TimeUnit.NANOSECONDS.toMillis(nowNanos - start) + " ms");
+            }
+        }
+    }
+
+    private void evict(ClientQueue queue, String reason) {
+        if (!queue.evicted.compareAndSet(false, true)) {
+            return;
+        }
+        evictions.incrementAndGet();
+        remove(queue.client);
+        // Closing may block behind the stuck write, so never do it on the fanout thread
+        try {
+            sendExecutor.execute(() -> queue.client.evict(reason));
+        } catch (RejectedExecutionException e) {
+            // Server is shutting down and closes every connection itself
+        }
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(rendition.paramName).append(": ").append(clients.size())
+                .append(" clients, ").append(evictions.get()).append(" evicted");
+        for (ClientQueue queue : clients) {
+            sb.append(" [").append(queue).append(']');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,57 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fast 64-bit fingerprint of the visible part of an RGBA plane, used to skip encoding
+ * when the screen did not change. Row padding is ignored so only real pixels count.
+ */
+public final class FrameFingerprint {
+
+    private static final long PRIME_1 = 0x9E3779B97F4A7C15L;
+    private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+
+    private FrameFingerprint() {
+    }
+
+    /**
+     * @param rowStep 1 hashes every row; larger values only sample every n-th row
+     *                (cheaper, but may miss changes confined to skipped rows)
+     */
+    public static long compute(@NonNull ByteBuffer plane, int width, int height,
+                               int rowStride, int pixelStride, int rowStep) {
+        if (rowStep < 1) {
+            throw new IllegalArgumentException("rowStep must be >= 1");
+        }
+        int rowBytes = width * pixelStride;
+        int longs = rowBytes / 8;
+        long h = PRIME_2 ^ ((long) width << 32 | height);
+
+        for (int y = 0; y < height; y += rowStep) {
+            int base = y * rowStride;
+            int end = Math.min(base + rowBytes, plane.limit());
+            int i = base;
+            for (int n = 0; n < longs && i + 8 <= end; n++, i += 8) {
+                h = mix(h, plane.getLong(i));
+            }
+            for (; i < end; i++) {
+                h = mix(h, plane.get(i));
+            }
+        }
+        return finish(h);
+    }
+
+    private static long mix(long h, long v) {
+        h ^= v * PRIME_1;
+        return Long.rotateLeft(h, 27) * PRIME_2;
+    }
+
+    private static long finish(long h) {
+        h ^= h >>> 33;
+        h *= PRIME_1;
+        h ^= h >>> 29;
+        return h;
+    }
+}
@@ -0,0 +1,56 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reads one retained frame's payload without copying it to the heap first, and releases
+ * the frame when closed. Used as a fixed-length response body.
+ */
+public class FrameInputStream extends InputStream {
+
+    private final Frame frame;
+    private final ByteBuffer payload;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    /**
+     * Takes over the caller's reference to {@code frame}.
+     */
+    public FrameInputStream(@NonNull Frame frame) {
+        this.frame = frame;
+        this.payload = frame.payload();
+    }
+
+    @Override
+    public int read() {
+        return payload.hasRemaining() ? payload.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(@NonNull byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        if (!payload.hasRemaining()) {
+            return -1;
+        }
+        int n = Math.min(len, payload.remaining());
+        payload.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return payload.remaining();
+    }
+
+    @Override
+    public void close() {
+        if (released.compareAndSet(false, true)) {
+            frame.release();
+        }
+    }
+}
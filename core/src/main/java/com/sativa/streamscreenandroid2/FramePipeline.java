@@ -0,0 +1,187 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+
+/**
+ * Two-stage capture pipeline. The capture stage (ImageReader callback) only copies the plane
+ * into a pooled {@link PlaneBuffer} and submits it; a dedicated encoder thread converts and
+ * compresses. The hand-off queue drops the oldest frame when the encoder falls behind, so
+ * capture never blocks and latency stays bounded by the queue capacity.
+ */
+public class FramePipeline {
+
+    public interface FrameEncoder {
+        /**
+         * Called on the encoder thread. The buffer is recycled when this returns.
+         */
+        void encode(@NonNull PlaneBuffer frame) throws Exception;
+    }
+
+    public interface ErrorHandler {
+        void onError(@NonNull Exception e);
+    }
+
+    private static final long POLL_MS = 500;
+
+    private final FrameEncoder encoder;
+    private final ErrorHandler errorHandler;
+    private final DropOldestQueue<PlaneBuffer> queue;
+    // Free buffers; one being filled + queued ones + one being encoded
+    private final ArrayDeque<PlaneBuffer> pool = new ArrayDeque<>();
+    private final int poolSize;
+    private int allocated;
+    private Thread thread;
+    private volatile boolean running;
+
+    private final StageTimer captureTimer = new StageTimer("capture");
+    private final StageTimer queueTimer = new StageTimer("queue");
+    private final StageTimer encodeTimer = new StageTimer("encode");
+    private final StageTimer totalTimer = new StageTimer("total");
+    private volatile long poolExhausted;
+
+    public FramePipeline(int queueCapacity, @NonNull FrameEncoder encoder, @NonNull ErrorHandler errorHandler) {
+        this.queue = new DropOldestQueue<>(queueCapacity);
+        this.poolSize = queueCapacity + 2;
+        this.encoder = encoder;
+        this.errorHandler = errorHandler;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::runEncoder, "FrameEncoderThread");
+        thread.start();
+    }
+
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            running = false;
+            t = thread;
+            thread = null;
+        }
+        if (t != null) {
+            t.interrupt();
+            try {
+                t.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        PlaneBuffer leftover;
+        while ((leftover = queue.poll()) != null) {
+            recycle(leftover);
+        }
+    }
+
+    /**
+     * Takes a free buffer of at least {@code capacity} bytes. Buffers of the wrong size (after a
+     * rotation) are discarded and reallocated. Returns null if every buffer is in use.
+     */
+    @Nullable
+    public synchronized PlaneBuffer acquire(int capacity) {
+        PlaneBuffer buffer;
+        while ((buffer = pool.pollFirst()) != null) {
+            if (buffer.capacity() >= capacity && buffer.capacity() <= capacity * 2L) {
+                return buffer;
+            }
+            allocated--;
+        }
+        if (allocated >= poolSize) {
+            poolExhausted++;
+            return null;
+        }
+        allocated++;
+        return new PlaneBuffer(capacity);
+    }
+
+    public synchronized void recycle(@NonNull PlaneBuffer buffer) {
+        pool.addLast(buffer);
+    }
+
+    /**
+     * Hands a filled buffer to the encoder thread without blocking.
+     *
+     * @param captureStartNanos System.nanoTime() when the capture stage started on this frame
+     * @return false if an older queued frame was dropped to make room
+     */
+    public boolean submit(@NonNull PlaneBuffer buffer, long captureStartNanos) {
+        long now = System.nanoTime();
+        captureTimer.record(now - captureStartNanos);
+        buffer.captureStartNanos = captureStartNanos;
+        buffer.enqueuedNanos = now;
+        PlaneBuffer evicted = queue.offer(buffer);
+        if (evicted != null) {
+            recycle(evicted);
+            return false;
+        }
+        return true;
+    }
+
+    private void runEncoder() {
+        while (running) {
+            PlaneBuffer buffer;
+            try {
+                buffer = queue.poll(POLL_MS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (buffer == null) {
+                continue;
+            }
+
+            long start = System.nanoTime();
+            queueTimer.record(start - buffer.enqueuedNanos);
+            try {
+                encoder.encode(buffer);
+                long end = System.nanoTime();
+                encodeTimer.record(end - start);
+                totalTimer.record(end - buffer.captureStartNanos);
+            } catch (Exception e) {
+                errorHandler.onError(e);
+            } finally {
+                recycle(buffer);
+            }
+        }
+    }
+
+    public long getDroppedFrames() {
+        return queue.getDroppedCount() + poolExhausted;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    @NonNull
+    public StageTimer getCaptureTimer() {
+        return captureTimer;
+    }
+
+    @NonNull
+    public StageTimer getQueueTimer() {
+        return queueTimer;
+    }
+
+    @NonNull
+    public StageTimer getEncodeTimer() {
+        return encodeTimer;
+    }
+
+    @NonNull
+    public StageTimer getTotalTimer() {
+        return totalTimer;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return captureTimer + " | " + queueTimer + " | " + encodeTimer + " | " + totalTimer
+                + " | dropped=" + getDroppedFrames() + " depth=" + getQueueDepth();
+    }
+}
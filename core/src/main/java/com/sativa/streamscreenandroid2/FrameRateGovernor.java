@@ -0,0 +1,184 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Locale;
+
+/**
+ * Paces screen capture so the encoder does not run at the panel's 60-120 Hz. A token
+ * bucket refills at the target frame rate (or the adaptive controller's lower rate) and
+ * holds a few frames of burst, so the first change after an idle screen goes out at once;
+ * frames are never closer together than 1/maxFps. Once the display refresh rate is known,
+ * both intervals are rounded up to whole refresh periods so frames come at an even cadence
+ * instead of alternating between two vsync gaps (24 fps on a 60 Hz panel becomes 20).
+ *
+ * <p>With a {@link ViewerTracker} attached, frames that only /frame pollers would see are
+ * held back until shortly before the next poll is expected; encoding earlier would only
+ * produce a frame that a newer one replaces before anyone reads it. Stream viewers read
+ * every frame and switch this off.
+ */
+public class FrameRateGovernor {
+
+    public static final int MIN_FPS = 1;
+    static final int BURST_FRAMES = 3;
+    // How early a frame may arrive and still count as on time, when the refresh rate is unknown
+    private static final long DEFAULT_SLACK_NANOS = 2_000_000L;
+    private static final long FPS_WINDOW_NANOS = 1_000_000_000L;
+
+    private final int targetFps;
+    private final int maxFps;
+    private int rateLimitFps = Integer.MAX_VALUE;
+    private long refreshPeriodNanos;
+    private long intervalNanos;
+    private long minSpacingNanos;
+    private long slackNanos;
+    @Nullable
+    private ViewerTracker demand;
+
+    private double tokens = BURST_FRAMES;
+    private boolean refilled;
+    private long lastRefillNanos;
+    private long lastFrameNanos;
+    private boolean started;
+
+    private long frames;
+    private long windowStartNanos;
+    private long windowStartFrames;
+    private double capturedFps;
+
+    public FrameRateGovernor(int targetFps, int maxFps) {
+        this.maxFps = Math.max(MIN_FPS, maxFps);
+        this.targetFps = Math.max(MIN_FPS, Math.min(targetFps, this.maxFps));
+        updateIntervals();
+    }
+
+    /**
+     * Aligns frame intervals to the display's vsync period; 0 or less to stop aligning.
+     */
+    public synchronized void setRefreshRate(float hz) {
+        refreshPeriodNanos = hz > 0 ? Math.round(1e9 / hz) : 0;
+        updateIntervals();
+    }
+
+    /**
+     * A lower rate imposed from outside, e.g. by the adaptive quality controller.
+     */
+    public synchronized void setRateLimit(int fps) {
+        fps = Math.max(MIN_FPS, fps);
+        if (fps != rateLimitFps) {
+            rateLimitFps = fps;
+            updateIntervals();
+        }
+    }
+
+    public synchronized void setDemand(@Nullable ViewerTracker demand) {
+        this.demand = demand;
+    }
+
+    /**
+     * How long until the next frame is due; 0 means capture the frame that arrived now.
+     */
+    public synchronized long nanosUntilNextFrame(long nowNanos) {
+        refill(nowNanos);
+        long wait = 0;
+        if (started) {
+            wait = lastFrameNanos + minSpacingNanos - slackNanos - nowNanos;
+        }
+        double needed = 1 - slackNanos / (double) intervalNanos;
+        if (tokens < needed) {
+            wait = Math.max(wait, (long) Math.ceil((needed - tokens) * intervalNanos));
+        }
+        if (wait > 0) {
+            return wait;
+        }
+        return Math.max(0, nanosUntilPollWindow(nowNanos));
+    }
+
+    /**
+     * Records a captured frame; it uses up one token.
+     */
+    public synchronized void onFrameCaptured(long nowNanos) {
+        refill(nowNanos);
+        tokens -= 1;
+        lastFrameNanos = nowNanos;
+        if (!started) {
+            started = true;
+            windowStartNanos = nowNanos;
+        }
+        frames++;
+        long elapsed = nowNanos - windowStartNanos;
+        if (elapsed >= FPS_WINDOW_NANOS) {
+            capturedFps = (frames - windowStartFrames) * 1e9 / elapsed;
+            windowStartNanos = nowNanos;
+            windowStartFrames = frames;
+        }
+    }
+
+    public synchronized long getFrameIntervalNanos() {
+        return intervalNanos;
+    }
+
+    public synchronized double getCapturedFps(long nowNanos) {
+        // Nothing captured lately (static screen, no viewers): 0, not the last busy window
+        return started && nowNanos - lastFrameNanos > 2 * FPS_WINDOW_NANOS ? 0 : capturedFps;
+    }
+
+    public int getTargetFps() {
+        return targetFps;
+    }
+
+    public int getMaxFps() {
+        return maxFps;
+    }
+
+    // Only pollers watching: wait until two intervals before the next poll is expected, which
+    // leaves one interval for the encode
+    private long nanosUntilPollWindow(long nowNanos) {
+        ViewerTracker viewers = demand;
+        if (viewers == null || viewers.getStreamCount() > 0) {
+            return 0;
+        }
+        long period = viewers.getRequestIntervalNanos();
+        if (period <= 0) {
+            return 0;
+        }
+        return viewers.getLastRequestNanos() + period - 2 * intervalNanos - nowNanos;
+    }
+
+    private void refill(long nowNanos) {
+        if (refilled) {
+            tokens = Math.min(BURST_FRAMES, tokens + (nowNanos - lastRefillNanos) / (double) intervalNanos);
+        }
+        lastRefillNanos = nowNanos;
+        refilled = true;
+    }
+
+    private void updateIntervals() {
+        long interval = 1_000_000_000L / Math.min(targetFps, rateLimitFps);
+        long minSpacing = 1_000_000_000L / maxFps;
+        if (refreshPeriodNanos > 0) {
+            // Round up (ignoring a 1% excess), so the aligned rates never exceed the configured ones
+            long minPeriods = Math.max(1, wholePeriods(minSpacing));
+            long periods = Math.max(minPeriods, wholePeriods(interval));
+            minSpacing = minPeriods * refreshPeriodNanos;
+            interval = periods * refreshPeriodNanos;
+            slackNanos = refreshPeriodNanos / 2;
+        } else {
+            slackNanos = DEFAULT_SLACK_NANOS;
+        }
+        intervalNanos = interval;
+        minSpacingNanos = minSpacing;
+    }
+
+    private long wholePeriods(long nanos) {
+        return (nanos - refreshPeriodNanos / 100 + refreshPeriodNanos - 1) / refreshPeriodNanos;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "fps target=%d max=%d interval=%.1fms captured=%.1f",
+                targetFps, maxFps, intervalNanos / 1e6, getCapturedFps(System.nanoTime()));
+    }
+}
@@ -0,0 +1,133 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records published frames into a {@link FrameArchive} on its own thread. Like the other
+ * readers it follows FrameBroadcaster's latest frame, so capture never waits for the disk:
+ * a frame replaced while the previous one is still being written is skipped and counted.
+ * Only the adaptive rendition, the one every capture mode publishes, is recorded.
+ */
+public class FrameRecorder {
+
+    private static final long FRAME_WAIT_MS = 1000;
+
+    private final FrameBroadcaster frameBroadcaster;
+    private final FrameArchive archive;
+    private Thread thread;
+    private volatile boolean running;
+
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    public FrameRecorder(@NonNull FrameBroadcaster frameBroadcaster, @NonNull FrameArchive archive) {
+        this.frameBroadcaster = frameBroadcaster;
+        this.archive = archive;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::run, "FrameRecorder");
+        thread.setDaemon(true);
+        // Below the capture and encoder threads
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        thread.start();
+    }
+
+    /**
+     * Stops the thread after the frame being written and closes the archive.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        // Not interrupt(): that would close the archive's channels in the middle of a write
+        LockSupport.unpark(thread);
+        try {
+            thread.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            archive.close();
+        } catch (IOException e) {
+            errors.incrementAndGet();
+        }
+    }
+
+    @NonNull
+    public FrameArchive getArchive() {
+        return archive;
+    }
+
+    public long getRecordedCount() {
+        return recorded.get();
+    }
+
+    /** Frames published while an earlier one was still being written. */
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "recorder: recorded=" + recorded.get() + " skipped=" + skipped.get() + " errors=" + errors.get()
+                + " | " + archive;
+    }
+
+    private void run() {
+        long lastSeq = 0;
+        while (running) {
+            Frame frame;
+            try {
+                frame = frameBroadcaster.waitForNextFrame(lastSeq, FRAME_WAIT_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (frame == null || frame.sequence <= lastSeq) {
+                continue;
+            }
+            // Fails only if a newer frame already replaced it; the next wait returns that one
+            if (!frame.retain()) {
+                continue;
+            }
+            try {
+                if (!frame.isEmpty()) {
+                    if (lastSeq > 0) {
+                        skipped.addAndGet(frame.sequence - lastSeq - 1);
+                    }
+                    archive.append(frame, wallClockMicros(frame, System.currentTimeMillis(), System.nanoTime()));
+                    recorded.incrementAndGet();
+                }
+            } catch (IOException e) {
+                // Disk full or removed; keep trying with the next frame
+                errors.incrementAndGet();
+            } finally {
+                frame.release();
+            }
+            lastSeq = frame.sequence;
+        }
+    }
+
+    /**
+     * When the frame's content was captured, on the wall clock.
+     */
+    static long wallClockMicros(@NonNull Frame frame, long nowMillis, long nowNanos) {
+        long stamp = frame.captureTimestampNanos != 0 ? frame.captureTimestampNanos : frame.publishNanos;
+        return nowMillis * 1000 - Math.max(0, nowNanos - stamp) / 1000;
+    }
+}
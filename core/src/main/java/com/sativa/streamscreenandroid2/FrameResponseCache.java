@@ -0,0 +1,130 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Complete /frame responses (status line, headers and body) encoded once per published frame
+ * and rendition, so every poller of the same frame gets the same bytes in a single write.
+ * Entries are built lazily on the first request for a new sequence.
+ */
+public class FrameResponseCache {
+
+    /**
+     * Pre-encoded 200 and 304 responses for one frame sequence.
+     */
+    public static final class Entry {
+        public final long sequence;
+        @NonNull
+        public final String etag;
+        // Full 200 response; the first headerLength bytes are the head, for HEAD requests
+        @NonNull
+        public final byte[] ok;
+        public final int headerLength;
+        @NonNull
+        public final byte[] notModified;
+
+        Entry(@NonNull Frame frame, @NonNull String etag) {
+            this.sequence = frame.sequence;
+            this.etag = etag;
+            ByteBuffer body = frame.payload();
+            byte[] head = head("200 OK", etag, frame.timingHeaders(), body.remaining());
+            this.headerLength = head.length;
+            this.ok = new byte[head.length + body.remaining()];
+            System.arraycopy(head, 0, ok, 0, head.length);
+            body.get(ok, head.length, body.remaining());
+            this.notModified = head("304 Not Modified", etag, "", 0);
+        }
+
+        /**
+         * Whether the client's If-None-Match already names this frame.
+         */
+        public boolean matches(@Nullable String ifNoneMatch) {
+            return etag.equals(ifNoneMatch);
+        }
+    }
+
+    private final FrameBroadcaster frameBroadcaster;
+    private final AtomicReferenceArray<Entry> entries = new AtomicReferenceArray<>(Rendition.values().length);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong builds = new AtomicLong();
+
+    public FrameResponseCache(@NonNull FrameBroadcaster frameBroadcaster) {
+        this.frameBroadcaster = frameBroadcaster;
+    }
+
+    /**
+     * Responses for the rendition's latest frame, or null if it has no current frame.
+     */
+    @Nullable
+    public Entry get(@NonNull Rendition rendition) {
+        int slot = rendition.ordinal();
+        Frame latest = frameBroadcaster.getLatest(rendition);
+        if (latest == null || latest.isEmpty()) {
+            return null;
+        }
+        Entry cached = entries.get(slot);
+        if (cached != null && cached.sequence == latest.sequence) {
+            hits.incrementAndGet();
+            return cached;
+        }
+
+        Frame frame = frameBroadcaster.acquireLatest(rendition);
+        if (frame == null) {
+            return null;
+        }
+        Entry entry;
+        try {
+            if (frame.isEmpty()) {
+                return null;
+            }
+            entry = new Entry(frame, frameBroadcaster.getETag(rendition, frame.sequence));
+        } finally {
+            frame.release();
+        }
+        builds.incrementAndGet();
+        // Concurrent misses may both build; keep whichever is newer
+        while (true) {
+            cached = entries.get(slot);
+            if (cached != null && cached.sequence >= entry.sequence) {
+                return cached;
+            }
+            if (entries.compareAndSet(slot, cached, entry)) {
+                return entry;
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getBuildCount() {
+        return builds.get();
+    }
+
+    // Connection is left to the server: HTTP/1.1 defaults to keep-alive and a server that
+    // closes after the response needs no header to do so.
+    private static byte[] head(String status, String etag, String timing, int contentLength) {
+        String head = "HTTP/1.1 " + status + "\r\n" +
+                "Content-Type: image/jpeg\r\n" +
+                "ETag: " + etag + "\r\n" +
+                timing +
+                // no-cache (not no-store) so clients revalidate with If-None-Match
+                "Cache-Control: no-cache\r\n" +
+                "Content-Length: " + contentLength + "\r\n" +
+                "\r\n";
+        return head.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "frame responses: hits=" + hits.get() + " builds=" + builds.get();
+    }
+}
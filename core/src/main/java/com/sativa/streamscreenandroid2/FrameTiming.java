@@ -0,0 +1,58 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Where one displayed frame spent its time, from screen capture to the viewer's canvas.
+ * All times are System.nanoTime() values; the viewer converted its receive and display
+ * times to the server clock with its estimated offset, so those two are approximate.
+ */
+public final class FrameTiming {
+
+    public final long sequence;
+    // 0 if the capture time is unknown
+    public final long captureNanos;
+    public final long publishNanos;
+    public final long sentNanos;
+    public final long receivedNanos;
+    public final long shownNanos;
+
+    public FrameTiming(long sequence, long captureNanos, long publishNanos, long sentNanos,
+                       long receivedNanos, long shownNanos) {
+        this.sequence = sequence;
+        this.captureNanos = captureNanos;
+        this.publishNanos = publishNanos;
+        this.sentNanos = sentNanos;
+        this.receivedNanos = receivedNanos;
+        this.shownNanos = shownNanos;
+    }
+
+    /**
+     * Capture to display, or -1 if the capture time is unknown.
+     */
+    public long getLatencyNanos() {
+        return captureNanos == 0 ? -1 : Math.max(0, shownNanos - captureNanos);
+    }
+
+    /**
+     * Start of the socket write until the viewer had the whole frame. Clamped at 0, since a
+     * clock estimate that is off by more than the transfer time can make it negative.
+     */
+    public long getNetworkNanos() {
+        return Math.max(0, receivedNanos - sentNanos);
+    }
+
+    /**
+     * Received until drawn: JPEG decode plus the wait for the previous draw.
+     */
+    public long getDisplayNanos() {
+        return Math.max(0, shownNanos - receivedNanos);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "frame " + sequence + ": latency=" + getLatencyNanos() / 1000 + "us network="
+                + getNetworkNanos() / 1000 + "us display=" + getDisplayNanos() / 1000 + "us";
+    }
+}
@@ -0,0 +1,80 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoWSD;
+
+/**
+ * /ws viewer connection: every binary message is one complete JPEG, preceded by a text
+ * message with its timing. Frames are pushed by a {@link FrameFanout}. The browser sends
+ * clock sync requests and display reports, see {@link LatencyProbe}.
+ */
+public class FrameWebSocket extends NanoWSD.WebSocket implements FrameFanout.Client {
+
+    private final FrameFanout fanout;
+    private final LatencyProbe latencyProbe = new LatencyProbe();
+
+    public FrameWebSocket(@NonNull NanoHTTPD.IHTTPSession handshakeRequest, @NonNull FrameFanout fanout) {
+        super(handshakeRequest);
+        this.fanout = fanout;
+    }
+
+    @Override
+    protected void onOpen() {
+        fanout.add(this);
+    }
+
+    @Override
+    protected void onClose(NanoWSD.WebSocketFrame.CloseCode code, String reason, boolean initiatedByRemote) {
+        fanout.remove(this);
+    }
+
+    @Override
+    protected void onMessage(NanoWSD.WebSocketFrame message) {
+        if (message.getOpCode() != NanoWSD.WebSocketFrame.OpCode.Text) {
+            return;
+        }
+        String text = message.getTextPayload();
+        String reply = LatencyProbe.syncReply(text, System.nanoTime());
+        if (reply != null) {
+            try {
+                send(reply);
+            } catch (IOException ignored) {
+                // The send thread notices the broken connection
+            }
+            return;
+        }
+        FrameTiming timing = latencyProbe.onReport(text);
+        DeliveryListener listener = fanout.getDeliveryListener();
+        if (timing != null && listener != null) {
+            listener.onDisplayed(this, timing);
+        }
+    }
+
+    @Override
+    protected void onPong(NanoWSD.WebSocketFrame pong) {
+    }
+
+    @Override
+    protected void onException(IOException exception) {
+        fanout.remove(this);
+    }
+
+    @Override
+    public void sendFrame(@NonNull Frame frame) throws IOException {
+        byte[] data = frame.toByteArray();
+        send(latencyProbe.onSent(frame, System.nanoTime()));
+        send(data);
+    }
+
+    @Override
+    public void evict(@NonNull String reason) {
+        try {
+            close(NanoWSD.WebSocketFrame.CloseCode.PolicyViolation, reason, false);
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-bucket histogram that can be recorded from any thread without locks. Bucket i counts
+ * values up to and including {@code bounds[i]}; the last bucket counts everything larger.
+ */
+public class Histogram {
+
+    // 50 µs .. 5 s, roughly 1-2.5-5 steps
+    private static final long[] LATENCY_BOUNDS_NANOS = {
+            50_000L, 100_000L, 250_000L, 500_000L,
+            1_000_000L, 2_500_000L, 5_000_000L, 10_000_000L, 25_000_000L, 50_000_000L,
+            100_000_000L, 250_000_000L, 500_000_000L, 1_000_000_000L, 5_000_000_000L};
+    // 1 KB .. 2 MB
+    private static final long[] SIZE_BOUNDS_BYTES = {
+            1024L, 4096L, 16_384L, 32_768L, 65_536L, 131_072L, 262_144L, 524_288L, 1_048_576L, 2_097_152L};
+
+    private final long[] bounds;
+    private final AtomicLongArray counts;
+    private final LongAdder sum = new LongAdder();
+
+    public Histogram(@NonNull long[] bounds) {
+        this.bounds = bounds.clone();
+        this.counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    @NonNull
+    public static Histogram latencyNanos() {
+        return new Histogram(LATENCY_BOUNDS_NANOS);
+    }
+
+    @NonNull
+    public static Histogram sizeBytes() {
+        return new Histogram(SIZE_BOUNDS_BYTES);
+    }
+
+    public void record(long value) {
+        int i = 0;
+        // At most 16 buckets: a linear scan beats a binary search here
+        while (i < bounds.length && value > bounds[i]) {
+            i++;
+        }
+        counts.incrementAndGet(i);
+        sum.add(value);
+    }
+
+    @NonNull
+    public long[] getBounds() {
+        return bounds.clone();
+    }
+
+    /**
+     * Per-bucket (not cumulative) counts, one more than there are bounds.
+     */
+    @NonNull
+    public long[] getCounts() {
+        long[] out = new long[counts.length()];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = counts.get(i);
+        }
+        return out;
+    }
+
+    public long getCount() {
+        long n = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            n += counts.get(i);
+        }
+        return n;
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Upper bound of the bucket holding the given quantile (0..1), or -1 if it falls in the
+     * overflow bucket or nothing was recorded.
+     */
+    public long getQuantileBound(double quantile) {
+        long[] snapshot = getCounts();
+        long total = 0;
+        for (long c : snapshot) {
+            total += c;
+        }
+        if (total == 0) {
+            return -1;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return bounds[i];
+            }
+        }
+        return -1;
+    }
+}
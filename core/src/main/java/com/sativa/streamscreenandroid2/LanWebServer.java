@@ -0,0 +1,600 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.jetbrains.annotations.Contract;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import fi.iki.elonen.NanoWSD;
+
+public class LanWebServer extends NanoWSD {
+
+    public static final int DEFAULT_PORT = 8080;
+    static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    // Longest wait of /frame?after=<seq>; clients may ask for less with timeout=<ms>
+    static final long LONG_POLL_TIMEOUT_MS = 20_000;
+
+    private final ViewerSessions sessions;
+    private final FrameBroadcaster frameBroadcaster;
+    private final FrameResponseCache frameResponses;
+    // Off only to measure the per-request Response path for comparison
+    volatile boolean preEncodedFrames = true;
+    private final SegmentBroadcaster videoBroadcaster;
+    private final SegmentBroadcaster tileBroadcaster;
+    @Nullable
+    private volatile DeliveryListener deliveryListener;
+    @Nullable
+    private volatile PipelineMetrics metrics;
+    @Nullable
+    private volatile ViewerTracker viewerTracker;
+    @Nullable
+    private volatile ReplayBuffer replayBuffer;
+    // deliveryListener and viewerTracker combined, for the frame streams
+    @Nullable
+    private volatile DeliveryListener streamListener;
+    // WebSocket push: one fanout per rendition, created on first use, sharing the send threads
+    private final Map<Rendition, FrameFanout> fanouts = new EnumMap<>(Rendition.class);
+    private final ExecutorService wsSendExecutor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "WebSocketSend");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public LanWebServer(int port,
+                        @NonNull ViewerSessions sessions,
+                        @NonNull FrameBroadcaster frameBroadcaster,
+                        @NonNull SegmentBroadcaster videoBroadcaster,
+                        @NonNull SegmentBroadcaster tileBroadcaster) {
+        super(port);
+        this.sessions = sessions;
+        this.frameBroadcaster = frameBroadcaster;
+        this.frameResponses = new FrameResponseCache(frameBroadcaster);
+        this.videoBroadcaster = videoBroadcaster;
+        this.tileBroadcaster = tileBroadcaster;
+    }
+
+    /**
+     * A response whose bytes, status line and headers included, were encoded in advance.
+     * Written with a single write instead of NanoHTTPD's header-by-header formatting.
+     */
+    private static final class PreEncodedResponse extends Response {
+        private final byte[] bytes;
+        private final int headerLength;
+
+        PreEncodedResponse(Status status, byte[] bytes, int headerLength) {
+            super(status, "image/jpeg", null, 0);
+            this.bytes = bytes;
+            this.headerLength = headerLength;
+        }
+
+        @Override
+        protected void send(OutputStream outputStream) {
+            try {
+                outputStream.write(bytes, 0, getRequestMethod() == Method.HEAD ? headerLength : bytes.length);
+                outputStream.flush();
+            } catch (IOException ignored) {
+                // Client went away; NanoHTTPD closes the socket on its next read
+            }
+        }
+    }
+
+    /**
+     * Receives drain measurements from the MJPEG and tile streams (the adaptive
+     * quality controller). H.264 runs its own rate control and is not reported.
+     */
+    public void setDeliveryListener(@Nullable DeliveryListener deliveryListener) {
+        this.deliveryListener = deliveryListener;
+        updateStreamListener();
+    }
+
+    /**
+     * Enables /metrics.
+     */
+    public void setMetrics(@Nullable PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Reports every stream and /frame poller, for pausing capture while nobody watches.
+     */
+    public void setViewerTracker(@Nullable ViewerTracker viewerTracker) {
+        this.viewerTracker = viewerTracker;
+        updateStreamListener();
+    }
+
+    /**
+     * Enables /replay.
+     */
+    public void setReplayBuffer(@Nullable ReplayBuffer replayBuffer) {
+        this.replayBuffer = replayBuffer;
+    }
+
+    private synchronized void updateStreamListener() {
+        DeliveryListener listener = deliveryListener;
+        ViewerTracker tracker = viewerTracker;
+        streamListener = tracker == null ? listener
+                : listener == null ? tracker
+                : DeliveryListener.both(listener, tracker);
+    }
+
+    private void onFrameServed() {
+        PipelineMetrics current = metrics;
+        if (current != null) {
+            current.increment(PipelineMetrics.Counter.DELIVERED);
+        }
+    }
+
+    private void onViewerRequest(@NonNull String token) {
+        ViewerTracker tracker = viewerTracker;
+        if (tracker != null) {
+            tracker.onRequest(token);
+        }
+    }
+
+    @Override
+    public Response serve(IHTTPSession session) {
+        // Check the upgrade request before NanoWSD answers the handshake
+        if (isWebsocketRequested(session)) {
+            if (!"/ws".equals(session.getUri())) {
+                return newFixedLengthResponse(Response.Status.NOT_FOUND, "text/plain", "Not found");
+            }
+            if (isAuthorized(getParam(session, "token"))) {
+                return unauthorizedResponse();
+            }
+        }
+        return super.serve(session);
+    }
+
+    @Override
+    protected WebSocket openWebSocket(IHTTPSession handshake) {
+        return new FrameWebSocket(handshake, fanoutFor(selectRendition(handshake)));
+    }
+
+    private FrameFanout fanoutFor(Rendition rendition) {
+        synchronized (fanouts) {
+            FrameFanout fanout = fanouts.get(rendition);
+            if (fanout == null) {
+                fanout = new FrameFanout(frameBroadcaster, rendition, wsSendExecutor);
+                fanout.setDeliveryListener(streamListener);
+                fanout.start();
+                fanouts.put(rendition, fanout);
+            }
+            return fanout;
+        }
+    }
+
+    /**
+     * Per-client send queue depth, sent and dropped frames for WebSocket viewers.
+     */
+    @NonNull
+    public String getWebSocketStats() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (fanouts) {
+            for (FrameFanout fanout : fanouts.values()) {
+                if (sb.length() > 0) {
+                    sb.append("; ");
+                }
+                sb.append(fanout);
+            }
+        }
+        return sb.length() == 0 ? "no websocket viewers" : sb.toString();
+    }
+
+    @NonNull
+    public String getFrameResponseStats() {
+        return frameResponses.toString();
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        synchronized (fanouts) {
+            for (FrameFanout fanout : fanouts.values()) {
+                fanout.stop();
+            }
+            fanouts.clear();
+        }
+        wsSendExecutor.shutdownNow();
+    }
+
+    @Override
+    protected Response serveHttp(IHTTPSession session) {
+        String uri = session.getUri();
+        Method method = session.getMethod();
+
+        // Frame endpoint: plain image clients fetch /frame?token=... repeatedly, so it goes first
+        if ("/frame".equals(uri)) {
+            String token = getParam(session, "token");
+            if (isAuthorized(token)) {
+                return unauthorizedResponse();
+            }
+            long after = parseLong(getParam(session, "after"), -1);
+            if (after >= 0) {
+                return serveLongPoll(session, token, after);
+            }
+            onViewerRequest(token);
+
+            return serveFrame(selectRendition(session), session.getHeaders().get("if-none-match"));
+        }
+
+        // Root: show the login page
+        if ("/".equals(uri) && method == Method.GET) {
+            return serveRootPage();
+        }
+
+        // Login handler: we expect POST with "token" in the body
+        if ("/view".equals(uri)) {
+            // Make sure POST body is parsed
+            java.util.Map<String, String> files = new java.util.HashMap<>();
+            try {
+                session.parseBody(files);
+            } catch (Exception ignored) {
+            }
+
+            // The password (or a still valid session) buys a session token for the page's requests
+            String sessionToken = sessions.login(getParam(session, "token"));
+            if (sessionToken == null) {
+                return unauthorizedResponse();
+            }
+            // Counts as a viewer while the page loads, so capture is already resuming
+            onViewerRequest(sessionToken);
+
+            Rendition forced = Rendition.fromParam(getParam(session, "rendition"));
+            return serveViewPage(sessionToken, forced);
+        }
+
+        // Stream endpoint: one long-lived MJPEG connection per viewer
+        if ("/stream".equals(uri)) {
+            if (isAuthorized(getParam(session, "token"))) {
+                return unauthorizedResponse();
+            }
+
+            return serveStream(selectRendition(session));
+        }
+
+        // Replay endpoint: MJPEG from the replay buffer with a fixed delay, e.g. /replay?from=-30s
+        if ("/replay".equals(uri)) {
+            if (isAuthorized(getParam(session, "token"))) {
+                return unauthorizedResponse();
+            }
+
+            return serveReplay(getParam(session, "from"));
+        }
+
+        // Capture region: GET reports it, POST ?rect=x,y,w,h or ?rect=full changes it
+        if ("/region".equals(uri)) {
+            if (isAuthorized(getParam(session, "token"))) {
+                return unauthorizedResponse();
+            }
+
+            return serveRegion(method, getParam(session, "rect"));
+        }
+
+        // Video endpoint: fragmented MP4 for MSE playback when the H.264 encoder is running
+        if ("/video".equals(uri)) {
+            if (isAuthorized(getParam(session, "token"))) {
+                return unauthorizedResponse();
+            }
+
+            return serveSegments(videoBroadcaster, "video/mp4");
+        }
+
+        // Tiles endpoint: length-prefixed TilePackets for the canvas compositor
+        if ("/tiles".equals(uri)) {
+            if (isAuthorized(getParam(session, "token"))) {
+                return unauthorizedResponse();
+            }
+
+            return serveSegments(tileBroadcaster, "application/octet-stream");
+        }
+
+        // Metrics endpoint: Prometheus text, or JSON with ?format=json
+        if ("/metrics".equals(uri)) {
+            if (isAuthorized(metricsToken(session))) {
+                return unauthorizedResponse();
+            }
+
+            return serveMetrics(session);
+        }
+
+        // Anything else: 404
+        return newFixedLengthResponse(Response.Status.NOT_FOUND, "text/plain", "Not found");
+    }
+
+    /**
+     * ?token= like every other endpoint, or a bearer token as configured in a Prometheus scrape job.
+     */
+    private static String metricsToken(IHTTPSession session) {
+        String authorization = session.getHeaders().get("authorization");
+        if (authorization != null && authorization.startsWith("Bearer ")) {
+            return authorization.substring(7).trim();
+        }
+        return getParam(session, "token");
+    }
+
+    private Response serveMetrics(IHTTPSession session) {
+        PipelineMetrics current = metrics;
+        if (current == null) {
+            return newFixedLengthResponse(Response.Status.NOT_FOUND, "text/plain", "Not found");
+        }
+        String accept = session.getHeaders().get("accept");
+        Response res;
+        if ("json".equals(getParam(session, "format")) || (accept != null && accept.contains("application/json"))) {
+            res = newFixedLengthResponse(Response.Status.OK, "application/json", current.toJson());
+        } else {
+            res = newFixedLengthResponse(Response.Status.OK, PROMETHEUS_CONTENT_TYPE, current.toPrometheus());
+        }
+        res.addHeader("Cache-Control", "no-store");
+        return res;
+    }
+
+    private static String getParam(IHTTPSession session, String name) {
+        // New API: getParameters() instead of deprecated getParms()
+        java.util.List<String> values = session.getParameters().get(name);
+        if (values != null && !values.isEmpty()) {
+            return values.get(0);
+        }
+        return null;
+    }
+
+    /**
+     * Explicit ?rendition=full|half|quarter|auto wins; otherwise the smallest rendition that
+     * fills the viewer's reported viewport (?vw=&vh= in device pixels). Falls back to the
+     * adaptive stream when the encoder is not producing the ladder.
+     */
+    private Rendition selectRendition(IHTTPSession session) {
+        if (!frameBroadcaster.isSimulcastEnabled()) {
+            return Rendition.ADAPTIVE;
+        }
+        Rendition rendition = Rendition.fromParam(getParam(session, "rendition"));
+        if (rendition != null) {
+            return rendition;
+        }
+        int sourceWidth = frameBroadcaster.getSourceWidth();
+        int sourceHeight = frameBroadcaster.getSourceHeight();
+        try {
+            String vw = getParam(session, "vw");
+            String vh = getParam(session, "vh");
+            if (vw != null && vh != null && sourceWidth > 0 && sourceHeight > 0) {
+                return Rendition.forViewport(Integer.parseInt(vw), Integer.parseInt(vh), sourceWidth, sourceHeight);
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        return Rendition.ADAPTIVE;
+    }
+
+    @Contract("null -> true")
+    private boolean isAuthorized(String token) {
+        if (token == null) return true;
+        return !sessions.authorize(token);
+    }
+
+
+    private Response serveRootPage() {
+        return newFixedLengthResponse(Response.Status.OK, "text/html", ViewerPages.loginPage());
+    }
+
+    private Response serveViewPage(String token, Rendition forced) {
+        // Use the H.264/MSE player only when the encoder is live and the browser supports it
+        ViewerPages.Player player = videoBroadcaster.isActive() ? ViewerPages.Player.VIDEO
+                : tileBroadcaster.isActive() ? ViewerPages.Player.TILES
+                : ViewerPages.Player.WEBSOCKET;
+        return newFixedLengthResponse(Response.Status.OK, "text/html", ViewerPages.viewPage(token, player, forced));
+    }
+
+    private Response serveSegments(SegmentBroadcaster broadcaster, String mimeType) {
+        SegmentBroadcaster.Subscription sub;
+        try {
+            sub = broadcaster.subscribe(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sub = null;
+        }
+        if (sub == null) {
+            return newFixedLengthResponse(Response.Status.SERVICE_UNAVAILABLE,
+                    "text/plain",
+                    "Stream not available.");
+        }
+
+        Response res = newChunkedResponse(Response.Status.OK, mimeType, new SegmentInputStream(broadcaster, sub,
+                broadcaster == tileBroadcaster ? streamListener : viewerTracker));
+        if (sub.codec != null) {
+            res.addHeader("X-Video-Codec", sub.codec);
+        }
+        res.addHeader("Cache-Control", "no-cache, no-store, must-revalidate");
+        res.addHeader("Pragma", "no-cache");
+        res.addHeader("Expires", "0");
+        return res;
+    }
+
+    /**
+     * /frame?after=&lt;seq&gt;: answers once a frame newer than the client's X-Frame-Sequence
+     * exists, or with 304 when the timeout passes first. Clients on a keep-alive connection
+     * then fetch each frame exactly once instead of polling on a timer.
+     */
+    private Response serveLongPoll(IHTTPSession session, String token, long after) {
+        Rendition rendition = selectRendition(session);
+        long timeoutMs = Math.max(0, Math.min(LONG_POLL_TIMEOUT_MS,
+                parseLong(getParam(session, "timeout"), LONG_POLL_TIMEOUT_MS)));
+        Rendition source = rendition;
+        if (rendition != Rendition.ADAPTIVE) {
+            frameBroadcaster.markRequested(rendition);
+            Frame frame = frameBroadcaster.getLatest(rendition);
+            if (frame == null || frame.isEmpty()) {
+                source = Rendition.ADAPTIVE;
+            }
+        }
+
+        Frame latest = frameBroadcaster.getLatest(source);
+        // Any other sequence, including one from before a restart, is answered right away
+        if (latest == null || latest.sequence == after) {
+            // A parked poll counts as an open stream, so long waits never look like an idle poller
+            ViewerTracker tracker = viewerTracker;
+            Object poll = new Object();
+            if (tracker != null) {
+                tracker.onOpened(poll);
+            }
+            try {
+                latest = frameBroadcaster.waitForNextFrame(source, latest == null ? 0 : after, timeoutMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (tracker != null) {
+                    tracker.onClosed(poll);
+                }
+            }
+        } else {
+            onViewerRequest(token);
+        }
+
+        // Timed out: 304 for the frame the client already has
+        String ifNoneMatch = latest != null && latest.sequence == after
+                ? frameBroadcaster.getETag(source, latest.sequence)
+                : session.getHeaders().get("if-none-match");
+        return serveFrame(rendition, ifNoneMatch);
+    }
+
+    private static long parseLong(@Nullable String value, long fallback) {
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private Response serveFrame(Rendition rendition, String ifNoneMatch) {
+        if (preEncodedFrames) {
+            return servePreEncodedFrame(rendition, ifNoneMatch);
+        }
+        // Retained until the response body is closed
+        Frame frame = frameBroadcaster.acquireLatest(rendition);
+        if (rendition != Rendition.ADAPTIVE) {
+            frameBroadcaster.markRequested(rendition);
+            if (frame == null || frame.isEmpty()) {
+                // Not encoded yet: serve the adaptive frame until the rendition catches up
+                if (frame != null) {
+                    frame.release();
+                }
+                rendition = Rendition.ADAPTIVE;
+                frame = frameBroadcaster.acquireLatest(rendition);
+            }
+        }
+        if (frame == null || frame.isEmpty()) {
+            // No frame yet
+            return newFixedLengthResponse(Response.Status.SERVICE_UNAVAILABLE,
+                    "text/plain",
+                    "No frame available yet.");
+        }
+
+        String etag = frameBroadcaster.getETag(rendition, frame.sequence);
+        if (etag.equals(ifNoneMatch)) {
+            frame.release();
+            Response res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, "image/jpeg", "");
+            res.addHeader("ETag", etag);
+            res.addHeader("Cache-Control", "no-cache");
+            return res;
+        }
+
+        onFrameServed();
+        Response res = newFixedLengthResponse(Response.Status.OK, "image/jpeg", new FrameInputStream(frame), frame.length());
+        // no-cache (not no-store) so clients revalidate with If-None-Match
+        res.addHeader("ETag", etag);
+        res.addHeader("Cache-Control", "no-cache");
+        res.addHeader("X-Frame-Sequence", Long.toString(frame.sequence));
+        res.addHeader("X-Capture-Time", Long.toString(frame.captureTimestampNanos / 1000));
+        res.addHeader("X-Publish-Time", Long.toString(frame.publishNanos / 1000));
+        return res;
+    }
+
+    private Response servePreEncodedFrame(Rendition rendition, String ifNoneMatch) {
+        FrameResponseCache.Entry entry = frameResponses.get(rendition);
+        if (rendition != Rendition.ADAPTIVE) {
+            frameBroadcaster.markRequested(rendition);
+            if (entry == null) {
+                // Not encoded yet: serve the adaptive frame until the rendition catches up
+                entry = frameResponses.get(Rendition.ADAPTIVE);
+            }
+        }
+        if (entry == null) {
+            return newFixedLengthResponse(Response.Status.SERVICE_UNAVAILABLE,
+                    "text/plain",
+                    "No frame available yet.");
+        }
+        if (entry.matches(ifNoneMatch)) {
+            return new PreEncodedResponse(Response.Status.NOT_MODIFIED, entry.notModified, entry.notModified.length);
+        }
+        onFrameServed();
+        return new PreEncodedResponse(Response.Status.OK, entry.ok, entry.headerLength);
+    }
+
+    private Response serveStream(Rendition rendition) {
+        Response res = newChunkedResponse(Response.Status.OK, MjpegInputStream.CONTENT_TYPE,
+                new MjpegInputStream(frameBroadcaster, rendition, streamListener));
+        res.addHeader("X-Rendition", rendition.paramName);
+        res.addHeader("Cache-Control", "no-cache, no-store, must-revalidate");
+        res.addHeader("Pragma", "no-cache");
+        res.addHeader("Expires", "0");
+        return res;
+    }
+
+    private Response serveReplay(@Nullable String from) {
+        ReplayBuffer buffer = replayBuffer;
+        if (buffer == null) {
+            return newFixedLengthResponse(Response.Status.NOT_FOUND, "text/plain", "Not found");
+        }
+        long offsetNanos = ReplayInputStream.parseOffsetNanos(from);
+        if (offsetNanos < 0) {
+            return newFixedLengthResponse(Response.Status.BAD_REQUEST, "text/plain",
+                    "from must be an offset into the past such as -30s or -1500ms.");
+        }
+        if (buffer.getFrameCount() == 0) {
+            return newFixedLengthResponse(Response.Status.SERVICE_UNAVAILABLE, "text/plain",
+                    "Nothing to replay yet.");
+        }
+        // Counted as a stream, so capture keeps running for a replay viewer
+        ReplayInputStream stream = new ReplayInputStream(buffer, System.nanoTime() - offsetNanos, viewerTracker);
+        Response res = newChunkedResponse(Response.Status.OK, MjpegInputStream.CONTENT_TYPE, stream);
+        res.addHeader("X-Replay-Delay", Long.toString(stream.getDelayNanos() / 1_000_000));
+        res.addHeader("Cache-Control", "no-cache, no-store, must-revalidate");
+        res.addHeader("Pragma", "no-cache");
+        res.addHeader("Expires", "0");
+        return res;
+    }
+
+    private Response serveRegion(Method method, @Nullable String rect) {
+        if (method == Method.POST) {
+            if ("full".equals(rect)) {
+                StreamConfig.setCaptureRegion(null);
+            } else {
+                CaptureRegion region = CaptureRegion.parse(rect);
+                if (region == null) {
+                    return newFixedLengthResponse(Response.Status.BAD_REQUEST, "text/plain",
+                            "rect must be x,y,width,height in display pixels, or full.");
+                }
+                StreamConfig.setCaptureRegion(region);
+            }
+        } else if (method != Method.GET) {
+            return newFixedLengthResponse(Response.Status.METHOD_NOT_ALLOWED, "text/plain", "Use GET or POST.");
+        }
+        CaptureRegion current = StreamConfig.getCaptureRegion();
+        Response res = newFixedLengthResponse(Response.Status.OK, "text/plain", current == null ? "full" : current.toString());
+        res.addHeader("Cache-Control", "no-cache, no-store, must-revalidate");
+        return res;
+    }
+
+    private Response unauthorizedResponse() {
+        Response res = newFixedLengthResponse(Response.Status.UNAUTHORIZED, "text/plain", "Access denied: invalid password.");
+        res.addHeader("WWW-Authenticate", "Basic realm=\"ScreenShare\"");
+        return res;
+    }
+}
@@ -0,0 +1,94 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Server side of the WebSocket viewer's latency reports. Server times are microseconds of
+ * System.nanoTime() and travel as text messages:
+ * <ul>
+ * <li>{@code f <seq> <capture> <publish> <sent>} precedes every JPEG;</li>
+ * <li>{@code s <client ms>} from the viewer is answered with {@code s <client ms> <server>},
+ * from which the viewer estimates the clock offset;</li>
+ * <li>{@code r <seq> <received> <shown>} reports a drawn frame, converted to server time.</li>
+ * </ul>
+ */
+public class LatencyProbe {
+
+    // Reports for frames older than this many sends are ignored
+    static final int HISTORY = 32;
+    // Anything slower is a broken clock estimate rather than latency
+    private static final long MAX_PLAUSIBLE_NANOS = 60_000_000_000L;
+    private static final int MAX_MESSAGE_LENGTH = 128;
+
+    private final long[] sequences = new long[HISTORY];
+    private final long[] captures = new long[HISTORY];
+    private final long[] publishes = new long[HISTORY];
+    private final long[] sents = new long[HISTORY];
+
+    /**
+     * Remembers the frame and returns the metadata message to send just before it.
+     */
+    @NonNull
+    public synchronized String onSent(@NonNull Frame frame, long sentNanos) {
+        int slot = (int) (frame.sequence % HISTORY);
+        sequences[slot] = frame.sequence;
+        captures[slot] = frame.captureTimestampNanos;
+        publishes[slot] = frame.publishNanos;
+        sents[slot] = sentNanos;
+        return "f " + frame.sequence + " " + frame.captureTimestampNanos / 1000 + " "
+                + frame.publishNanos / 1000 + " " + sentNanos / 1000;
+    }
+
+    /**
+     * The answer to a clock sync request, or null if the message is not one.
+     */
+    @Nullable
+    public static String syncReply(@NonNull String message, long nowNanos) {
+        if (!message.startsWith("s ") || message.length() > MAX_MESSAGE_LENGTH) {
+            return null;
+        }
+        String clientTime = message.substring(2).trim();
+        // Echoed verbatim, so only let plain numbers through
+        if (clientTime.isEmpty() || !clientTime.matches("[0-9]+(\\.[0-9]+)?")) {
+            return null;
+        }
+        return "s " + clientTime + " " + nowNanos / 1000;
+    }
+
+    /**
+     * Timing of a reported frame, or null if the message is not a report, the frame is no
+     * longer remembered, or the times are implausible.
+     */
+    @Nullable
+    public synchronized FrameTiming onReport(@NonNull String message) {
+        if (!message.startsWith("r ") || message.length() > MAX_MESSAGE_LENGTH) {
+            return null;
+        }
+        String[] parts = message.split(" ");
+        if (parts.length != 4) {
+            return null;
+        }
+        long sequence;
+        long received;
+        long shown;
+        try {
+            sequence = Long.parseLong(parts[1]);
+            received = Long.parseLong(parts[2]) * 1000;
+            shown = Long.parseLong(parts[3]) * 1000;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        int slot = (int) (sequence % HISTORY);
+        if (sequence <= 0 || sequences[slot] != sequence) {
+            return null;
+        }
+        long sent = sents[slot];
+        if (shown < received || shown - sent > MAX_PLAUSIBLE_NANOS || sent - received > MAX_PLAUSIBLE_NANOS) {
+            return null;
+        }
+        // Each frame is reported once
+        sequences[slot] = 0;
+        return new FrameTiming(sequence, captures[slot], publishes[slot], sent, received, shown);
+    }
+}
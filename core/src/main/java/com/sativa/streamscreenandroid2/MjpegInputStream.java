@@ -0,0 +1,163 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Endless multipart/x-mixed-replace body for the /stream endpoint.
+ * Each read blocks until FrameBroadcaster publishes a new frame, so the
+ * connection only carries data when the screen actually produced one.
+ * The frame payload is read straight from the shared (possibly pooled) buffer,
+ * which stays retained until the whole part has been handed out.
+ */
+public class MjpegInputStream extends InputStream {
+
+    public static final String BOUNDARY = "streamscreenframe";
+    public static final String CONTENT_TYPE = "multipart/x-mixed-replace; boundary=" + BOUNDARY;
+
+    // Re-send the current frame after this long so dead sockets get noticed
+    private static final long KEEP_ALIVE_MS = 5000;
+    private static final ByteBuffer CRLF = ByteBuffer.wrap("\r\n".getBytes(StandardCharsets.US_ASCII)).asReadOnlyBuffer();
+
+    private final FrameBroadcaster frameBroadcaster;
+    private final Rendition rendition;
+    @Nullable
+    private final DeliveryListener deliveryListener;
+    private final ByteBuffer[] parts = new ByteBuffer[3];
+    private int partIndex = parts.length;
+    // Retained while its parts are being read
+    @Nullable
+    private Frame current;
+    private long lastSeq;
+    // ADAPTIVE frames sent while the rendition had nothing current to show
+    private long lastFallbackSeq;
+    private boolean started;
+    // Frame currently being written, for drain-rate reporting
+    private long deliveryBytes;
+    private long deliveryStartNanos;
+    private volatile boolean closed;
+
+    public MjpegInputStream(@NonNull FrameBroadcaster frameBroadcaster) {
+        this(frameBroadcaster, Rendition.ADAPTIVE, null);
+    }
+
+    /**
+     * Streams the given rendition and counts as a viewer of it until closed.
+     */
+    public MjpegInputStream(@NonNull FrameBroadcaster frameBroadcaster,
+                            @NonNull Rendition rendition,
+                            @Nullable DeliveryListener deliveryListener) {
+        this.frameBroadcaster = frameBroadcaster;
+        this.rendition = rendition;
+        this.deliveryListener = deliveryListener;
+        frameBroadcaster.addViewer(rendition);
+        if (deliveryListener != null) {
+            deliveryListener.onOpened(this);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        int n = read(one, 0, 1);
+        return n <= 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(@NonNull byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (partIndex >= parts.length) {
+            // NanoHTTPD writes each chunk before reading the next, so asking for
+            // more means the previous frame has been handed to the socket
+            reportDelivery();
+            releaseCurrent();
+            if (closed) {
+                return -1;
+            }
+            nextFrame();
+        }
+
+        ByteBuffer part = parts[partIndex];
+        int n = Math.min(len, part.remaining());
+        part.get(b, off, n);
+        if (!part.hasRemaining()) {
+            partIndex++;
+        }
+        return n;
+    }
+
+    private void nextFrame() throws IOException {
+        Frame frame;
+        try {
+            // A new viewer of an unencoded rendition gets the fallback right away
+            long timeoutMs = started || rendition == Rendition.ADAPTIVE ? KEEP_ALIVE_MS : 0;
+            started = true;
+            frame = frameBroadcaster.waitForNextFrame(rendition, lastSeq, timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for frame", e);
+        }
+        if (frame != null) {
+            lastSeq = frame.sequence;
+        }
+        if ((frame == null || frame.isEmpty()) && rendition != Rendition.ADAPTIVE) {
+            // Not encoded since we subscribed; the encoder only starts on the next screen
+            // change, so show the adaptive frame until then
+            Frame fallback = frameBroadcaster.getLatest();
+            if (fallback != null && fallback.sequence != lastFallbackSeq) {
+                lastFallbackSeq = fallback.sequence;
+                frame = fallback;
+            }
+        }
+        // A failed retain means a newer frame replaced it; the caller simply waits again
+        if (frame == null || frame.isEmpty() || !frame.retain()) {
+            return;
+        }
+
+        String header = "--" + BOUNDARY + "\r\n" +
+                "Content-Type: image/jpeg\r\n" +
+                frame.timingHeaders() +
+                "Content-Length: " + frame.length() + "\r\n\r\n";
+        current = frame;
+        parts[0] = ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII));
+        parts[1] = frame.payload();
+        parts[2] = CRLF.duplicate();
+        partIndex = 0;
+        deliveryBytes = parts[0].remaining() + parts[1].remaining() + parts[2].remaining();
+        deliveryStartNanos = System.nanoTime();
+    }
+
+    private void reportDelivery() {
+        if (deliveryListener != null && deliveryBytes > 0) {
+            deliveryListener.onDelivered(this, deliveryBytes, System.nanoTime() - deliveryStartNanos);
+        }
+        deliveryBytes = 0;
+    }
+
+    private synchronized void releaseCurrent() {
+        if (current != null) {
+            current.release();
+            current = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        releaseCurrent();
+        frameBroadcaster.removeViewer(rendition);
+        if (deliveryListener != null) {
+            deliveryListener.onClosed(this);
+        }
+    }
+}
@@ -0,0 +1,830 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Alternative to {@link LanWebServer} built on one NIO selector thread. Serves /, /view,
+ * /frame, /metrics and the /stream MJPEG endpoint. Every connection is non-blocking, so
+ * viewers cost a SelectionKey instead of a thread, and each published frame's payload (a
+ * pooled direct buffer when the encoder has one) is written to every ready socket as a
+ * read-only duplicate with gathering writes, never copied per client.
+ * Streams are latest-only: a viewer still writing the previous frame skips the new one.
+ * Long-polls ({@code /frame?after=<seq>}) are parked on the selector thread and answered
+ * from the same push as the streams.
+ */
+public class NioStreamServer {
+
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_BODY_SIZE = 4 * 1024;
+    private static final long SELECT_TIMEOUT_MS = 1000;
+    // Re-send the current frame to idle streams after this long so dead sockets get noticed
+    private static final long KEEP_ALIVE_NANOS = 5_000_000_000L;
+    private static final long FRAME_WAIT_MS = 1000;
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final int port;
+    private final FrameBroadcaster frameBroadcaster;
+    private final ViewerSessions sessions;
+    @Nullable
+    private volatile DeliveryListener deliveryListener;
+    @Nullable
+    private volatile PipelineMetrics metrics;
+    @Nullable
+    private volatile ViewerTracker viewerTracker;
+    // deliveryListener and viewerTracker combined, for the stream connections
+    @Nullable
+    private volatile DeliveryListener streamListener;
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread selectorThread;
+    private Thread frameWatcher;
+    private volatile boolean running;
+    private final AtomicBoolean frameReady = new AtomicBoolean();
+
+    // Selector thread only
+    private final List<Connection> streams = new ArrayList<>();
+    private final List<Connection> polls = new ArrayList<>();
+    private SharedFrame currentFrame;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong framesSkipped = new AtomicLong();
+    private volatile int connectionCount;
+    private volatile int streamCount;
+
+    /**
+     * One published frame prepared for writing: shared by every connection through
+     * {@link ByteBuffer#duplicate()}. Holds a reference to the frame while it is current;
+     * connections hold their own while writing it.
+     */
+    private static final class SharedFrame {
+        final Frame frame;
+        final long sequence;
+        final String etag;
+        final ByteBuffer body;
+        final ByteBuffer partHeader;
+
+        SharedFrame(Frame frame, String etag) {
+            this.frame = frame;
+            this.sequence = frame.sequence;
+            this.etag = etag;
+            this.body = frame.payload();
+            this.partHeader = ByteBuffer.wrap(("--" + MjpegInputStream.BOUNDARY + "\r\n" +
+                    "Content-Type: image/jpeg\r\n" +
+                    frame.timingHeaders() +
+                    "Content-Length: " + frame.length() + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII)).asReadOnlyBuffer();
+        }
+    }
+
+    private static final class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        // Pending gathering write, null when idle
+        ByteBuffer[] out;
+        // Frame referenced by the pending write, released once it completes
+        @Nullable
+        Frame outFrame;
+        boolean closeAfterWrite;
+        boolean streaming;
+        // Parked in /frame?after= until a frame other than pollSeq exists or pollDeadline passes
+        boolean polling;
+        long pollSeq;
+        long pollDeadline;
+        // Sequence of the last frame queued on this stream
+        long frameSeq;
+        long lastFrameNanos;
+        long writeStartNanos;
+        long writeBytes;
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+    }
+
+    /**
+     * Parsed request line, headers and parameters (query string plus form body).
+     */
+    static final class Request {
+        String method;
+        String path;
+        final Map<String, String> headers = new HashMap<>();
+        final Map<String, String> params = new HashMap<>();
+        int headerLength;
+        int contentLength;
+    }
+
+    public NioStreamServer(int port, @NonNull FrameBroadcaster frameBroadcaster,
+                           @NonNull ViewerSessions sessions) {
+        this.port = port;
+        this.frameBroadcaster = frameBroadcaster;
+        this.sessions = sessions;
+    }
+
+    public void setDeliveryListener(@Nullable DeliveryListener deliveryListener) {
+        this.deliveryListener = deliveryListener;
+        updateStreamListener();
+    }
+
+    /**
+     * Enables /metrics.
+     */
+    public void setMetrics(@Nullable PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Reports streams and /frame polling, for pausing capture while nobody watches.
+     */
+    public void setViewerTracker(@Nullable ViewerTracker viewerTracker) {
+        this.viewerTracker = viewerTracker;
+        updateStreamListener();
+    }
+
+    private synchronized void updateStreamListener() {
+        DeliveryListener listener = deliveryListener;
+        ViewerTracker tracker = viewerTracker;
+        streamListener = tracker == null ? listener
+                : listener == null ? tracker
+                : DeliveryListener.both(listener, tracker);
+    }
+
+    private void onViewerRequest(@NonNull String token) {
+        ViewerTracker tracker = viewerTracker;
+        if (tracker != null) {
+            tracker.onRequest(token);
+        }
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.bind(new InetSocketAddress(port), 256);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+
+        selectorThread = new Thread(this::runSelector, "NioStreamServer");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+
+        // Turns FrameBroadcaster's blocking wait into a selector wakeup
+        frameWatcher = new Thread(this::watchFrames, "NioStreamServer-frames");
+        frameWatcher.setDaemon(true);
+        frameWatcher.start();
+    }
+
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        frameWatcher.interrupt();
+        selector.wakeup();
+        try {
+            selectorThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Bound port; useful when started with port 0.
+     */
+    public int getListeningPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public int getConnectionCount() {
+        return connectionCount;
+    }
+
+    public int getStreamCount() {
+        return streamCount;
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+    public long getFramesSkipped() {
+        return framesSkipped.get();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "connections=" + connectionCount + " streams=" + streamCount + " requests=" + requests.get()
+                + " framesSent=" + framesSent.get() + " skipped=" + framesSkipped.get();
+    }
+
+    private void watchFrames() {
+        long lastSeq = 0;
+        while (running) {
+            Frame frame;
+            try {
+                frame = frameBroadcaster.waitForNextFrame(lastSeq, FRAME_WAIT_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (frame != null && frame.sequence > lastSeq) {
+                lastSeq = frame.sequence;
+                frameReady.set(true);
+                selector.wakeup();
+            }
+        }
+    }
+
+    private void runSelector() {
+        long lastKeepAliveCheck = System.nanoTime();
+        try {
+            while (running) {
+                selector.select(selectTimeoutMs(System.nanoTime()));
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    handleKey(key);
+                }
+                if (frameReady.getAndSet(false)) {
+                    pushFrame(System.nanoTime());
+                }
+                long now = System.nanoTime();
+                expirePolls(now);
+                if (now - lastKeepAliveCheck > 1_000_000_000L) {
+                    lastKeepAliveCheck = now;
+                    keepAlive(now);
+                }
+            }
+        } catch (IOException e) {
+            // Selector failure: nothing left to serve
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void handleKey(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isAcceptable()) {
+            accept();
+            return;
+        }
+        Connection conn = (Connection) key.attachment();
+        try {
+            if (key.isReadable()) {
+                read(conn);
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush(conn);
+            }
+        } catch (IOException e) {
+            close(conn);
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new Connection(channel, key));
+                connectionCount++;
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void read(Connection conn) throws IOException {
+        if (!conn.in.hasRemaining()) {
+            if (conn.out != null || conn.streaming || conn.polling) {
+                // A response is already under way; a second one would cut into it
+                close(conn);
+            } else {
+                sendError(conn, "431 Request Header Fields Too Large");
+            }
+            return;
+        }
+        int n = conn.channel.read(conn.in);
+        if (n < 0) {
+            close(conn);
+            return;
+        }
+        if (conn.streaming || conn.polling || conn.out != null) {
+            // Streams never send another request; pipelined requests wait for the response
+            if (conn.streaming) {
+                conn.in.clear();
+            }
+            return;
+        }
+
+        Request request = parse(conn.in);
+        if (request == null) {
+            return;
+        }
+        if (request.contentLength > MAX_BODY_SIZE) {
+            sendError(conn, "413 Payload Too Large");
+            return;
+        }
+        int total = request.headerLength + request.contentLength;
+        if (conn.in.position() < total) {
+            // Body not complete yet
+            return;
+        }
+        if (request.contentLength > 0) {
+            parseParams(new String(conn.in.array(), request.headerLength, request.contentLength,
+                    StandardCharsets.UTF_8), request.params);
+        }
+        // Keep anything after this request for the next one on the connection
+        conn.in.flip();
+        conn.in.position(total);
+        conn.in.compact();
+
+        requests.incrementAndGet();
+        handle(conn, request);
+    }
+
+    private void handle(Connection conn, Request request) throws IOException {
+        String path = request.path;
+        conn.closeAfterWrite = "close".equalsIgnoreCase(request.headers.get("connection"));
+
+        if ("/".equals(path) && "GET".equals(request.method)) {
+            sendText(conn, "200 OK", "text/html", ViewerPages.loginPage());
+            return;
+        }
+        if (!"/view".equals(path) && !"/frame".equals(path) && !"/stream".equals(path)
+                && !("/metrics".equals(path) && metrics != null)) {
+            sendText(conn, "404 Not Found", "text/plain", "Not found");
+            return;
+        }
+
+        String token = request.params.get("token");
+        String authorization = request.headers.get("authorization");
+        if (token == null && authorization != null && authorization.startsWith("Bearer ")) {
+            token = authorization.substring(7).trim();
+        }
+        if ("/view".equals(path)) {
+            String sessionToken = sessions.login(token);
+            if (sessionToken == null) {
+                sendText(conn, "401 Unauthorized", "text/plain", "Access denied: invalid password.");
+                return;
+            }
+            // Counts as a viewer while the page loads, so capture is already resuming
+            onViewerRequest(sessionToken);
+            sendText(conn, "200 OK", "text/html",
+                    ViewerPages.viewPage(sessionToken, ViewerPages.Player.MJPEG, null));
+            return;
+        }
+        if (!sessions.authorize(token)) {
+            sendText(conn, "401 Unauthorized", "text/plain", "Access denied: invalid password.");
+            return;
+        }
+
+        if ("/frame".equals(path)) {
+            long after = parseLong(request.params.get("after"), -1);
+            if (after >= 0) {
+                longPoll(conn, request, token, after);
+                return;
+            }
+            onViewerRequest(token);
+            serveFrame(conn, request.headers.get("if-none-match"));
+        } else if ("/metrics".equals(path)) {
+            serveMetrics(conn, request);
+        } else {
+            startStream(conn);
+        }
+    }
+
+    private void serveFrame(Connection conn, @Nullable String ifNoneMatch) throws IOException {
+        SharedFrame frame = currentFrame();
+        if (frame == null) {
+            sendText(conn, "503 Service Unavailable", "text/plain", "No frame available yet.");
+            return;
+        }
+        String head = "Content-Type: image/jpeg\r\n" +
+                "ETag: " + frame.etag + "\r\n" +
+                "Cache-Control: no-cache\r\n";
+        if (frame.etag.equals(ifNoneMatch)) {
+            send(conn, header("304 Not Modified", head, 0, conn.closeAfterWrite));
+            return;
+        }
+        head += frame.frame.timingHeaders();
+        PipelineMetrics current = metrics;
+        if (current != null) {
+            current.increment(PipelineMetrics.Counter.DELIVERED);
+        }
+        holdFrame(conn, frame);
+        send(conn, header("200 OK", head, frame.body.remaining(), conn.closeAfterWrite), frame.body.duplicate());
+    }
+
+    /**
+     * /frame?after=&lt;seq&gt;: answers right away unless the current frame is the one the
+     * client already has, otherwise parks the connection until {@link #pushFrame} or
+     * {@link #expirePolls} answers it.
+     */
+    private void longPoll(Connection conn, Request request, String token, long after) throws IOException {
+        SharedFrame frame = currentFrame();
+        // Any other sequence, including one from before a restart, is answered right away
+        if (frame != null && frame.sequence != after) {
+            onViewerRequest(token);
+            serveFrame(conn, request.headers.get("if-none-match"));
+            return;
+        }
+        long timeoutMs = Math.max(0, Math.min(LanWebServer.LONG_POLL_TIMEOUT_MS,
+                parseLong(request.params.get("timeout"), LanWebServer.LONG_POLL_TIMEOUT_MS)));
+        conn.polling = true;
+        conn.pollSeq = frame == null ? 0 : frame.sequence;
+        conn.pollDeadline = System.nanoTime() + timeoutMs * 1_000_000L;
+        polls.add(conn);
+        // A parked poll counts as an open stream, so long waits never look like an idle poller
+        ViewerTracker tracker = viewerTracker;
+        if (tracker != null) {
+            tracker.onOpened(conn);
+        }
+    }
+
+    private void unpark(Connection conn) {
+        conn.polling = false;
+        polls.remove(conn);
+        ViewerTracker tracker = viewerTracker;
+        if (tracker != null) {
+            tracker.onClosed(conn);
+        }
+    }
+
+    private void expirePolls(long now) {
+        for (int i = polls.size() - 1; i >= 0; i--) {
+            Connection conn = polls.get(i);
+            if (now - conn.pollDeadline >= 0) {
+                unpark(conn);
+                // 304 for the frame the client already has, 503 if there is still none
+                SharedFrame frame = currentFrame();
+                answerPoll(conn, frame == null ? null : frame.etag);
+            }
+        }
+    }
+
+    private void answerPoll(Connection conn, @Nullable String ifNoneMatch) {
+        try {
+            serveFrame(conn, ifNoneMatch);
+        } catch (IOException e) {
+            close(conn);
+        }
+    }
+
+    private long selectTimeoutMs(long now) {
+        long timeout = SELECT_TIMEOUT_MS;
+        for (int i = 0; i < polls.size(); i++) {
+            long remaining = (polls.get(i).pollDeadline - now) / 1_000_000L + 1;
+            timeout = Math.min(timeout, remaining);
+        }
+        // select(0) would block indefinitely
+        return Math.max(1, timeout);
+    }
+
+    private static long parseLong(@Nullable String value, long fallback) {
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private void serveMetrics(Connection conn, Request request) throws IOException {
+        PipelineMetrics current = metrics;
+        if (current == null) {
+            sendText(conn, "404 Not Found", "text/plain", "Not found");
+            return;
+        }
+        String accept = request.headers.get("accept");
+        if ("json".equals(request.params.get("format")) || (accept != null && accept.contains("application/json"))) {
+            sendText(conn, "200 OK", "application/json", current.toJson());
+        } else {
+            byte[] body = current.toPrometheus().getBytes(StandardCharsets.UTF_8);
+            send(conn, header("200 OK", "Content-Type: " + LanWebServer.PROMETHEUS_CONTENT_TYPE + "\r\n", body.length,
+                    conn.closeAfterWrite), ByteBuffer.wrap(body));
+        }
+    }
+
+    private void startStream(Connection conn) throws IOException {
+        conn.streaming = true;
+        conn.closeAfterWrite = false;
+        streams.add(conn);
+        streamCount = streams.size();
+        DeliveryListener listener = streamListener;
+        if (listener != null) {
+            listener.onOpened(conn);
+        }
+        String head = "HTTP/1.1 200 OK\r\n" +
+                "Content-Type: " + MjpegInputStream.CONTENT_TYPE + "\r\n" +
+                "Cache-Control: no-cache, no-store, must-revalidate\r\n" +
+                "Pragma: no-cache\r\n" +
+                "Expires: 0\r\n" +
+                "Connection: close\r\n\r\n";
+        ByteBuffer headBuffer = ByteBuffer.wrap(head.getBytes(StandardCharsets.US_ASCII));
+        SharedFrame frame = currentFrame();
+        if (frame == null) {
+            send(conn, headBuffer);
+        } else {
+            conn.frameSeq = frame.sequence;
+            conn.lastFrameNanos = System.nanoTime();
+            holdFrame(conn, frame);
+            send(conn, headBuffer, frame.partHeader.duplicate(), frame.body.duplicate(), ByteBuffer.wrap(CRLF));
+        }
+    }
+
+    private void sendPart(Connection conn, SharedFrame frame, long now) {
+        conn.frameSeq = frame.sequence;
+        conn.lastFrameNanos = now;
+        holdFrame(conn, frame);
+        try {
+            send(conn, frame.partHeader.duplicate(), frame.body.duplicate(), ByteBuffer.wrap(CRLF));
+        } catch (IOException e) {
+            close(conn);
+        }
+    }
+
+    private static void holdFrame(Connection conn, SharedFrame frame) {
+        // Cannot fail: the SharedFrame keeps the buffer alive
+        frame.frame.retain();
+        conn.outFrame = frame.frame;
+    }
+
+    private static void releaseFrame(Connection conn) {
+        if (conn.outFrame != null) {
+            conn.outFrame.release();
+            conn.outFrame = null;
+        }
+    }
+
+    @Nullable
+    private SharedFrame currentFrame() {
+        Frame latest = frameBroadcaster.getLatest();
+        if (latest == null || latest.isEmpty()) {
+            return null;
+        }
+        if (currentFrame == null || currentFrame.sequence != latest.sequence) {
+            latest = frameBroadcaster.acquireLatest(Rendition.ADAPTIVE);
+            if (latest == null) {
+                return null;
+            }
+            if (currentFrame != null) {
+                currentFrame.frame.release();
+            }
+            currentFrame = new SharedFrame(latest, frameBroadcaster.getETag(latest.sequence));
+        }
+        return currentFrame;
+    }
+
+    private void pushFrame(long now) {
+        SharedFrame frame = currentFrame();
+        if (frame == null) {
+            return;
+        }
+        for (int i = streams.size() - 1; i >= 0; i--) {
+            Connection conn = streams.get(i);
+            if (conn.out != null) {
+                // Still writing an older frame: this viewer gets whatever is newest once done
+                framesSkipped.incrementAndGet();
+                continue;
+            }
+            sendPart(conn, frame, now);
+        }
+        for (int i = polls.size() - 1; i >= 0; i--) {
+            Connection conn = polls.get(i);
+            if (conn.pollSeq != frame.sequence) {
+                unpark(conn);
+                answerPoll(conn, null);
+            }
+        }
+    }
+
+    private void keepAlive(long now) {
+        SharedFrame frame = currentFrame();
+        if (frame == null) {
+            return;
+        }
+        for (int i = streams.size() - 1; i >= 0; i--) {
+            Connection conn = streams.get(i);
+            if (conn.out == null && now - conn.lastFrameNanos > KEEP_ALIVE_NANOS) {
+                sendPart(conn, frame, now);
+            }
+        }
+    }
+
+    private static ByteBuffer header(String status, String extraHeaders, int contentLength, boolean close) {
+        String head = "HTTP/1.1 " + status + "\r\n" +
+                extraHeaders +
+                "Content-Length: " + contentLength + "\r\n" +
+                (close ? "Connection: close\r\n" : "Connection: keep-alive\r\n") +
+                "\r\n";
+        return ByteBuffer.wrap(head.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private void sendText(Connection conn, String status, String mimeType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        send(conn, header(status, "Content-Type: " + mimeType + "; charset=utf-8\r\n", bytes.length,
+                conn.closeAfterWrite), ByteBuffer.wrap(bytes));
+    }
+
+    private void sendError(Connection conn, String status) throws IOException {
+        conn.closeAfterWrite = true;
+        conn.in.clear();
+        send(conn, header(status, "", 0, true));
+    }
+
+    /**
+     * Starts a gathering write and finishes it from OP_WRITE if the socket buffer fills up.
+     */
+    private void send(Connection conn, ByteBuffer... buffers) throws IOException {
+        conn.out = buffers;
+        conn.writeStartNanos = System.nanoTime();
+        long bytes = 0;
+        for (ByteBuffer b : buffers) {
+            bytes += b.remaining();
+        }
+        conn.writeBytes = bytes;
+        flush(conn);
+    }
+
+    private void flush(Connection conn) throws IOException {
+        ByteBuffer[] out = conn.out;
+        if (out == null) {
+            conn.key.interestOps(SelectionKey.OP_READ);
+            return;
+        }
+        conn.channel.write(out);
+        if (out[out.length - 1].hasRemaining()) {
+            conn.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            return;
+        }
+
+        conn.out = null;
+        releaseFrame(conn);
+        conn.key.interestOps(SelectionKey.OP_READ);
+        if (conn.streaming) {
+            framesSent.incrementAndGet();
+            DeliveryListener listener = streamListener;
+            if (listener != null) {
+                listener.onDelivered(conn, conn.writeBytes, System.nanoTime() - conn.writeStartNanos);
+            }
+            SharedFrame latest = currentFrame();
+            if (latest != null && latest.sequence != conn.frameSeq) {
+                sendPart(conn, latest, System.nanoTime());
+            }
+        } else if (conn.closeAfterWrite) {
+            close(conn);
+        } else if (conn.in.position() > 0) {
+            // A pipelined request arrived while we were writing
+            Request request = parse(conn.in);
+            if (request != null && conn.in.position() >= request.headerLength + request.contentLength) {
+                conn.in.flip();
+                conn.in.position(request.headerLength + request.contentLength);
+                conn.in.compact();
+                requests.incrementAndGet();
+                handle(conn, request);
+            }
+        }
+    }
+
+    private void close(Connection conn) {
+        if (!conn.channel.isOpen()) {
+            return;
+        }
+        conn.key.cancel();
+        try {
+            conn.channel.close();
+        } catch (IOException ignored) {
+        }
+        releaseFrame(conn);
+        connectionCount--;
+        if (conn.polling) {
+            unpark(conn);
+        }
+        if (conn.streaming) {
+            streams.remove(conn);
+            streamCount = streams.size();
+            DeliveryListener listener = streamListener;
+            if (listener != null) {
+                listener.onClosed(conn);
+            }
+        }
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                close((Connection) key.attachment());
+            }
+        }
+        if (currentFrame != null) {
+            currentFrame.frame.release();
+            currentFrame = null;
+        }
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Parses the head of the request in {@code in} (filled up to its position), or returns
+     * null if the blank line ending the headers has not arrived yet.
+     */
+    @Nullable
+    static Request parse(ByteBuffer in) {
+        byte[] data = in.array();
+        int limit = in.position();
+        int end = -1;
+        for (int i = 3; i < limit; i++) {
+            if (data[i] == '\n' && data[i - 1] == '\r' && data[i - 2] == '\n' && data[i - 3] == '\r') {
+                end = i + 1;
+                break;
+            }
+        }
+        if (end < 0) {
+            return null;
+        }
+
+        Request request = new Request();
+        request.headerLength = end;
+        String[] lines = new String(data, 0, end - 4, StandardCharsets.ISO_8859_1).split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        request.method = requestLine[0];
+        String target = requestLine.length > 1 ? requestLine[1] : "/";
+        int q = target.indexOf('?');
+        request.path = q < 0 ? target : target.substring(0, q);
+        if (q >= 0) {
+            parseParams(target.substring(q + 1), request.params);
+        }
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                request.headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                        lines[i].substring(colon + 1).trim());
+            }
+        }
+        String length = request.headers.get("content-length");
+        if (length != null) {
+            try {
+                request.contentLength = Math.max(0, Integer.parseInt(length));
+            } catch (NumberFormatException e) {
+                request.contentLength = 0;
+            }
+        }
+        return request;
+    }
+
+    static void parseParams(String encoded, Map<String, String> out) {
+        for (String pair : encoded.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int eq = pair.indexOf('=');
+            String name = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            try {
+                out.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+            } catch (UnsupportedEncodingException | IllegalArgumentException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,475 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Where frame time goes, end to end: per-stage latency histograms from capture to the
+ * viewer's screen, frame counters, encoded sizes, per-viewer delivery rates and, for viewers
+ * that report back, capture-to-display latency percentiles. Everything is recorded with
+ * lock-free counters on the hot path and only formatted when /metrics is scraped, as
+ * Prometheus text or JSON.
+ */
+public class PipelineMetrics implements DeliveryListener {
+
+    public enum Stage {
+        ACQUIRE("acquire"),
+        COPY("copy"),
+        // Row padding is cropped inside the scaling pass, so the two share one stage
+        CROP_SCALE("crop_scale"),
+        ENCODE("encode"),
+        PUBLISH("publish"),
+        SEND("send"),
+        // Reported by WebSocket viewers: socket write until received, and received until drawn
+        NETWORK("network"),
+        DISPLAY("display");
+
+        public final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+    }
+
+    public enum Counter {
+        CAPTURED("captured"),
+        ENCODED("encoded"),
+        // Identical screen or no changed tiles: nothing to encode
+        SKIPPED("skipped"),
+        // Lost to back-pressure between capture and encode
+        DROPPED("dropped"),
+        // Written to a viewer: one per stream frame or /frame body, so several per encoded frame
+        DELIVERED("delivered");
+
+        public final String label;
+
+        Counter(String label) {
+            this.label = label;
+        }
+    }
+
+    private static final String PREFIX = "streamscreen_";
+    // Delivered fps is measured over windows of at least this length
+    private static final long FPS_WINDOW_NANOS = 1_000_000_000L;
+    // Per-viewer latency percentiles cover this many recent frames
+    static final int LATENCY_WINDOW = 256;
+    private static final double[] LATENCY_QUANTILES = {0.5, 0.9, 0.99};
+
+    private final Histogram[] stages = new Histogram[Stage.values().length];
+    private final LongAdder[] counters = new LongAdder[Counter.values().length];
+    private final Histogram frameBytes = Histogram.sizeBytes();
+    private final Histogram glassLatency = Histogram.latencyNanos();
+    private final Map<Object, ViewerStats> viewers = new ConcurrentHashMap<>();
+    private final AtomicInteger nextViewerId = new AtomicInteger();
+    private final List<External> externals = new CopyOnWriteArrayList<>();
+    // Sampled by getDeliveredFps, so the hot path only bumps the counter
+    private boolean deliveredSampled;
+    private long deliveredSampleNanos;
+    private long deliveredSampleCount;
+    private double deliveredFps;
+
+    private static final class ViewerStats {
+        final int id;
+        final String transport;
+        final AtomicLong frames = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        volatile long lastFrameNanos;
+        // Written by the viewer's own sending thread only
+        volatile long windowStartNanos;
+        volatile long windowStartFrames;
+        volatile double fps;
+        // Ring of recent capture-to-display latencies, guarded by this
+        private final long[] latencies = new long[LATENCY_WINDOW];
+        private long latencyCount;
+        private long latencySumNanos;
+
+        ViewerStats(int id, String transport, long now) {
+            this.id = id;
+            this.transport = transport;
+            this.windowStartNanos = now;
+        }
+
+        void onFrame(long bytes, long now) {
+            long n = frames.incrementAndGet();
+            this.bytes.addAndGet(bytes);
+            lastFrameNanos = now;
+            long elapsed = now - windowStartNanos;
+            if (elapsed >= FPS_WINDOW_NANOS) {
+                fps = (n - windowStartFrames) * 1e9 / elapsed;
+                windowStartNanos = now;
+                windowStartFrames = n;
+            }
+        }
+
+        double currentFps(long now) {
+            // A viewer that stopped receiving (static screen, stalled socket) is at 0 fps
+            return now - lastFrameNanos > 2 * FPS_WINDOW_NANOS ? 0 : fps;
+        }
+
+        synchronized void recordLatency(long nanos) {
+            latencies[(int) (latencyCount % LATENCY_WINDOW)] = nanos;
+            latencyCount++;
+            latencySumNanos += nanos;
+        }
+
+        synchronized long getLatencyCount() {
+            return latencyCount;
+        }
+
+        synchronized long getLatencySumNanos() {
+            return latencySumNanos;
+        }
+
+        /**
+         * Exact quantiles over the window, in the order asked for; empty if nothing was reported.
+         */
+        long[] latencyQuantiles(double[] quantiles) {
+            long[] window;
+            synchronized (this) {
+                window = Arrays.copyOf(latencies, (int) Math.min(latencyCount, LATENCY_WINDOW));
+            }
+            if (window.length == 0) {
+                return new long[0];
+            }
+            Arrays.sort(window);
+            long[] out = new long[quantiles.length];
+            for (int i = 0; i < quantiles.length; i++) {
+                int rank = (int) Math.ceil(quantiles[i] * window.length) - 1;
+                out[i] = window[Math.max(0, Math.min(window.length - 1, rank))];
+            }
+            return out;
+        }
+    }
+
+    private static final class External {
+        final String name;
+        final String help;
+        final boolean counter;
+        final DoubleSupplier value;
+
+        External(String name, String help, boolean counter, DoubleSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.counter = counter;
+            this.value = value;
+        }
+    }
+
+    public PipelineMetrics() {
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = Histogram.latencyNanos();
+        }
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        addGauge("heap_used_bytes", "Java heap in use.",
+                () -> runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    public void recordStage(@NonNull Stage stage, long nanos) {
+        stages[stage.ordinal()].record(nanos);
+    }
+
+    public void increment(@NonNull Counter counter) {
+        counters[counter.ordinal()].increment();
+    }
+
+    public void recordFrameSize(long bytes) {
+        frameBytes.record(bytes);
+    }
+
+    /**
+     * Exposes a value sampled at scrape time, e.g. platform GC statistics. Names get the
+     * common prefix; counters must only ever grow.
+     */
+    public void addGauge(@NonNull String name, @NonNull String help, @NonNull DoubleSupplier value) {
+        externals.add(new External(name, help, false, value));
+    }
+
+    public void addCounter(@NonNull String name, @NonNull String help, @NonNull DoubleSupplier value) {
+        externals.add(new External(name, help, true, value));
+    }
+
+    @NonNull
+    public Histogram getStage(@NonNull Stage stage) {
+        return stages[stage.ordinal()];
+    }
+
+    public long getCount(@NonNull Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    public int getViewerCount() {
+        return viewers.size();
+    }
+
+    /**
+     * Frames delivered per second to all viewers together, averaged since the previous call
+     * at least a second ago (a scrape or the service's stats log).
+     */
+    public synchronized double getDeliveredFps() {
+        return getDeliveredFps(System.nanoTime());
+    }
+
+    synchronized double getDeliveredFps(long nowNanos) {
+        long count = counters[Counter.DELIVERED.ordinal()].sum();
+        if (!deliveredSampled) {
+            deliveredSampled = true;
+            deliveredSampleNanos = nowNanos;
+            deliveredSampleCount = count;
+            return 0;
+        }
+        long elapsed = nowNanos - deliveredSampleNanos;
+        if (elapsed >= FPS_WINDOW_NANOS) {
+            deliveredFps = (count - deliveredSampleCount) * 1e9 / elapsed;
+            deliveredSampleNanos = nowNanos;
+            deliveredSampleCount = count;
+        }
+        return deliveredFps;
+    }
+
+    @Override
+    public void onDelivered(@NonNull Object viewer, long bytes, long durationNanos) {
+        long now = System.nanoTime();
+        stages[Stage.SEND.ordinal()].record(durationNanos);
+        counters[Counter.DELIVERED.ordinal()].increment();
+        ViewerStats stats = viewers.get(viewer);
+        if (stats == null) {
+            stats = viewers.computeIfAbsent(viewer,
+                    v -> new ViewerStats(nextViewerId.incrementAndGet(), transportOf(v), now));
+        }
+        stats.onFrame(bytes, now);
+    }
+
+    @Override
+    public void onClosed(@NonNull Object viewer) {
+        viewers.remove(viewer);
+    }
+
+    @Override
+    public void onDisplayed(@NonNull Object viewer, @NonNull FrameTiming timing) {
+        stages[Stage.NETWORK.ordinal()].record(timing.getNetworkNanos());
+        stages[Stage.DISPLAY.ordinal()].record(timing.getDisplayNanos());
+        long latency = timing.getLatencyNanos();
+        if (latency < 0) {
+            return;
+        }
+        glassLatency.record(latency);
+        // Reports only count for viewers that are still connected
+        ViewerStats stats = viewers.get(viewer);
+        if (stats != null) {
+            stats.recordLatency(latency);
+        }
+    }
+
+    @NonNull
+    public Histogram getGlassLatency() {
+        return glassLatency;
+    }
+
+    /**
+     * Capture-to-display latency of the viewer's recent frames at the given quantiles, or an
+     * empty array if it has not reported any.
+     */
+    @NonNull
+    public long[] getViewerLatencyNanos(@NonNull Object viewer, @NonNull double... quantiles) {
+        ViewerStats stats = viewers.get(viewer);
+        return stats == null ? new long[0] : stats.latencyQuantiles(quantiles);
+    }
+
+    private static String transportOf(Object viewer) {
+        if (viewer instanceof MjpegInputStream) {
+            return "mjpeg";
+        }
+        if (viewer instanceof SegmentInputStream) {
+            return "segments";
+        }
+        if (viewer instanceof FrameFanout.Client) {
+            return "websocket";
+        }
+        return viewer.getClass().getSimpleName().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Prometheus text exposition format, version 0.0.4.
+     */
+    @NonNull
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder(8 * 1024);
+        long now = System.nanoTime();
+
+        family(sb, "stage_seconds", "histogram", "Time spent in each pipeline stage per frame.");
+        for (Stage stage : Stage.values()) {
+            histogram(sb, "stage_seconds", "stage=\"" + stage.label + "\",", stages[stage.ordinal()], true);
+        }
+
+        family(sb, "frames_total", "counter", "Frames by outcome.");
+        for (Counter counter : Counter.values()) {
+            sb.append(PREFIX).append("frames_total{result=\"").append(counter.label).append("\"} ")
+                    .append(counters[counter.ordinal()].sum()).append('\n');
+        }
+
+        family(sb, "frame_bytes", "histogram", "Encoded frame size.");
+        histogram(sb, "frame_bytes", "", frameBytes, false);
+
+        family(sb, "viewers", "gauge", "Streaming viewers (MJPEG, WebSocket, tiles) currently receiving frames.");
+        sb.append(PREFIX).append("viewers ").append(viewers.size()).append('\n');
+
+        family(sb, "delivered_fps", "gauge", "Frames per second delivered to all viewers, /frame polls included.");
+        sb.append(PREFIX).append("delivered_fps ").append(format(getDeliveredFps(now))).append('\n');
+
+        family(sb, "viewer_fps", "gauge", "Frames per second actually delivered to each viewer.");
+        for (ViewerStats stats : viewers.values()) {
+            sb.append(PREFIX).append("viewer_fps{viewer=\"").append(stats.id).append("\",transport=\"")
+                    .append(stats.transport).append("\"} ").append(format(stats.currentFps(now))).append('\n');
+        }
+
+        family(sb, "glass_latency_seconds", "histogram", "Capture to display, as reported by WebSocket viewers.");
+        histogram(sb, "glass_latency_seconds", "", glassLatency, true);
+
+        family(sb, "viewer_latency_seconds", "summary",
+                "Capture to display per viewer over its last " + LATENCY_WINDOW + " reported frames.");
+        for (ViewerStats stats : viewers.values()) {
+            long[] quantiles = stats.latencyQuantiles(LATENCY_QUANTILES);
+            if (quantiles.length == 0) {
+                continue;
+            }
+            String labels = "viewer=\"" + stats.id + "\",transport=\"" + stats.transport + "\"";
+            for (int i = 0; i < quantiles.length; i++) {
+                sb.append(PREFIX).append("viewer_latency_seconds{").append(labels).append(",quantile=\"")
+                        .append(LATENCY_QUANTILES[i]).append("\"} ").append(seconds(quantiles[i])).append('\n');
+            }
+            sb.append(PREFIX).append("viewer_latency_seconds_sum{").append(labels).append("} ")
+                    .append(seconds(stats.getLatencySumNanos())).append('\n');
+            sb.append(PREFIX).append("viewer_latency_seconds_count{").append(labels).append("} ")
+                    .append(stats.getLatencyCount()).append('\n');
+        }
+
+        for (External external : externals) {
+            family(sb, external.name, external.counter ? "counter" : "gauge", external.help);
+            sb.append(PREFIX).append(external.name).append(' ')
+                    .append(format(external.value.getAsDouble())).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static void family(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void histogram(StringBuilder sb, String name, String labels, Histogram h, boolean nanos) {
+        long[] bounds = h.getBounds();
+        long[] counts = h.getCounts();
+        long cumulative = 0;
+        for (int i = 0; i <= bounds.length; i++) {
+            cumulative += counts[i];
+            String le = i < bounds.length ? (nanos ? seconds(bounds[i]) : Long.toString(bounds[i])) : "+Inf";
+            sb.append(PREFIX).append(name).append("_bucket{").append(labels).append("le=\"").append(le)
+                    .append("\"} ").append(cumulative).append('\n');
+        }
+        String plainLabels = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+        sb.append(PREFIX).append(name).append("_sum").append(plainLabels).append(' ')
+                .append(nanos ? seconds(h.getSum()) : Long.toString(h.getSum())).append('\n');
+        sb.append(PREFIX).append(name).append("_count").append(plainLabels).append(' ')
+                .append(cumulative).append('\n');
+    }
+
+    /**
+     * The same data as a JSON object, with bucket-bound percentiles instead of raw buckets.
+     */
+    @NonNull
+    public String toJson() {
+        StringBuilder sb = new StringBuilder(4 * 1024);
+        long now = System.nanoTime();
+        sb.append("{\"stages\":{");
+        for (Stage stage : Stage.values()) {
+            if (stage.ordinal() > 0) {
+                sb.append(',');
+            }
+            sb.append('"').append(stage.label).append("\":");
+            histogramJson(sb, stages[stage.ordinal()]);
+        }
+        sb.append("},\"glass_latency\":");
+        histogramJson(sb, glassLatency);
+        sb.append(",\"frames\":{");
+        for (Counter counter : Counter.values()) {
+            if (counter.ordinal() > 0) {
+                sb.append(',');
+            }
+            sb.append('"').append(counter.label).append("\":").append(counters[counter.ordinal()].sum());
+        }
+        long frames = frameBytes.getCount();
+        sb.append("},\"frame_bytes\":{\"count\":").append(frames)
+                .append(",\"avg\":").append(frames == 0 ? 0 : frameBytes.getSum() / frames)
+                .append(",\"p50\":").append(frameBytes.getQuantileBound(0.5))
+                .append(",\"p95\":").append(frameBytes.getQuantileBound(0.95)).append('}');
+        sb.append(",\"delivered_fps\":").append(format(getDeliveredFps(now)));
+        sb.append(",\"viewers\":[");
+        boolean first = true;
+        for (ViewerStats stats : viewers.values()) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append("{\"id\":").append(stats.id).append(",\"transport\":\"").append(stats.transport)
+                    .append("\",\"fps\":").append(format(stats.currentFps(now)))
+                    .append(",\"frames\":").append(stats.frames.get())
+                    .append(",\"bytes\":").append(stats.bytes.get());
+            long[] latency = stats.latencyQuantiles(LATENCY_QUANTILES);
+            if (latency.length > 0) {
+                sb.append(",\"latency_ms\":{\"count\":").append(stats.getLatencyCount())
+                        .append(",\"p50\":").append(format(latency[0] / 1e6))
+                        .append(",\"p90\":").append(format(latency[1] / 1e6))
+                        .append(",\"p99\":").append(format(latency[2] / 1e6)).append('}');
+            }
+            sb.append('}');
+        }
+        sb.append(']');
+        for (External external : externals) {
+            sb.append(",\"").append(external.name).append("\":").append(format(external.value.getAsDouble()));
+        }
+        return sb.append('}').toString();
+    }
+
+    private static void histogramJson(StringBuilder sb, Histogram h) {
+        long n = h.getCount();
+        sb.append("{\"count\":").append(n)
+                .append(",\"avg_ms\":").append(format(n == 0 ? 0 : h.getSum() / 1e6 / n))
+                .append(",\"p50_ms\":").append(quantileMillis(h, 0.5))
+                .append(",\"p95_ms\":").append(quantileMillis(h, 0.95))
+                .append(",\"p99_ms\":").append(quantileMillis(h, 0.99)).append('}');
+    }
+
+    // -1 when the quantile is beyond the largest bucket
+    private static String quantileMillis(Histogram h, double q) {
+        long bound = h.getQuantileBound(q);
+        return bound < 0 ? "-1" : format(bound / 1e6);
+    }
+
+    private static String seconds(long nanos) {
+        return BigDecimal.valueOf(nanos, 9).stripTrailingZeros().toPlainString();
+    }
+
+    private static String format(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return "0";
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return String.format(Locale.US, "%.3f", value);
+    }
+}
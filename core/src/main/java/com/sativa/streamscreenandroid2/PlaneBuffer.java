@@ -0,0 +1,89 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pooled copy of an Image.Plane so the ImageReader image can be closed right away and the
+ * frame handed to the encoder thread. Owned by exactly one stage at a time.
+ */
+public final class PlaneBuffer {
+
+    @NonNull
+    public final ByteBuffer data;
+    public int width;
+    public int height;
+    public int rowStride;
+    public int pixelStride;
+    // Image.getTimestamp() of the captured content
+    public long timestampNanos;
+    // System.nanoTime() when the capture stage started on / queued this frame
+    long captureStartNanos;
+    long enqueuedNanos;
+
+    PlaneBuffer(int capacity) {
+        data = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Copies the plane bytes (including row padding) into this buffer.
+     */
+    public void copyFrom(@NonNull ByteBuffer plane, int width, int height, int rowStride, int pixelStride,
+                         long timestampNanos) {
+        ByteBuffer src = plane.duplicate();
+        src.rewind();
+        data.clear();
+        data.put(src);
+        data.flip();
+        this.width = width;
+        this.height = height;
+        this.rowStride = rowStride;
+        this.pixelStride = pixelStride;
+        this.timestampNanos = timestampNanos;
+    }
+
+    /**
+     * Copies only the rows and columns of {@code region}, which must lie inside the plane.
+     * Rows are packed unless the region spans the plane's full width, in which case they are
+     * copied as one block with their padding.
+     */
+    public void copyRegion(@NonNull ByteBuffer plane, int planeWidth, int rowStride, int pixelStride,
+                           @NonNull CaptureRegion region, long timestampNanos) {
+        ByteBuffer src = plane.duplicate();
+        data.clear();
+        int rowBytes = region.width * pixelStride;
+        if (region.x == 0 && region.width == planeWidth) {
+            int start = region.y * rowStride;
+            src.limit(start + (region.height - 1) * rowStride + rowBytes);
+            src.position(start);
+            data.put(src);
+        } else {
+            for (int row = 0; row < region.height; row++) {
+                int start = (region.y + row) * rowStride + region.x * pixelStride;
+                src.limit(start + rowBytes);
+                src.position(start);
+                data.put(src);
+            }
+            rowStride = rowBytes;
+        }
+        data.flip();
+        this.width = region.width;
+        this.height = region.height;
+        this.rowStride = rowStride;
+        this.pixelStride = pixelStride;
+        this.timestampNanos = timestampNanos;
+    }
+
+    /** Bytes {@link #copyRegion} needs for {@code region}. */
+    public static int regionCapacity(int planeWidth, int rowStride, int pixelStride, @NonNull CaptureRegion region) {
+        int rowBytes = region.width * pixelStride;
+        return region.x == 0 && region.width == planeWidth
+                ? (region.height - 1) * rowStride + rowBytes
+                : region.height * rowBytes;
+    }
+
+    public int capacity() {
+        return data.capacity();
+    }
+}
@@ -0,0 +1,62 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Output sizes published by FrameBroadcaster. ADAPTIVE is the original single stream whose
+ * scale follows the quality controller; the fixed renditions form a 1/1, 1/2, 1/4 ladder
+ * and are only encoded while somebody watches them.
+ */
+public enum Rendition {
+    ADAPTIVE("auto", -1),
+    FULL("full", 0),
+    HALF("half", 1),
+    QUARTER("quarter", 2);
+
+    // Fixed renditions, smallest first
+    static final Rendition[] LADDER = {QUARTER, HALF, FULL};
+
+    @NonNull
+    public final String paramName;
+    // Halvings from the capture size (pyramid level), -1 for ADAPTIVE
+    public final int level;
+
+    Rendition(@NonNull String paramName, int level) {
+        this.paramName = paramName;
+        this.level = level;
+    }
+
+    /**
+     * Rendition for a query parameter value, or null if it is not recognised.
+     */
+    @Nullable
+    public static Rendition fromParam(@Nullable String value) {
+        if (value == null) {
+            return null;
+        }
+        for (Rendition r : values()) {
+            if (r.paramName.equalsIgnoreCase(value)) {
+                return r;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Smallest fixed rendition that still fills a viewport of the given device pixels when
+     * scaled to fit, or FULL if even the full capture is smaller.
+     */
+    @NonNull
+    public static Rendition forViewport(int viewportWidth, int viewportHeight, int sourceWidth, int sourceHeight) {
+        for (Rendition r : LADDER) {
+            int w = sourceWidth >> r.level;
+            int h = sourceHeight >> r.level;
+            // Fit-to-viewport is limited by the tighter side, so one side reaching it is enough
+            if (w >= viewportWidth || h >= viewportHeight) {
+                return r;
+            }
+        }
+        return FULL;
+    }
+}
@@ -0,0 +1,338 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The last few seconds of published frames, for viewers that want to look back. Frames are
+ * copied into one direct buffer allocated up front, so memory is capped at the byte budget
+ * whatever the frame sizes; metadata lives in parallel ring arrays.
+ *
+ * <p>Every appended frame gets a position, counting up from 0. Appending is O(1) (amortized
+ * over the evictions it causes), finding a time is a binary search over the positions still
+ * held, and reading a position copies the frame out under the lock. The oldest frames are
+ * evicted when the arena has no room, when they are older than the duration limit, or when
+ * the metadata ring is full.
+ *
+ * <p>{@link #start()} follows FrameBroadcaster's adaptive rendition on its own thread, so
+ * the copy never runs on the capture or encoder thread.
+ */
+public class ReplayBuffer {
+
+    public static final int DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+    public static final long DEFAULT_MAX_DURATION_MS = 60_000;
+    // 60 s at 60 fps
+    private static final int DEFAULT_MAX_FRAMES = 3600;
+    private static final long FRAME_WAIT_MS = 1000;
+
+    /**
+     * A copy of one held frame.
+     */
+    public static final class Entry {
+        public final long position;
+        public final long sequence;
+        // Capture (or publish) time on the System.nanoTime() clock
+        public final long timeNanos;
+        public final int width;
+        public final int height;
+        @NonNull
+        public final byte[] data;
+
+        Entry(long position, long sequence, long timeNanos, int width, int height, @NonNull byte[] data) {
+            this.position = position;
+            this.sequence = sequence;
+            this.timeNanos = timeNanos;
+            this.width = width;
+            this.height = height;
+            this.data = data;
+        }
+    }
+
+    @Nullable
+    private final FrameBroadcaster frameBroadcaster;
+    private final ByteBuffer arena;
+    private final long maxDurationNanos;
+    private final int capacity;
+
+    // Guarded by this. Position p is in slot p % capacity while first <= p < next
+    private final long[] times;
+    private final long[] sequences;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final int[] widths;
+    private final int[] heights;
+    private long first;
+    private long next;
+    // Where the next frame would go in the arena
+    private int tail;
+    private long heldBytes;
+
+    private long evictedForBytes;
+    private long evictedForAge;
+    private long evictedForCount;
+    private long evictedBytes;
+    private long oversized;
+    private long skipped;
+
+    private Thread thread;
+    private volatile boolean running;
+
+    public ReplayBuffer(@Nullable FrameBroadcaster frameBroadcaster, int maxBytes, long maxDurationMs) {
+        this(frameBroadcaster, maxBytes, maxDurationMs, DEFAULT_MAX_FRAMES);
+    }
+
+    ReplayBuffer(@Nullable FrameBroadcaster frameBroadcaster, int maxBytes, long maxDurationMs, int maxFrames) {
+        if (maxBytes < 1 || maxFrames < 1) {
+            throw new IllegalArgumentException("maxBytes and maxFrames must be >= 1");
+        }
+        this.frameBroadcaster = frameBroadcaster;
+        this.arena = ByteBuffer.allocateDirect(maxBytes);
+        this.maxDurationNanos = TimeUnit.MILLISECONDS.toNanos(maxDurationMs);
+        this.capacity = maxFrames;
+        this.times = new long[maxFrames];
+        this.sequences = new long[maxFrames];
+        this.offsets = new int[maxFrames];
+        this.lengths = new int[maxFrames];
+        this.widths = new int[maxFrames];
+        this.heights = new int[maxFrames];
+    }
+
+    public synchronized void start() {
+        if (running || frameBroadcaster == null) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::follow, "ReplayBuffer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        thread.interrupt();
+    }
+
+    /**
+     * Copies the frame in, evicting as needed. Frames larger than the whole arena and empty
+     * frames are not kept.
+     *
+     * @param timeNanos capture time on the System.nanoTime() clock; clamped so times never
+     *                  go backwards
+     * @return whether the frame was kept
+     */
+    public synchronized boolean append(@NonNull Frame frame, long timeNanos) {
+        ByteBuffer payload = frame.payload();
+        int length = payload.remaining();
+        if (length == 0) {
+            return false;
+        }
+        if (length > arena.capacity()) {
+            oversized++;
+            return false;
+        }
+        if (next > first) {
+            timeNanos = Math.max(timeNanos, times[slot(next - 1)]);
+        }
+        while (next > first && timeNanos - times[slot(first)] > maxDurationNanos) {
+            evictedForAge++;
+            evictOldest();
+        }
+        if (next - first == capacity) {
+            evictedForCount++;
+            evictOldest();
+        }
+        int offset = reserve(length);
+
+        ByteBuffer dst = arena.duplicate();
+        dst.position(offset);
+        dst.put(payload);
+        int slot = slot(next);
+        times[slot] = timeNanos;
+        sequences[slot] = frame.sequence;
+        offsets[slot] = offset;
+        lengths[slot] = length;
+        widths[slot] = frame.width;
+        heights[slot] = frame.height;
+        next++;
+        tail = offset + length;
+        heldBytes += length;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Position of the first held frame at or after {@code timeNanos}: the oldest if every
+     * frame is newer, {@link #getNextPosition()} if every frame is older.
+     */
+    public synchronized long seek(long timeNanos) {
+        long lo = first;
+        long hi = next;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (times[slot(mid)] < timeNanos) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * A copy of the frame at {@code position}, or null if it was evicted or is not there yet.
+     */
+    @Nullable
+    public synchronized Entry read(long position) {
+        if (position < first || position >= next) {
+            return null;
+        }
+        int slot = slot(position);
+        byte[] data = new byte[lengths[slot]];
+        ByteBuffer src = arena.duplicate();
+        src.position(offsets[slot]);
+        src.get(data);
+        return new Entry(position, sequences[slot], times[slot], widths[slot], heights[slot], data);
+    }
+
+    /**
+     * Time of the frame at {@code position}, or -1 if it is not held.
+     */
+    public synchronized long getTimeNanos(long position) {
+        return position < first || position >= next ? -1 : times[slot(position)];
+    }
+
+    /**
+     * Waits until a frame at {@code position} or later has been appended.
+     *
+     * @return false on timeout
+     */
+    public synchronized boolean awaitPosition(long position, long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (next <= position) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    /** Oldest position still held. */
+    public synchronized long getFirstPosition() {
+        return first;
+    }
+
+    /** Position the next appended frame will get. */
+    public synchronized long getNextPosition() {
+        return next;
+    }
+
+    public synchronized int getFrameCount() {
+        return (int) (next - first);
+    }
+
+    /** Payload bytes held, at most the arena size. */
+    public synchronized long getHeldBytes() {
+        return heldBytes;
+    }
+
+    public int getCapacityBytes() {
+        return arena.capacity();
+    }
+
+    /** Time between the oldest and newest held frame. */
+    public synchronized long getDurationNanos() {
+        return next > first ? times[slot(next - 1)] - times[slot(first)] : 0;
+    }
+
+    public synchronized long getEvictedCount() {
+        return evictedForBytes + evictedForAge + evictedForCount;
+    }
+
+    public synchronized long getEvictedBytes() {
+        return evictedBytes;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return "replay: frames=" + (next - first) + " bytes=" + heldBytes + "/" + arena.capacity()
+                + " span=" + TimeUnit.NANOSECONDS.toMillis(getDurationNanos()) + "ms evicted(bytes="
+                + evictedForBytes + " age=" + evictedForAge + " count=" + evictedForCount + ", "
+                + evictedBytes + "B) oversized=" + oversized + " skipped=" + skipped;
+    }
+
+    /**
+     * Arena offset for {@code length} more bytes, evicting the oldest frames until the
+     * region is free. Frames sit in the arena in append order, so the free space is the gap
+     * after {@link #tail} up to the oldest frame, wrapping to the start when the end of the
+     * arena is too short.
+     */
+    private int reserve(int length) {
+        while (true) {
+            if (next == first) {
+                return 0;
+            }
+            int head = offsets[slot(first)];
+            if (head < tail) {
+                // Held region [head, tail): free after it, or from the start up to head
+                if (tail + length <= arena.capacity()) {
+                    return tail;
+                }
+                if (length <= head) {
+                    return 0;
+                }
+            } else if (tail + length <= head) {
+                // Wrapped: held [head, end) and [0, tail), free [tail, head)
+                return tail;
+            }
+            evictedForBytes++;
+            evictOldest();
+        }
+    }
+
+    private void evictOldest() {
+        int length = lengths[slot(first)];
+        heldBytes -= length;
+        evictedBytes += length;
+        first++;
+    }
+
+    private int slot(long position) {
+        return (int) (position % capacity);
+    }
+
+    private void follow() {
+        long lastSeq = 0;
+        while (running) {
+            Frame frame;
+            try {
+                frame = frameBroadcaster.waitForNextFrame(lastSeq, FRAME_WAIT_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (frame == null || frame.sequence <= lastSeq || !frame.retain()) {
+                continue;
+            }
+            try {
+                if (lastSeq > 0 && frame.sequence > lastSeq + 1) {
+                    synchronized (this) {
+                        skipped += frame.sequence - lastSeq - 1;
+                    }
+                }
+                long time = frame.captureTimestampNanos != 0 ? frame.captureTimestampNanos : frame.publishNanos;
+                append(frame, time);
+            } finally {
+                frame.release();
+            }
+            lastSeq = frame.sequence;
+        }
+    }
+}
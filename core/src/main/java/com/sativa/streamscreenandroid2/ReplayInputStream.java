@@ -0,0 +1,212 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multipart/x-mixed-replace body for /replay: plays a {@link ReplayBuffer} from a point in
+ * the past at normal speed, so the viewer watches the screen with a fixed delay. Playback
+ * starts with the frame that was on screen at the requested time and each later frame is
+ * sent when its capture time plus the delay comes round. A viewer that falls behind the
+ * buffer's eviction skips ahead to the oldest frame still held.
+ */
+public class ReplayInputStream extends InputStream {
+
+    // Upper bound for one wait, so a closed stream is noticed
+    private static final long MAX_WAIT_MS = 1000;
+    // Re-send the last frame after this long without a new one so dead sockets get noticed
+    static final long KEEP_ALIVE_MS = 5000;
+    // /replay without ?from=
+    static final long DEFAULT_OFFSET_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final ReplayBuffer buffer;
+    @Nullable
+    private final DeliveryListener deliveryListener;
+    private final long delayNanos;
+    private final long keepAliveNanos;
+    private final ByteBuffer[] parts = new ByteBuffer[3];
+    private int partIndex = parts.length;
+    private long position;
+    private long skipped;
+    private long deliveryBytes;
+    private long deliveryStartNanos;
+    // When the last part was queued, new or repeated
+    private long lastPartNanos;
+    private volatile boolean closed;
+
+    /**
+     * @param fromNanos where to start, on the System.nanoTime() clock; the oldest held frame
+     *                  if the buffer does not reach back that far
+     */
+    public ReplayInputStream(@NonNull ReplayBuffer buffer, long fromNanos,
+                             @Nullable DeliveryListener deliveryListener) {
+        this(buffer, fromNanos, System.nanoTime(), KEEP_ALIVE_MS, deliveryListener);
+    }
+
+    ReplayInputStream(@NonNull ReplayBuffer buffer, long fromNanos, long nowNanos, long keepAliveMs,
+                      @Nullable DeliveryListener deliveryListener) {
+        this.buffer = buffer;
+        this.deliveryListener = deliveryListener;
+        this.keepAliveNanos = TimeUnit.MILLISECONDS.toNanos(keepAliveMs);
+        long start = buffer.seek(fromNanos);
+        long startTime = buffer.getTimeNanos(start);
+        if ((startTime < 0 || startTime > fromNanos) && start > buffer.getFirstPosition()) {
+            // Start with the frame that was on screen at fromNanos, shown right away
+            start--;
+            startTime = buffer.getTimeNanos(start);
+        }
+        this.position = start;
+        // The delay the viewer asked for, or the one the oldest frame allows
+        this.delayNanos = Math.max(0, nowNanos - Math.max(fromNanos, startTime));
+        if (deliveryListener != null) {
+            deliveryListener.onOpened(this);
+        }
+    }
+
+    /**
+     * How far back {@code from} points: "-30s", "-1500ms", "-2m" or plain seconds, with or
+     * without the minus sign. Returns -1 if it cannot be parsed.
+     */
+    static long parseOffsetNanos(@Nullable String from) {
+        if (from == null || from.isEmpty()) {
+            return DEFAULT_OFFSET_NANOS;
+        }
+        String value = from.startsWith("-") ? from.substring(1) : from;
+        TimeUnit unit = TimeUnit.SECONDS;
+        if (value.endsWith("ms")) {
+            unit = TimeUnit.MILLISECONDS;
+            value = value.substring(0, value.length() - 2);
+        } else if (value.endsWith("s")) {
+            value = value.substring(0, value.length() - 1);
+        } else if (value.endsWith("m")) {
+            unit = TimeUnit.MINUTES;
+            value = value.substring(0, value.length() - 1);
+        }
+        try {
+            long amount = Long.parseLong(value);
+            // An hour is far beyond any buffer; the limit just keeps the arithmetic safe
+            return amount < 0 || unit.toMinutes(amount) > 60 ? -1 : unit.toNanos(amount);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public long getDelayNanos() {
+        return delayNanos;
+    }
+
+    /** Frames evicted before this viewer got to them. */
+    public long getSkippedCount() {
+        return skipped;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        int n = read(one, 0, 1);
+        return n <= 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(@NonNull byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (partIndex >= parts.length) {
+            reportDelivery();
+            if (closed) {
+                return -1;
+            }
+            try {
+                nextFrame();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for frame", e);
+            }
+        }
+
+        ByteBuffer part = parts[partIndex];
+        int n = Math.min(len, part.remaining());
+        part.get(b, off, n);
+        if (!part.hasRemaining()) {
+            partIndex++;
+        }
+        return n;
+    }
+
+    /**
+     * Queues the next frame once it is due; returns without one when a wait times out.
+     */
+    private void nextFrame() throws InterruptedException {
+        if (parts[1] != null && System.nanoTime() - lastPartNanos >= keepAliveNanos) {
+            // Nothing new for a while (idle screen, or a frame far in the future): without a
+            // write NanoHTTPD never learns the viewer left, and it would count as one forever
+            for (ByteBuffer part : parts) {
+                part.rewind();
+            }
+            queued();
+            return;
+        }
+        if (!buffer.awaitPosition(position, MAX_WAIT_MS)) {
+            return;
+        }
+        ReplayBuffer.Entry entry = buffer.read(position);
+        if (entry == null) {
+            // Evicted while we waited
+            long oldest = buffer.getFirstPosition();
+            skipped += oldest - position;
+            position = oldest;
+            return;
+        }
+        long waitNanos = entry.timeNanos + delayNanos - System.nanoTime();
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(Math.min(waitNanos, TimeUnit.MILLISECONDS.toNanos(MAX_WAIT_MS)));
+            if (waitNanos > TimeUnit.MILLISECONDS.toNanos(MAX_WAIT_MS)) {
+                return;
+            }
+        }
+        position = entry.position + 1;
+
+        String header = "--" + MjpegInputStream.BOUNDARY + "\r\n" +
+                "Content-Type: image/jpeg\r\n" +
+                "X-Frame-Sequence: " + entry.sequence + "\r\n" +
+                "X-Capture-Time: " + entry.timeNanos / 1000 + "\r\n" +
+                "Content-Length: " + entry.data.length + "\r\n\r\n";
+        parts[0] = ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII));
+        parts[1] = ByteBuffer.wrap(entry.data);
+        parts[2] = ByteBuffer.wrap(CRLF);
+        queued();
+    }
+
+    private void queued() {
+        partIndex = 0;
+        deliveryBytes = parts[0].remaining() + parts[1].remaining() + parts[2].remaining();
+        deliveryStartNanos = System.nanoTime();
+        lastPartNanos = deliveryStartNanos;
+    }
+
+    private void reportDelivery() {
+        if (deliveryListener != null && deliveryBytes > 0) {
+            deliveryListener.onDelivered(this, deliveryBytes, System.nanoTime() - deliveryStartNanos);
+        }
+        deliveryBytes = 0;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (deliveryListener != null) {
+            deliveryListener.onClosed(this);
+        }
+    }
+}
@@ -0,0 +1,459 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Crops row padding and area-downscales an RGBA_8888 plane into a reusable ARGB int[]
+ * in a single pass. Buffers are only reallocated when the source or target size changes.
+ *
+ * <p>Whole-number ratios (1:1, 1/2, 1/3, 1/4 ...) take fast paths: 1:1 is a bulk int copy,
+ * and k:1 box filters have fixed loop bounds and divide by multiplying with a reciprocal.
+ * Other sizes use per-column source ranges. With more than one thread, large frames are
+ * split into bands of output rows scaled concurrently.
+ */
+public class RgbaFrameScaler {
+
+    // Below this many source pixels per band, handing work to another thread costs more than it saves
+    private static final int MIN_BAND_PIXELS = 256 * 1024;
+    // A scale within this of 1/k snaps to an exact k:1 ratio
+    private static final float SNAP_TOLERANCE = 0.03f;
+
+    private enum Mode {
+        COPY,
+        INTEGER,
+        GENERAL
+    }
+
+    // Per band scratch, so bands can run concurrently
+    private static final class Band {
+        int[] row = new int[0];
+        int[] columnRb = new int[0];
+        int[] columnG = new int[0];
+        // Byte fallback
+        byte[] rowBytes = new byte[0];
+        int[] sums = new int[0];
+    }
+
+    private final int threads;
+    // Null when single-threaded or after release()
+    private volatile ExecutorService executor;
+
+    private int srcWidth;
+    private int srcHeight;
+    private int dstWidth;
+    private int dstHeight;
+    private Mode mode;
+    private int xFactor;
+    private int yFactor;
+
+    // Source pixel range [start, end) covered by each output column / row
+    private int[] xStart;
+    private int[] xEnd;
+    private int[] yStart;
+    private int[] yEnd;
+
+    private Band[] bands;
+    private int[] pixels;
+    // Whether every output pixel averages few enough pixels for the packed loops
+    private boolean packed;
+    // ceil(2^32 / n), indexed by pixel count
+    private long[] reciprocals;
+
+    public RgbaFrameScaler() {
+        this(1);
+    }
+
+    /**
+     * @param threads how many threads may scale one frame, the calling thread included
+     */
+    public RgbaFrameScaler(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be >= 1");
+        }
+        this.threads = threads;
+        if (threads > 1) {
+            AtomicInteger counter = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(threads - 1, r -> {
+                Thread t = new Thread(r, "FrameScaler-" + counter.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            });
+        } else {
+            executor = null;
+        }
+    }
+
+    /**
+     * Half the cores, at most four: the capture and encoder threads are busy at the same time.
+     */
+    public static int defaultThreads() {
+        return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    /**
+     * Output length for one dimension. Scales close to 1/k give exactly src / k, so the
+     * frame takes the k:1 fast path (dropping at most k - 1 edge pixels).
+     */
+    public static int scaledSize(int src, float scale) {
+        if (scale >= 1f) {
+            return src;
+        }
+        int k = Math.round(1f / scale);
+        if (k > 1 && Math.abs(scale * k - 1f) <= SNAP_TOLERANCE) {
+            return Math.max(1, src / k);
+        }
+        return Math.max(1, Math.round(src * scale));
+    }
+
+    /**
+     * Lowers {@code scale} so that the long edge is at most {@code maxLongEdge} pixels;
+     * 0 means no limit.
+     */
+    public static float fitScale(int srcWidth, int srcHeight, float scale, int maxLongEdge) {
+        int longEdge = Math.max(srcWidth, srcHeight);
+        if (maxLongEdge > 0 && longEdge * scale > maxLongEdge) {
+            return maxLongEdge / (float) longEdge;
+        }
+        return scale;
+    }
+
+    /**
+     * Prepares lookup tables and buffers for the given sizes.
+     *
+     * @return true if buffers had to be (re)allocated
+     */
+    public boolean configure(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+        if (srcWidth <= 0 || srcHeight <= 0 || dstWidth <= 0 || dstHeight <= 0) {
+            throw new IllegalArgumentException("Invalid size " + srcWidth + "x" + srcHeight
+                    + " -> " + dstWidth + "x" + dstHeight);
+        }
+        if (dstWidth > srcWidth || dstHeight > srcHeight) {
+            throw new IllegalArgumentException("Upscaling is not supported");
+        }
+        if (pixels != null
+                && srcWidth == this.srcWidth && srcHeight == this.srcHeight
+                && dstWidth == this.dstWidth && dstHeight == this.dstHeight) {
+            return false;
+        }
+
+        this.srcWidth = srcWidth;
+        this.srcHeight = srcHeight;
+        this.dstWidth = dstWidth;
+        this.dstHeight = dstHeight;
+
+        xFactor = srcWidth / dstWidth;
+        yFactor = srcHeight / dstHeight;
+        if (srcWidth == dstWidth && srcHeight == dstHeight) {
+            mode = Mode.COPY;
+        } else if (srcWidth - dstWidth * xFactor < xFactor && srcHeight - dstHeight * yFactor < yFactor) {
+            // Every output pixel covers a full kx * ky block; the remainder at the edges is cropped
+            mode = Mode.INTEGER;
+        } else {
+            mode = Mode.GENERAL;
+        }
+
+        xStart = new int[dstWidth];
+        xEnd = new int[dstWidth];
+        yStart = new int[dstHeight];
+        yEnd = new int[dstHeight];
+        int maxCount = fillRanges(srcWidth, dstWidth, mode == Mode.INTEGER, xStart, xEnd)
+                * fillRanges(srcHeight, dstHeight, mode == Mode.INTEGER, yStart, yEnd);
+        packed = maxCount <= 256;
+        reciprocals = new long[maxCount + 1];
+        for (int n = 1; n <= maxCount; n++) {
+            reciprocals[n] = ((1L << 32) + n - 1) / n;
+        }
+
+        bands = new Band[threads];
+        for (int i = 0; i < threads; i++) {
+            bands[i] = new Band();
+        }
+        pixels = new int[dstWidth * dstHeight];
+        return true;
+    }
+
+    // Returns the widest range
+    private static int fillRanges(int src, int dst, boolean wholeBlocks, int[] start, int[] end) {
+        int k = src / dst;
+        int widest = 0;
+        for (int i = 0; i < dst; i++) {
+            if (wholeBlocks) {
+                start[i] = i * k;
+                end[i] = start[i] + k;
+            } else {
+                start[i] = (int) ((long) i * src / dst);
+                end[i] = Math.max(start[i] + 1, (int) ((long) (i + 1) * src / dst));
+            }
+            widest = Math.max(widest, end[i] - start[i]);
+        }
+        return widest;
+    }
+
+    /**
+     * Scales the plane into the internal pixel buffer and returns it. The returned array is
+     * reused on the next call, so callers must consume it before scaling another frame.
+     *
+     * @param plane       RGBA bytes as delivered by Image.Plane#getBuffer()
+     * @param rowStride   bytes between the start of two rows (includes padding)
+     * @param pixelStride bytes between two pixels of the same row (4 for RGBA_8888)
+     */
+    @NonNull
+    public int[] scale(@NonNull ByteBuffer plane, int rowStride, int pixelStride) {
+        if (pixels == null) {
+            throw new IllegalStateException("configure() must be called first");
+        }
+        if (pixelStride < 4 || rowStride < pixelStride * srcWidth) {
+            throw new IllegalArgumentException("Bad strides: row=" + rowStride + " pixel=" + pixelStride);
+        }
+
+        ExecutorService pool = executor;
+        int bandCount = pool == null ? 1
+                : (int) Math.min(Math.min(threads, dstHeight), (long) srcWidth * srcHeight / MIN_BAND_PIXELS);
+        if (bandCount <= 1) {
+            scaleRows(plane, rowStride, pixelStride, 0, dstHeight, bands[0]);
+        } else {
+            scaleBands(pool, plane, rowStride, pixelStride, bandCount);
+        }
+
+        plane.rewind();
+        return pixels;
+    }
+
+    // Band 0 runs on the calling thread; scaleRows reads through its own view of the plane
+    private void scaleBands(ExecutorService pool, ByteBuffer plane, int rowStride, int pixelStride, int bandCount) {
+        List<Future<?>> pending = new ArrayList<>(bandCount - 1);
+        int rowsPerBand = (dstHeight + bandCount - 1) / bandCount;
+        for (int i = 1; i < bandCount; i++) {
+            int from = i * rowsPerBand;
+            int to = Math.min(dstHeight, from + rowsPerBand);
+            if (from >= to) {
+                break;
+            }
+            Band band = bands[i];
+            try {
+                pending.add(pool.submit(() -> scaleRows(plane, rowStride, pixelStride, from, to, band)));
+            } catch (RejectedExecutionException released) {
+                // release() raced with this frame
+                scaleRows(plane, rowStride, pixelStride, from, to, band);
+            }
+        }
+        scaleRows(plane, rowStride, pixelStride, 0, Math.min(dstHeight, rowsPerBand), bands[0]);
+        try {
+            for (Future<?> f : pending) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while scaling", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Scaling band failed", e.getCause());
+        }
+    }
+
+    private void scaleRows(ByteBuffer plane, int rowStride, int pixelStride, int dy0, int dy1, Band band) {
+        if (pixelStride != 4 || rowStride % 4 != 0) {
+            scaleRowsBytes(plane, rowStride, pixelStride, dy0, dy1, band);
+            return;
+        }
+        ByteBuffer view = plane.duplicate();
+        view.rewind();
+        IntBuffer ints = view.order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+        int intStride = rowStride / 4;
+        if (mode == Mode.COPY) {
+            copyRows(ints, intStride, dy0, dy1);
+        } else if (!packed) {
+            scaleRowsBytes(plane, rowStride, pixelStride, dy0, dy1, band);
+        } else if (mode == Mode.INTEGER) {
+            scaleRowsInteger(ints, intStride, dy0, dy1, band);
+        } else {
+            scaleRowsPacked(ints, intStride, dy0, dy1, band);
+        }
+    }
+
+    // 1:1: each row is one bulk get of RGBA ints, rotated to ARGB
+    private void copyRows(IntBuffer ints, int intStride, int dy0, int dy1) {
+        for (int y = dy0; y < dy1; y++) {
+            int out = y * dstWidth;
+            ints.position(y * intStride);
+            ints.get(pixels, out, dstWidth);
+            for (int i = out, end = out + dstWidth; i < end; i++) {
+                pixels[i] = 0xFF000000 | (pixels[i] >>> 8);
+            }
+        }
+    }
+
+    /*
+     * The packed loops read pixels as big-endian ints (0xRRGGBBAA) and add red and blue in
+     * one int, 16 bits each, which holds up to 257 pixels per output pixel. Rows are first
+     * summed per source column, a plain loop the JIT vectorizes, then reduced across each
+     * output column once per output row.
+     */
+
+    private void scaleRowsInteger(IntBuffer ints, int intStride, int dy0, int dy1, Band band) {
+        int kx = xFactor;
+        int ky = yFactor;
+        int width = dstWidth * kx;
+        long reciprocal = reciprocals[kx * ky];
+
+        for (int dy = dy0; dy < dy1; dy++) {
+            sumRows(ints, intStride, dy * ky, dy * ky + ky, width, band);
+            int[] rb = band.columnRb;
+            int[] g = band.columnG;
+            int out = dy * dstWidth;
+            if (kx == 2) {
+                for (int dx = 0, i = 0; dx < dstWidth; dx++, i += 2) {
+                    pixels[out + dx] = average(rb[i] + rb[i + 1], g[i] + g[i + 1], reciprocal);
+                }
+            } else {
+                for (int dx = 0, i = 0; dx < dstWidth; dx++) {
+                    int sumRb = 0, sumG = 0;
+                    for (int end = i + kx; i < end; i++) {
+                        sumRb += rb[i];
+                        sumG += g[i];
+                    }
+                    pixels[out + dx] = average(sumRb, sumG, reciprocal);
+                }
+            }
+        }
+    }
+
+    private void scaleRowsPacked(IntBuffer ints, int intStride, int dy0, int dy1, Band band) {
+        for (int dy = dy0; dy < dy1; dy++) {
+            sumRows(ints, intStride, yStart[dy], yEnd[dy], srcWidth, band);
+            int[] rb = band.columnRb;
+            int[] g = band.columnG;
+            int rows = yEnd[dy] - yStart[dy];
+            int out = dy * dstWidth;
+            for (int dx = 0; dx < dstWidth; dx++) {
+                int sumRb = 0, sumG = 0;
+                for (int i = xStart[dx], end = xEnd[dx]; i < end; i++) {
+                    sumRb += rb[i];
+                    sumG += g[i];
+                }
+                pixels[out + dx] = average(sumRb, sumG, reciprocals[rows * (xEnd[dx] - xStart[dx])]);
+            }
+        }
+    }
+
+    // Per source column sums of rows [y0, y1) over the first width pixels
+    private static void sumRows(IntBuffer ints, int intStride, int y0, int y1, int width, Band band) {
+        if (band.row.length < width) {
+            band.row = new int[width];
+            band.columnRb = new int[width];
+            band.columnG = new int[width];
+        }
+        int[] row = band.row;
+        int[] rb = band.columnRb;
+        int[] g = band.columnG;
+        for (int sy = y0; sy < y1; sy++) {
+            ints.position(sy * intStride);
+            ints.get(row, 0, width);
+            if (sy == y0) {
+                for (int i = 0; i < width; i++) {
+                    int v = row[i];
+                    rb[i] = (v >>> 8) & 0x00FF00FF;
+                    g[i] = (v >>> 16) & 0xFF;
+                }
+            } else {
+                for (int i = 0; i < width; i++) {
+                    int v = row[i];
+                    rb[i] += (v >>> 8) & 0x00FF00FF;
+                    g[i] += (v >>> 16) & 0xFF;
+                }
+            }
+        }
+    }
+
+    // floor(sum / count) as a multiply and shift, exact for sums up to 255 * count
+    private static int average(int rb, int g, long reciprocal) {
+        int r = (int) (((rb >>> 16) * reciprocal) >>> 32);
+        int b = (int) (((rb & 0xFFFF) * reciprocal) >>> 32);
+        int gg = (int) ((g * reciprocal) >>> 32);
+        return 0xFF000000 | (r << 16) | (gg << 8) | b;
+    }
+
+    // Any pixel stride and row alignment, one byte per channel
+    private void scaleRowsBytes(ByteBuffer plane, int rowStride, int pixelStride, int dy0, int dy1, Band band) {
+        plane = plane.duplicate();
+        // Only the visible part of each row is copied; trailing row padding is skipped
+        int rowBytes = (srcWidth - 1) * pixelStride + 4;
+        byte[] row = rowBuffer(band, rowBytes);
+        if (band.sums.length < dstWidth * 3) {
+            band.sums = new int[dstWidth * 3];
+        }
+        int[] acc = band.sums;
+
+        for (int dy = dy0; dy < dy1; dy++) {
+            Arrays.fill(acc, 0);
+            int y0 = yStart[dy];
+            int y1 = yEnd[dy];
+
+            for (int sy = y0; sy < y1; sy++) {
+                plane.position(sy * rowStride);
+                plane.get(row, 0, rowBytes);
+
+                for (int dx = 0, a = 0; dx < dstWidth; dx++, a += 3) {
+                    int r = 0, g = 0, b = 0;
+                    int end = xEnd[dx] * pixelStride;
+                    for (int i = xStart[dx] * pixelStride; i < end; i += pixelStride) {
+                        r += row[i] & 0xFF;
+                        g += row[i + 1] & 0xFF;
+                        b += row[i + 2] & 0xFF;
+                    }
+                    acc[a] += r;
+                    acc[a + 1] += g;
+                    acc[a + 2] += b;
+                }
+            }
+
+            int rows = y1 - y0;
+            int out = dy * dstWidth;
+            for (int dx = 0, a = 0; dx < dstWidth; dx++, a += 3) {
+                int count = rows * (xEnd[dx] - xStart[dx]);
+                int r = acc[a] / count;
+                int g = acc[a + 1] / count;
+                int b = acc[a + 2] / count;
+                pixels[out + dx] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+    }
+
+    private static byte[] rowBuffer(Band band, int rowBytes) {
+        if (band.rowBytes.length < rowBytes) {
+            band.rowBytes = new byte[rowBytes];
+        }
+        return band.rowBytes;
+    }
+
+    public int getDstWidth() {
+        return dstWidth;
+    }
+
+    public int getDstHeight() {
+        return dstHeight;
+    }
+
+    /**
+     * Stops the band threads; later frames are scaled in one band on the calling thread.
+     */
+    public void release() {
+        ExecutorService pool = executor;
+        executor = null;
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Halving pyramid for the fixed renditions. The caller supplies the largest level it needs
+ * for the current frame; smaller levels are derived from it on demand by 2x2 averaging, so
+ * each rendition costs one quarter of the work of the level above instead of a full
+ * rescale from the capture plane.
+ */
+public class ScalePyramid {
+
+    static final int LEVELS = 3;
+
+    private final int[][] levels = new int[LEVELS][];
+    private final int[] widths = new int[LEVELS];
+    private final int[] heights = new int[LEVELS];
+    // Levels holding the current frame
+    private final boolean[] valid = new boolean[LEVELS];
+
+    /**
+     * Starts a new frame. {@code pixels} is referenced, not copied, and must stay unchanged
+     * until the frame's levels have been consumed.
+     */
+    public void setBase(int level, @NonNull int[] pixels, int width, int height) {
+        for (int i = 0; i < LEVELS; i++) {
+            valid[i] = false;
+        }
+        levels[level] = pixels;
+        widths[level] = width;
+        heights[level] = height;
+        valid[level] = true;
+    }
+
+    /**
+     * Pixels of the given level, building it from the level above if needed.
+     */
+    @NonNull
+    public int[] get(int level) {
+        if (valid[level]) {
+            return levels[level];
+        }
+        if (level == 0) {
+            throw new IllegalStateException("Level 0 was not supplied");
+        }
+        int[] src = get(level - 1);
+        int w = Math.max(1, widths[level - 1] / 2);
+        int h = Math.max(1, heights[level - 1] / 2);
+        if (levels[level] == null || levels[level].length != w * h || levels[level] == src) {
+            levels[level] = new int[w * h];
+        }
+        halve(src, widths[level - 1], heights[level - 1], levels[level], w, h);
+        widths[level] = w;
+        heights[level] = h;
+        valid[level] = true;
+        return levels[level];
+    }
+
+    public int getWidth(int level) {
+        get(level);
+        return widths[level];
+    }
+
+    public int getHeight(int level) {
+        get(level);
+        return heights[level];
+    }
+
+    /**
+     * 2x2 box filter; an odd last row or column of the source is dropped.
+     */
+    static void halve(int[] src, int srcWidth, int srcHeight, int[] dst, int dstWidth, int dstHeight) {
+        if (srcWidth == 1 || srcHeight == 1) {
+            // Degenerate strip: nearest neighbour keeps it simple
+            for (int y = 0; y < dstHeight; y++) {
+                for (int x = 0; x < dstWidth; x++) {
+                    dst[y * dstWidth + x] = src[Math.min(srcHeight - 1, y * 2) * srcWidth + Math.min(srcWidth - 1, x * 2)];
+                }
+            }
+            return;
+        }
+        for (int y = 0; y < dstHeight; y++) {
+            int top = (y * 2) * srcWidth;
+            int bottom = top + srcWidth;
+            int out = y * dstWidth;
+            for (int x = 0; x < dstWidth; x++) {
+                int sx = x * 2;
+                int a = src[top + sx];
+                int b = src[top + sx + 1];
+                int c = src[bottom + sx];
+                int d = src[bottom + sx + 1];
+                // Sum red+blue and green in separate lanes; 4 * 255 fits in the 8 spare bits
+                int rb = (a & 0xFF00FF) + (b & 0xFF00FF) + (c & 0xFF00FF) + (d & 0xFF00FF);
+                int g = (a & 0xFF00) + (b & 0xFF00) + (c & 0xFF00) + (d & 0xFF00);
+                dst[out + x] = 0xFF000000 | ((rb >>> 2) & 0xFF00FF) | ((g >>> 2) & 0xFF00);
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keyframe-anchored segment stream: an optional header (e.g. the fMP4 init segment)
+ * plus every segment since the last keyframe, so viewers that join late can start
+ * decoding from the last keyframe. Used for both H.264 fragments and tile deltas.
+ */
+public class SegmentBroadcaster {
+
+    // Upper bound on cached segments if the encoder never sends another keyframe
+    private static final int MAX_GOP_SEGMENTS = 600;
+
+    private byte[] header;
+    private String codec;
+    private int generation;
+    private final List<byte[]> gop = new ArrayList<>();
+    private long gopStartSeq;
+    private long nextSeq;
+    private boolean active;
+
+    public synchronized void start(byte[] header, @Nullable String codec) {
+        this.header = header;
+        this.codec = codec;
+        this.generation++;
+        this.active = true;
+        gop.clear();
+        gopStartSeq = nextSeq;
+        notifyAll();
+    }
+
+    public synchronized void stop() {
+        active = false;
+        header = null;
+        codec = null;
+        generation++;
+        gop.clear();
+        gopStartSeq = nextSeq;
+        notifyAll();
+    }
+
+    public synchronized boolean isActive() {
+        return active;
+    }
+
+    public synchronized void publish(byte[] segment, boolean keyframe) {
+        if (!active) {
+            return;
+        }
+        if (keyframe || gop.size() >= MAX_GOP_SEGMENTS) {
+            gop.clear();
+            gopStartSeq = nextSeq;
+        }
+        if (gop.isEmpty() && !keyframe) {
+            // Nothing decodable until the first keyframe arrives
+            return;
+        }
+        gop.add(segment);
+        nextSeq++;
+        notifyAll();
+    }
+
+    /**
+     * Waits until the header and a first keyframe are available.
+     */
+    @Nullable
+    public synchronized Subscription subscribe(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!active || header == null || gop.isEmpty()) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return null;
+            }
+            wait(remaining);
+        }
+        return new Subscription(generation, header, codec, gopStartSeq);
+    }
+
+    /**
+     * Returns the segment with sequence {@code seq}, jumping forward to the current GOP if the
+     * reader fell behind. Returns null on timeout or when the stream was restarted.
+     */
+    @Nullable
+    synchronized Segment next(Subscription sub, long seq, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (sub.generation == generation && seq >= nextSeq) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return null;
+            }
+            wait(remaining);
+        }
+        if (sub.generation != generation) {
+            return null;
+        }
+        if (seq < gopStartSeq) {
+            seq = gopStartSeq;
+        }
+        return new Segment(seq, gop.get((int) (seq - gopStartSeq)));
+    }
+
+    synchronized boolean isCurrent(Subscription sub) {
+        return sub.generation == generation;
+    }
+
+    public static final class Subscription {
+        final int generation;
+        public final byte[] header;
+        public final String codec;
+        final long startSeq;
+
+        Subscription(int generation, byte[] header, String codec, long startSeq) {
+            this.generation = generation;
+            this.header = header;
+            this.codec = codec;
+            this.startSeq = startSeq;
+        }
+    }
+
+    static final class Segment {
+        final long seq;
+        final byte[] data;
+
+        Segment(long seq, byte[] data) {
+            this.seq = seq;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Endless body for the /video and /tiles endpoints: the stream header followed by
+ * segments starting at the most recent keyframe. Ends when the encoder is
+ * restarted (e.g. on rotation) so the viewer can re-initialise.
+ */
+public class SegmentInputStream extends InputStream {
+
+    private static final long WAIT_MS = 1000;
+
+    private final SegmentBroadcaster segmentBroadcaster;
+    private final SegmentBroadcaster.Subscription subscription;
+    @Nullable
+    private final DeliveryListener deliveryListener;
+    private byte[] current;
+    private int offset;
+    private long nextSeq;
+    private long deliveryStartNanos;
+    private volatile boolean closed;
+
+    public SegmentInputStream(@NonNull SegmentBroadcaster segmentBroadcaster,
+                           @NonNull SegmentBroadcaster.Subscription subscription) {
+        this(segmentBroadcaster, subscription, null);
+    }
+
+    public SegmentInputStream(@NonNull SegmentBroadcaster segmentBroadcaster,
+                              @NonNull SegmentBroadcaster.Subscription subscription,
+                              @Nullable DeliveryListener deliveryListener) {
+        this.segmentBroadcaster = segmentBroadcaster;
+        this.subscription = subscription;
+        this.deliveryListener = deliveryListener;
+        this.current = subscription.header;
+        this.nextSeq = subscription.startSeq;
+        if (deliveryListener != null) {
+            deliveryListener.onOpened(this);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        int n = read(one, 0, 1);
+        return n <= 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(@NonNull byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (current != null && offset >= current.length) {
+            reportDelivery();
+        }
+        while (current == null || offset >= current.length) {
+            if (closed || !segmentBroadcaster.isCurrent(subscription)) {
+                return -1;
+            }
+            SegmentBroadcaster.Segment segment;
+            try {
+                segment = segmentBroadcaster.next(subscription, nextSeq, WAIT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for segment", e);
+            }
+            if (segment != null) {
+                current = segment.data;
+                offset = 0;
+                nextSeq = segment.seq + 1;
+                deliveryStartNanos = System.nanoTime();
+            }
+        }
+
+        int n = Math.min(len, current.length - offset);
+        System.arraycopy(current, offset, b, off, n);
+        offset += n;
+        return n;
+    }
+
+    private void reportDelivery() {
+        if (deliveryListener != null && deliveryStartNanos != 0) {
+            deliveryListener.onDelivered(this, current.length, System.nanoTime() - deliveryStartNanos);
+        }
+        deliveryStartNanos = 0;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (deliveryListener != null) {
+            deliveryListener.onClosed(this);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.Nullable;
+
+public class StreamConfig {
+
+    public enum CaptureMode {
+        // Full JPEG per frame (default)
+        JPEG,
+        // Only changed tiles are encoded and sent to the canvas viewer
+        TILES,
+        // Every frame split into stripes encoded in parallel on all cores (canvas viewer only)
+        STRIPES,
+        // Hardware H.264 (falls back to JPEG if unavailable)
+        H264
+    }
+
+    public enum ServerEngine {
+        // NanoHTTPD, one thread per connection; supports every viewer mode (default)
+        NANOHTTPD,
+        // NioStreamServer, one selector thread for all viewers; /frame and /stream only
+        NIO
+    }
+
+    public static final int DEFAULT_TARGET_FPS = 15;
+    public static final int DEFAULT_MAX_FPS = 30;
+    // Above this the encoder cannot keep up at full resolution anyway
+    public static final int FPS_LIMIT = 60;
+
+    // Longest look-back /replay allows
+    public static final int REPLAY_SECONDS_LIMIT = 600;
+
+    // Output scale that lets the adaptive controller pick from its whole ladder
+    public static final float SCALE_AUTO = 0f;
+
+    // Default fallback port if user input is invalid or not set
+    private static int port = LanWebServer.DEFAULT_PORT;
+
+    private static CaptureMode captureMode = CaptureMode.JPEG;
+
+    private static ServerEngine serverEngine = ServerEngine.NANOHTTPD;
+
+    // Steady capture rate, and the ceiling for bursts after an idle screen
+    private static int targetFps = DEFAULT_TARGET_FPS;
+
+    private static int maxFps = DEFAULT_MAX_FPS;
+
+    // Largest output scale relative to the capture size, and a cap on the long edge (0 = none)
+    private static float outputScale = SCALE_AUTO;
+
+    private static int maxLongEdge;
+
+    // Bitrate the adaptive controller keeps the stream under, in kbit/s (0 = only viewer throughput)
+    private static int bandwidthBudgetKbps;
+
+    // Keep an on-disk archive of every recorded frame (see FrameRecorder)
+    private static boolean recordingEnabled;
+
+    // In-memory look-back for /replay (see ReplayBuffer); off by default since it holds
+    // replayMaxBytes of direct memory for as long as capture runs
+    private static int replaySeconds;
+
+    private static int replayMaxBytes = ReplayBuffer.DEFAULT_MAX_BYTES;
+
+    // Part of the display to capture, in display pixels for the current rotation; null = all of it
+    @Nullable
+    private static CaptureRegion captureRegion;
+
+    public static synchronized void setPort(int newPort) {
+        // Simple sanity check; you can tighten this if you want
+        if (newPort > 0 && newPort <= 65535) {
+            port = newPort;
+        }
+    }
+
+    public static synchronized int getPort() {
+        return port;
+    }
+
+    public static synchronized void setCaptureMode(CaptureMode mode) {
+        if (mode != null) {
+            captureMode = mode;
+        }
+    }
+
+    public static synchronized CaptureMode getCaptureMode() {
+        return captureMode;
+    }
+
+    public static synchronized void setServerEngine(ServerEngine engine) {
+        if (engine != null) {
+            serverEngine = engine;
+        }
+    }
+
+    public static synchronized ServerEngine getServerEngine() {
+        return serverEngine;
+    }
+
+    /**
+     * Sets both rates; out-of-range values are ignored and the target is capped at the maximum.
+     */
+    public static synchronized void setFrameRates(int newTargetFps, int newMaxFps) {
+        if (newMaxFps >= FrameRateGovernor.MIN_FPS && newMaxFps <= FPS_LIMIT) {
+            maxFps = newMaxFps;
+        }
+        if (newTargetFps >= FrameRateGovernor.MIN_FPS && newTargetFps <= FPS_LIMIT) {
+            targetFps = newTargetFps;
+        }
+        targetFps = Math.min(targetFps, maxFps);
+    }
+
+    public static synchronized int getTargetFps() {
+        return targetFps;
+    }
+
+    public static synchronized int getMaxFps() {
+        return maxFps;
+    }
+
+    /**
+     * @param scale {@link #SCALE_AUTO} or a factor in (0, 1]; the adaptive controller only goes below it
+     */
+    public static synchronized void setOutputScale(float scale) {
+        if (scale == SCALE_AUTO || (scale > 0f && scale <= 1f)) {
+            outputScale = scale;
+        }
+    }
+
+    public static synchronized float getOutputScale() {
+        return outputScale;
+    }
+
+    /**
+     * @param pixels longest output edge, or 0 for no limit
+     */
+    public static synchronized void setMaxLongEdge(int pixels) {
+        if (pixels >= 0) {
+            maxLongEdge = pixels;
+        }
+    }
+
+    public static synchronized int getMaxLongEdge() {
+        return maxLongEdge;
+    }
+
+    /**
+     * @param kbps upper bound on the stream bitrate, or 0 to adapt to the viewers' throughput only
+     */
+    public static synchronized void setBandwidthBudgetKbps(int kbps) {
+        if (kbps >= 0) {
+            bandwidthBudgetKbps = kbps;
+        }
+    }
+
+    public static synchronized int getBandwidthBudgetKbps() {
+        return bandwidthBudgetKbps;
+    }
+
+    public static synchronized long getBandwidthBudgetBytesPerSecond() {
+        return bandwidthBudgetKbps * 1000L / 8;
+    }
+
+    public static synchronized void setRecordingEnabled(boolean enabled) {
+        recordingEnabled = enabled;
+    }
+
+    public static synchronized boolean isRecordingEnabled() {
+        return recordingEnabled;
+    }
+
+    /**
+     * @param seconds how far back /replay can go, 0 to keep no replay buffer
+     */
+    public static synchronized void setReplaySeconds(int seconds) {
+        if (seconds >= 0 && seconds <= REPLAY_SECONDS_LIMIT) {
+            replaySeconds = seconds;
+        }
+    }
+
+    public static synchronized int getReplaySeconds() {
+        return replaySeconds;
+    }
+
+    /**
+     * @param bytes memory for the replay buffer, allocated when capture starts
+     */
+    public static synchronized void setReplayMaxBytes(int bytes) {
+        if (bytes > 0) {
+            replayMaxBytes = bytes;
+        }
+    }
+
+    public static synchronized int getReplayMaxBytes() {
+        return replayMaxBytes;
+    }
+
+    /**
+     * @param region area to capture, or null for the whole display; clamped to the display
+     *               when frames are captured
+     */
+    public static synchronized void setCaptureRegion(@Nullable CaptureRegion region) {
+        captureRegion = region;
+    }
+
+    @Nullable
+    public static synchronized CaptureRegion getCaptureRegion() {
+        return captureRegion;
+    }
+
+    /**
+     * Keeps the capture region on the same area of the panel when the display rotates.
+     *
+     * @see CaptureRegion#rotate(int, int, int)
+     */
+    public static synchronized void rotateCaptureRegion(int quarterTurns, int displayWidth, int displayHeight) {
+        if (captureRegion != null) {
+            captureRegion = captureRegion.rotate(quarterTurns, displayWidth, displayHeight);
+        }
+    }
+}
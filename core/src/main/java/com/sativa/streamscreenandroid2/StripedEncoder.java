@@ -0,0 +1,121 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encodes a set of rectangles (horizontal stripes or dirty tiles) concurrently on a fixed
+ * worker pool. Each worker gets a stable index so the codec can keep per-worker scratch
+ * buffers (e.g. one Bitmap per worker) without locking.
+ */
+public class StripedEncoder {
+
+    public interface RectCodec {
+        /**
+         * Encodes one rectangle. Calls with the same {@code worker} index never overlap.
+         */
+        @NonNull
+        byte[] encode(int worker, int x, int y, int w, int h) throws Exception;
+    }
+
+    // JPEG MCUs are at most 16 rows high (4:2:0), so stripe edges stay block-aligned
+    public static final int STRIPE_ALIGNMENT = 16;
+
+    private final int workers;
+    private final ExecutorService executor;
+
+    public StripedEncoder(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be >= 1");
+        }
+        this.workers = workers;
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "JpegStripe-" + counter.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public static int defaultWorkers() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Splits a frame into at most {@code stripes} full-width stripes whose heights are multiples
+     * of {@code alignment} (except the last one).
+     *
+     * @param out receives x, y, w, h per stripe; needs room for 4 * stripes ints
+     * @return number of stripes written
+     */
+    public static int splitStripes(int width, int height, int stripes, int alignment, @NonNull int[] out) {
+        int stripeHeight = (height + stripes - 1) / stripes;
+        stripeHeight = Math.max(alignment, (stripeHeight + alignment - 1) / alignment * alignment);
+        int count = 0;
+        for (int y = 0; y < height; y += stripeHeight) {
+            out[count * 4] = 0;
+            out[count * 4 + 1] = y;
+            out[count * 4 + 2] = width;
+            out[count * 4 + 3] = Math.min(stripeHeight, height - y);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Encodes {@code count} rectangles (x, y, w, h quadruples) and returns the results in the
+     * same order. Rectangles are dealt round-robin to the workers; a single rectangle is
+     * encoded on the calling thread.
+     */
+    @NonNull
+    public byte[][] encodeAll(@NonNull int[] rects, int count, @NonNull RectCodec codec) throws Exception {
+        byte[][] results = new byte[count][];
+        if (count == 0) {
+            return results;
+        }
+        if (count == 1 || workers == 1) {
+            for (int i = 0; i < count; i++) {
+                results[i] = codec.encode(0, rects[i * 4], rects[i * 4 + 1], rects[i * 4 + 2], rects[i * 4 + 3]);
+            }
+            return results;
+        }
+
+        int tasks = Math.min(workers, count);
+        List<Callable<Void>> jobs = new ArrayList<>(tasks);
+        for (int w = 0; w < tasks; w++) {
+            final int worker = w;
+            jobs.add(() -> {
+                for (int i = worker; i < count; i += tasks) {
+                    results[i] = codec.encode(worker, rects[i * 4], rects[i * 4 + 1], rects[i * 4 + 2], rects[i * 4 + 3]);
+                }
+                return null;
+            });
+        }
+
+        for (Future<Void> f : executor.invokeAll(jobs)) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof Exception ? (Exception) cause : e;
+            }
+        }
+        return results;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,155 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Splits ARGB frames into fixed-size tiles and reports which tiles changed since the
+ * previous frame. Adjacent dirty tiles in the same tile row are merged into one
+ * rectangle so fewer (larger) JPEGs are encoded.
+ */
+public class TileDiffer {
+
+    public static final int DEFAULT_TILE_SIZE = 64;
+
+    private final int tileSize;
+    private int width;
+    private int height;
+    private int tilesX;
+    private int tilesY;
+    private int[] previous;
+    private boolean[] dirty;
+    private int dirtyTiles;
+    // x, y, w, h per merged rectangle
+    private int[] rects;
+    private boolean forceFull = true;
+
+    public TileDiffer(int tileSize) {
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException("tileSize must be positive");
+        }
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * Sets the frame size. Changing it drops the reference frame, so the next diff is full.
+     *
+     * @return true if buffers had to be (re)allocated
+     */
+    public boolean configure(int width, int height) {
+        if (previous != null && width == this.width && height == this.height) {
+            return false;
+        }
+        this.width = width;
+        this.height = height;
+        tilesX = (width + tileSize - 1) / tileSize;
+        tilesY = (height + tileSize - 1) / tileSize;
+        previous = new int[width * height];
+        dirty = new boolean[tilesX * tilesY];
+        rects = new int[tilesX * tilesY * 4];
+        forceFull = true;
+        return true;
+    }
+
+    /**
+     * Makes the next {@link #diff} report every tile as changed.
+     */
+    public void invalidate() {
+        forceFull = true;
+    }
+
+    /**
+     * Compares {@code pixels} against the previous frame, updates the reference copy for
+     * changed tiles and returns the number of merged dirty rectangles (see {@link #getRects()}).
+     */
+    public int diff(@NonNull int[] pixels) {
+        if (previous == null) {
+            throw new IllegalStateException("configure() must be called first");
+        }
+        if (pixels.length < width * height) {
+            throw new IllegalArgumentException("Frame too small");
+        }
+
+        boolean full = forceFull;
+        forceFull = false;
+        dirtyTiles = 0;
+        int rectCount = 0;
+
+        for (int ty = 0; ty < tilesY; ty++) {
+            int y0 = ty * tileSize;
+            int y1 = Math.min(y0 + tileSize, height);
+            int runStart = -1;
+
+            for (int tx = 0; tx <= tilesX; tx++) {
+                boolean changed = false;
+                if (tx < tilesX) {
+                    int x0 = tx * tileSize;
+                    int x1 = Math.min(x0 + tileSize, width);
+                    changed = full || tileChanged(pixels, x0, x1, y0, y1);
+                    if (changed) {
+                        copyTile(pixels, x0, x1, y0, y1);
+                        dirtyTiles++;
+                    }
+                    dirty[ty * tilesX + tx] = changed;
+                }
+
+                if (changed && runStart < 0) {
+                    runStart = tx;
+                } else if (!changed && runStart >= 0) {
+                    int x = runStart * tileSize;
+                    int r = rectCount * 4;
+                    rects[r] = x;
+                    rects[r + 1] = y0;
+                    rects[r + 2] = Math.min(tx * tileSize, width) - x;
+                    rects[r + 3] = y1 - y0;
+                    rectCount++;
+                    runStart = -1;
+                }
+            }
+        }
+        return rectCount;
+    }
+
+    private boolean tileChanged(int[] pixels, int x0, int x1, int y0, int y1) {
+        for (int y = y0; y < y1; y++) {
+            int row = y * width;
+            for (int i = row + x0, end = row + x1; i < end; i++) {
+                if (pixels[i] != previous[i]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void copyTile(int[] pixels, int x0, int x1, int y0, int y1) {
+        for (int y = y0; y < y1; y++) {
+            int row = y * width + x0;
+            System.arraycopy(pixels, row, previous, row, x1 - x0);
+        }
+    }
+
+    /**
+     * Merged dirty rectangles from the last diff as x, y, w, h quadruples.
+     * The array is reused across calls.
+     */
+    @NonNull
+    public int[] getRects() {
+        return rects;
+    }
+
+    public int getDirtyTileCount() {
+        return dirtyTiles;
+    }
+
+    public int getTileCount() {
+        return tilesX * tilesY;
+    }
+
+    public boolean isTileDirty(int tx, int ty) {
+        return dirty[ty * tilesX + tx];
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+}
@@ -0,0 +1,154 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary container for one tile update, as streamed on /tiles and decoded by the viewer page.
+ * <pre>
+ * u32 length of the rest of the packet
+ * u8 version, u8 flags, u16 tile count, u32 sequence, u16 frame width, u16 frame height
+ * per tile: u16 x, u16 y, u16 w, u16 h, u32 JPEG length, JPEG bytes
+ * </pre>
+ * All values are big-endian.
+ */
+public final class TilePacket {
+
+    public static final int VERSION = 1;
+    public static final int FLAG_KEYFRAME = 1;
+    static final int HEADER_SIZE = 12;
+    static final int TILE_HEADER_SIZE = 12;
+
+    public final boolean keyframe;
+    public final int sequence;
+    public final int frameWidth;
+    public final int frameHeight;
+    public final List<Tile> tiles;
+
+    private TilePacket(boolean keyframe, int sequence, int frameWidth, int frameHeight, List<Tile> tiles) {
+        this.keyframe = keyframe;
+        this.sequence = sequence;
+        this.frameWidth = frameWidth;
+        this.frameHeight = frameHeight;
+        this.tiles = tiles;
+    }
+
+    /**
+     * Parses a packet including its leading length field.
+     */
+    @NonNull
+    public static TilePacket parse(@NonNull byte[] data) {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        int length = buf.getInt();
+        if (length != data.length - 4) {
+            throw new IllegalArgumentException("Length mismatch: " + length + " vs " + (data.length - 4));
+        }
+        int version = buf.get() & 0xFF;
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported version " + version);
+        }
+        int flags = buf.get() & 0xFF;
+        int count = buf.getShort() & 0xFFFF;
+        int sequence = buf.getInt();
+        int frameWidth = buf.getShort() & 0xFFFF;
+        int frameHeight = buf.getShort() & 0xFFFF;
+
+        List<Tile> tiles = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int x = buf.getShort() & 0xFFFF;
+            int y = buf.getShort() & 0xFFFF;
+            int w = buf.getShort() & 0xFFFF;
+            int h = buf.getShort() & 0xFFFF;
+            byte[] jpeg = new byte[buf.getInt()];
+            buf.get(jpeg);
+            tiles.add(new Tile(x, y, w, h, jpeg));
+        }
+        return new TilePacket((flags & FLAG_KEYFRAME) != 0, sequence, frameWidth, frameHeight, tiles);
+    }
+
+    public static final class Tile {
+        public final int x;
+        public final int y;
+        public final int width;
+        public final int height;
+        public final byte[] jpeg;
+
+        Tile(int x, int y, int width, int height, byte[] jpeg) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.jpeg = jpeg;
+        }
+    }
+
+    /**
+     * Reusable packet builder. Tile payloads are appended as they are encoded and the
+     * header is written in {@link #finish()}.
+     */
+    public static final class Writer {
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream(64 * 1024);
+        private boolean keyframe;
+        private int sequence;
+        private int frameWidth;
+        private int frameHeight;
+        private int count;
+
+        public void begin(int sequence, boolean keyframe, int frameWidth, int frameHeight) {
+            body.reset();
+            count = 0;
+            this.sequence = sequence;
+            this.keyframe = keyframe;
+            this.frameWidth = frameWidth;
+            this.frameHeight = frameHeight;
+        }
+
+        public void addTile(int x, int y, int w, int h, @NonNull byte[] jpeg, int offset, int length) {
+            if (count == 0xFFFF) {
+                throw new IllegalStateException("Too many tiles");
+            }
+            writeShort(x);
+            writeShort(y);
+            writeShort(w);
+            writeShort(h);
+            writeInt(length);
+            body.write(jpeg, offset, length);
+            count++;
+        }
+
+        public int getTileCount() {
+            return count;
+        }
+
+        @NonNull
+        public byte[] finish() {
+            byte[] tiles = body.toByteArray();
+            ByteBuffer out = ByteBuffer.allocate(4 + HEADER_SIZE + tiles.length);
+            out.putInt(HEADER_SIZE + tiles.length);
+            out.put((byte) VERSION);
+            out.put((byte) (keyframe ? FLAG_KEYFRAME : 0));
+            out.putShort((short) count);
+            out.putInt(sequence);
+            out.putShort((short) frameWidth);
+            out.putShort((short) frameHeight);
+            out.put(tiles);
+            return out.array();
+        }
+
+        private void writeShort(int v) {
+            body.write(v >>> 8);
+            body.write(v);
+        }
+
+        private void writeInt(int v) {
+            body.write(v >>> 24);
+            body.write(v >>> 16);
+            body.write(v >>> 8);
+            body.write(v);
+        }
+    }
+}
@@ -0,0 +1,472 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * HTML for the login and viewer pages, shared by both server engines.
+ */
+final class ViewerPages {
+
+    /**
+     * How the viewer page receives the screen.
+     */
+    enum Player {
+        // fMP4 over /video into Media Source Extensions
+        VIDEO,
+        // TilePackets over /tiles onto a canvas
+        TILES,
+        // JPEG messages over /ws onto a canvas, falling back to MJPEG
+        WEBSOCKET,
+        // multipart JPEG over /stream into an <img>
+        MJPEG
+    }
+
+    private ViewerPages() {
+    }
+
+    @NonNull
+    static String loginPage() {
+        return "<!DOCTYPE html>" +
+                "<html>" +
+                "<head>" +
+                "<meta charset='utf-8'>" +
+                "<link rel='icon' type='image/png' href='icon.png'>" +
+                "<title>StreamScreen Login</title>" +
+                "<meta name='viewport' content='width=device-width, initial-scale=1.0'>" +
+                "<style>" +
+                "html, body { margin:0; padding:0; height:100%; font-family: sans-serif; }" +
+                "body { " +
+                "  background: radial-gradient(circle at top, #1500ff 0%, #000000 55%, #000000 100%);" +
+                "  display:flex; align-items:center; justify-content:center; color:#ffffff;" +
+                "}" +
+                ".card {" +
+                "  background: rgba(0,0,0,0.85);" +
+                "  border-radius: 16px;" +
+                "  padding: 32px 28px;" +
+                "  box-shadow: 0 0 24px rgba(21,0,255,0.45);" +
+                "  text-align:center;" +
+                "  max-width: 360px;" +
+                "  width: 90%;" +
+                "}" +
+                ".title {" +
+                "  font-size: 26px;" +
+                "  margin: 0 0 8px 0;" +
+                "  color:#1500ff;" +
+                "  letter-spacing: 0.06em;" +
+                "}" +
+                ".subtitle {" +
+                "  font-size: 13px;" +
+                "  color:#cccccc;" +
+                "  margin-bottom: 20px;" +
+                "}" +
+                "label { display:block; margin-bottom:6px; font-size:14px; color:#ffffff; }" +
+                "input[type=password] {" +
+                "  width:100%;" +
+                "  padding:10px 12px;" +
+                "  border-radius:10px;" +
+                "  border:1px solid #333;" +
+                "  background:#050510;" +
+                "  color:#ffffff;" +
+                "  outline:none;" +
+                "  box-sizing:border-box;" +
+                "  font-size:14px;" +
+                "  transition: border-color 0.2s, box-shadow 0.2s, background 0.2s;" +
+                "}" +
+                "input[type=password]:focus {" +
+                "  border-color:#1500ff;" +
+                "  background:#080820;" +
+                "  box-shadow:0 0 10px rgba(21,0,255,0.7);" +
+                "}" +
+                ".button-row { margin-top:16px; }" +
+                "input[type=submit] {" +
+                "  padding:10px 24px;" +
+                "  border-radius:999px;" +
+                "  border:none;" +
+                "  background:#1500ff;" +
+                "  color:#ffffff;" +
+                "  font-size:14px;" +
+                "  cursor:pointer;" +
+                "  box-shadow:0 0 14px rgba(21,0,255,0.6);" +
+                "  transition: background 0.2s, box-shadow 0.2s, transform 0.1s;" +
+                "}" +
+                "input[type=submit]:hover {" +
+                "  background:#2a26ff;" +
+                "  box-shadow:0 0 20px rgba(42,38,255,0.9);" +
+                "}" +
+                "input[type=submit]:active {" +
+                "  transform:scale(0.97);" +
+                "  box-shadow:0 0 10px rgba(21,0,255,0.7);" +
+                "}" +
+                ".hint {" +
+                "  margin-top:18px;" +
+                "  font-size:12px;" +
+                "  color:#bbbbbb;" +
+                "}" +
+                "</style>" +
+                "</head>" +
+                "<body>" +
+                "<div class='card'>" +
+                "<h1 class='title'>StreamScreen</h1>" +
+                "<div class='subtitle'>Secure LAN screen share</div>" +
+                "<form method='POST' action='/view'>" +
+                "<label for='pw'>Password</label>" +
+                "<input id='pw' type='password' name='token' autocomplete='off' />" +
+                "<div class='button-row'>" +
+                "<input type='submit' value='View' />" +
+                "</div>" +
+                "</form>" +
+                "<div class='hint'>Enter the password configured in the Android app.</div>" +
+                "</div>" +
+                "</body>" +
+                "</html>";
+    }
+
+    /**
+     * Viewer page for the given player. {@code forced} pins a rendition; null lets the
+     * server choose from the reported screen size.
+     */
+    @NonNull
+    static String viewPage(@NonNull String token, @NonNull Player player, @Nullable Rendition forced) {
+        boolean video = player == Player.VIDEO;
+        boolean tiles = player == Player.TILES;
+        boolean mjpeg = player == Player.MJPEG;
+        return "<!DOCTYPE html>" +
+                "<html>" +
+                "<head>" +
+                "<meta charset='utf-8'>" +
+                "<title>StreamScreen Viewer</title>" +
+                "<meta name='viewport' content='width=device-width, initial-scale=1.0'>" +
+                "<style>" +
+                "html, body { margin:0; padding:0; height:100%; font-family: sans-serif; }" +
+                "body { " +
+                "  background: radial-gradient(circle at top, #1500ff 0%, #000000 55%, #000000 100%);" +
+                "  display:flex;" +
+                "  align-items:center;" +
+                "  justify-content:center;" +
+                "  color:#ffffff;" +
+                "}" +
+                ".card {" +
+                "  background: rgba(0,0,0,0.85);" +
+                "  border-radius: 16px;" +
+                "  padding: 20px 20px 24px 20px;" +
+                "  box-shadow: 0 0 24px rgba(21,0,255,0.45);" +
+                "  max-width: 1000px;" +
+                "  width: 95vw;" +
+                "  box-sizing:border-box;" +
+                "  text-align:center;" +
+                "  display:flex;" +
+                "  flex-direction:column;" +
+                "}" +
+                ".title {" +
+                "  font-size: 22px;" +
+                "  margin: 0;" +
+                "  color:#1500ff;" +
+                "  letter-spacing: 0.06em;" +
+                "}" +
+                ".subtitle {" +
+                "  font-size: 12px;" +
+                "  color:#cccccc;" +
+                "  margin-top:4px;" +
+                "}" +
+                ".top-row {" +
+                "  display:flex;" +
+                "  flex-direction:column;" +
+                "  align-items:center;" +
+                "  gap:6px;" +
+                "}" +
+                ".fs-btn {" +
+                "  margin-top:10px;" +
+                "  padding:6px 14px;" +
+                "  border-radius:999px;" +
+                "  border:none;" +
+                "  background:#1500ff;" +
+                "  color:#ffffff;" +
+                "  font-size:12px;" +
+                "  cursor:pointer;" +
+                "  box-shadow:0 0 10px rgba(21,0,255,0.6);" +
+                "  transition: background 0.2s, box-shadow 0.2s, transform 0.1s;" +
+                "}" +
+                ".fs-btn:hover {" +
+                "  background:#2a26ff;" +
+                "  box-shadow:0 0 16px rgba(42,38,255,0.9);" +
+                "}" +
+                ".fs-btn:active {" +
+                "  transform:scale(0.97);" +
+                "  box-shadow:0 0 8px rgba(21,0,255,0.7);" +
+                "}" +
+                ".viewer-box {" +
+                "  background:#000000;" +
+                "  border-radius:12px;" +
+                "  box-shadow: 0 0 14px rgba(0,0,0,0.9);" +
+                "  margin-top:12px;" +
+                "  padding:8px;" +
+                "}" +
+                "#screenImg {" +
+                "  max-width:100%;" +
+                "  max-height:70vh;" +
+                "  width:100%;" +
+                "  height:auto;" +
+                "  display:block;" +
+                "  margin:0 auto;" +
+                "  background:#000;" +
+                "  border-radius:8px;" +
+                "  object-fit:contain;" +
+                "}" +
+                ".hint {" +
+                "  margin-top:10px;" +
+                "  font-size:11px;" +
+                "  color:#aaaaaa;" +
+                "}" +
+                "#screenImg:fullscreen, #screenImg:-webkit-full-screen {" +
+                "  width:100vw;" +
+                "  height:100vh;" +
+                "  max-width:none;" +
+                "  max-height:none;" +
+                "  border-radius:0;" +
+                "  object-fit:contain;" +
+                "  background:#000;" +
+                "}" +
+                "body.fs-mode {" +
+                "  background:#000000;" +
+                "}" +
+                "body.fs-mode .card {" +
+                "  background:transparent;" +
+                "  box-shadow:none;" +
+                "  border-radius:0;" +
+                "  padding:0;" +
+                "  max-width:none;" +
+                "  width:100vw;" +
+                "  height:100vh;" +
+                "}" +
+                "body.fs-mode .viewer-box {" +
+                "  margin:0;" +
+                "  border-radius:0;" +
+                "  box-shadow:none;" +
+                "  padding:0;" +
+                "}" +
+                "body.fs-mode .top-row," +
+                "body.fs-mode .hint {" +
+                "  display:none;" +
+                "}" +
+                "</style>" +
+                "</head>" +
+                "<body>" +
+                "<div class='card' id='viewerCard'>" +
+                "<div class='top-row'>" +
+                "<h1 class='title'>StreamScreen</h1>" +
+                "<div class='subtitle'>Live screen over secure LAN</div>" +
+                "<button class='fs-btn' type='button' onclick='toggleFullscreen()'>⛶ Fullscreen</button>" +
+                "</div>" +
+                "<div class='viewer-box'>" +
+                (video
+                        ? "<video id='screenImg' autoplay muted playsinline></video>"
+                        : mjpeg
+                        ? "<img id='screenImg' alt='Screen stream' />"
+                        : "<canvas id='screenImg'></canvas>") +
+                "</div>" +
+                "<div class='hint'>Tip: Use fullscreen for best view. If the image freezes, refresh the page.</div>" +
+                "</div>" +
+                "<script>" +
+                "let img = document.getElementById('screenImg');" +
+                streamUrlScript(token, forced) +
+                (video ? videoScript(token)
+                        : tiles ? tilesScript(token)
+                        : mjpeg ? mjpegScript(token)
+                        : websocketScript(token)) +
+                "function toggleFullscreen(){" +
+                "  if (!document.fullscreenElement && !document.webkitFullscreenElement) {" +
+                "    if (img.requestFullscreen) img.requestFullscreen();" +
+                "    else if (img.webkitRequestFullscreen) img.webkitRequestFullscreen();" +
+                "  } else {" +
+                "    if (document.exitFullscreen) document.exitFullscreen();" +
+                "    else if (document.webkitExitFullscreen) document.webkitExitFullscreen();" +
+                "  }" +
+                "}" +
+                "function onFsChange(){" +
+                "  const fsElement = document.fullscreenElement || document.webkitFullscreenElement;" +
+                "  if (fsElement) document.body.classList.add('fs-mode');" +
+                "  else document.body.classList.remove('fs-mode');" +
+                "}" +
+                "document.addEventListener('fullscreenchange', onFsChange);" +
+                "document.addEventListener('webkitfullscreenchange', onFsChange);" +
+                "</script>" +
+                "</body>" +
+                "</html>";
+    }
+
+    private static String streamUrlScript(String token, Rendition forced) {
+        // Without an explicit choice the server picks a rendition from the viewport size
+        String choice = forced != null
+                ? "'&rendition=" + forced.paramName + "'"
+                : "'&vw=' + Math.round(screen.width * dpr) + '&vh=' + Math.round(screen.height * dpr)";
+        return "function streamUrl(path){" +
+                "  const dpr = window.devicePixelRatio || 1;" +
+                "  return (path || '/stream') + '?token=" + token + "' + " + choice + " + '&t=' + Date.now();" +
+                "}";
+    }
+
+    private static String websocketScript(String token) {
+        // Binary JPEG per message after an "f" timing message; decode off the main thread, only
+        // ever draw the newest one, and report each drawn frame for latency stats (LatencyProbe)
+        return "function startMjpeg(){" +
+                "  const fallback = document.createElement('img');" +
+                "  fallback.id = 'screenImg';" +
+                "  img.replaceWith(fallback);" +
+                "  img = fallback;" +
+                "  " + mjpegScript(token) +
+                "}" +
+                "function startSocket(){" +
+                "  if (!window.WebSocket || !window.createImageBitmap) { startMjpeg(); return; }" +
+                "  const ctx = img.getContext('2d');" +
+                "  const ws = new WebSocket((location.protocol === 'https:' ? 'wss://' : 'ws://') + location.host + streamUrl('/ws'));" +
+                "  ws.binaryType = 'arraybuffer';" +
+                "  let received = false, decoding = false, next = null, seq = null;" +
+                // Offset to the server clock in ms, taken from the sync with the shortest round trip
+                "  let offset = null, syncTimer = 0;" +
+                "  const syncs = [];" +
+                "  function sync(){ if (ws.readyState === 1) ws.send('s ' + performance.now().toFixed(3)); }" +
+                "  function onSync(parts){" +
+                "    const now = performance.now(), sent = parseFloat(parts[1]);" +
+                "    syncs.push({ rtt: now - sent, offset: parseFloat(parts[2]) / 1000 - (sent + now) / 2 });" +
+                "    if (syncs.length > 8) syncs.shift();" +
+                "    offset = syncs.reduce(function(a, b){ return b.rtt < a.rtt ? b : a; }).offset;" +
+                "  }" +
+                "  function serverTime(t){ return Math.round((t + offset) * 1000); }" +
+                "  async function drawLatest(){" +
+                "    decoding = true;" +
+                "    while (next) {" +
+                "      const f = next; next = null;" +
+                "      try {" +
+                "        const b = await createImageBitmap(new Blob([f.data], { type: 'image/jpeg' }));" +
+                "        if (img.width !== b.width || img.height !== b.height) { img.width = b.width; img.height = b.height; }" +
+                "        ctx.drawImage(b, 0, 0);" +
+                "        b.close();" +
+                // Frames replaced before they were drawn are not reported
+                "        if (f.seq && offset !== null && ws.readyState === 1) {" +
+                "          ws.send('r ' + f.seq + ' ' + serverTime(f.at) + ' ' + serverTime(performance.now()));" +
+                "        }" +
+                "      } catch (e) {}" +
+                "    }" +
+                "    decoding = false;" +
+                "  }" +
+                "  ws.onopen = function(){" +
+                "    sync();" +
+                "    setTimeout(sync, 250);" +
+                "    syncTimer = setInterval(sync, 2000);" +
+                "  };" +
+                "  ws.onmessage = function(e){" +
+                "    if (typeof e.data === 'string') {" +
+                "      const parts = e.data.split(' ');" +
+                "      if (parts[0] === 'f') seq = parts[1];" +
+                "      else if (parts[0] === 's') onSync(parts);" +
+                "      return;" +
+                "    }" +
+                "    received = true;" +
+                "    next = { data: e.data, seq: seq, at: performance.now() };" +
+                "    seq = null;" +
+                "    if (!decoding) drawLatest();" +
+                "  };" +
+                "  ws.onclose = function(){" +
+                "    clearInterval(syncTimer);" +
+                "    if (!received) startMjpeg();" +
+                "    else setTimeout(startSocket, 1000);" +
+                "  };" +
+                "}" +
+                "startSocket();";
+    }
+
+    private static String mjpegScript(String token) {
+        return "img.src = streamUrl();" +
+                "img.onerror = function(){" +
+                "  setTimeout(function(){ img.src = streamUrl(); }, 1000);" +
+                "};";
+    }
+
+    private static String tilesScript(String token) {
+        // Reads length-prefixed TilePackets and patches the decoded tiles onto the canvas
+        return "const ctx = img.getContext('2d');" +
+                "async function drawPacket(p){" +
+                "  const dv = new DataView(p.buffer, p.byteOffset, p.byteLength);" +
+                "  const count = dv.getUint16(2);" +
+                "  const w = dv.getUint16(8), h = dv.getUint16(10);" +
+                "  if (img.width !== w || img.height !== h) { img.width = w; img.height = h; }" +
+                "  const jobs = [];" +
+                "  let off = 12;" +
+                "  for (let i = 0; i < count; i++) {" +
+                "    const x = dv.getUint16(off), y = dv.getUint16(off + 2);" +
+                "    const len = dv.getUint32(off + 8);" +
+                "    const blob = new Blob([p.subarray(off + 12, off + 12 + len)], { type: 'image/jpeg' });" +
+                "    jobs.push(createImageBitmap(blob).then(function(b){ return { x: x, y: y, b: b }; }));" +
+                "    off += 12 + len;" +
+                "  }" +
+                "  const decoded = await Promise.all(jobs);" +
+                "  for (const t of decoded) { ctx.drawImage(t.b, t.x, t.y); t.b.close(); }" +
+                "}" +
+                "async function startTiles(){" +
+                "  const resp = await fetch('/tiles?token=" + token + "&t=' + Date.now());" +
+                "  if (!resp.ok) throw new Error('tiles unavailable');" +
+                "  const reader = resp.body.getReader();" +
+                "  let buf = new Uint8Array(0);" +
+                "  while (true) {" +
+                "    const chunk = await reader.read();" +
+                "    if (chunk.done) break;" +
+                "    const merged = new Uint8Array(buf.length + chunk.value.length);" +
+                "    merged.set(buf); merged.set(chunk.value, buf.length);" +
+                "    buf = merged;" +
+                "    while (buf.length >= 4) {" +
+                "      const len = new DataView(buf.buffer, buf.byteOffset, 4).getUint32(0);" +
+                "      if (buf.length < 4 + len) break;" +
+                "      await drawPacket(buf.subarray(4, 4 + len));" +
+                "      buf = buf.subarray(4 + len);" +
+                "    }" +
+                "  }" +
+                "  location.reload();" +
+                "}" +
+                "startTiles().catch(function(){ setTimeout(function(){ location.reload(); }, 1000); });";
+    }
+
+    private static String videoScript(String token) {
+        return "async function startVideo(){" +
+                "  const resp = await fetch('/video?token=" + token + "&t=' + Date.now());" +
+                "  const codec = resp.headers.get('X-Video-Codec');" +
+                "  const type = 'video/mp4; codecs=\"' + codec + '\"';" +
+                "  if (!resp.ok || !window.MediaSource || !MediaSource.isTypeSupported(type)) {" +
+                "    const fallback = document.createElement('img');" +
+                "    fallback.id = 'screenImg';" +
+                "    img.replaceWith(fallback);" +
+                "    img = fallback;" +
+                "    " + mjpegScript(token) +
+                "    return;" +
+                "  }" +
+                "  const ms = new MediaSource();" +
+                "  img.src = URL.createObjectURL(ms);" +
+                "  await new Promise(function(r){ ms.addEventListener('sourceopen', r, { once: true }); });" +
+                "  const sb = ms.addSourceBuffer(type);" +
+                "  sb.mode = 'segments';" +
+                "  const queue = [];" +
+                "  function pump(){" +
+                "    if (sb.updating || queue.length === 0) return;" +
+                "    sb.appendBuffer(queue.shift());" +
+                "  }" +
+                "  sb.addEventListener('updateend', function(){" +
+                "    const b = img.buffered;" +
+                "    if (b.length > 0) {" +
+                "      const end = b.end(b.length - 1);" +
+                "      if (end - img.currentTime > 1.0) img.currentTime = end - 0.1;" +
+                "      if (!sb.updating && img.currentTime - b.start(0) > 30) { sb.remove(b.start(0), img.currentTime - 10); return; }" +
+                "    }" +
+                "    pump();" +
+                "  });" +
+                "  const reader = resp.body.getReader();" +
+                "  while (true) {" +
+                "    const chunk = await reader.read();" +
+                "    if (chunk.done) break;" +
+                "    queue.push(chunk.value);" +
+                "    pump();" +
+                "  }" +
+                "  location.reload();" +
+                "}" +
+                "startVideo().catch(function(){ setTimeout(function(){ location.reload(); }, 1000); });";
+    }
+}
@@ -0,0 +1,150 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Viewer authentication for the web servers. The stream password is kept in memory (set by
+ * ScreenCaptureService whenever it changes) and only checked at login; a successful login
+ * returns a random session token that the viewer page uses for every later request, so the
+ * password is not repeated in each poll URL. Sessions expire after a period without
+ * requests. Checking a token is a hash lookup with no Android calls.
+ */
+public class ViewerSessions {
+
+    static final long DEFAULT_IDLE_TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(30);
+    static final int MAX_SESSIONS = 256;
+    private static final int TOKEN_BYTES = 18;
+
+    private final long idleTimeoutNanos;
+    private final SecureRandom random = new SecureRandom();
+    // Token -> expiry (System.nanoTime()); extended on every use
+    private final Map<String, Long> sessions = new ConcurrentHashMap<>();
+    private volatile byte[] password = new byte[0];
+
+    public ViewerSessions() {
+        this(DEFAULT_IDLE_TIMEOUT_NANOS);
+    }
+
+    ViewerSessions(long idleTimeoutNanos) {
+        this.idleTimeoutNanos = idleTimeoutNanos;
+    }
+
+    /**
+     * Changes the password; existing sessions are dropped if it differs from the current one.
+     */
+    public void setPassword(@NonNull String password) {
+        byte[] bytes = password.getBytes(StandardCharsets.UTF_8);
+        if (!MessageDigest.isEqual(bytes, this.password)) {
+            this.password = bytes;
+            sessions.clear();
+        }
+    }
+
+    /**
+     * Constant-time comparison against the current password. An unset password matches nothing.
+     */
+    public boolean checkPassword(@Nullable String candidate) {
+        byte[] expected = password;
+        return candidate != null && expected.length > 0
+                && MessageDigest.isEqual(candidate.getBytes(StandardCharsets.UTF_8), expected);
+    }
+
+    /**
+     * Starts a session for a viewer that just logged in.
+     */
+    @NonNull
+    public String createSession() {
+        return createSession(System.nanoTime());
+    }
+
+    @NonNull
+    String createSession(long nowNanos) {
+        if (sessions.size() >= MAX_SESSIONS) {
+            evict(nowNanos);
+        }
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        sessions.put(token, nowNanos + idleTimeoutNanos);
+        return token;
+    }
+
+    /**
+     * Whether the token names a live session; extends it if so.
+     */
+    public boolean isValid(@Nullable String token) {
+        return isValid(token, System.nanoTime());
+    }
+
+    boolean isValid(@Nullable String token, long nowNanos) {
+        if (token == null) {
+            return false;
+        }
+        Long expiry = sessions.get(token);
+        if (expiry == null) {
+            return false;
+        }
+        if (nowNanos - expiry > 0) {
+            sessions.remove(token, expiry);
+            return false;
+        }
+        sessions.replace(token, expiry, nowNanos + idleTimeoutNanos);
+        return true;
+    }
+
+    /**
+     * Accepts a session token, or the password itself for scripted clients that skip /view.
+     */
+    public boolean authorize(@Nullable String token) {
+        return isValid(token) || checkPassword(token);
+    }
+
+    /**
+     * The session for a /view request: the caller's own if still valid, a new one if it sent
+     * the password, otherwise null.
+     */
+    @Nullable
+    public String login(@Nullable String token) {
+        if (isValid(token)) {
+            return token;
+        }
+        return checkPassword(token) ? createSession() : null;
+    }
+
+    public void invalidate(@NonNull String token) {
+        sessions.remove(token);
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    // Drops expired sessions, then the one closest to expiring if the table is still full
+    private void evict(long nowNanos) {
+        String oldest = null;
+        long oldestExpiry = Long.MAX_VALUE;
+        for (Iterator<Map.Entry<String, Long>> it = sessions.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Long> e = it.next();
+            long expiry = e.getValue();
+            if (nowNanos - expiry > 0) {
+                it.remove();
+            } else if (oldest == null || expiry - oldestExpiry < 0) {
+                oldest = e.getKey();
+                oldestExpiry = expiry;
+            }
+        }
+        if (sessions.size() >= MAX_SESSIONS && oldest != null) {
+            sessions.remove(oldest);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.sativa.streamscreenandroid2;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Counts the viewers of both web servers so capture can stop while nobody is watching.
+ * Streams (MJPEG, WebSocket, video, tiles) count from {@link #onOpened} until
+ * {@link #onClosed}; one-off requests such as /frame polling count for an idle timeout after
+ * the last request with the same token.
+ */
+public class ViewerTracker implements DeliveryListener {
+
+    /**
+     * Called on the thread serving the request when a viewer shows up after a count of zero.
+     */
+    public interface Listener {
+        void onViewerArrived();
+    }
+
+    static final long DEFAULT_IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+    static final int MAX_POLLERS = 256;
+
+    private final long idleTimeoutNanos;
+    private final Set<Object> streams = ConcurrentHashMap.newKeySet();
+    // Token -> time of its last request (System.nanoTime())
+    private final Map<String, Long> pollers = new ConcurrentHashMap<>();
+    // Cleared when a count comes out at zero, so the next arrival is reported
+    private final AtomicBoolean present = new AtomicBoolean();
+    // Across all pollers, for predicting the next poll
+    private boolean requested;
+    private long lastRequestNanos;
+    private long requestIntervalNanos;
+    @Nullable
+    private volatile Listener listener;
+
+    public ViewerTracker() {
+        this(DEFAULT_IDLE_TIMEOUT_NANOS);
+    }
+
+    ViewerTracker(long idleTimeoutNanos) {
+        this.idleTimeoutNanos = idleTimeoutNanos;
+    }
+
+    public void setListener(@Nullable Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void onOpened(@NonNull Object viewer) {
+        streams.add(viewer);
+        arrived();
+    }
+
+    @Override
+    public void onDelivered(@NonNull Object viewer, long bytes, long durationNanos) {
+    }
+
+    @Override
+    public void onClosed(@NonNull Object viewer) {
+        streams.remove(viewer);
+    }
+
+    /**
+     * Records a request that is not a stream (a /frame poll, loading the viewer page).
+     */
+    public void onRequest(@NonNull String token) {
+        onRequest(token, System.nanoTime());
+    }
+
+    void onRequest(@NonNull String token, long nowNanos) {
+        if (pollers.size() >= MAX_POLLERS && !pollers.containsKey(token)) {
+            prune(nowNanos);
+        }
+        if (pollers.size() < MAX_POLLERS || pollers.containsKey(token)) {
+            pollers.put(token, nowNanos);
+        }
+        recordRequestTime(nowNanos);
+        arrived();
+    }
+
+    private synchronized void recordRequestTime(long nowNanos) {
+        long interval = nowNanos - lastRequestNanos;
+        if (requested && interval < idleTimeoutNanos) {
+            requestIntervalNanos = requestIntervalNanos == 0 ? interval
+                    : requestIntervalNanos + (interval - requestIntervalNanos) / 4;
+        } else {
+            // First request, or the first after a gap: no usable interval yet
+            requestIntervalNanos = 0;
+        }
+        lastRequestNanos = nowNanos;
+        requested = true;
+    }
+
+    public synchronized long getLastRequestNanos() {
+        return lastRequestNanos;
+    }
+
+    /**
+     * Average time between requests from all pollers together, or 0 if not known.
+     */
+    public synchronized long getRequestIntervalNanos() {
+        return requestIntervalNanos;
+    }
+
+    public int getViewerCount() {
+        return getViewerCount(System.nanoTime());
+    }
+
+    int getViewerCount(long nowNanos) {
+        prune(nowNanos);
+        int count = streams.size() + pollers.size();
+        if (count == 0) {
+            present.set(false);
+            // Somebody may have arrived between the count and the reset
+            count = streams.size() + pollers.size();
+            if (count > 0) {
+                arrived();
+            }
+        }
+        return count;
+    }
+
+    public int getStreamCount() {
+        return streams.size();
+    }
+
+    private void arrived() {
+        if (present.compareAndSet(false, true)) {
+            Listener current = listener;
+            if (current != null) {
+                current.onViewerArrived();
+            }
+        }
+    }
+
+    private void prune(long nowNanos) {
+        pollers.values().removeIf(last -> nowNanos - last >= idleTimeoutNanos);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "viewers: streams=" + streams.size() + " pollers=" + pollers.size();
+    }
+}
@@ -0,0 +1,155 @@
+package com.sativa.streamscreenandroid2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AdaptiveQualityControllerTest {
+
+    private static final long FRAME_NANOS = 33_333_333L;
+    private static final Object VIEWER = new Object();
+
+    /**
+     * Simulated source: 1920x1080 capture, bytes per frame grow with pixel count and quality,
+     * encode time grows with pixel count only.
+     */
+    private static final class Simulation {
+        final AdaptiveQualityController controller;
+        long now = 1_000_000_000L;
+        long nanosPerPixel = 5;
+
+        Simulation(long budget) {
+            controller = new AdaptiveQualityController(budget, 30);
+        }
+
+        long frameBytes() {
+            double scale = controller.getScale();
+            double pixels = 1920 * 1080 * scale * scale;
+            return (long) (pixels * controller.getQuality() / 400.0);
+        }
+
+        /** Runs for the given time with a viewer that drains at most linkBytesPerSecond. */
+        void run(long millis, long linkBytesPerSecond) {
+            long end = now + millis * 1_000_000L;
+            while (now < end) {
+                double scale = controller.getScale();
+                long encodeNanos = (long) (1920 * 1080 * scale * scale * nanosPerPixel);
+                long bytes = frameBytes();
+                controller.onFrameEncoded(bytes, encodeNanos, now);
+                if (linkBytesPerSecond > 0) {
+                    controller.recordDelivery(VIEWER, bytes, bytes * 1_000_000_000L / linkBytesPerSecond, now);
+                }
+                now += controller.getFrameIntervalNanos();
+            }
+        }
+
+        double demand() {
+            return frameBytes() * (double) controller.getTargetFps();
+        }
+    }
+
+    @Test
+    public void startsAtPreviousFixedSettings() {
+        AdaptiveQualityController controller = new AdaptiveQualityController(0, 30);
+        assertEquals(50, controller.getQuality());
+        assertEquals(0.5f, controller.getScale(), 0f);
+        assertEquals(30, controller.getTargetFps());
+        assertEquals(FRAME_NANOS, controller.getFrameIntervalNanos());
+    }
+
+    @Test
+    public void doesNotReactWithinUpdateInterval() {
+        AdaptiveQualityController controller = new AdaptiveQualityController(1000, 30);
+        assertFalse(controller.onFrameEncoded(1_000_000, 0, 0));
+        assertFalse(controller.onFrameEncoded(1_000_000, 0, 400_000_000L));
+        assertEquals(50, controller.getQuality());
+        assertTrue(controller.onFrameEncoded(1_000_000, 0, 500_000_000L));
+        assertEquals(40, controller.getQuality());
+    }
+
+    @Test
+    public void slowLinkConvergesUnderCapacity() {
+        Simulation sim = new Simulation(0);
+        sim.run(2_000, 100_000_000L);
+        int fastQuality = sim.controller.getQuality();
+
+        // Link drops to 1 MB/s: quality goes first, then resolution
+        long link = 1_000_000L;
+        sim.run(20_000, link);
+        assertTrue(sim.controller.getQuality() < fastQuality);
+        assertTrue(sim.demand() <= link * 0.9);
+        assertTrue(sim.demand() >= link * 0.5 * 0.5);
+    }
+
+    @Test
+    public void recoversWhenLinkImproves() {
+        Simulation sim = new Simulation(0);
+        sim.run(20_000, 300_000L);
+        assertTrue(sim.controller.getScale() < 0.5f);
+
+        sim.run(30_000, 200_000_000L);
+        assertEquals(30, sim.controller.getTargetFps());
+        assertEquals(AdaptiveQualityController.MAX_QUALITY, sim.controller.getQuality());
+        assertEquals(1.0f, sim.controller.getScale(), 0f);
+    }
+
+    @Test
+    public void budgetCapsWithoutViewers() {
+        long budget = 2_000_000L;
+        Simulation sim = new Simulation(budget);
+        sim.run(20_000, 0);
+        assertTrue(sim.demand() <= budget * 0.9);
+    }
+
+    @Test
+    public void slowEncoderDropsResolutionBeforeQuality() {
+        Simulation sim = new Simulation(0);
+        // 60 ns/pixel: half-size 1080p takes ~31 ms, over 90% of to the 33 ms frame budget
+        sim.nanosPerPixel = 60;
+        sim.run(3_000, 500_000_000L);
+        assertTrue(sim.controller.getScale() < 0.5f);
+        assertTrue(sim.controller.getQuality() >= 50);
+    }
+
+    @Test
+    public void slowestViewerLimitsAndClosedViewerIsForgotten() {
+        AdaptiveQualityController controller = new AdaptiveQualityController(0, 30);
+        Object fast = new Object();
+        Object slow = new Object();
+        controller.recordDelivery(fast, 1_000_000, 10_000_000L, 0);
+        controller.recordDelivery(slow, 1_000_000, 1_000_000_000L, 0);
+        assertEquals(1_000_000, controller.capacity(0), 1);
+
+        controller.onClosed(slow);
+        assertEquals(100_000_000, controller.capacity(0), 1);
+
+        // Viewers that stop reporting stop counting
+        assertEquals(Double.POSITIVE_INFINITY, controller.capacity(10_000_000_000L), 0);
+    }
+
+    @Test
+    public void configuredScaleCapsRecovery() {
+        Simulation sim = new Simulation(0);
+        sim.controller.setMaxScale(0.75f);
+        assertEquals(0.75f, sim.controller.getScale(), 0f);
+        // A fast link and encoder would otherwise climb back to full size
+        sim.nanosPerPixel = 1;
+        sim.run(20_000, 500_000_000L);
+        assertEquals(0.75f, sim.controller.getScale(), 0f);
+
+        // Scales between ladder steps round down
+        sim.controller.setMaxScale(0.4f);
+        assertEquals(0.33f, sim.controller.getScale(), 0f);
+    }
+
+    @Test
+    public void staysWithinLimits() {
+        Simulation sim = new Simulation(0);
+        sim.run(60_000, 1_000L);
+        assertEquals(AdaptiveQualityController.MIN_QUALITY, sim.controller.getQuality());
+        assertEquals(0.25f, sim.controller.getScale(), 0f);
+        assertEquals(AdaptiveQualityController.MIN_FPS, sim.controller.getTargetFps());
+    }
+}
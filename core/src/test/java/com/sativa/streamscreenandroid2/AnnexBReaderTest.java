@@ -0,0 +1,45 @@
+package com.sativa.streamscreenandroid2;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AnnexBReaderTest {
+
+    // SPS, PPS and an IDR slice as emitted by a typical MediaCodec encoder
+    private static final byte[] STREAM = {
+            0, 0, 0, 1, 0x67, 0x42, (byte) 0xC0, 0x1F, 0x11,
+            0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80,
+            0, 0, 1, 0x65, (byte) 0x88, (byte) 0x84, 0x00, 0x33,
+    };
+
+    @Test
+    public void split_handlesThreeAndFourByteStartCodes() {
+        List<byte[]> nals = AnnexBReader.split(STREAM, 0, STREAM.length);
+
+        assertEquals(3, nals.size());
+        assertArrayEquals(new byte[]{0x67, 0x42, (byte) 0xC0, 0x1F, 0x11}, nals.get(0));
+        assertArrayEquals(new byte[]{0x68, (byte) 0xCE, 0x3C, (byte) 0x80}, nals.get(1));
+        // A zero byte inside the NAL payload must be preserved
+        assertArrayEquals(new byte[]{0x65, (byte) 0x88, (byte) 0x84, 0x00, 0x33}, nals.get(2));
+    }
+
+    @Test
+    public void nalType_readsLowFiveBits() {
+        List<byte[]> nals = AnnexBReader.split(STREAM, 0, STREAM.length);
+        assertEquals(AnnexBReader.NAL_SPS, AnnexBReader.nalType(nals.get(0)));
+        assertEquals(AnnexBReader.NAL_PPS, AnnexBReader.nalType(nals.get(1)));
+        assertEquals(AnnexBReader.NAL_IDR, AnnexBReader.nalType(nals.get(2)));
+    }
+
+    @Test
+    public void split_respectsOffsetAndLength() {
+        byte[] padded = new byte[STREAM.length + 6];
+        System.arraycopy(STREAM, 0, padded, 3, STREAM.length);
+        List<byte[]> nals = AnnexBReader.split(padded, 3, STREAM.length);
+        assertEquals(3, nals.size());
+        assertEquals(5, nals.get(2).length);
+    }
+}
@@ -0,0 +1,130 @@
+package com.sativa.streamscreenandroid2;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class CaptureRegionTest {
+
+    // RGBA plane whose pixel (x, y) reads as 0xFF000000 | x << 12 | y, plus row padding
+    private static ByteBuffer plane(int width, int height, int rowStride) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(rowStride * (height - 1) + width * 4);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int c = x << 12 | y;
+                int p = y * rowStride + x * 4;
+                buf.put(p, (byte) (c >> 16));
+                buf.put(p + 1, (byte) (c >> 8));
+                buf.put(p + 2, (byte) c);
+                buf.put(p + 3, (byte) 0xFF);
+            }
+        }
+        return buf;
+    }
+
+    @Test
+    public void parseAndClamp() {
+        assertEquals(new CaptureRegion(10, 20, 300, 400), CaptureRegion.parse("10, 20,300,400"));
+        assertEquals("10,20,300,400", CaptureRegion.parse("10,20,300,400").toString());
+        assertNull(CaptureRegion.parse("10,20,300"));
+        assertNull(CaptureRegion.parse("10,20,0,400"));
+        assertNull(CaptureRegion.parse("-1,20,300,400"));
+        assertNull(CaptureRegion.parse("a,b,c,d"));
+        assertNull(CaptureRegion.parse(null));
+
+        CaptureRegion region = new CaptureRegion(100, 200, 1000, 1000);
+        assertEquals(new CaptureRegion(100, 200, 980, 1000), region.clampTo(1080, 2400));
+        assertSame(region, region.clampTo(1100, 1200));
+        assertNull(region.clampTo(100, 2400));
+        assertTrue(new CaptureRegion(0, 0, 1080, 2400).covers(1080, 2400));
+        assertFalse(region.covers(1080, 2400));
+    }
+
+    @Test
+    public void rotationKeepsPanelArea() {
+        // Top-left quarter of a 1080x2400 portrait display
+        CaptureRegion region = new CaptureRegion(0, 0, 540, 1200);
+        // ROTATION_0 -> ROTATION_90: content turns clockwise, so it ends up bottom-left
+        CaptureRegion turned = region.rotate(1, 1080, 2400);
+        assertEquals(new CaptureRegion(0, 540, 1200, 540), turned);
+        // ... and comes back when the display does
+        assertEquals(region, turned.rotate(-1, 2400, 1080));
+        assertEquals(turned.rotate(1, 2400, 1080), region.rotate(2, 1080, 2400));
+        assertEquals(new CaptureRegion(540, 1200, 540, 1200), region.rotate(2, 1080, 2400));
+        assertEquals(region.rotate(3, 1080, 2400), region.rotate(-1, 1080, 2400));
+        assertEquals(region, region.rotate(4, 1080, 2400));
+
+        CaptureRegion odd = new CaptureRegion(7, 11, 100, 50);
+        for (int turns = 1; turns < 4; turns++) {
+            CaptureRegion r = odd.rotate(turns, 640, 480);
+            int w = turns % 2 == 0 ? 640 : 480;
+            int h = turns % 2 == 0 ? 480 : 640;
+            assertNotNull(r.clampTo(w, h));
+            assertEquals(r, r.clampTo(w, h));
+            assertEquals(odd, r.rotate(-turns, w, h));
+        }
+    }
+
+    @Test
+    public void copyRegionReadsOnlyRegionPixels() {
+        int width = 64;
+        int height = 48;
+        int rowStride = width * 4 + 32;
+        ByteBuffer plane = plane(width, height, rowStride);
+        RgbaFrameScaler scaler = new RgbaFrameScaler();
+
+        CaptureRegion[] regions = {
+                new CaptureRegion(5, 7, 20, 30),
+                // Whole rows are copied as one block, padding included
+                new CaptureRegion(0, 10, width, 38),
+                new CaptureRegion(width - 1, height - 1, 1, 1),
+        };
+        for (CaptureRegion region : regions) {
+            PlaneBuffer buffer = new PlaneBuffer(PlaneBuffer.regionCapacity(width, rowStride, 4, region));
+            buffer.copyRegion(plane, width, rowStride, 4, region, 42);
+            assertEquals(region.width, buffer.width);
+            assertEquals(region.height, buffer.height);
+            assertEquals(42, buffer.timestampNanos);
+            assertEquals(buffer.capacity(), buffer.data.remaining());
+
+            scaler.configure(buffer.width, buffer.height, region.width, region.height);
+            int[] pixels = scaler.scale(buffer.data, buffer.rowStride, buffer.pixelStride);
+            for (int y = 0; y < region.height; y++) {
+                for (int x = 0; x < region.width; x++) {
+                    int expected = 0xFF000000 | (region.x + x) << 12 | (region.y + y);
+                    assertEquals(region + " at " + x + "," + y, expected, pixels[y * region.width + x]);
+                }
+            }
+        }
+    }
+
+    /**
+     * The capture stage copies in proportion to the region's area, not the screen's; timing
+     * is in RegionCaptureBenchmark.
+     */
+    @Test
+    public void copiedBytesFollowRegionArea() {
+        int width = 1080;
+        int height = 2400;
+        int rowStride = width * 4 + 64;
+        ByteBuffer plane = ByteBuffer.allocateDirect(rowStride * height);
+        int full = PlaneBuffer.regionCapacity(width, rowStride, 4, new CaptureRegion(0, 0, width, height));
+        assertEquals(plane.capacity() - 64, full);
+
+        CaptureRegion[] regions = {
+                new CaptureRegion(0, 600, width, 1200),
+                new CaptureRegion(270, 600, 540, 1200),
+                new CaptureRegion(100, 100, 200, 50),
+        };
+        for (CaptureRegion region : regions) {
+            PlaneBuffer buffer = new PlaneBuffer(PlaneBuffer.regionCapacity(width, rowStride, 4, region));
+            buffer.copyRegion(plane, width, rowStride, 4, region, 0);
+            double areaShare = (double) region.width * region.height / (width * height);
+            double copiedShare = (double) buffer.data.remaining() / full;
+            // Row padding is copied only along with whole rows
+            assertEquals(region.toString(), areaShare, copiedShare, 64.0 / (width * 4));
+        }
+    }
+}
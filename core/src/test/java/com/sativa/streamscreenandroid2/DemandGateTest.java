@@ -0,0 +1,43 @@
+package com.sativa.streamscreenandroid2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DemandGateTest {
+
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    public void pausesAfterGracePeriodWithoutViewers() {
+        DemandGate gate = new DemandGate(5 * SECOND);
+        assertFalse(gate.isPaused());
+        assertEquals(DemandGate.Action.NONE, gate.update(0, 0));
+        assertEquals(DemandGate.Action.NONE, gate.update(0, 4 * SECOND));
+        assertEquals(DemandGate.Action.PAUSE, gate.update(0, 5 * SECOND));
+        assertTrue(gate.isPaused());
+        assertEquals(DemandGate.Action.NONE, gate.update(0, 60 * SECOND));
+        assertEquals(1, gate.getPauseCount());
+    }
+
+    @Test
+    public void resumesOnFirstViewer() {
+        DemandGate gate = new DemandGate(5 * SECOND);
+        gate.update(0, 0);
+        gate.update(0, 5 * SECOND);
+        assertEquals(DemandGate.Action.RESUME, gate.update(1, 6 * SECOND));
+        assertFalse(gate.isPaused());
+        assertEquals(DemandGate.Action.NONE, gate.update(3, 7 * SECOND));
+    }
+
+    @Test
+    public void viewerDuringGracePeriodRestartsIt() {
+        DemandGate gate = new DemandGate(5 * SECOND);
+        gate.update(0, 0);
+        // A page reload: the viewer is briefly gone, then back
+        assertEquals(DemandGate.Action.NONE, gate.update(1, 4 * SECOND));
+        assertEquals(DemandGate.Action.NONE, gate.update(0, 6 * SECOND));
+        assertEquals(DemandGate.Action.NONE, gate.update(0, 10 * SECOND));
+        assertEquals(DemandGate.Action.PAUSE, gate.update(0, 11 * SECOND));
+    }
+}
@@ -0,0 +1,99 @@
+package com.sativa.streamscreenandroid2;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class Fmp4MuxerTest {
+
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xC0, 0x1F, 0x11};
+    private static final byte[] PPS = {0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    private static final byte[] IDR = {0x65, (byte) 0x88, (byte) 0x84, 0x00, 0x33};
+    private static final byte[] SLICE = {0x41, (byte) 0x9A, 0x02};
+
+    private static List<String> topLevelBoxes(byte[] data) {
+        List<String> types = new ArrayList<>();
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.remaining() >= 8) {
+            int size = buf.getInt(buf.position());
+            assertTrue("box size", size >= 8 && size <= buf.remaining());
+            types.add(new String(data, buf.position() + 4, 4, StandardCharsets.US_ASCII));
+            buf.position(buf.position() + size);
+        }
+        assertEquals("trailing bytes", 0, buf.remaining());
+        return types;
+    }
+
+    private static int indexOf(byte[] data, String fourcc) {
+        byte[] needle = fourcc.getBytes(StandardCharsets.US_ASCII);
+        outer:
+        for (int i = 0; i + needle.length <= data.length; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (data[i + j] != needle[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    @Test
+    public void codecString_comesFromSps() {
+        Fmp4Muxer muxer = new Fmp4Muxer(640, 360, SPS, PPS);
+        assertEquals("avc1.42c01f", muxer.getCodecString());
+    }
+
+    @Test
+    public void initSegment_containsFtypMoovAndAvcC() {
+        byte[] init = new Fmp4Muxer(640, 360, SPS, PPS).createInitSegment();
+
+        assertEquals(Arrays.asList("ftyp", "moov"), topLevelBoxes(init));
+        int avcC = indexOf(init, "avcC");
+        assertTrue(avcC > 0);
+        // configurationVersion, profile, compat, level, then the SPS length and bytes
+        assertEquals(1, init[avcC + 4]);
+        assertEquals(0x42, init[avcC + 5]);
+        assertEquals(SPS.length, ByteBuffer.wrap(init, avcC + 10, 2).getShort());
+        assertArrayEquals(SPS, Arrays.copyOfRange(init, avcC + 12, avcC + 12 + SPS.length));
+        assertTrue(indexOf(init, "trex") > 0);
+    }
+
+    @Test
+    public void fragment_dataOffsetPointsAtLengthPrefixedSamples() {
+        Fmp4Muxer muxer = new Fmp4Muxer(640, 360, SPS, PPS);
+        // Parameter sets repeated in-band must not end up in the sample
+        byte[] frag = muxer.createFragment(Arrays.asList(SPS, PPS, IDR), 1_000_000, true);
+
+        assertEquals(Arrays.asList("moof", "mdat"), topLevelBoxes(frag));
+        int trun = indexOf(frag, "trun");
+        ByteBuffer buf = ByteBuffer.wrap(frag);
+        int dataOffset = buf.getInt(trun + 12);
+        int sampleSize = buf.getInt(trun + 20);
+        int sampleFlags = buf.getInt(trun + 24);
+
+        assertEquals(4 + IDR.length, sampleSize);
+        assertEquals(IDR.length, buf.getInt(dataOffset));
+        assertArrayEquals(IDR, Arrays.copyOfRange(frag, dataOffset + 4, dataOffset + 4 + IDR.length));
+        assertEquals(0x02000000, sampleFlags);
+    }
+
+    @Test
+    public void fragments_haveIncreasingSequenceAndDecodeTime() {
+        Fmp4Muxer muxer = new Fmp4Muxer(640, 360, SPS, PPS);
+        byte[] first = muxer.createFragment(Arrays.asList(IDR), 5_000_000, true);
+        byte[] second = muxer.createFragment(Arrays.asList(SLICE), 5_040_000, false);
+
+        ByteBuffer a = ByteBuffer.wrap(first);
+        ByteBuffer b = ByteBuffer.wrap(second);
+        assertEquals(1, a.getInt(indexOf(first, "mfhd") + 8));
+        assertEquals(2, b.getInt(indexOf(second, "mfhd") + 8));
+        assertEquals(0L, a.getLong(indexOf(first, "tfdt") + 8));
+        assertEquals(40_000L * Fmp4Muxer.TIMESCALE / 1_000_000L, b.getLong(indexOf(second, "tfdt") + 8));
+        assertEquals(0x01010000, b.getInt(indexOf(second, "trun") + 24));
+    }
+}
@@ -0,0 +1,187 @@
+package com.sativa.streamscreenandroid2;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameArchiveTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final long T0 = 1_700_000_000_000_000L;
+
+    private static Frame frame(long sequence, int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (sequence * 31 + i);
+        }
+        return new Frame(data, sequence, 0, 640, 480);
+    }
+
+    @Test
+    public void appendSeekAndRead() throws IOException {
+        FrameArchive archive = new FrameArchive(folder.getRoot());
+        // 100 ms apart, a new segment every second
+        archive.setSegmentLimits(0, 1000);
+        for (int i = 1; i <= 25; i++) {
+            archive.append(frame(i, 1000 + i), T0 + i * 100_000L);
+        }
+
+        List<FrameArchive.Segment> segments = archive.getSegments();
+        assertEquals(3, segments.size());
+        assertEquals(10, segments.get(0).getFrameCount());
+        assertEquals(T0 + 100_000L, segments.get(0).startMicros);
+
+        // The active segment's index is readable before it is closed
+        FrameArchive.Segment last = segments.get(2);
+        long offset = archive.seek(last, T0 + 2_250_000L);
+        FrameArchive.Record record = archive.read(last, offset);
+        assertNotNull(record);
+        assertEquals(23, record.sequence);
+        assertEquals(T0 + 2_300_000L, record.timeMicros);
+        assertEquals(640, record.width);
+        assertArrayEquals(frame(23, 1023).toByteArray(), record.data);
+        // Records follow each other up to the end of the segment
+        record = archive.read(last, record.nextOffset);
+        assertEquals(24, record.sequence);
+        assertNull(archive.read(last, archive.read(last, record.nextOffset).nextOffset));
+        assertEquals(-1, archive.seek(last, T0 + 3_000_000L));
+        assertEquals(0, archive.seek(last, 0));
+
+        // A clock set back does not break the ordering
+        archive.append(frame(26, 10), T0);
+        assertEquals(T0 + 2_500_000L, archive.getSegments().get(2).getEndMicros());
+        archive.close();
+
+        FrameArchive reopened = new FrameArchive(folder.getRoot());
+        assertEquals(3, reopened.getSegments().size());
+        assertEquals(6, reopened.getSegments().get(2).getFrameCount());
+        assertEquals(0, reopened.getRecoveredBytes());
+    }
+
+    @Test
+    public void recoversPartiallyWrittenSegment() throws IOException {
+        FrameArchive archive = new FrameArchive(folder.getRoot());
+        for (int i = 1; i <= 300; i++) {
+            archive.append(frame(i, 500), T0 + i * 1000L);
+        }
+        // Crash: the last index batch never reached the disk, the last record is torn
+        FrameArchive.Segment segment = archive.getSegments().get(0);
+        File data = segment.dataFile;
+        long intact = data.length();
+        try (RandomAccessFile file = new RandomAccessFile(data, "rw")) {
+            file.seek(intact);
+            file.writeInt(FrameArchive.MAGIC);
+            file.writeInt(500);
+            file.write(new byte[100]);
+        }
+        assertEquals(256 * FrameArchive.INDEX_ENTRY_BYTES, segment.indexFile.length());
+
+        FrameArchive recovered = new FrameArchive(folder.getRoot());
+        FrameArchive.Segment fixed = recovered.getSegments().get(0);
+        assertEquals(300, fixed.getFrameCount());
+        assertEquals(intact, data.length());
+        assertEquals(108, recovered.getRecoveredBytes());
+        assertEquals(300 * FrameArchive.INDEX_ENTRY_BYTES, fixed.indexFile.length());
+        FrameArchive.Record record = recovered.read(fixed, recovered.seek(fixed, T0 + 300_000L));
+        assertNotNull(record);
+        assertEquals(300, record.sequence);
+
+        // Recording continues in a new segment
+        recovered.append(frame(301, 500), T0 + 301_000L);
+        recovered.close();
+        assertEquals(2, recovered.getSegments().size());
+    }
+
+    @Test
+    public void damagedPayloadIsCutOff() throws IOException {
+        FrameArchive archive = new FrameArchive(folder.getRoot());
+        for (int i = 1; i <= 5; i++) {
+            archive.append(frame(i, 200), T0 + i);
+        }
+        archive.close();
+        File data = archive.getSegments().get(0).dataFile;
+        long third = 2L * (FrameArchive.HEADER_BYTES + 200);
+        try (RandomAccessFile file = new RandomAccessFile(data, "rw")) {
+            file.seek(third + FrameArchive.HEADER_BYTES + 50);
+            file.write(0x5A);
+        }
+        // An index that matches the end of the file is trusted; a rescan drops everything
+        // from the damaged record on
+        assertEquals(5, new FrameArchive(folder.getRoot()).getSegments().get(0).getFrameCount());
+        assertTrue(archive.getSegments().get(0).indexFile.delete());
+        FrameArchive recovered = new FrameArchive(folder.getRoot());
+        assertEquals(2, recovered.getSegments().get(0).getFrameCount());
+        assertEquals(third, data.length());
+
+        // Nothing readable at all: the segment is removed
+        try (RandomAccessFile file = new RandomAccessFile(data, "rw")) {
+            file.setLength(10);
+        }
+        assertTrue(new FrameArchive(folder.getRoot()).getSegments().isEmpty());
+        assertFalse(data.exists());
+    }
+
+    @Test
+    public void retentionBySizeAndAge() throws IOException {
+        FrameArchive archive = new FrameArchive(folder.getRoot());
+        int record = FrameArchive.HEADER_BYTES + 1000 + FrameArchive.INDEX_ENTRY_BYTES;
+        // Ten frames per segment, at most 35 frames kept
+        archive.setSegmentLimits(10L * (FrameArchive.HEADER_BYTES + 1000), 0);
+        archive.setRetention(35L * record, 0);
+        for (int i = 1; i <= 100; i++) {
+            archive.append(frame(i, 1000), T0 + i * 1000L);
+        }
+        List<FrameArchive.Segment> segments = archive.getSegments();
+        assertEquals(3, segments.size());
+        assertEquals(71, archive.read(segments.get(0), 0).sequence);
+        assertEquals(7, archive.getSegmentsDeleted());
+        assertEquals(30L * record, archive.getTotalBytes());
+        assertEquals(6, folder.getRoot().list().length);
+
+        // Age: segments ending more than 15 ms before the newest frame go
+        archive.setRetention(0, 15);
+        archive.append(frame(101, 1000), T0 + 101_000L);
+        segments = archive.getSegments();
+        assertEquals(81, archive.read(segments.get(0), 0).sequence);
+        archive.close();
+    }
+
+    @Test
+    public void recorderWritesPublishedFrames() throws Exception {
+        FrameBroadcaster broadcaster = new FrameBroadcaster();
+        FrameArchive archive = new FrameArchive(folder.getRoot());
+        FrameRecorder recorder = new FrameRecorder(broadcaster, archive);
+        recorder.start();
+        for (int i = 1; i <= 20; i++) {
+            broadcaster.publish(frame(i, 2000).toByteArray(), System.nanoTime(), 640, 480);
+            Thread.sleep(5);
+        }
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (recorder.getRecordedCount() + recorder.getSkippedCount() < 20 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        recorder.stop();
+
+        assertEquals(20, recorder.getRecordedCount() + recorder.getSkippedCount());
+        assertEquals(0, recorder.getErrorCount());
+        FrameArchive.Segment segment = archive.getSegments().get(0);
+        FrameArchive.Record first = archive.read(segment, 0);
+        assertNotNull(first);
+        assertEquals(2000, first.data.length);
+        // Wall-clock capture time
+        assertTrue(Math.abs(first.timeMicros - System.currentTimeMillis() * 1000) < 10_000_000L);
+        assertEquals(recorder.getRecordedCount(), new FrameArchive(folder.getRoot()).getSegments().get(0).getFrameCount());
+
+        Frame captured = new Frame(new byte[1], 1, 5_000_000_000L, 1, 1);
+        assertEquals(1_000_000_000L - 2_000_000L, FrameRecorder.wallClockMicros(captured, 1_000_000L, 7_000_000_000L));
+    }
+}
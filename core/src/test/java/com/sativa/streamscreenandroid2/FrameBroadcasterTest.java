@@ -0,0 +1,185 @@
+package com.sativa.streamscreenandroid2;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class FrameBroadcasterTest {
+
+    private static byte[] payload(long value) {
+        return ByteBuffer.allocate(8).putLong(value).array();
+    }
+
+    @Test
+    public void publish_assignsIncreasingSequenceNumbers() {
+        FrameBroadcaster broadcaster = new FrameBroadcaster();
+        assertNull(broadcaster.getLatest());
+
+        Frame first = broadcaster.publish(new byte[]{1}, 100L, 640, 360);
+        Frame second = broadcaster.publish(new byte[]{2}, 200L, 640, 360);
+
+        assertEquals(1, first.sequence);
+        assertEquals(2, second.sequence);
+        assertSame(second, broadcaster.getLatest());
+        assertEquals(200L, broadcaster.getLatest().captureTimestampNanos);
+        assertEquals(640, broadcaster.getLatest().width);
+    }
+
+    @Test
+    public void waitForNextFrame_returnsImmediatelyWhenNewerExists() throws Exception {
+        FrameBroadcaster broadcaster = new FrameBroadcaster();
+        broadcaster.publish(new byte[]{1}, 0, 1, 1);
+
+        long start = System.nanoTime();
+        Frame frame = broadcaster.waitForNextFrame(0, 5000);
+        assertEquals(1, frame.sequence);
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test
+    public void waitForNextFrame_timesOutWithLatestFrame() throws Exception {
+        FrameBroadcaster broadcaster = new FrameBroadcaster();
+        assertNull(broadcaster.waitForNextFrame(0, 20));
+
+        broadcaster.publish(new byte[]{1}, 0, 1, 1);
+        Frame frame = broadcaster.waitForNextFrame(1, 20);
+        assertEquals(1, frame.sequence);
+    }
+
+    @Test
+    public void waitForNextFrame_isWokenByPublish() throws Exception {
+        FrameBroadcaster broadcaster = new FrameBroadcaster();
+        AtomicReference<Frame> result = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(1);
+
+        Thread reader = new Thread(() -> {
+            try {
+                result.set(broadcaster.waitForNextFrame(0, 10_000));
+            } catch (InterruptedException ignore) {
+            }
+            done.countDown();
+        });
+        reader.start();
+        Thread.sleep(50);
+        broadcaster.publish(new byte[]{7}, 0, 1, 1);
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(1, result.get().sequence);
+    }
+
+    @Test(expected = InterruptedException.class)
+    public void waitForNextFrame_honoursInterrupt() throws Exception {
+        FrameBroadcaster broadcaster = new FrameBroadcaster();
+        Thread.currentThread().interrupt();
+        broadcaster.waitForNextFrame(0, 10_000);
+    }
+
+    @Test
+    public void stress_oneWriterManyReaders_seeMonotonicConsistentFrames() throws Exception {
+        final int readers = 8;
+        final long frames = 20_000;
+        FrameBroadcaster broadcaster = new FrameBroadcaster();
+        List<Throwable> failures = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(readers);
+
+        for (int r = 0; r < readers; r++) {
+            new Thread(() -> {
+                try {
+                    long last = 0;
+                    while (last < frames) {
+                        // Generous timeout: a lost wakeup shows up as the latch timing out
+                        Frame frame = broadcaster.waitForNextFrame(last, 10_000);
+                        assertNotNull(frame);
+                        assertTrue("sequence went backwards", frame.sequence > last);
+                        // Payload and metadata must belong to the same publish
+                        assertEquals(frame.sequence, frame.payload().getLong());
+                        assertEquals(frame.sequence, frame.captureTimestampNanos);
+                        last = frame.sequence;
+                    }
+                } catch (Throwable t) {
+                    synchronized (failures) {
+                        failures.add(t);
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        for (long i = 1; i <= frames; i++) {
+            broadcaster.publish(payload(i), i, 1, 1);
+            if (i % 1000 == 0) {
+                Thread.yield();
+            }
+        }
+
+        assertTrue("readers did not observe the final frame", done.await(30, TimeUnit.SECONDS));
+        if (!failures.isEmpty()) {
+            throw new AssertionError(failures.get(0));
+        }
+        assertEquals(frames, broadcaster.getLatest().sequence);
+    }
+
+    @Test
+    public void renditionsHaveIndependentSequencesAndETags() {
+        FrameBroadcaster broadcaster = new FrameBroadcaster();
+        broadcaster.publish(new byte[]{1}, 0, 4, 4);
+        broadcaster.publish(new byte[]{2}, 0, 4, 4);
+        Frame full = broadcaster.publish(Rendition.FULL, new byte[]{3}, 0, 8, 8);
+
+        assertEquals(1, full.sequence);
+        assertEquals(2, broadcaster.getLatest().sequence);
+        assertNull(broadcaster.getLatest(Rendition.QUARTER));
+        assertNotEquals(broadcaster.getETag(Rendition.ADAPTIVE, 1), broadcaster.getETag(Rendition.FULL, 1));
+        assertEquals(broadcaster.getETag(1), broadcaster.getETag(Rendition.ADAPTIVE, 1));
+    }
+
+    @Test
+    public void invalidateKeepsSequenceMonotonic() {
+        FrameBroadcaster broadcaster = new FrameBroadcaster();
+        broadcaster.publish(Rendition.HALF, new byte[]{1}, 0, 4, 4);
+        broadcaster.invalidate(Rendition.HALF);
+        broadcaster.invalidate(Rendition.HALF);
+
+        Frame stale = broadcaster.getLatest(Rendition.HALF);
+        assertEquals(2, stale.sequence);
+        assertTrue(stale.isEmpty());
+        assertEquals(3, broadcaster.publish(Rendition.HALF, new byte[]{2}, 0, 4, 4).sequence);
+    }
+
+    @Test
+    public void renditionWantedOnlyWhileWatched() {
+        FrameBroadcaster broadcaster = new FrameBroadcaster();
+        assertFalse(broadcaster.isWanted(Rendition.FULL));
+
+        MjpegInputStream stream = new MjpegInputStream(broadcaster, Rendition.FULL, null);
+        assertTrue(broadcaster.isWanted(Rendition.FULL));
+        assertFalse(broadcaster.isWanted(Rendition.QUARTER));
+        stream.close();
+        stream.close();
+        assertEquals(0, broadcaster.getViewerCount(Rendition.FULL));
+        assertFalse(broadcaster.isWanted(Rendition.FULL));
+
+        broadcaster.markRequested(Rendition.QUARTER);
+        assertTrue(broadcaster.isWanted(Rendition.QUARTER));
+    }
+
+    @Test
+    public void unencodedRenditionStreamFallsBackToAdaptive() throws Exception {
+        FrameBroadcaster broadcaster = new FrameBroadcaster();
+        broadcaster.publish(new byte[]{(byte) 0xFF, (byte) 0xD8}, 0, 4, 4);
+        MjpegInputStream stream = new MjpegInputStream(broadcaster, Rendition.HALF, null);
+
+        byte[] buf = new byte[256];
+        int n = stream.read(buf, 0, buf.length);
+        assertTrue(new String(buf, 0, n, "US-ASCII").contains("Content-Length: 2"));
+        stream.close();
+    }
+}
@@ -0,0 +1,259 @@
+package com.sativa.streamscreenandroid2;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class FrameBufferPoolTest {
+
+    private static FrameBufferPool.Buffer write(FrameBufferPool pool, byte[] data) throws IOException {
+        FrameBufferPool.Buffer buffer = pool.acquire();
+        assertNotNull(buffer);
+        OutputStream out = buffer.outputStream();
+        out.write(data);
+        buffer.seal();
+        return buffer;
+    }
+
+    private static byte[] payload(long seq, int size) {
+        ByteBuffer b = ByteBuffer.allocate(size);
+        b.putLong(seq);
+        return b.array();
+    }
+
+    @Test
+    public void bufferReturnsToPoolAfterLastRelease() throws IOException {
+        FrameBufferPool pool = new FrameBufferPool(2, 16);
+        FrameBufferPool.Buffer buffer = write(pool, new byte[]{1, 2, 3});
+        assertEquals(1, pool.getFreeCount());
+        assertEquals(3, buffer.length());
+
+        int generation = buffer.getGeneration();
+        assertTrue(buffer.retain(generation));
+        buffer.release();
+        assertEquals(1, pool.getFreeCount());
+        buffer.release();
+        assertEquals(2, pool.getFreeCount());
+
+        // Released buffers cannot be revived by a late reader
+        assertFalse(buffer.retain(generation));
+        try {
+            buffer.release();
+            fail("over-release must be detected");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void exhaustedPoolReturnsNull() throws IOException {
+        FrameBufferPool pool = new FrameBufferPool(2, 16);
+        write(pool, new byte[]{1});
+        FrameBufferPool.Buffer second = write(pool, new byte[]{2});
+        assertNull(pool.acquire());
+        assertEquals(1, pool.getExhaustedCount());
+        second.release();
+        assertNotNull(pool.acquire());
+    }
+
+    @Test
+    public void staleFrameCannotRetainRecycledBuffer() throws IOException {
+        FrameBufferPool pool = new FrameBufferPool(1, 16);
+        FrameBufferPool.Buffer buffer = write(pool, new byte[]{1});
+        Frame old = new Frame(buffer, 1, 0, 1, 1);
+        old.release();
+
+        // Same slot, new contents: a reader still holding the old Frame must not see them
+        FrameBufferPool.Buffer reused = write(pool, new byte[]{2});
+        assertSame(buffer, reused);
+        assertFalse(old.retain());
+        assertNull(old.toHeapFrame());
+        Frame current = new Frame(reused, 2, 0, 1, 1);
+        assertTrue(current.retain());
+        assertEquals(2, current.payload().get());
+        current.release();
+    }
+
+    /**
+     * Readers keep retaining frames whose slot is being recycled: a retain that succeeds
+     * must always see that frame's own contents, never the next frame's or a half-reset slot.
+     */
+    @Test
+    public void staleRetainRacesRecycling() throws Exception {
+        FrameBufferPool pool = new FrameBufferPool(1, 64);
+        AtomicReference<Frame> published = new AtomicReference<>();
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong retained = new AtomicLong();
+        List<Throwable> failures = new ArrayList<>();
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < 4; r++) {
+            Thread reader = new Thread(() -> {
+                try {
+                    while (running.get()) {
+                        Frame frame = published.get();
+                        if (frame == null || !frame.retain()) {
+                            continue;
+                        }
+                        try {
+                            assertEquals(frame.sequence, frame.payload().getLong());
+                            // Held: the contents must stay put while the writer cycles
+                            for (int spin = 0; spin < 200; spin++) {
+                                Thread.onSpinWait();
+                            }
+                            assertEquals(frame.sequence, frame.payload().getLong());
+                            retained.incrementAndGet();
+                        } finally {
+                            frame.release();
+                        }
+                    }
+                } catch (Throwable t) {
+                    synchronized (failures) {
+                        failures.add(t);
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        for (long seq = 1; System.nanoTime() < deadline && failures.isEmpty(); seq++) {
+            FrameBufferPool.Buffer buffer = pool.acquire();
+            if (buffer == null) {
+                // A reader still holds the slot
+                continue;
+            }
+            buffer.outputStream().write(payload(seq, 64));
+            buffer.seal();
+            Frame frame = new Frame(buffer, seq, 0, 1, 1);
+            published.set(frame);
+            // Back to the ring right away, while readers may still try the stale Frame
+            frame.release();
+        }
+        running.set(false);
+        for (Thread reader : readers) {
+            reader.join(5000);
+        }
+        if (!failures.isEmpty()) {
+            throw new AssertionError(failures.get(0));
+        }
+        assertTrue(retained.get() > 0);
+        assertEquals(1, pool.getFreeCount());
+    }
+
+    @Test
+    public void bufferGrowsAndSlicesAreReadOnly() throws IOException {
+        FrameBufferPool pool = new FrameBufferPool(1, 4);
+        byte[] data = payload(42, 1000);
+        FrameBufferPool.Buffer buffer = write(pool, data);
+        assertEquals(1000, buffer.length());
+        assertTrue(pool.getAllocatedBytes() >= 1000);
+
+        Frame frame = new Frame(buffer, 1, 0, 1, 1);
+        ByteBuffer a = frame.payload();
+        ByteBuffer b = frame.payload();
+        assertTrue(a.isReadOnly());
+        a.getLong();
+        // Every slice has its own position
+        assertEquals(1000, b.remaining());
+        assertArrayEquals(data, frame.toByteArray());
+    }
+
+    @Test
+    public void frameInputStreamReleasesOnClose() throws IOException {
+        FrameBufferPool pool = new FrameBufferPool(1, 16);
+        FrameBroadcaster broadcaster = new FrameBroadcaster();
+        broadcaster.publish(Rendition.ADAPTIVE, write(pool, new byte[]{7, 8}), 0, 1, 1);
+
+        Frame frame = broadcaster.acquireLatest(Rendition.ADAPTIVE);
+        assertNotNull(frame);
+        InputStream in = new FrameInputStream(frame);
+        // A newer frame drops the broadcaster's reference, but the reader still holds one
+        broadcaster.publish(new byte[]{9}, 0, 1, 1);
+        assertEquals(0, pool.getFreeCount());
+        assertEquals(7, in.read());
+        assertEquals(8, in.read());
+        assertEquals(-1, in.read());
+        in.close();
+        in.close();
+        assertEquals(1, pool.getFreeCount());
+    }
+
+    /**
+     * Memory does not grow with the number of readers: they all share the pooled buffers,
+     * and every buffer is back in the ring once they are done.
+     */
+    @Test
+    public void readersSharePooledFrames() throws Exception {
+        final int slots = 8;
+        final int readers = 50;
+        final int frames = 2000;
+        FrameBufferPool pool = new FrameBufferPool(slots, 4096);
+        long allocated = pool.getAllocatedBytes();
+        FrameBroadcaster broadcaster = new FrameBroadcaster();
+        List<Throwable> failures = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(readers);
+
+        for (int r = 0; r < readers; r++) {
+            new Thread(() -> {
+                try {
+                    long last = 0;
+                    while (last < frames) {
+                        Frame frame = broadcaster.waitForNextFrame(last, 10_000);
+                        assertNotNull(frame);
+                        if (!frame.retain()) {
+                            // Recycled before we got to it; a newer frame is already there
+                            continue;
+                        }
+                        try {
+                            assertEquals(frame.sequence, frame.payload().getLong());
+                        } finally {
+                            frame.release();
+                        }
+                        last = frame.sequence;
+                    }
+                } catch (Throwable t) {
+                    synchronized (failures) {
+                        failures.add(t);
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        long fallbacks = 0;
+        for (long i = 1; i <= frames; i++) {
+            FrameBufferPool.Buffer buffer = pool.acquire();
+            if (buffer == null) {
+                fallbacks++;
+                broadcaster.publish(payload(i, 4096), i, 1, 1);
+                continue;
+            }
+            buffer.outputStream().write(payload(i, 4096));
+            buffer.seal();
+            broadcaster.publish(Rendition.ADAPTIVE, buffer, i, 1, 1);
+        }
+
+        assertTrue("readers did not observe the final frame", done.await(30, TimeUnit.SECONDS));
+        if (!failures.isEmpty()) {
+            throw new AssertionError(failures.get(0));
+        }
+        assertEquals(allocated, pool.getAllocatedBytes());
+        assertEquals(fallbacks, pool.getExhaustedCount());
+        // Only the broadcaster's current frame is still referenced
+        int current = broadcaster.getLatest().isPooled() ? 1 : 0;
+        assertEquals(slots - current, pool.getFreeCount());
+    }
+}
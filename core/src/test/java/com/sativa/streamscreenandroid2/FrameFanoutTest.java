@@ -0,0 +1,208 @@
+package com.sativa.streamscreenandroid2;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class FrameFanoutTest {
+
+    private static class RecordingClient implements FrameFanout.Client {
+        final List<Long> received = Collections.synchronizedList(new ArrayList<>());
+        final AtomicReference<String> evictedFor = new AtomicReference<>();
+        final CountDownLatch evicted = new CountDownLatch(1);
+
+        @Override
+        public void sendFrame(Frame frame) throws IOException {
+            received.add(frame.sequence);
+        }
+
+        @Override
+        public void evict(String reason) {
+            evictedFor.set(reason);
+            evicted.countDown();
+        }
+    }
+
+    /** Blocks every send until released, like a viewer whose socket buffer is full. */
+    private static class BlockedClient extends RecordingClient {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch sending = new CountDownLatch(1);
+
+        @Override
+        public void sendFrame(Frame frame) throws IOException {
+            sending.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            super.sendFrame(frame);
+        }
+    }
+
+    private static Frame publish(FrameBroadcaster broadcaster) {
+        return broadcaster.publish(new byte[]{1, 2, 3}, 0, 1, 1);
+    }
+
+    @Test
+    public void newClientGetsCurrentFrame() {
+        FrameBroadcaster broadcaster = new FrameBroadcaster();
+        publish(broadcaster);
+        FrameFanout fanout = new FrameFanout(broadcaster, Rendition.ADAPTIVE, Runnable::run);
+        RecordingClient client = new RecordingClient();
+        fanout.add(client);
+        assertEquals(Collections.singletonList(1L), client.received);
+        assertEquals(1, broadcaster.getViewerCount(Rendition.ADAPTIVE));
+
+        fanout.remove(client);
+        assertEquals(0, broadcaster.getViewerCount(Rendition.ADAPTIVE));
+        assertEquals(0, fanout.getClientCount());
+    }
+
+    @Test
+    public void slowClientOnlyKeepsNewestFrame() throws Exception {
+        FrameBroadcaster broadcaster = new FrameBroadcaster();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            FrameFanout fanout = new FrameFanout(broadcaster, Rendition.ADAPTIVE, executor);
+            RecordingClient fast = new RecordingClient();
+            BlockedClient slow = new BlockedClient();
+            fanout.add(fast);
+            FrameFanout.ClientQueue slowQueue = fanout.add(slow);
+
+            fanout.publish(publish(broadcaster));
+            assertTrue(slow.sending.await(1, TimeUnit.SECONDS));
+            waitUntil(() -> fast.received.size() == 1);
+            for (int i = 2; i <= 10; i++) {
+                fanout.publish(publish(broadcaster));
+                int expected = i;
+                waitUntil(() -> fast.received.size() == expected);
+            }
+
+            // One frame in flight, one waiting; the other eight were replaced
+            assertEquals(2, slowQueue.getQueueDepth());
+            assertEquals(8, slowQueue.getDroppedCount());
+
+            slow.release.countDown();
+            waitUntil(() -> slow.received.size() == 2);
+            assertEquals(Long.valueOf(10), slow.received.get(1));
+            waitUntil(() -> slowQueue.getQueueDepth() == 0);
+            assertEquals(2, slowQueue.getSentCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void clientDroppingTooManyInARowIsEvicted() throws Exception {
+        FrameBroadcaster broadcaster = new FrameBroadcaster();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            FrameFanout fanout = new FrameFanout(broadcaster, Rendition.ADAPTIVE, executor, Long.MAX_VALUE, 5);
+            RecordingClient fast = new RecordingClient();
+            BlockedClient slow = new BlockedClient();
+            fanout.add(fast);
+            fanout.add(slow);
+
+            fanout.publish(publish(broadcaster));
+            assertTrue(slow.sending.await(1, TimeUnit.SECONDS));
+            waitUntil(() -> fast.received.size() == 1);
+            for (int i = 2; i <= 8; i++) {
+                fanout.publish(publish(broadcaster));
+                int expected = i;
+                waitUntil(() -> fast.received.size() == expected);
+            }
+            assertTrue(slow.evicted.await(1, TimeUnit.SECONDS));
+            assertTrue(slow.evictedFor.get().startsWith("too slow"));
+            assertEquals(1, fanout.getClientCount());
+            assertEquals(1, fanout.getEvictedCount());
+            assertEquals(1, broadcaster.getViewerCount(Rendition.ADAPTIVE));
+
+            assertNull(fast.evictedFor.get());
+            slow.release.countDown();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void stalledSendIsEvicted() throws Exception {
+        FrameBroadcaster broadcaster = new FrameBroadcaster();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            FrameFanout fanout = new FrameFanout(broadcaster, Rendition.ADAPTIVE, executor,
+                    TimeUnit.MILLISECONDS.toNanos(100), 1000);
+            BlockedClient slow = new BlockedClient();
+            fanout.add(slow);
+            fanout.publish(publish(broadcaster));
+            assertTrue(slow.sending.await(1, TimeUnit.SECONDS));
+
+            fanout.evictStalled(System.nanoTime());
+            assertEquals(1, fanout.getClientCount());
+            fanout.evictStalled(System.nanoTime() + TimeUnit.SECONDS.toNanos(1));
+            assertTrue(slow.evicted.await(1, TimeUnit.SECONDS));
+            assertTrue(slow.evictedFor.get().startsWith("send stalled"));
+            assertEquals(0, fanout.getClientCount());
+            slow.release.countDown();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failedSendEvicts() {
+        FrameBroadcaster broadcaster = new FrameBroadcaster();
+        publish(broadcaster);
+        FrameFanout fanout = new FrameFanout(broadcaster, Rendition.ADAPTIVE, Runnable::run);
+        RecordingClient broken = new RecordingClient() {
+            @Override
+            public void sendFrame(Frame frame) throws IOException {
+                throw new IOException("Broken pipe");
+            }
+        };
+        fanout.add(broken);
+        assertEquals("send failed: Broken pipe", broken.evictedFor.get());
+        assertEquals(0, fanout.getClientCount());
+    }
+
+    @Test
+    public void fanoutThreadPushesPublishedFrames() throws Exception {
+        FrameBroadcaster broadcaster = new FrameBroadcaster();
+        FrameFanout fanout = new FrameFanout(broadcaster, Rendition.ADAPTIVE, Runnable::run);
+        RecordingClient client = new RecordingClient();
+        fanout.add(client);
+        fanout.start();
+        try {
+            for (int i = 0; i < 3; i++) {
+                publish(broadcaster);
+                int expected = i + 1;
+                waitUntil(() -> client.received.size() >= expected);
+            }
+        } finally {
+            fanout.stop();
+        }
+        assertEquals(3L, (long) client.received.get(client.received.size() - 1));
+    }
+
+    private interface Condition {
+        boolean met();
+    }
+
+    private static void waitUntil(Condition condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (!condition.met()) {
+            assertTrue("Timed out", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.sativa.streamscreenandroid2;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class FrameFingerprintTest {
+
+    private static final int W = 13;
+    private static final int H = 7;
+
+    private static ByteBuffer plane(int rowStride, byte padding) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(rowStride * H);
+        for (int y = 0; y < H; y++) {
+            for (int i = 0; i < rowStride; i++) {
+                buf.put(y * rowStride + i, i < W * 4 ? (byte) (y * 31 + i) : padding);
+            }
+        }
+        return buf;
+    }
+
+    @Test
+    public void identicalPixels_sameFingerprint_evenWithDifferentPadding() {
+        long a = FrameFingerprint.compute(plane(W * 4 + 12, (byte) 0), W, H, W * 4 + 12, 4, 1);
+        long b = FrameFingerprint.compute(plane(W * 4 + 12, (byte) 0x55), W, H, W * 4 + 12, 4, 1);
+        assertEquals(a, b);
+    }
+
+    @Test
+    public void singleByteChange_changesFingerprint() {
+        ByteBuffer buf = plane(W * 4, (byte) 0);
+        long before = FrameFingerprint.compute(buf, W, H, W * 4, 4, 1);
+
+        // Last byte of the last pixel, outside the 8-byte aligned part of the row
+        int p = (H - 1) * W * 4 + W * 4 - 2;
+        buf.put(p, (byte) (buf.get(p) + 1));
+        assertNotEquals(before, FrameFingerprint.compute(buf, W, H, W * 4, 4, 1));
+    }
+
+    @Test
+    public void sizeIsPartOfTheFingerprint() {
+        ByteBuffer buf = ByteBuffer.allocateDirect(64);
+        assertNotEquals(FrameFingerprint.compute(buf, 4, 4, 16, 4, 1),
+                FrameFingerprint.compute(buf, 2, 8, 8, 4, 1));
+    }
+
+    @Test
+    public void sampling_skipsRows() {
+        ByteBuffer buf = plane(W * 4, (byte) 0);
+        long before = FrameFingerprint.compute(buf, W, H, W * 4, 4, 2);
+
+        buf.put(W * 4 + 3, (byte) 0x7F); // row 1 is not sampled with rowStep 2
+        assertEquals(before, FrameFingerprint.compute(buf, W, H, W * 4, 4, 2));
+        assertNotEquals(before, FrameFingerprint.compute(buf, W, H, W * 4, 4, 1));
+    }
+}
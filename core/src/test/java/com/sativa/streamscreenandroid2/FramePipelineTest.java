@@ -0,0 +1,105 @@
+package com.sativa.streamscreenandroid2;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FramePipelineTest {
+
+    @Test
+    public void dropOldestQueue_evictsOldestWhenFull() throws Exception {
+        DropOldestQueue<Integer> queue = new DropOldestQueue<>(2);
+        assertNull(queue.offer(1));
+        assertNull(queue.offer(2));
+        assertEquals(Integer.valueOf(1), queue.offer(3));
+        assertEquals(1, queue.getDroppedCount());
+
+        assertEquals(Integer.valueOf(2), queue.poll(0));
+        assertEquals(Integer.valueOf(3), queue.poll(0));
+        assertNull(queue.poll(10));
+    }
+
+    @Test
+    public void acquire_reusesRecycledBuffersAndBoundsThePool() {
+        FramePipeline pipeline = new FramePipeline(1, frame -> { }, e -> { });
+        List<PlaneBuffer> taken = new ArrayList<>();
+        PlaneBuffer b;
+        while ((b = pipeline.acquire(1024)) != null) {
+            taken.add(b);
+        }
+        // queue capacity + one being filled + one being encoded
+        assertEquals(3, taken.size());
+
+        pipeline.recycle(taken.get(0));
+        assertSame(taken.get(0), pipeline.acquire(1024));
+    }
+
+    @Test
+    public void acquire_reallocatesWhenSizeChanges() {
+        FramePipeline pipeline = new FramePipeline(1, frame -> { }, e -> { });
+        PlaneBuffer small = pipeline.acquire(1024);
+        pipeline.recycle(small);
+
+        PlaneBuffer large = pipeline.acquire(4096);
+        assertNotSame(small, large);
+        assertTrue(large.capacity() >= 4096);
+    }
+
+    @Test
+    public void slowEncoder_neverBlocksCaptureAndKeepsNewestFrames() throws Exception {
+        CountDownLatch firstEncode = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Long> encoded = Collections.synchronizedList(new ArrayList<>());
+
+        FramePipeline pipeline = new FramePipeline(2, frame -> {
+            encoded.add(frame.timestampNanos);
+            firstEncode.countDown();
+            release.await();
+        }, e -> { });
+        pipeline.start();
+        try {
+            ByteBuffer plane = ByteBuffer.allocateDirect(64);
+            submit(pipeline, plane, 0);
+            assertTrue(firstEncode.await(2, TimeUnit.SECONDS));
+
+            // The encoder is stuck; capture must keep going without blocking
+            long start = System.nanoTime();
+            for (long ts = 1; ts <= 50; ts++) {
+                submit(pipeline, plane, ts);
+            }
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+            assertTrue(pipeline.getDroppedFrames() > 0);
+            assertTrue(pipeline.getQueueDepth() <= 2);
+
+            release.countDown();
+            long deadline = System.currentTimeMillis() + 2000;
+            while (pipeline.getQueueDepth() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            Thread.sleep(50);
+        } finally {
+            pipeline.stop();
+        }
+
+        // First frame plus the two newest; everything in between was dropped
+        assertEquals(List.of(0L, 49L, 50L), encoded);
+        assertEquals(3, pipeline.getEncodeTimer().getCount());
+    }
+
+    private static void submit(FramePipeline pipeline, ByteBuffer plane, long ts) {
+        long start = System.nanoTime();
+        PlaneBuffer buffer = pipeline.acquire(plane.capacity());
+        if (buffer == null) {
+            return;
+        }
+        buffer.copyFrom(plane, 4, 4, 16, 4, ts);
+        pipeline.submit(buffer, start);
+    }
+}
@@ -0,0 +1,133 @@
+package com.sativa.streamscreenandroid2;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameRateGovernorTest {
+
+    private static final long SECOND = 1_000_000_000L;
+    private static final long MS = 1_000_000L;
+
+    /**
+     * Offers one frame per vsync, as the ImageReader does while the screen changes, and
+     * returns the times of the frames the governor let through. With a tracker, a poller
+     * requests /frame every pollNanos.
+     */
+    private static List<Long> run(FrameRateGovernor governor, double hz, long durationNanos,
+                                  ViewerTracker tracker, long pollNanos) {
+        List<Long> captured = new ArrayList<>();
+        long period = Math.round(1e9 / hz);
+        long nextPoll = SECOND;
+        for (long t = SECOND; t < SECOND + durationNanos; t += period) {
+            while (tracker != null && nextPoll <= t) {
+                tracker.onRequest("poller", nextPoll);
+                nextPoll += pollNanos;
+            }
+            if (governor.nanosUntilNextFrame(t) == 0) {
+                governor.onFrameCaptured(t);
+                captured.add(t);
+            }
+        }
+        return captured;
+    }
+
+    private static List<Long> run(FrameRateGovernor governor, double hz, long durationNanos) {
+        return run(governor, hz, durationNanos, null, 0);
+    }
+
+    @Test
+    public void pacesHighRefreshPanelToTarget() {
+        for (double hz : new double[]{60, 90, 120}) {
+            FrameRateGovernor governor = new FrameRateGovernor(15, 30);
+            governor.setRefreshRate((float) hz);
+            List<Long> frames = run(governor, hz, 10 * SECOND);
+            // 150 plus the initial burst
+            assertEquals("at " + hz + " Hz", 150, frames.size(), BURST_TOLERANCE);
+        }
+    }
+
+    private static final double BURST_TOLERANCE = FrameRateGovernor.BURST_FRAMES;
+
+    @Test
+    public void alignedFramesAreEvenlySpaced() {
+        FrameRateGovernor governor = new FrameRateGovernor(24, 30);
+        governor.setRefreshRate(60);
+        List<Long> frames = run(governor, 60, 5 * SECOND);
+        // 24 fps does not divide 60 Hz: every 3rd vsync (20 fps) rather than alternating 2 and 3
+        long period = Math.round(1e9 / 60);
+        // (after the initial burst has drained the bucket)
+        for (int i = frames.size() / 2; i < frames.size(); i++) {
+            assertEquals(3 * period, frames.get(i) - frames.get(i - 1));
+        }
+    }
+
+    @Test
+    public void unalignedRateAveragesToTarget() {
+        // Without the refresh rate the bucket carries credit between frames, so the average holds
+        FrameRateGovernor governor = new FrameRateGovernor(24, 30);
+        List<Long> frames = run(governor, 60, 10 * SECOND);
+        assertEquals(240, frames.size(), BURST_TOLERANCE);
+    }
+
+    @Test
+    public void burstAfterIdleIsCappedAtMaxFps() {
+        FrameRateGovernor governor = new FrameRateGovernor(5, 30);
+        governor.setRefreshRate(60);
+        List<Long> frames = run(governor, 60, 2 * SECOND);
+        // The bucket starts full: the first frames come 1/30 s apart, then 1/5 s
+        long period = Math.round(1e9 / 60);
+        assertEquals(2 * period, frames.get(1) - frames.get(0));
+        assertEquals(2 * period, frames.get(2) - frames.get(1));
+        assertEquals(12 * period, frames.get(frames.size() - 1) - frames.get(frames.size() - 2));
+    }
+
+    @Test
+    public void rateLimitLowersTarget() {
+        FrameRateGovernor governor = new FrameRateGovernor(30, 30);
+        governor.setRefreshRate(60);
+        governor.setRateLimit(10);
+        assertEquals(6 * Math.round(1e9 / 60), governor.getFrameIntervalNanos());
+        assertEquals(100, run(governor, 60, 10 * SECOND).size(), BURST_TOLERANCE);
+    }
+
+    @Test
+    public void pollersOnlyGetFramesTheyWillRead() {
+        FrameRateGovernor governor = new FrameRateGovernor(30, 30);
+        governor.setRefreshRate(60);
+        ViewerTracker tracker = new ViewerTracker();
+        governor.setDemand(tracker);
+        // A viewer polling every 150 ms reads at most 6.7 distinct frames per second
+        List<Long> frames = run(governor, 60, 10 * SECOND, tracker, 150 * MS);
+        assertTrue("captured " + frames.size(), frames.size() >= 67 && frames.size() <= 150);
+
+        // Each poll still finds a frame taken within the last two intervals plus a vsync
+        int next = 0;
+        for (long poll = SECOND + 10 * 150 * MS; poll < 10 * SECOND; poll += 150 * MS) {
+            while (next + 1 < frames.size() && frames.get(next + 1) <= poll) {
+                next++;
+            }
+            assertTrue(poll - frames.get(next) <= 2 * governor.getFrameIntervalNanos() + 17 * MS);
+        }
+
+        // A stream reads every frame, so nothing is held back
+        tracker.onOpened("stream");
+        FrameRateGovernor streaming = new FrameRateGovernor(30, 30);
+        streaming.setRefreshRate(60);
+        streaming.setDemand(tracker);
+        assertEquals(300, run(streaming, 60, 10 * SECOND, tracker, 150 * MS).size(), BURST_TOLERANCE);
+    }
+
+    @Test
+    public void reportsCapturedFps() {
+        FrameRateGovernor governor = new FrameRateGovernor(20, 30);
+        governor.setRefreshRate(60);
+        List<Long> frames = run(governor, 60, 5 * SECOND);
+        long last = frames.get(frames.size() - 1);
+        assertEquals(20, governor.getCapturedFps(last), 1);
+        assertEquals(0, governor.getCapturedFps(last + 10 * SECOND), 0);
+    }
+}
@@ -0,0 +1,378 @@
+package com.sativa.streamscreenandroid2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class LanWebServerTest {
+
+    private FrameBroadcaster broadcaster;
+    private ViewerSessions sessions;
+    private LanWebServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        broadcaster = new FrameBroadcaster();
+        sessions = new ViewerSessions();
+        sessions.setPassword("secret");
+        server = new LanWebServer(0, sessions, broadcaster, new SegmentBroadcaster(), new SegmentBroadcaster());
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        StreamConfig.setCaptureRegion(null);
+    }
+
+    /** Keep-alive HTTP/1.1 client reading one Content-Length response at a time. */
+    private static final class Client implements AutoCloseable {
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        int status;
+        String head;
+
+        Client(int port) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            socket.setSoTimeout(5000);
+            in = socket.getInputStream();
+            out = socket.getOutputStream();
+        }
+
+        byte[] get(String path, String... headers) throws IOException {
+            return request("GET", path, headers);
+        }
+
+        byte[] request(String method, String path, String... headers) throws IOException {
+            StringBuilder sb = new StringBuilder(method).append(' ').append(path).append(" HTTP/1.1\r\nHost: test\r\n");
+            for (String h : headers) {
+                sb.append(h).append("\r\n");
+            }
+            out.write(sb.append("\r\n").toString().getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            int state = 0;
+            while (state < 4) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new IOException("EOF in headers");
+                }
+                buf.write(b);
+                state = (b == '\r' && (state == 0 || state == 2)) || (b == '\n' && (state == 1 || state == 3)) ? state + 1 : 0;
+            }
+            head = buf.toString("US-ASCII");
+            status = Integer.parseInt(head.substring(9, 12));
+
+            int length = 0;
+            for (String line : head.split("\r\n")) {
+                if (line.toLowerCase().startsWith("content-length:")) {
+                    length = Integer.parseInt(line.substring(15).trim());
+                }
+            }
+            byte[] body = new byte[length];
+            int off = 0;
+            while (off < length) {
+                int n = in.read(body, off, length - off);
+                if (n < 0) {
+                    throw new IOException("EOF in body");
+                }
+                off += n;
+            }
+            return body;
+        }
+
+        String header(String name) {
+            for (String line : head.split("\r\n")) {
+                if (line.toLowerCase().startsWith(name.toLowerCase() + ":")) {
+                    return line.substring(name.length() + 1).trim();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private static byte[] jpeg(int n, int size) {
+        byte[] data = new byte[size];
+        data[0] = (byte) 0xFF;
+        data[1] = (byte) 0xD8;
+        data[size - 1] = (byte) n;
+        return data;
+    }
+
+    @Test
+    public void viewIssuesSessionToken() throws IOException {
+        try (Client client = new Client(server.getListeningPort())) {
+            client.get("/view?token=wrong");
+            assertEquals(401, client.status);
+
+            String page = new String(client.get("/view?token=secret"), StandardCharsets.UTF_8);
+            assertEquals(200, client.status);
+            assertFalse(page.contains("secret"));
+            Matcher m = Pattern.compile("\\?token=([A-Za-z0-9_-]+)").matcher(page);
+            assertTrue(m.find());
+            String token = m.group(1);
+            assertEquals(1, sessions.getSessionCount());
+
+            broadcaster.publish(jpeg(1, 10), 0, 1, 1);
+            client.get("/frame?token=" + token);
+            assertEquals(200, client.status);
+
+            // Reloading the page keeps the session; a new password ends it
+            client.get("/view?token=" + token);
+            assertEquals(200, client.status);
+            assertEquals(1, sessions.getSessionCount());
+            sessions.setPassword("changed");
+            client.get("/frame?token=" + token);
+            assertEquals(401, client.status);
+        }
+    }
+
+    @Test
+    public void metricsRequireAuthentication() throws IOException {
+        try (Client client = new Client(server.getListeningPort())) {
+            client.get("/metrics?token=secret");
+            assertEquals(404, client.status);
+
+            PipelineMetrics metrics = new PipelineMetrics();
+            metrics.increment(PipelineMetrics.Counter.ENCODED);
+            server.setMetrics(metrics);
+            client.get("/metrics");
+            assertEquals(401, client.status);
+
+            String text = new String(client.get("/metrics", "Authorization: Bearer secret"), StandardCharsets.UTF_8);
+            assertEquals(200, client.status);
+            assertTrue(client.header("Content-Type").startsWith("text/plain; version=0.0.4"));
+            assertTrue(text.contains("streamscreen_frames_total{result=\"encoded\"} 1"));
+
+            String json = new String(client.get("/metrics?token=secret&format=json"), StandardCharsets.UTF_8);
+            assertEquals(200, client.status);
+            assertTrue(json.contains("\"encoded\":1"));
+        }
+    }
+
+    @Test
+    public void replayRequiresBuffer() throws IOException {
+        try (Client client = new Client(server.getListeningPort())) {
+            client.get("/replay?token=secret");
+            assertEquals(404, client.status);
+
+            ReplayBuffer buffer = new ReplayBuffer(null, 1 << 20, 60_000);
+            server.setReplayBuffer(buffer);
+            client.get("/replay?from=-10s");
+            assertEquals(401, client.status);
+            client.get("/replay?token=secret&from=-10x");
+            assertEquals(400, client.status);
+            client.get("/replay?token=secret");
+            assertEquals(503, client.status);
+        }
+
+        ReplayBuffer buffer = new ReplayBuffer(null, 1 << 20, 60_000);
+        buffer.append(new Frame(jpeg(1, 100), 1, 0, 1, 1), System.nanoTime() - TimeUnit.SECONDS.toNanos(5));
+        server.setReplayBuffer(buffer);
+        try (Client client = new Client(server.getListeningPort())) {
+            // Chunked, so only the headers are read
+            client.get("/replay?token=secret&from=-2s");
+            assertEquals(200, client.status);
+            assertEquals(MjpegInputStream.CONTENT_TYPE, client.header("Content-Type"));
+            long delay = Long.parseLong(client.header("X-Replay-Delay"));
+            assertTrue(String.valueOf(delay), delay >= 2000 && delay < 3000);
+        }
+    }
+
+    @Test
+    public void regionApi() throws IOException {
+        try (Client client = new Client(server.getListeningPort())) {
+            client.request("POST", "/region?rect=0,0,10,10", "Content-Length: 0");
+            assertEquals(401, client.status);
+            assertNull(StreamConfig.getCaptureRegion());
+
+            assertEquals("full", new String(client.get("/region?token=secret"), StandardCharsets.US_ASCII));
+            // GET never changes it
+            client.get("/region?token=secret&rect=0,0,10,10");
+            assertNull(StreamConfig.getCaptureRegion());
+
+            byte[] body = client.request("POST", "/region?token=secret&rect=100,200,640,480", "Content-Length: 0");
+            assertEquals(200, client.status);
+            assertEquals("100,200,640,480", new String(body, StandardCharsets.US_ASCII));
+            assertEquals(new CaptureRegion(100, 200, 640, 480), StreamConfig.getCaptureRegion());
+
+            client.request("POST", "/region?token=secret&rect=100,200,0,480", "Content-Length: 0");
+            assertEquals(400, client.status);
+            assertEquals(new CaptureRegion(100, 200, 640, 480), StreamConfig.getCaptureRegion());
+
+            client.request("POST", "/region?token=secret&rect=full", "Content-Length: 0");
+            assertEquals(200, client.status);
+            assertNull(StreamConfig.getCaptureRegion());
+        }
+    }
+
+    @Test
+    public void preEncodedFrameMatchesResponsePath() throws IOException {
+        try (Client client = new Client(server.getListeningPort())) {
+            client.get("/frame?token=secret");
+            assertEquals(503, client.status);
+            client.get("/frame?token=wrong");
+            assertEquals(401, client.status);
+
+            byte[] data = jpeg(1, 5000);
+            Frame published = broadcaster.publish(data, 123_456_000L, 1, 1);
+            for (boolean preEncoded : new boolean[]{false, true}) {
+                server.preEncodedFrames = preEncoded;
+                assertArrayEquals(data, client.get("/frame?token=secret"));
+                assertEquals(200, client.status);
+                assertEquals("image/jpeg", client.header("Content-Type"));
+                assertEquals("no-cache", client.header("Cache-Control"));
+                assertEquals("1", client.header("X-Frame-Sequence"));
+                assertEquals("123456", client.header("X-Capture-Time"));
+                assertEquals(Long.toString(published.publishNanos / 1000), client.header("X-Publish-Time"));
+                String etag = client.header("ETag");
+                assertEquals(broadcaster.getETag(1), etag);
+
+                assertEquals(0, client.get("/frame?token=secret", "If-None-Match: " + etag).length);
+                assertEquals(304, client.status);
+            }
+
+            broadcaster.publish(jpeg(2, 100), 0, 1, 1);
+            assertArrayEquals(jpeg(2, 100), client.get("/frame?token=secret", "If-None-Match: " + broadcaster.getETag(1)));
+            assertEquals(200, client.status);
+        }
+        assertEquals("frame responses: hits=1 builds=2", server.getFrameResponseStats());
+    }
+
+    @Test
+    public void pollersAndStreamsAreTracked() throws Exception {
+        ViewerTracker tracker = new ViewerTracker();
+        AtomicInteger arrivals = new AtomicInteger();
+        tracker.setListener(arrivals::incrementAndGet);
+        server.setViewerTracker(tracker);
+        broadcaster.publish(jpeg(1, 100), 0, 1, 1);
+
+        try (Client client = new Client(server.getListeningPort())) {
+            client.get("/frame?token=wrong");
+            assertEquals(0, tracker.getViewerCount());
+            client.get("/frame?token=secret");
+            assertEquals(1, tracker.getViewerCount());
+            assertEquals(1, arrivals.get());
+
+            try (Socket stream = new Socket("127.0.0.1", server.getListeningPort())) {
+                stream.getOutputStream().write("GET /stream?token=secret HTTP/1.1\r\nHost: test\r\n\r\n"
+                        .getBytes(StandardCharsets.US_ASCII));
+                stream.getInputStream().read();
+                assertEquals(1, tracker.getStreamCount());
+                assertEquals(2, tracker.getViewerCount());
+            }
+            // The server notices the closed socket on its next write
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            for (int n = 2; tracker.getStreamCount() > 0 && System.nanoTime() < deadline; n++) {
+                broadcaster.publish(jpeg(n, 100_000), 0, 1, 1);
+                Thread.sleep(20);
+            }
+            assertEquals(0, tracker.getStreamCount());
+            assertEquals(1, tracker.getViewerCount());
+        }
+    }
+
+    @Test
+    public void longPollServesEachFrameOnce() throws Exception {
+        broadcaster.publish(jpeg(0, 10), 0, 1, 1);
+        Thread publisher = new Thread(() -> {
+            try {
+                for (int n = 1; n <= 20; n++) {
+                    Thread.sleep(15);
+                    broadcaster.publish(jpeg(n, 10), 0, 1, 1);
+                }
+            } catch (InterruptedException ignored) {
+            }
+        });
+
+        List<Long> served = new ArrayList<>();
+        try (Client client = new Client(server.getListeningPort())) {
+            client.get("/frame?token=secret");
+            long seq = Long.parseLong(client.header("X-Frame-Sequence"));
+            publisher.start();
+            while (seq < 21) {
+                byte[] body = client.get("/frame?token=secret&after=" + seq + "&timeout=2000");
+                assertEquals(200, client.status);
+                long next = Long.parseLong(client.header("X-Frame-Sequence"));
+                assertTrue("Frame " + next + " served again after " + seq, next > seq);
+                assertEquals((byte) (next - 1), body[9]);
+                served.add(next);
+                seq = next;
+            }
+
+            // A sequence this server never issued (an earlier run) gets the current frame at once
+            client.get("/frame?token=secret&after=999&timeout=2000");
+            assertEquals(200, client.status);
+            assertEquals("21", client.header("X-Frame-Sequence"));
+        }
+        publisher.join();
+        // Only as many requests as frames, never more
+        assertTrue(served.toString(), served.size() <= 20);
+    }
+
+    @Test
+    public void longPollOnIdleScreen() throws Exception {
+        ViewerTracker tracker = new ViewerTracker();
+        server.setViewerTracker(tracker);
+        broadcaster.publish(jpeg(1, 10), 0, 1, 1);
+
+        try (Client client = new Client(server.getListeningPort())) {
+            client.get("/frame?token=secret");
+            String etag = client.header("ETag");
+            int requests = 0;
+            long start = System.nanoTime();
+            while (System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1)) {
+                long requestStart = System.nanoTime();
+                client.get("/frame?token=secret&after=1&timeout=250");
+                assertEquals(304, client.status);
+                assertEquals(etag, client.header("ETag"));
+                assertTrue(System.nanoTime() - requestStart >= TimeUnit.MILLISECONDS.toNanos(240));
+                requests++;
+            }
+            // A blind 150 ms timer would have made 7
+            assertTrue("requests=" + requests, requests <= 4);
+        }
+
+        // While parked the poll counts as an open stream
+        AtomicInteger status = new AtomicInteger();
+        Thread poll = new Thread(() -> {
+            try (Client client = new Client(server.getListeningPort())) {
+                client.get("/frame?token=secret&after=1");
+                status.set(client.status);
+            } catch (IOException ignored) {
+            }
+        });
+        poll.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (tracker.getStreamCount() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, tracker.getStreamCount());
+        broadcaster.publish(jpeg(2, 10), 0, 1, 1);
+        poll.join(5000);
+        assertEquals(200, status.get());
+        assertEquals(0, tracker.getStreamCount());
+    }
+}
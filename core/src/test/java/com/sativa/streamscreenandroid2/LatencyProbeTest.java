@@ -0,0 +1,70 @@
+package com.sativa.streamscreenandroid2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyProbeTest {
+
+    private static final long MS = 1_000_000L;
+
+    @Test
+    public void reportBecomesTimingOnServerClock() {
+        FrameBroadcaster broadcaster = new FrameBroadcaster();
+        Frame frame = broadcaster.publish(new byte[]{1}, 1_000 * MS, 1, 1);
+        LatencyProbe probe = new LatencyProbe();
+
+        // Whole microseconds, the resolution of the messages
+        long sent = frame.publishNanos / 1000 * 1000 + 5 * MS;
+        String meta = probe.onSent(frame, sent);
+        assertEquals("f 1 1000000 " + frame.publishNanos / 1000 + " " + sent / 1000, meta);
+
+        long received = sent + 12 * MS;
+        long shown = received + 8 * MS;
+        FrameTiming timing = probe.onReport("r 1 " + received / 1000 + " " + shown / 1000);
+        assertNotNull(timing);
+        assertEquals(1, timing.sequence);
+        assertEquals(12 * MS, timing.getNetworkNanos());
+        assertEquals(8 * MS, timing.getDisplayNanos());
+        assertEquals(shown - 1_000 * MS, timing.getLatencyNanos());
+
+        // Each frame counts once
+        assertNull(probe.onReport("r 1 " + received / 1000 + " " + shown / 1000));
+    }
+
+    @Test
+    public void badReportsAreIgnored() {
+        FrameBroadcaster broadcaster = new FrameBroadcaster();
+        LatencyProbe probe = new LatencyProbe();
+        Frame first = broadcaster.publish(new byte[]{1}, 0, 1, 1);
+        probe.onSent(first, 0);
+        for (int i = 0; i < LatencyProbe.HISTORY; i++) {
+            probe.onSent(broadcaster.publish(new byte[]{1}, 0, 1, 1), 0);
+        }
+
+        // Overwritten by a newer frame
+        assertNull(probe.onReport("r 1 10 20"));
+        // Never sent, malformed, shown before received, implausibly late
+        assertNull(probe.onReport("r 999 10 20"));
+        assertNull(probe.onReport("r 2 x 20"));
+        assertNull(probe.onReport("r 2 10"));
+        assertNull(probe.onReport("r 2 30 20"));
+        assertNull(probe.onReport("r 2 10 " + 120_000_000L));
+        assertNull(probe.onReport("s 12.5"));
+
+        FrameTiming timing = probe.onReport("r 2 10 20");
+        assertNotNull(timing);
+        // Without a capture time only the stages after publishing are known
+        assertEquals(-1, timing.getLatencyNanos());
+        assertEquals(10_000, timing.getDisplayNanos());
+    }
+
+    @Test
+    public void syncEchoesClientTime() {
+        assertEquals("s 1234.567 42", LatencyProbe.syncReply("s 1234.567", 42_000));
+        assertEquals("s 7 0", LatencyProbe.syncReply("s 7", 999));
+        assertNull(LatencyProbe.syncReply("s <script>", 0));
+        assertNull(LatencyProbe.syncReply("s ", 0));
+        assertNull(LatencyProbe.syncReply("r 1 2 3", 0));
+    }
+}
@@ -0,0 +1,383 @@
+package com.sativa.streamscreenandroid2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class NioStreamServerTest {
+
+    private FrameBroadcaster broadcaster;
+    private NioStreamServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        broadcaster = new FrameBroadcaster();
+        ViewerSessions sessions = new ViewerSessions();
+        sessions.setPassword("secret");
+        server = new NioStreamServer(0, broadcaster, sessions);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    /** Minimal blocking HTTP/1.1 client that reads one response at a time. */
+    private static final class Client implements AutoCloseable {
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        int status;
+        String head;
+
+        Client(int port) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            socket.setSoTimeout(5000);
+            in = socket.getInputStream();
+            out = socket.getOutputStream();
+        }
+
+        void send(String request) throws IOException {
+            out.write(request.getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+
+        String readHead() throws IOException {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            int state = 0;
+            while (state < 4) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new IOException("EOF in headers");
+                }
+                buf.write(b);
+                state = (b == '\r' && (state == 0 || state == 2)) || (b == '\n' && (state == 1 || state == 3)) ? state + 1 : 0;
+            }
+            head = buf.toString("US-ASCII");
+            if (head.startsWith("HTTP/")) {
+                status = Integer.parseInt(head.substring(9, 12));
+            }
+            return head;
+        }
+
+        byte[] readBody() throws IOException {
+            int length = contentLength(head);
+            byte[] body = new byte[length];
+            int off = 0;
+            while (off < length) {
+                int n = in.read(body, off, length - off);
+                if (n < 0) {
+                    throw new IOException("EOF in body");
+                }
+                off += n;
+            }
+            return body;
+        }
+
+        byte[] get(String path, String... headers) throws IOException {
+            StringBuilder sb = new StringBuilder("GET ").append(path).append(" HTTP/1.1\r\nHost: test\r\n");
+            for (String h : headers) {
+                sb.append(h).append("\r\n");
+            }
+            send(sb.append("\r\n").toString());
+            readHead();
+            return readBody();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private static int contentLength(String head) {
+        for (String line : head.split("\r\n")) {
+            if (line.toLowerCase().startsWith("content-length:")) {
+                return Integer.parseInt(line.substring(15).trim());
+            }
+        }
+        return 0;
+    }
+
+    private static byte[] jpeg(int n) {
+        byte[] data = new byte[2000 + n];
+        data[0] = (byte) 0xFF;
+        data[1] = (byte) 0xD8;
+        data[data.length - 1] = (byte) n;
+        return data;
+    }
+
+    @Test
+    public void servesPagesAndChecksToken() throws IOException {
+        try (Client client = new Client(server.getListeningPort())) {
+            String login = new String(client.get("/"), StandardCharsets.UTF_8);
+            assertEquals(200, client.status);
+            assertTrue(login.contains("StreamScreen"));
+
+            client.get("/frame?token=wrong");
+            assertEquals(401, client.status);
+
+            client.get("/nothing");
+            assertEquals(404, client.status);
+
+            String form = "token=secret";
+            client.send("POST /view HTTP/1.1\r\nHost: test\r\n" +
+                    "Content-Type: application/x-www-form-urlencoded\r\n" +
+                    "Content-Length: " + form.length() + "\r\n\r\n" + form);
+            client.readHead();
+            String view = new String(client.readBody(), StandardCharsets.UTF_8);
+            assertEquals(200, client.status);
+            assertTrue(view.contains("streamUrl()"));
+
+            // The page polls with a session token, never the password
+            assertFalse(view.contains("secret"));
+            Matcher m = Pattern.compile("\\?token=([A-Za-z0-9_-]+)").matcher(view);
+            assertTrue(m.find());
+            client.get("/frame?token=" + m.group(1));
+            assertEquals(503, client.status);
+        }
+    }
+
+    @Test
+    public void frameHonoursETagOnKeepAliveConnection() throws IOException {
+        try (Client client = new Client(server.getListeningPort())) {
+            client.get("/frame?token=secret");
+            assertEquals(503, client.status);
+
+            byte[] data = jpeg(1);
+            broadcaster.publish(data, 0, 1, 1);
+            assertArrayEquals(data, client.get("/frame?token=secret"));
+            assertEquals(200, client.status);
+            String etag = client.head.split("ETag: ")[1].split("\r\n")[0];
+
+            client.get("/frame?token=secret", "If-None-Match: " + etag);
+            assertEquals(304, client.status);
+
+            broadcaster.publish(jpeg(2), 0, 1, 1);
+            client.get("/frame?token=secret", "If-None-Match: " + etag);
+            assertEquals(200, client.status);
+        }
+        assertEquals(4, server.getRequestCount());
+    }
+
+    @Test
+    public void longPollServesEachFrameOnce() throws Exception {
+        ViewerTracker tracker = new ViewerTracker();
+        server.setViewerTracker(tracker);
+        broadcaster.publish(jpeg(0), 0, 1, 1);
+        Thread publisher = new Thread(() -> {
+            try {
+                for (int n = 1; n <= 20; n++) {
+                    Thread.sleep(15);
+                    broadcaster.publish(jpeg(n), 0, 1, 1);
+                }
+            } catch (InterruptedException ignored) {
+            }
+        });
+
+        List<Long> served = new ArrayList<>();
+        try (Client client = new Client(server.getListeningPort())) {
+            client.get("/frame?token=secret");
+            long seq = Long.parseLong(client.head.split("X-Frame-Sequence: ")[1].split("\r\n")[0]);
+            publisher.start();
+            while (seq < 21) {
+                byte[] body = client.get("/frame?token=secret&after=" + seq + "&timeout=2000");
+                assertEquals(200, client.status);
+                long next = Long.parseLong(client.head.split("X-Frame-Sequence: ")[1].split("\r\n")[0]);
+                assertTrue("Frame " + next + " served again after " + seq, next > seq);
+                assertEquals((byte) (next - 1), body[body.length - 1]);
+                served.add(next);
+                seq = next;
+            }
+        }
+        publisher.join();
+        assertTrue(served.toString(), served.size() <= 20);
+        assertEquals(1 + served.size(), server.getRequestCount());
+        assertEquals(0, tracker.getStreamCount());
+    }
+
+    @Test
+    public void longPollOnIdleScreen() throws Exception {
+        broadcaster.publish(jpeg(1), 0, 1, 1);
+        try (Client client = new Client(server.getListeningPort())) {
+            client.get("/frame?token=secret");
+            String etag = client.head.split("ETag: ")[1].split("\r\n")[0];
+            long start = System.nanoTime();
+            while (System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1)) {
+                long requestStart = System.nanoTime();
+                client.get("/frame?token=secret&after=1&timeout=250");
+                assertEquals(304, client.status);
+                assertTrue(client.head.contains("ETag: " + etag));
+                assertTrue(System.nanoTime() - requestStart >= TimeUnit.MILLISECONDS.toNanos(240));
+            }
+
+            // Parked polls do not hold up the rest of the server
+            try (Client other = new Client(server.getListeningPort())) {
+                other.get("/frame?token=secret");
+                assertEquals(200, other.status);
+            }
+        }
+        // The first fetch, at most four long-polls (a blind 150 ms timer would have made 7)
+        // and the other client's request
+        assertTrue(server.toString(), server.getRequestCount() <= 6);
+    }
+
+    @Test
+    public void parsesQueryAndHeaders() {
+        ByteBuffer in = ByteBuffer.allocate(512);
+        in.put("GET /frame?token=a%20b&x HTTP/1.1\r\nIf-None-Match: \"e\"\r\nContent-Length: 3\r\n\r\nabc"
+                .getBytes(StandardCharsets.US_ASCII));
+        NioStreamServer.Request request = NioStreamServer.parse(in);
+        assertNotNull(request);
+        assertEquals("/frame", request.path);
+        assertEquals("a b", request.params.get("token"));
+        assertEquals("", request.params.get("x"));
+        assertEquals("\"e\"", request.headers.get("if-none-match"));
+        assertEquals(3, request.contentLength);
+
+        ByteBuffer partial = ByteBuffer.allocate(64);
+        partial.put("GET / HTTP/1.1\r\n".getBytes(StandardCharsets.US_ASCII));
+        assertNull(NioStreamServer.parse(partial));
+    }
+
+    /**
+     * Load test: 120 MJPEG viewers on one selector thread, all of which must see the last
+     * frame, followed by 120 keep-alive /frame pollers.
+     */
+    @Test
+    public void streamsToManyClientsOnOneThread() throws Exception {
+        final int clients = 120;
+        final int frames = 30;
+        broadcaster.publish(jpeg(0), 0, 1, 1);
+
+        List<Thread> readers = new ArrayList<>();
+        CountDownLatch connected = new CountDownLatch(clients);
+        CountDownLatch sawLast = new CountDownLatch(clients);
+        AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < clients; i++) {
+            Thread t = new Thread(() -> {
+                try (Client client = new Client(server.getListeningPort())) {
+                    client.send("GET /stream?token=secret HTTP/1.1\r\nHost: test\r\n\r\n");
+                    client.readHead();
+                    connected.countDown();
+                    while (true) {
+                        String part = client.readHead();
+                        assertTrue(part.contains("--" + MjpegInputStream.BOUNDARY));
+                        byte[] body = client.readBody();
+                        client.in.read();
+                        client.in.read();
+                        if (body[body.length - 1] == (byte) frames) {
+                            sawLast.countDown();
+                            return;
+                        }
+                    }
+                } catch (Throwable e) {
+                    failures.incrementAndGet();
+                    connected.countDown();
+                }
+            });
+            t.start();
+            readers.add(t);
+        }
+        assertTrue(connected.await(10, TimeUnit.SECONDS));
+        assertEquals(clients, server.getStreamCount());
+
+        for (int n = 1; n <= frames; n++) {
+            broadcaster.publish(jpeg(n), 0, 1, 1);
+            Thread.sleep(10);
+        }
+        assertTrue("Not every viewer got the last frame", sawLast.await(10, TimeUnit.SECONDS));
+        assertEquals(0, failures.get());
+        for (Thread t : readers) {
+            t.join(1000);
+        }
+
+        int serverThreads = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().startsWith("NioStreamServer")) {
+                serverThreads++;
+            }
+        }
+        // The selector plus the frame watcher, regardless of the number of viewers
+        assertEquals(2, serverThreads);
+
+        // Polling load: every poller issues keep-alive requests for one second
+        AtomicLong completed = new AtomicLong();
+        List<Thread> pollers = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        for (int i = 0; i < clients; i++) {
+            Thread t = new Thread(() -> {
+                try (Client client = new Client(server.getListeningPort())) {
+                    while (System.nanoTime() < deadline) {
+                        client.get("/frame?token=secret");
+                        if (client.status != 200) {
+                            failures.incrementAndGet();
+                            return;
+                        }
+                        completed.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    failures.incrementAndGet();
+                }
+            });
+            t.start();
+            pollers.add(t);
+        }
+        for (Thread t : pollers) {
+            t.join(5000);
+        }
+        assertEquals(0, failures.get());
+        assertTrue(completed.get() > clients);
+    }
+
+    @Test
+    public void oversizedPipelinedRequestDoesNotCutIntoResponse() throws Exception {
+        // Far more than the socket buffers hold, so the response stays pending
+        broadcaster.publish(new byte[32 * 1024 * 1024], 0, 1, 1);
+        try (Client client = new Client(server.getListeningPort())) {
+            StringBuilder pipelined = new StringBuilder("GET /frame?token=secret HTTP/1.1\r\nHost: test\r\n\r\n")
+                    .append("GET /frame?token=secret HTTP/1.1\r\nX-Filler: ");
+            for (int i = 0; i < 16 * 1024; i++) {
+                pipelined.append('x');
+            }
+            client.send(pipelined.toString());
+            Thread.sleep(200);
+
+            assertEquals(200, Integer.parseInt(client.readHead().substring(9, 12)));
+            // The connection is dropped rather than a 431 written into the body
+            byte[] buf = new byte[64 * 1024];
+            long body = 0;
+            try {
+                int n;
+                while ((n = client.in.read(buf)) > 0) {
+                    for (int i = 0; i < n; i++) {
+                        assertEquals(0, buf[i]);
+                    }
+                    body += n;
+                }
+            } catch (IOException reset) {
+                // Closed with the second request still unread
+            }
+            assertTrue("body=" + body, body < 32 * 1024 * 1024);
+        }
+    }
+}
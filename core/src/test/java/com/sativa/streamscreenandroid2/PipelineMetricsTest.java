@@ -0,0 +1,160 @@
+package com.sativa.streamscreenandroid2;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PipelineMetricsTest {
+
+    @Test
+    public void histogramBucketsAndQuantiles() {
+        Histogram h = new Histogram(new long[]{10, 100, 1000});
+        for (int i = 0; i < 90; i++) {
+            h.record(5);
+        }
+        for (int i = 0; i < 9; i++) {
+            h.record(100);
+        }
+        h.record(5000);
+
+        assertArrayEquals(new long[]{90, 9, 0, 1}, h.getCounts());
+        assertEquals(100, h.getCount());
+        assertEquals(90 * 5 + 9 * 100 + 5000, h.getSum());
+        assertEquals(10, h.getQuantileBound(0.5));
+        assertEquals(100, h.getQuantileBound(0.99));
+        assertEquals(-1, h.getQuantileBound(1.0));
+        assertEquals(-1, new Histogram(new long[]{1}).getQuantileBound(0.5));
+    }
+
+    @Test
+    public void prometheusOutput() {
+        PipelineMetrics metrics = new PipelineMetrics();
+        metrics.recordStage(PipelineMetrics.Stage.ENCODE, 3_000_000);
+        metrics.recordStage(PipelineMetrics.Stage.ENCODE, 7_000_000);
+        metrics.increment(PipelineMetrics.Counter.CAPTURED);
+        metrics.increment(PipelineMetrics.Counter.CAPTURED);
+        metrics.increment(PipelineMetrics.Counter.DROPPED);
+        metrics.recordFrameSize(20_000);
+        metrics.addCounter("gc_count_total", "GCs.", () -> 12);
+
+        String text = metrics.toPrometheus();
+        assertTrue(text.contains("# TYPE streamscreen_stage_seconds histogram\n"));
+        assertTrue(text.contains("streamscreen_stage_seconds_bucket{stage=\"encode\",le=\"0.0025\"} 0\n"));
+        assertTrue(text.contains("streamscreen_stage_seconds_bucket{stage=\"encode\",le=\"0.005\"} 1\n"));
+        assertTrue(text.contains("streamscreen_stage_seconds_bucket{stage=\"encode\",le=\"+Inf\"} 2\n"));
+        assertTrue(text.contains("streamscreen_stage_seconds_sum{stage=\"encode\"} 0.01\n"));
+        assertTrue(text.contains("streamscreen_stage_seconds_count{stage=\"encode\"} 2\n"));
+        assertTrue(text.contains("streamscreen_stage_seconds_count{stage=\"send\"} 0\n"));
+        assertTrue(text.contains("streamscreen_frames_total{result=\"captured\"} 2\n"));
+        assertTrue(text.contains("streamscreen_frames_total{result=\"dropped\"} 1\n"));
+        assertTrue(text.contains("streamscreen_frame_bytes_bucket{le=\"32768\"} 1\n"));
+        assertTrue(text.contains("streamscreen_frame_bytes_count 1\n"));
+        assertTrue(text.contains("# TYPE streamscreen_gc_count_total counter\nstreamscreen_gc_count_total 12\n"));
+        assertTrue(text.contains("streamscreen_heap_used_bytes "));
+
+        // Every sample line is "name{labels} value"
+        for (String line : text.split("\n")) {
+            if (!line.startsWith("#")) {
+                assertTrue(line, line.matches("streamscreen_[a-z_]+(\\{[^}]*})? -?[0-9.]+"));
+            }
+        }
+    }
+
+    @Test
+    public void viewersAndJson() {
+        PipelineMetrics metrics = new PipelineMetrics();
+        Object viewer = new Object();
+        for (int i = 0; i < 5; i++) {
+            metrics.onDelivered(viewer, 1000, 2_000_000);
+        }
+        assertEquals(1, metrics.getViewerCount());
+        assertEquals(5, metrics.getStage(PipelineMetrics.Stage.SEND).getCount());
+        assertEquals(5, metrics.getCount(PipelineMetrics.Counter.DELIVERED));
+
+        String json = metrics.toJson();
+        assertTrue(json, json.contains("\"send\":{\"count\":5,\"avg_ms\":2,\"p50_ms\":2.500,"));
+        assertTrue(json, json.contains("\"viewers\":[{\"id\":1,\"transport\":\"object\",\"fps\":0,\"frames\":5,\"bytes\":5000}]"));
+        assertTrue(json.startsWith("{\"stages\":{\"acquire\":"));
+        assertTrue(json.endsWith("}"));
+
+        // Delivered fps is averaged between samples at least a second apart
+        PipelineMetrics fresh = new PipelineMetrics();
+        assertEquals(0, fresh.getDeliveredFps(0), 0);
+        fresh.increment(PipelineMetrics.Counter.DELIVERED);
+        assertEquals(0, fresh.getDeliveredFps(500_000_000L), 0);
+        assertEquals(0.5, fresh.getDeliveredFps(2_000_000_000L), 1e-9);
+
+        metrics.onClosed(viewer);
+        assertEquals(0, metrics.getViewerCount());
+        assertTrue(metrics.toPrometheus().contains("streamscreen_viewers 0\n"));
+    }
+
+    @Test
+    public void displayReportsGivePerViewerLatency() {
+        PipelineMetrics metrics = new PipelineMetrics();
+        Object viewer = new Object();
+        // Reports from viewers that never received a frame (or already left) are not kept per viewer
+        metrics.onDisplayed(viewer, timing(1, 50));
+        assertEquals(0, metrics.getViewerLatencyNanos(viewer, 0.5).length);
+
+        metrics.onDelivered(viewer, 1000, 1_000_000);
+        for (int i = 1; i <= 100; i++) {
+            metrics.onDisplayed(viewer, timing(i, i));
+        }
+        assertArrayEquals(new long[]{50_000_000L, 90_000_000L, 99_000_000L},
+                metrics.getViewerLatencyNanos(viewer, 0.5, 0.9, 0.99));
+        assertEquals(101, metrics.getGlassLatency().getCount());
+        assertEquals(101, metrics.getStage(PipelineMetrics.Stage.DISPLAY).getCount());
+
+        String text = metrics.toPrometheus();
+        assertTrue(text, text.contains("# TYPE streamscreen_viewer_latency_seconds summary\n"));
+        assertTrue(text, text.contains("streamscreen_viewer_latency_seconds{viewer=\"1\",transport=\"object\",quantile=\"0.9\"} 0.09\n"));
+        assertTrue(text, text.contains("streamscreen_viewer_latency_seconds_count{viewer=\"1\",transport=\"object\"} 100\n"));
+        assertTrue(text, text.contains("streamscreen_glass_latency_seconds_count 101\n"));
+        assertTrue(text, text.contains("streamscreen_stage_seconds_count{stage=\"network\"} 101\n"));
+        String json = metrics.toJson();
+        assertTrue(json, json.contains("\"latency_ms\":{\"count\":100,\"p50\":50,\"p90\":90,\"p99\":99}"));
+
+        // Only the most recent frames count
+        for (int i = 0; i < PipelineMetrics.LATENCY_WINDOW; i++) {
+            metrics.onDisplayed(viewer, timing(i, 20));
+        }
+        assertArrayEquals(new long[]{20_000_000L}, metrics.getViewerLatencyNanos(viewer, 0.99));
+    }
+
+    // Captured at 1 s, shown latencyMs later
+    private static FrameTiming timing(long sequence, long latencyMs) {
+        long capture = 1_000_000_000L;
+        long shown = capture + latencyMs * 1_000_000L;
+        return new FrameTiming(sequence, capture, capture, capture, shown, shown);
+    }
+
+    @Test
+    public void bothListenersAreNotified() {
+        List<String> calls = new ArrayList<>();
+        DeliveryListener a = new DeliveryListener() {
+            @Override
+            public void onDelivered(Object viewer, long bytes, long durationNanos) {
+                calls.add("a" + bytes);
+            }
+
+            @Override
+            public void onClosed(Object viewer) {
+                calls.add("a closed");
+            }
+        };
+        PipelineMetrics metrics = new PipelineMetrics();
+        DeliveryListener both = DeliveryListener.both(a, metrics);
+        Object viewer = new Object();
+        both.onDelivered(viewer, 7, 1);
+        assertEquals(1, metrics.getViewerCount());
+        both.onDisplayed(viewer, timing(1, 30));
+        assertEquals(1, metrics.getGlassLatency().getCount());
+        both.onClosed(viewer);
+        assertEquals(0, metrics.getViewerCount());
+        assertEquals("[a7, a closed]", calls.toString());
+    }
+}
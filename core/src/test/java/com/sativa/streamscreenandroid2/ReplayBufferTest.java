@@ -0,0 +1,220 @@
+package com.sativa.streamscreenandroid2;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ReplayBufferTest {
+
+    private static final long MS = 1_000_000L;
+
+    private static Frame frame(long sequence, int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (sequence * 7 + i);
+        }
+        return new Frame(data, sequence, 0, 320, 240);
+    }
+
+    @Test
+    public void seekAndRead() {
+        ReplayBuffer buffer = new ReplayBuffer(null, 100_000, 60_000);
+        for (int i = 1; i <= 10; i++) {
+            assertTrue(buffer.append(frame(i, 100 + i), i * 100 * MS));
+        }
+        assertEquals(0, buffer.getFirstPosition());
+        assertEquals(10, buffer.getNextPosition());
+        assertEquals(900 * MS, buffer.getDurationNanos());
+
+        assertEquals(0, buffer.seek(0));
+        assertEquals(4, buffer.seek(500 * MS));
+        assertEquals(5, buffer.seek(501 * MS));
+        assertEquals(10, buffer.seek(2_000 * MS));
+        ReplayBuffer.Entry entry = buffer.read(4);
+        assertNotNull(entry);
+        assertEquals(5, entry.sequence);
+        assertEquals(500 * MS, entry.timeNanos);
+        assertArrayEquals(frame(5, 105).toByteArray(), entry.data);
+        assertNull(buffer.read(10));
+
+        // Times never go backwards, so seeking stays a binary search
+        buffer.append(frame(11, 10), 0);
+        assertEquals(1_000 * MS, buffer.getTimeNanos(10));
+        assertFalse(buffer.append(new Frame(new byte[0], 12, 0, 0, 0), 1_100 * MS));
+    }
+
+    @Test
+    public void bytesStayCappedAcrossWraps() {
+        int capacity = 10_000;
+        ReplayBuffer buffer = new ReplayBuffer(null, capacity, 60_000, 64);
+        Random random = new Random(1);
+        Map<Long, Integer> sizes = new HashMap<>();
+        for (int i = 1; i <= 2_000; i++) {
+            int size = 1 + random.nextInt(4_000);
+            sizes.put((long) i, size);
+            assertTrue(buffer.append(frame(i, size), i * MS));
+            assertTrue(buffer.getHeldBytes() <= capacity);
+
+            // Everything still held is intact
+            for (long p = buffer.getFirstPosition(); p < buffer.getNextPosition(); p++) {
+                ReplayBuffer.Entry entry = buffer.read(p);
+                assertArrayEquals(frame(entry.sequence, sizes.get(entry.sequence)).toByteArray(), entry.data);
+            }
+        }
+        assertEquals(2_000 - buffer.getFrameCount(), buffer.getEvictedCount());
+        assertTrue(buffer.toString(), buffer.toString().contains("age=0 count=0"));
+
+        // Too big to ever fit
+        assertFalse(buffer.append(frame(2_001, capacity + 1), 2_001 * MS));
+        assertTrue(buffer.toString().contains("oversized=1"));
+    }
+
+    @Test
+    public void evictsByDurationAndCount() {
+        ReplayBuffer buffer = new ReplayBuffer(null, 1_000_000, 1_000, 5);
+        for (int i = 1; i <= 4; i++) {
+            buffer.append(frame(i, 10), i * 400 * MS);
+        }
+        // 400..1600 ms: the frame at 400 ms is more than a second older than the newest
+        assertEquals(3, buffer.getFrameCount());
+        assertEquals(800 * MS, buffer.getTimeNanos(buffer.getFirstPosition()));
+
+        for (int i = 5; i <= 20; i++) {
+            buffer.append(frame(i, 10), 1_600 * MS + i * MS);
+        }
+        assertEquals(5, buffer.getFrameCount());
+        assertTrue(buffer.toString(), buffer.toString().contains("bytes=0 age=1 count=14"));
+        assertEquals(15 * 10, buffer.getEvictedBytes());
+    }
+
+    @Test
+    public void replayPlaysWithFixedDelay() throws Exception {
+        ReplayBuffer buffer = new ReplayBuffer(null, 1_000_000, 60_000);
+        long now = System.nanoTime();
+        // A frame every 100 ms for the last three seconds, and the next few still to come
+        for (int i = 0; i <= 30; i++) {
+            buffer.append(frame(i + 1, 50), now - (30 - i) * 100 * MS);
+        }
+
+        AtomicDeliveries deliveries = new AtomicDeliveries();
+        // 1.05 s ago the frame from 1.1 s ago was on screen
+        try (ReplayInputStream stream = new ReplayInputStream(buffer, now - 1_050 * MS, now, ReplayInputStream.KEEP_ALIVE_MS, deliveries)) {
+            assertEquals(1_050 * MS, stream.getDelayNanos());
+            assertEquals(1, deliveries.opened);
+
+            long start = System.nanoTime();
+            String part = readPart(stream);
+            assertTrue(part, part.contains("X-Frame-Sequence: 20\r\n"));
+            assertTrue(System.nanoTime() - start < 500 * MS);
+            part = readPart(stream);
+            assertTrue(part, part.contains("X-Frame-Sequence: 21\r\n"));
+            // Due 1.05 s after it was captured, 1 s ago
+            assertTrue(System.nanoTime() - now >= 40 * MS);
+        }
+        assertEquals(1, deliveries.closed);
+        assertTrue(deliveries.delivered >= 1);
+
+        // Asking for more than the buffer holds starts at the oldest frame
+        try (ReplayInputStream stream = new ReplayInputStream(buffer, now - 60_000 * MS, now, ReplayInputStream.KEEP_ALIVE_MS, null)) {
+            assertEquals(3_000 * MS, stream.getDelayNanos());
+            assertTrue(readPart(stream).contains("X-Frame-Sequence: 1\r\n"));
+        }
+    }
+
+    @Test
+    public void idleReplayRepeatsLastFrame() throws Exception {
+        ReplayBuffer buffer = new ReplayBuffer(null, 1_000_000, 60_000);
+        long now = System.nanoTime();
+        buffer.append(frame(1, 50), now - 2_000 * MS);
+
+        // Nothing new arrives: the last part comes again so a gone viewer's write fails
+        try (ReplayInputStream stream = new ReplayInputStream(buffer, now - 1_000 * MS, now, 200, null)) {
+            assertTrue(readPart(stream).contains("X-Frame-Sequence: 1\r\n"));
+            long start = System.nanoTime();
+            assertTrue(readPart(stream).contains("X-Frame-Sequence: 1\r\n"));
+            assertTrue(System.nanoTime() - start >= 150 * MS);
+
+            // A new frame is still played at its time
+            buffer.append(frame(2, 50), System.nanoTime() - 1_000 * MS);
+            assertTrue(readPart(stream).contains("X-Frame-Sequence: 2\r\n"));
+        }
+    }
+
+    private static final class AtomicDeliveries implements DeliveryListener {
+        volatile int opened;
+        volatile int delivered;
+        volatile int closed;
+
+        @Override
+        public void onOpened(Object viewer) {
+            opened++;
+        }
+
+        @Override
+        public void onDelivered(Object viewer, long bytes, long durationNanos) {
+            delivered++;
+        }
+
+        @Override
+        public void onClosed(Object viewer) {
+            closed++;
+        }
+    }
+
+    // Headers and body of one multipart part
+    private static String readPart(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int state = 0;
+        while (state < 4) {
+            int b = in.read();
+            assertTrue(b >= 0);
+            head.write(b);
+            state = (b == '\r' && (state == 0 || state == 2)) || (b == '\n' && (state == 1 || state == 3)) ? state + 1 : 0;
+        }
+        String text = head.toString("US-ASCII");
+        int length = Integer.parseInt(text.split("Content-Length: ")[1].split("\r\n")[0]);
+        for (int i = 0; i < length + 2; i++) {
+            assertTrue(in.read() >= 0);
+        }
+        return text;
+    }
+
+    @Test
+    public void parsesOffsets() {
+        assertEquals(TimeUnit.SECONDS.toNanos(30), ReplayInputStream.parseOffsetNanos("-30s"));
+        assertEquals(TimeUnit.SECONDS.toNanos(30), ReplayInputStream.parseOffsetNanos(null));
+        assertEquals(TimeUnit.SECONDS.toNanos(12), ReplayInputStream.parseOffsetNanos("12"));
+        assertEquals(1_500 * MS, ReplayInputStream.parseOffsetNanos("-1500ms"));
+        assertEquals(TimeUnit.MINUTES.toNanos(2), ReplayInputStream.parseOffsetNanos("-2m"));
+        assertEquals(-1, ReplayInputStream.parseOffsetNanos("-30x"));
+        assertEquals(-1, ReplayInputStream.parseOffsetNanos("--3s"));
+        assertEquals(-1, ReplayInputStream.parseOffsetNanos("-999999999999m"));
+    }
+
+    @Test
+    public void fullRingEvictsOneFramePerAppend() {
+        // Room for exactly ten frames; append cost is measured in ReplayBufferBenchmark
+        ReplayBuffer buffer = new ReplayBuffer(null, 10 * 1000, 3_600_000);
+        for (int i = 1; i <= 10; i++) {
+            buffer.append(frame(i, 1000), i * MS);
+        }
+        assertEquals(0, buffer.getEvictedCount());
+        assertEquals(buffer.getCapacityBytes(), buffer.getHeldBytes());
+
+        for (int i = 11; i <= 100; i++) {
+            assertTrue(buffer.append(frame(i, 1000), i * MS));
+            assertEquals(i - 10, buffer.getEvictedCount());
+            assertEquals(10, buffer.getFrameCount());
+            assertEquals(i - 10, buffer.getFirstPosition());
+        }
+        assertTrue(buffer.toString(), buffer.toString().contains("bytes=90 age=0 count=0, 90000B"));
+    }
+}
@@ -0,0 +1,212 @@
+package com.sativa.streamscreenandroid2;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RgbaFrameScalerTest {
+
+    private static ByteBuffer plane(int width, int height, int rowStride, int[][] rgb) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(rowStride * height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int p = y * rowStride + x * 4;
+                int c = rgb[y][x];
+                buf.put(p, (byte) (c >> 16));
+                buf.put(p + 1, (byte) (c >> 8));
+                buf.put(p + 2, (byte) c);
+                buf.put(p + 3, (byte) 0xFF);
+            }
+            // Fill row padding with garbage that must never leak into the output
+            for (int p = y * rowStride + width * 4; p < (y + 1) * rowStride; p++) {
+                buf.put(p, (byte) 0x7F);
+            }
+        }
+        return buf;
+    }
+
+    private static int[][] noise(int width, int height, long seed) {
+        Random random = new Random(seed);
+        int[][] rgb = new int[height][width];
+        for (int[] row : rgb) {
+            for (int x = 0; x < width; x++) {
+                row[x] = random.nextInt(0x1000000);
+            }
+        }
+        return rgb;
+    }
+
+    /** Straightforward area average over the source range of every output pixel. */
+    private static int[] reference(int[][] rgb, int width, int height, int dstWidth, int dstHeight, boolean wholeBlocks) {
+        int[] out = new int[dstWidth * dstHeight];
+        for (int dy = 0; dy < dstHeight; dy++) {
+            for (int dx = 0; dx < dstWidth; dx++) {
+                int x0, x1, y0, y1;
+                if (wholeBlocks) {
+                    int kx = width / dstWidth;
+                    int ky = height / dstHeight;
+                    x0 = dx * kx;
+                    x1 = x0 + kx;
+                    y0 = dy * ky;
+                    y1 = y0 + ky;
+                } else {
+                    x0 = dx * width / dstWidth;
+                    x1 = Math.max(x0 + 1, (dx + 1) * width / dstWidth);
+                    y0 = dy * height / dstHeight;
+                    y1 = Math.max(y0 + 1, (dy + 1) * height / dstHeight);
+                }
+                int r = 0, g = 0, b = 0;
+                for (int y = y0; y < y1; y++) {
+                    for (int x = x0; x < x1; x++) {
+                        r += (rgb[y][x] >> 16) & 0xFF;
+                        g += (rgb[y][x] >> 8) & 0xFF;
+                        b += rgb[y][x] & 0xFF;
+                    }
+                }
+                int n = (x1 - x0) * (y1 - y0);
+                out[dy * dstWidth + dx] = 0xFF000000 | (r / n) << 16 | (g / n) << 8 | (b / n);
+            }
+        }
+        return out;
+    }
+
+    @Test
+    public void identityScale_cropsRowPadding() {
+        int[][] rgb = {
+                {0x102030, 0x405060, 0x708090},
+                {0xA0B0C0, 0xD0E0F0, 0x010203},
+        };
+        ByteBuffer buf = plane(3, 2, 3 * 4 + 8, rgb);
+
+        RgbaFrameScaler scaler = new RgbaFrameScaler();
+        scaler.configure(3, 2, 3, 2);
+        int[] out = scaler.scale(buf, 3 * 4 + 8, 4);
+
+        for (int y = 0; y < 2; y++) {
+            for (int x = 0; x < 3; x++) {
+                assertEquals(0xFF000000 | rgb[y][x], out[y * 3 + x]);
+            }
+        }
+    }
+
+    @Test
+    public void halfScale_averagesEachTwoByTwoBlock() {
+        int[][] rgb = {
+                {0x000000, 0x040404, 0xFF0000, 0xFF0000},
+                {0x080808, 0x0C0C0C, 0xFF0000, 0xFF0000},
+        };
+        ByteBuffer buf = plane(4, 2, 4 * 4 + 4, rgb);
+
+        RgbaFrameScaler scaler = new RgbaFrameScaler();
+        scaler.configure(4, 2, 2, 1);
+        int[] out = scaler.scale(buf, 4 * 4 + 4, 4);
+
+        assertEquals(0xFF060606, out[0]);
+        assertEquals(0xFFFF0000, out[1]);
+    }
+
+    @Test
+    public void configure_reallocatesOnlyWhenSizeChanges() {
+        RgbaFrameScaler scaler = new RgbaFrameScaler();
+        assertTrue(scaler.configure(8, 4, 4, 2));
+        assertFalse(scaler.configure(8, 4, 4, 2));
+        assertTrue(scaler.configure(4, 8, 2, 4));
+    }
+
+    @Test
+    public void scale_reusesOutputBuffer() {
+        int[][] rgb = {{0x111111, 0x222222}, {0x333333, 0x444444}};
+        ByteBuffer buf = plane(2, 2, 8, rgb);
+
+        RgbaFrameScaler scaler = new RgbaFrameScaler();
+        scaler.configure(2, 2, 1, 1);
+        int[] first = scaler.scale(buf, 8, 4);
+        int[] second = scaler.scale(buf, 8, 4);
+        assertSame(first, second);
+        assertEquals(0xFF2A2A2A, second[0]);
+    }
+
+    @Test
+    public void wholeRatios_matchReferenceAndDropEdgeRemainder() {
+        // 97x61 at 1/3 and 1/4 leaves one or more spare source columns and rows
+        int[][] rgb = noise(97, 61, 1);
+        int rowStride = 97 * 4 + 12;
+        ByteBuffer buf = plane(97, 61, rowStride, rgb);
+        RgbaFrameScaler scaler = new RgbaFrameScaler();
+        for (int k = 2; k <= 4; k++) {
+            scaler.configure(97, 61, 97 / k, 61 / k);
+            assertArrayEquals(reference(rgb, 97, 61, 97 / k, 61 / k, true), scaler.scale(buf, rowStride, 4));
+        }
+    }
+
+    @Test
+    public void fractionalScale_matchesReference() {
+        int[][] rgb = noise(80, 45, 2);
+        ByteBuffer buf = plane(80, 45, 80 * 4, rgb);
+        RgbaFrameScaler scaler = new RgbaFrameScaler();
+        scaler.configure(80, 45, 60, 34);
+        assertArrayEquals(reference(rgb, 80, 45, 60, 34, false), scaler.scale(buf, 80 * 4, 4));
+    }
+
+    @Test
+    public void scaledSize_snapsToWholeRatios() {
+        assertEquals(1920, RgbaFrameScaler.scaledSize(1920, 1.0f));
+        assertEquals(1440, RgbaFrameScaler.scaledSize(1920, 0.75f));
+        assertEquals(960, RgbaFrameScaler.scaledSize(1920, 0.5f));
+        assertEquals(640, RgbaFrameScaler.scaledSize(1920, 0.33f));
+        assertEquals(360, RgbaFrameScaler.scaledSize(1080, 0.33f));
+        assertEquals(480, RgbaFrameScaler.scaledSize(1920, 0.25f));
+        assertEquals(1, RgbaFrameScaler.scaledSize(3, 0.25f));
+    }
+
+    @Test
+    public void fitScale_limitsLongEdge() {
+        assertEquals(0.5f, RgbaFrameScaler.fitScale(1920, 1080, 0.5f, 0), 0f);
+        assertEquals(0.5f, RgbaFrameScaler.fitScale(1920, 1080, 0.5f, 1280), 0f);
+        assertEquals(0.5f, RgbaFrameScaler.fitScale(1080, 1920, 1.0f, 960), 0f);
+    }
+
+    @Test
+    public void bands_matchSingleThread() {
+        int width = 1280;
+        int height = 720;
+        int[][] rgb = noise(width, height, 3);
+        int rowStride = width * 4 + 64;
+        ByteBuffer buf = plane(width, height, rowStride, rgb);
+        RgbaFrameScaler serial = new RgbaFrameScaler();
+        RgbaFrameScaler parallel = new RgbaFrameScaler(4);
+        try {
+            for (float scale : new float[]{1.0f, 0.75f, 0.5f, 0.33f}) {
+                int w = RgbaFrameScaler.scaledSize(width, scale);
+                int h = RgbaFrameScaler.scaledSize(height, scale);
+                serial.configure(width, height, w, h);
+                parallel.configure(width, height, w, h);
+                assertArrayEquals("scale " + scale, serial.scale(buf, rowStride, 4), parallel.scale(buf, rowStride, 4));
+                assertEquals(0, buf.position());
+            }
+        } finally {
+            parallel.release();
+        }
+    }
+
+    @Test
+    public void scalesOnCallingThreadAfterRelease() {
+        int width = 1280;
+        int height = 720;
+        int rowStride = width * 4;
+        ByteBuffer buf = plane(width, height, rowStride, noise(width, height, 5));
+        RgbaFrameScaler serial = new RgbaFrameScaler();
+        RgbaFrameScaler parallel = new RgbaFrameScaler(4);
+        serial.configure(width, height, width / 2, height / 2);
+        parallel.configure(width, height, width / 2, height / 2);
+        int[] expected = serial.scale(buf, rowStride, 4).clone();
+        assertArrayEquals(expected, parallel.scale(buf, rowStride, 4));
+
+        parallel.release();
+        assertArrayEquals(expected, parallel.scale(buf, rowStride, 4));
+        parallel.release();
+    }
+}
@@ -0,0 +1,67 @@
+package com.sativa.streamscreenandroid2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ScalePyramidTest {
+
+    @Test
+    public void halveAveragesEachChannel() {
+        int[] src = {
+                0xFF000000, 0xFF040404,
+                0xFF08FF00, 0xFF0C00FF,
+        };
+        int[] dst = new int[1];
+        ScalePyramid.halve(src, 2, 2, dst, 1, 1);
+        // (0+4+8+12)/4 = 6, (0+4+255+0)/4 = 64, (0+4+0+255)/4 = 64
+        assertEquals(0xFF064040, dst[0]);
+    }
+
+    @Test
+    public void halveKeepsSaturatedWhite() {
+        int[] src = new int[16];
+        java.util.Arrays.fill(src, 0xFFFFFFFF);
+        int[] dst = new int[4];
+        ScalePyramid.halve(src, 4, 4, dst, 2, 2);
+        for (int p : dst) {
+            assertEquals(0xFFFFFFFF, p);
+        }
+    }
+
+    @Test
+    public void derivesSmallerLevelsFromBase() {
+        ScalePyramid pyramid = new ScalePyramid();
+        int[] base = new int[8 * 6];
+        for (int i = 0; i < base.length; i++) {
+            base[i] = 0xFF000000 | (i % 8) * 16;
+        }
+        pyramid.setBase(0, base, 8, 6);
+
+        assertSame(base, pyramid.get(0));
+        assertEquals(4, pyramid.getWidth(1));
+        assertEquals(3, pyramid.getHeight(1));
+        assertEquals(2, pyramid.getWidth(2));
+        assertEquals(1, pyramid.getHeight(2));
+        // Columns 0,1 -> 8; then columns 0..3 of level 0 -> (0+16+32+48)/4 = 24
+        assertEquals(0xFF000008, pyramid.get(1)[0]);
+        assertEquals(0xFF000018, pyramid.get(2)[0]);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void levelsAboveBaseAreNotAvailable() {
+        ScalePyramid pyramid = new ScalePyramid();
+        pyramid.setBase(1, new int[4], 2, 2);
+        pyramid.get(0);
+    }
+
+    @Test
+    public void renditionFromViewport() {
+        // 1080x2400 phone capture
+        assertEquals(Rendition.FULL, Rendition.forViewport(3840, 2160, 1080, 2400));
+        assertEquals(Rendition.HALF, Rendition.forViewport(1920, 1080, 1080, 2400));
+        assertEquals(Rendition.QUARTER, Rendition.forViewport(480, 600, 1080, 2400));
+        assertEquals(Rendition.HALF, Rendition.fromParam("Half"));
+        assertNull(Rendition.fromParam("tiny"));
+    }
+}
@@ -0,0 +1,74 @@
+package com.sativa.streamscreenandroid2;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.*;
+
+public class StripedEncoderTest {
+
+    @Test
+    public void splitStripes_alignsToMcuRows() {
+        int[] out = new int[4 * 4];
+        int count = StripedEncoder.splitStripes(640, 360, 4, 16, out);
+
+        // ceil(360 / 4) = 90 -> 96 rows per stripe
+        assertEquals(4, count);
+        assertArrayEquals(new int[]{0, 0, 640, 96}, Arrays.copyOfRange(out, 0, 4));
+        assertArrayEquals(new int[]{0, 288, 640, 72}, Arrays.copyOfRange(out, 12, 16));
+    }
+
+    @Test
+    public void splitStripes_mayUseFewerStripesThanRequested() {
+        int[] out = new int[8 * 4];
+        int count = StripedEncoder.splitStripes(100, 20, 8, 16, out);
+        assertEquals(2, count);
+        assertEquals(4, out[7]);
+    }
+
+    @Test
+    public void encodeAll_keepsOrderAndNeverSharesAWorker() throws Exception {
+        StripedEncoder encoder = new StripedEncoder(4);
+        try {
+            int count = 10;
+            int[] rects = new int[count * 4];
+            for (int i = 0; i < count; i++) {
+                rects[i * 4 + 1] = i * 16;
+                rects[i * 4 + 2] = 64;
+                rects[i * 4 + 3] = 16;
+            }
+            AtomicIntegerArray busy = new AtomicIntegerArray(4);
+
+            byte[][] out = encoder.encodeAll(rects, count, (worker, x, y, w, h) -> {
+                assertEquals("worker index reused concurrently", 0, busy.getAndIncrement(worker));
+                Thread.sleep(5);
+                busy.decrementAndGet(worker);
+                return new byte[]{(byte) (y / 16)};
+            });
+
+            for (int i = 0; i < count; i++) {
+                assertEquals(i, out[i][0]);
+            }
+        } finally {
+            encoder.shutdown();
+        }
+    }
+
+    @Test
+    public void encodeAll_propagatesCodecFailure() {
+        StripedEncoder encoder = new StripedEncoder(2);
+        try {
+            int[] rects = new int[3 * 4];
+            encoder.encodeAll(rects, 3, (worker, x, y, w, h) -> {
+                throw new IllegalStateException("boom");
+            });
+            fail("expected exception");
+        } catch (Exception e) {
+            assertTrue(e instanceof IllegalStateException);
+        } finally {
+            encoder.shutdown();
+        }
+    }
+}
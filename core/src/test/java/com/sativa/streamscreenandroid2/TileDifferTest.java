@@ -0,0 +1,88 @@
+package com.sativa.streamscreenandroid2;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TileDifferTest {
+
+    private static final int W = 40;
+    private static final int H = 25;
+
+    private static int[] frame(int color) {
+        int[] pixels = new int[W * H];
+        Arrays.fill(pixels, color);
+        return pixels;
+    }
+
+    @Test
+    public void firstFrame_isFullyDirty() {
+        TileDiffer differ = new TileDiffer(16);
+        differ.configure(W, H);
+
+        // 3 x 2 tiles, merged into one rectangle per tile row
+        int rects = differ.diff(frame(0xFF000000));
+        assertEquals(2, rects);
+        assertEquals(6, differ.getDirtyTileCount());
+        int[] r = differ.getRects();
+        assertArrayEquals(new int[]{0, 0, 40, 16}, Arrays.copyOfRange(r, 0, 4));
+        assertArrayEquals(new int[]{0, 16, 40, 9}, Arrays.copyOfRange(r, 4, 8));
+    }
+
+    @Test
+    public void identicalFrame_producesNoRects() {
+        TileDiffer differ = new TileDiffer(16);
+        differ.configure(W, H);
+        differ.diff(frame(0xFF102030));
+
+        assertEquals(0, differ.diff(frame(0xFF102030)));
+        assertEquals(0, differ.getDirtyTileCount());
+    }
+
+    @Test
+    public void singlePixelChange_marksOnlyItsTile() {
+        TileDiffer differ = new TileDiffer(16);
+        differ.configure(W, H);
+        differ.diff(frame(0xFF000000));
+
+        int[] next = frame(0xFF000000);
+        next[20 * W + 35] = 0xFFFFFFFF; // tile (2, 1), a clipped edge tile
+
+        assertEquals(1, differ.diff(next));
+        assertTrue(differ.isTileDirty(2, 1));
+        assertFalse(differ.isTileDirty(1, 1));
+        assertArrayEquals(new int[]{32, 16, 8, 9}, Arrays.copyOfRange(differ.getRects(), 0, 4));
+
+        // The reference frame was updated, so the same frame is clean next time
+        assertEquals(0, differ.diff(next));
+    }
+
+    @Test
+    public void nonAdjacentTiles_areNotMerged() {
+        TileDiffer differ = new TileDiffer(16);
+        differ.configure(W, H);
+        differ.diff(frame(0xFF000000));
+
+        int[] next = frame(0xFF000000);
+        next[0] = 0xFF00FF00;      // tile (0, 0)
+        next[W - 1] = 0xFF00FF00;  // tile (2, 0)
+
+        assertEquals(2, differ.diff(next));
+        int[] r = differ.getRects();
+        assertArrayEquals(new int[]{0, 0, 16, 16}, Arrays.copyOfRange(r, 0, 4));
+        assertArrayEquals(new int[]{32, 0, 8, 16}, Arrays.copyOfRange(r, 4, 8));
+    }
+
+    @Test
+    public void invalidate_forcesFullDiff() {
+        TileDiffer differ = new TileDiffer(16);
+        differ.configure(W, H);
+        differ.diff(frame(0xFF000000));
+
+        differ.invalidate();
+        differ.diff(frame(0xFF000000));
+        assertEquals(differ.getTileCount(), differ.getDirtyTileCount());
+    }
+}
@@ -0,0 +1,53 @@
+package com.sativa.streamscreenandroid2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TilePacketTest {
+
+    @Test
+    public void writerOutput_roundTripsThroughParse() {
+        byte[] a = {1, 2, 3};
+        byte[] b = {9, 8, 7, 6, 5};
+
+        TilePacket.Writer writer = new TilePacket.Writer();
+        writer.begin(42, false, 1280, 720);
+        writer.addTile(64, 128, 192, 64, a, 0, a.length);
+        writer.addTile(0, 640, 64, 80, b, 1, 3);
+        byte[] data = writer.finish();
+
+        TilePacket packet = TilePacket.parse(data);
+        assertFalse(packet.keyframe);
+        assertEquals(42, packet.sequence);
+        assertEquals(1280, packet.frameWidth);
+        assertEquals(720, packet.frameHeight);
+        assertEquals(2, packet.tiles.size());
+
+        TilePacket.Tile first = packet.tiles.get(0);
+        assertEquals(64, first.x);
+        assertEquals(128, first.y);
+        assertEquals(192, first.width);
+        assertEquals(64, first.height);
+        assertArrayEquals(a, first.jpeg);
+        assertArrayEquals(new byte[]{8, 7, 6}, packet.tiles.get(1).jpeg);
+    }
+
+    @Test
+    public void writer_isReusableAcrossPackets() {
+        byte[] jpeg = {4, 4};
+        TilePacket.Writer writer = new TilePacket.Writer();
+        writer.begin(1, false, 10, 10);
+        writer.addTile(0, 0, 5, 5, jpeg, 0, 2);
+        writer.finish();
+
+        writer.begin(2, true, 10, 10);
+        writer.addTile(0, 0, 10, 10, jpeg, 0, 2);
+        TilePacket packet = TilePacket.parse(writer.finish());
+
+        assertTrue(packet.keyframe);
+        assertEquals(1, packet.tiles.size());
+        assertEquals(TilePacket.HEADER_SIZE + TilePacket.TILE_HEADER_SIZE + 2 + 4,
+                writer.finish().length);
+    }
+}
@@ -0,0 +1,75 @@
+package com.sativa.streamscreenandroid2;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ViewerSessionsTest {
+
+    private static final long MINUTE = 60_000_000_000L;
+
+    private static ViewerSessions sessions(String password) {
+        ViewerSessions sessions = new ViewerSessions(10 * MINUTE);
+        sessions.setPassword(password);
+        return sessions;
+    }
+
+    @Test
+    public void loginRequiresPassword() {
+        ViewerSessions sessions = sessions("secret");
+        assertNull(sessions.login("wrong"));
+        assertNull(sessions.login(null));
+        String token = sessions.login("secret");
+        assertNotNull(token);
+        assertNotEquals("secret", token);
+        assertTrue(sessions.authorize(token));
+        // Logging in again with a live session keeps it
+        assertEquals(token, sessions.login(token));
+        assertEquals(1, sessions.getSessionCount());
+    }
+
+    @Test
+    public void unsetPasswordMatchesNothing() {
+        ViewerSessions sessions = new ViewerSessions();
+        assertFalse(sessions.checkPassword(""));
+        assertNull(sessions.login(""));
+    }
+
+    @Test
+    public void sessionsExpireWhenIdle() {
+        ViewerSessions sessions = sessions("secret");
+        long now = 1_000;
+        String token = sessions.createSession(now);
+        // Each use extends the session
+        assertTrue(sessions.isValid(token, now + 9 * MINUTE));
+        assertTrue(sessions.isValid(token, now + 18 * MINUTE));
+        assertFalse(sessions.isValid(token, now + 29 * MINUTE));
+        assertEquals(0, sessions.getSessionCount());
+    }
+
+    @Test
+    public void passwordChangeEndsSessions() {
+        ViewerSessions sessions = sessions("secret");
+        String token = sessions.createSession();
+        sessions.setPassword("secret");
+        assertTrue(sessions.isValid(token));
+        sessions.setPassword("other");
+        assertFalse(sessions.isValid(token));
+        assertFalse(sessions.checkPassword("secret"));
+        assertTrue(sessions.checkPassword("other"));
+    }
+
+    @Test
+    public void tableIsBounded() {
+        ViewerSessions sessions = sessions("secret");
+        Set<String> tokens = new HashSet<>();
+        for (int i = 0; i < ViewerSessions.MAX_SESSIONS * 2; i++) {
+            tokens.add(sessions.createSession(i));
+        }
+        assertEquals(ViewerSessions.MAX_SESSIONS * 2, tokens.size());
+        assertEquals(ViewerSessions.MAX_SESSIONS, sessions.getSessionCount());
+    }
+}
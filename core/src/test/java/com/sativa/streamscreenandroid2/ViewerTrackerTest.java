@@ -0,0 +1,70 @@
+package com.sativa.streamscreenandroid2;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ViewerTrackerTest {
+
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    public void streamsCountUntilClosed() {
+        ViewerTracker tracker = new ViewerTracker(10 * SECOND);
+        Object a = new Object();
+        Object b = new Object();
+        tracker.onOpened(a);
+        tracker.onOpened(b);
+        assertEquals(2, tracker.getViewerCount(0));
+        // Streams do not time out, however long they sit without a frame
+        assertEquals(2, tracker.getViewerCount(3600 * SECOND));
+        tracker.onClosed(a);
+        tracker.onClosed(a);
+        assertEquals(1, tracker.getViewerCount(0));
+        tracker.onClosed(b);
+        assertEquals(0, tracker.getViewerCount(0));
+    }
+
+    @Test
+    public void pollersExpireWhenIdle() {
+        ViewerTracker tracker = new ViewerTracker(10 * SECOND);
+        tracker.onRequest("token", 0);
+        tracker.onRequest("token", 5 * SECOND);
+        tracker.onRequest("other", 5 * SECOND);
+        assertEquals(2, tracker.getViewerCount(14 * SECOND));
+        assertEquals(0, tracker.getViewerCount(15 * SECOND));
+    }
+
+    @Test
+    public void listenerFiresOnFirstArrivalOnly() {
+        ViewerTracker tracker = new ViewerTracker(10 * SECOND);
+        AtomicInteger arrivals = new AtomicInteger();
+        tracker.setListener(arrivals::incrementAndGet);
+
+        tracker.onRequest("token", 0);
+        tracker.onRequest("token", SECOND);
+        tracker.onOpened("stream");
+        assertEquals(1, arrivals.get());
+
+        // Once a count has come out at zero the next viewer is reported again
+        tracker.onClosed("stream");
+        assertEquals(0, tracker.getViewerCount(20 * SECOND));
+        assertEquals(1, arrivals.get());
+        tracker.onOpened("stream");
+        assertEquals(2, arrivals.get());
+    }
+
+    @Test
+    public void pollerTableIsBounded() {
+        ViewerTracker tracker = new ViewerTracker(10 * SECOND);
+        for (int i = 0; i < ViewerTracker.MAX_POLLERS * 2; i++) {
+            tracker.onRequest("token" + i, i);
+        }
+        assertEquals(ViewerTracker.MAX_POLLERS, tracker.getViewerCount(ViewerTracker.MAX_POLLERS * 2));
+        // Expired entries make room
+        tracker.onRequest("late", 20 * SECOND);
+        assertEquals(1, tracker.getViewerCount(20 * SECOND));
+    }
+}
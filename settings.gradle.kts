@@ -21,3 +21,5 @@ dependencyResolutionManagement {
 
 rootProject.name = "StreamScreenAndroid2"
 include(":app")
+include(":core")
+include(":benchmark")